@@ -0,0 +1,82 @@
+package mapper;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Benchmarks for aligning reads once we know approximately where they belong, and for the whole alignment process
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Alignment_Benchmark {
+  @Param({"1000000"})
+  public int referenceLength;
+
+  @Param({"150"})
+  public int readLength;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.data = new BenchmarkData(this.referenceLength, this.readLength, 1000, 0);
+    this.parameters = BenchmarkData.newParameters();
+    this.referenceDatabase = Api.newDatabase(this.data.referenceText, Logger.NoOpLogger);
+    this.pathAligner = new PathAligner_Runner();
+    this.pathAligner.setLogger(Logger.NoOpLogger);
+  }
+
+  // PathAligner.align: aligns a read to the area of the reference that it came from
+  @Benchmark
+  public SequenceAlignment pathAlign() {
+    int readIndex = this.nextReadIndex();
+    Sequence read = this.data.reads.get(readIndex);
+    int position = this.data.readPositions[readIndex];
+    double maxInterestingPenalty = read.getLength() * this.parameters.MaxErrorRate;
+    int maxShift = (int)((maxInterestingPenalty - this.parameters.DeletionStart_Penalty) / this.parameters.DeletionExtension_Penalty);
+    int referenceStart = Math.max(0, position - maxShift);
+    int referenceEnd = Math.min(this.data.reference.getLength(), position + read.getLength() + maxShift);
+
+    AlignmentAnalysis analysis = new AlignmentAnalysis();
+    analysis.predictedBestOffset = position;
+    analysis.confidentAboutBestOffset = true;
+    analysis.maxInsertionExtensionPenalty = maxInterestingPenalty - this.parameters.InsertionStart_Penalty;
+    analysis.maxDeletionExtensionPenalty = maxInterestingPenalty - this.parameters.DeletionStart_Penalty;
+    return this.pathAligner.align(new SequenceSection(read, 0, read.getLength()), new SequenceSection(this.data.reference, referenceStart, referenceEnd), this.parameters, analysis);
+  }
+
+  // QueryMatch_Aligner.align: aligns a read at the offset it came from, using the full chain of local aligners
+  @Benchmark
+  public QueryAlignment queryMatchAlign() {
+    int readIndex = this.nextReadIndex();
+    Sequence read = this.data.reads.get(readIndex);
+    QueryMatch_Aligner aligner = new QueryMatch_Aligner(new Query(read), this.parameters, Logger.NoOpLogger);
+    QueryMatch match = new QueryMatch(new SequenceMatch(read, this.data.reference, this.data.readPositions[readIndex]), 0);
+    return aligner.align(match);
+  }
+
+  // Api.align: finds the best alignments of a read anywhere in the reference
+  @Benchmark
+  public List<QueryAlignment> apiAlign() {
+    String readText = this.data.readTexts.get(this.nextReadIndex());
+    return Api.align(readText, this.referenceDatabase, this.parameters, Logger.NoOpLogger);
+  }
+
+  private int nextReadIndex() {
+    int result = this.readIndex;
+    this.readIndex = (this.readIndex + 1) % this.data.reads.size();
+    return result;
+  }
+
+  private BenchmarkData data;
+  private AlignmentParameters parameters;
+  private ReferenceDatabase referenceDatabase;
+  private PathAligner_Runner pathAligner;
+  private int readIndex;
+}
@@ -0,0 +1,97 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// BenchmarkData generates reproducible synthetic references and reads for benchmarks
+public class BenchmarkData {
+  public BenchmarkData(int referenceLength, int readLength, int numReads, long seed) {
+    this.random = new Random(seed);
+    this.referenceText = this.generateReference(referenceLength);
+    this.reference = new SequenceBuilder().setName("reference").add(this.referenceText).build();
+    List<Sequence> sequences = new ArrayList<Sequence>(2);
+    sequences.add(this.reference);
+    sequences.add(this.reference.reverseComplement());
+    this.sequenceDatabase = new SequenceDatabase(sequences);
+
+    this.readPositions = new int[numReads];
+    this.readTexts = new ArrayList<String>(numReads);
+    this.reads = new ArrayList<Sequence>(numReads);
+    for (int i = 0; i < numReads; i++) {
+      int position = this.random.nextInt(referenceLength - readLength * 2);
+      String readText = this.mutate(this.referenceText.substring(position, position + readLength));
+      this.readPositions[i] = position;
+      this.readTexts.add(readText);
+      this.reads.add(new SequenceBuilder().setName("read" + i).add(readText).build());
+    }
+  }
+
+  // The same parameters that Mapper uses by default
+  public static AlignmentParameters newParameters() {
+    AlignmentParameters parameters = new AlignmentParameters();
+    parameters.MutationPenalty = 1;
+    parameters.DeletionStart_Penalty = 1.5;
+    parameters.DeletionExtension_Penalty = 0.5;
+    parameters.InsertionStart_Penalty = 1.5;
+    parameters.MaxErrorRate = 0.1;
+    parameters.AmbiguityPenalty = parameters.MaxErrorRate;
+    parameters.UnalignedPenalty = parameters.AmbiguityPenalty;
+    parameters.InsertionExtension_Penalty = parameters.DeletionExtension_Penalty + parameters.AmbiguityPenalty;
+    parameters.Max_PenaltySpan = parameters.MutationPenalty / 2;
+    return parameters;
+  }
+
+  // Makes a random reference containing some duplicated regions, so that some reads match in multiple places
+  private String generateReference(int length) {
+    StringBuilder builder = new StringBuilder(length);
+    while (builder.length() < length) {
+      if (builder.length() > 10000 && this.random.nextInt(10) == 0) {
+        // copy an earlier section, with a few differences
+        int copyLength = Math.min(200 + this.random.nextInt(2000), length - builder.length());
+        int copyStart = this.random.nextInt(builder.length() - copyLength);
+        builder.append(this.mutate(builder.substring(copyStart, copyStart + copyLength)));
+      } else {
+        int sectionLength = Math.min(1000 + this.random.nextInt(5000), length - builder.length());
+        for (int i = 0; i < sectionLength; i++) {
+          builder.append(this.randomBase());
+        }
+      }
+    }
+    builder.setLength(length);
+    return builder.toString();
+  }
+
+  // applies a point mutation to about 1 percent of basepairs and an indel to about 0.1 percent of basepairs
+  private String mutate(String text) {
+    StringBuilder builder = new StringBuilder(text.length() + 4);
+    for (int i = 0; i < text.length(); i++) {
+      int choice = this.random.nextInt(1000);
+      if (choice < 10) {
+        builder.append(this.randomBase());
+      } else if (choice < 11) {
+        // deletion
+      } else if (choice < 12) {
+        // insertion
+        builder.append(text.charAt(i));
+        builder.append(this.randomBase());
+      } else {
+        builder.append(text.charAt(i));
+      }
+    }
+    return builder.toString();
+  }
+
+  private char randomBase() {
+    return "ACGT".charAt(this.random.nextInt(4));
+  }
+
+  public Random random;
+  public String referenceText;
+  public Sequence reference;
+  public SequenceDatabase sequenceDatabase;
+  // the position that each read was taken from
+  public int[] readPositions;
+  public List<String> readTexts;
+  public List<Sequence> reads;
+}
@@ -0,0 +1,108 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Benchmarks for breaking sequences into hashblocks and looking them up in the reference
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Hashing_Benchmark {
+  @Param({"1000000"})
+  public int referenceLength;
+
+  @Param({"150"})
+  public int readLength;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.data = new BenchmarkData(this.referenceLength, this.readLength, 1000, 0);
+    HashBlock_Database database = new HashBlock_Database(this.data.sequenceDatabase, new StatusLogger(Logger.NoOpLogger, System.currentTimeMillis()));
+    this.database = database.getView();
+    this.database.prepare();
+    this.parameters = BenchmarkData.newParameters();
+
+    // collect the hashblocks of each read, for measuring lookups separately from hashing
+    this.queryBlocks = new ArrayList<HashBlock>();
+    for (Sequence read: this.data.reads) {
+      HashBlock_Pyramid pyramid = new HashBlock_Pyramid(new HashBlock_Stream(read, false, null));
+      for (int level = 0; level < maxNumLevels; level++) {
+        HashBlock_Row row = pyramid.get(level);
+        IMultiHashBlock block = row.getAfter(-1);
+        if (block == null)
+          break;
+        while (block != null) {
+          HashBlock single = block.getSingle();
+          if (single != null)
+            this.queryBlocks.add(single);
+          block = row.getAfter(block.getStartIndex());
+        }
+      }
+    }
+  }
+
+  // HashBlock_Stream and HashBlock_Pyramid: generates every hashblock of one read
+  @Benchmark
+  public int hashRead(Blackhole blackhole) {
+    Sequence read = this.nextRead();
+    HashBlock_Pyramid pyramid = new HashBlock_Pyramid(new HashBlock_Stream(read, false, null));
+    int numBlocks = 0;
+    for (int level = 0; level < maxNumLevels; level++) {
+      HashBlock_Row row = pyramid.get(level);
+      IMultiHashBlock block = row.getAfter(-1);
+      if (block == null)
+        break;
+      while (block != null) {
+        blackhole.consume(block);
+        numBlocks++;
+        block = row.getAfter(block.getStartIndex());
+      }
+    }
+    return numBlocks;
+  }
+
+  // PackedMap.get: looks up one hashblock in the reference
+  @Benchmark
+  public SequencePosition[] lookupBlock() {
+    HashBlock block = this.queryBlocks.get(this.nextBlockIndex);
+    this.nextBlockIndex = (this.nextBlockIndex + 1) % this.queryBlocks.size();
+    return this.database.matchBlock(block);
+  }
+
+  // Counting_HashBlockPath.step: finds and counts the hashblock matches of one read
+  @Benchmark
+  public Counting_HashBlockPath countMatches() {
+    Sequence read = this.nextRead();
+    HashBlock_Pyramid pyramid = new HashBlock_Pyramid(new HashBlock_Stream(read, false, null));
+    Counting_HashBlockPath path = new Counting_HashBlockPath(pyramid, this.database, this.data.sequenceDatabase, read, "seq", Logger.NoOpLogger, this.parameters);
+    while (path.step()) {
+    }
+    return path;
+  }
+
+  private Sequence nextRead() {
+    Sequence read = this.data.reads.get(this.nextReadIndex);
+    this.nextReadIndex = (this.nextReadIndex + 1) % this.data.reads.size();
+    return read;
+  }
+
+  private static int maxNumLevels = 64;
+
+  private BenchmarkData data;
+  private Readable_HashBlock_Database database;
+  private AlignmentParameters parameters;
+  private List<HashBlock> queryBlocks;
+  private int nextReadIndex;
+  private int nextBlockIndex;
+}
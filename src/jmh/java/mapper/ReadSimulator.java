@@ -0,0 +1,252 @@
+package mapper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// A ReadSimulator generates a synthetic reference and simulated reads from it, and remembers where each read came from
+public class ReadSimulator {
+  public ReadSimulator(long seed) {
+    this.random = new Random(seed);
+  }
+
+  // Generates <numContigs> contigs totalling <length> basepairs
+  // <repeatFraction> of the reference consists of mutated copies of earlier parts of the reference
+  public void generateReference(long length, int numContigs, double repeatFraction) {
+    this.contigNames = new ArrayList<String>(numContigs);
+    this.contigs = new ArrayList<String>(numContigs);
+    for (int i = 0; i < numContigs; i++) {
+      int contigLength = (int)(length / numContigs);
+      this.contigNames.add("contig" + (i + 1));
+      this.contigs.add(this.generateContig(contigLength, repeatFraction));
+    }
+  }
+
+  // Simulates <numReads> reads (or read pairs, if <pairedInnerDistance> >= 0)
+  // A <duplicateFraction> of the reads are exact copies of earlier reads
+  public void simulateReads(int numReads, int readLength, int pairedInnerDistance, double snpRate, double indelRate, double duplicateFraction) {
+    this.paired = (pairedInnerDistance >= 0);
+    this.lefts = new ArrayList<String>(numReads);
+    this.rights = new ArrayList<String>(numReads);
+    this.truthContigs = new int[numReads];
+    this.truthLeftPositions = new int[numReads];
+    this.truthRightPositions = new int[numReads];
+    for (int i = 0; i < numReads; i++) {
+      if (i > 0 && this.random.nextDouble() < duplicateFraction) {
+        int original = this.random.nextInt(i);
+        this.lefts.add(this.lefts.get(original));
+        this.rights.add(this.rights.get(original));
+        this.truthContigs[i] = this.truthContigs[original];
+        this.truthLeftPositions[i] = this.truthLeftPositions[original];
+        this.truthRightPositions[i] = this.truthRightPositions[original];
+        continue;
+      }
+      int fragmentLength = readLength;
+      if (this.paired) {
+        // vary the inner distance a little, like a real library
+        int innerDistance = Math.max(0, pairedInnerDistance + (int)(this.random.nextGaussian() * pairedInnerDistance / 10));
+        fragmentLength = readLength * 2 + innerDistance;
+      }
+      // Contigs shorter than the fragment can't hold it, and we also leave some room for insertions
+      int contigIndex = this.chooseContig(fragmentLength + readLength);
+      String contig = this.contigs.get(contigIndex);
+      int start = this.random.nextInt(Math.max(1, contig.length() - fragmentLength - readLength));
+      String fragment = contig.substring(start, start + fragmentLength);
+      int rightStart = start + fragmentLength - readLength;
+      String left = this.mutate(fragment.substring(0, readLength), snpRate, indelRate);
+      String right = this.reverseComplement(this.mutate(fragment.substring(fragmentLength - readLength), snpRate, indelRate));
+      boolean swap = this.random.nextBoolean();
+      if (!this.paired && swap) {
+        // single-end read from the reverse strand
+        left = this.reverseComplement(left);
+      }
+      if (this.paired && swap) {
+        String temp = left;
+        left = right;
+        right = temp;
+        this.truthLeftPositions[i] = rightStart;
+        this.truthRightPositions[i] = start;
+      } else {
+        this.truthLeftPositions[i] = start;
+        this.truthRightPositions[i] = rightStart;
+      }
+      this.truthContigs[i] = contigIndex;
+      this.lefts.add(left);
+      this.rights.add(right);
+    }
+  }
+
+  // Chooses a random contig having at least <minLength> basepairs
+  private int chooseContig(int minLength) {
+    List<Integer> candidates = new ArrayList<Integer>();
+    for (int i = 0; i < this.contigs.size(); i++) {
+      if (this.contigs.get(i).length() >= minLength)
+        candidates.add(i);
+    }
+    if (candidates.size() < 1)
+      throw new IllegalArgumentException("No contig has at least " + minLength + " basepairs to simulate a read from");
+    return candidates.get(this.random.nextInt(candidates.size()));
+  }
+
+  public void writeReference(File file) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    for (int i = 0; i < this.contigs.size(); i++) {
+      writer.write(">" + this.contigNames.get(i) + "\n");
+      String contig = this.contigs.get(i);
+      for (int start = 0; start < contig.length(); start += 80) {
+        writer.write(contig, start, Math.min(80, contig.length() - start));
+        writer.write("\n");
+      }
+    }
+    writer.close();
+  }
+
+  // Writes the reads to a fastq file. If <right> is true, writes the second read of each pair
+  public void writeReads(File file, boolean right) throws IOException {
+    List<String> reads;
+    if (right)
+      reads = this.rights;
+    else
+      reads = this.lefts;
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    for (int i = 0; i < reads.size(); i++) {
+      String read = reads.get(i);
+      writer.write("@" + getReadName(i) + "\n");
+      writer.write(read);
+      writer.write("\n+\n");
+      for (int j = 0; j < read.length(); j++) {
+        writer.write('I');
+      }
+      writer.write("\n");
+    }
+    writer.close();
+  }
+
+  public static String getReadName(int index) {
+    return "read" + index;
+  }
+
+  // Returns the index of the read having the given name, or -1 if it didn't come from us
+  public static int parseReadName(String name) {
+    if (!name.startsWith("read"))
+      return -1;
+    try {
+      return Integer.parseInt(name.substring(4));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // Tells whether an alignment of the given read to the given position (0-based, leftmost) is where the read came from
+  public boolean isCorrect(int readIndex, boolean right, String contigName, int position, int tolerance) {
+    if (!this.contigNames.get(this.truthContigs[readIndex]).equals(contigName))
+      return false;
+    int expected;
+    if (right)
+      expected = this.truthRightPositions[readIndex];
+    else
+      expected = this.truthLeftPositions[readIndex];
+    return Math.abs(position - expected) <= tolerance;
+  }
+
+  public int getNumReads() {
+    return this.lefts.size();
+  }
+
+  public boolean isPaired() {
+    return this.paired;
+  }
+
+  private String generateContig(int length, double repeatFraction) {
+    StringBuilder builder = new StringBuilder(length);
+    while (builder.length() < length) {
+      int remaining = length - builder.length();
+      if (builder.length() > 10000 && this.random.nextDouble() < repeatFraction) {
+        // copy an earlier section, with a few differences
+        int copyLength = Math.min(200 + this.random.nextInt(5000), remaining);
+        int copyStart = this.random.nextInt(builder.length() - copyLength);
+        builder.append(this.mutate(builder.substring(copyStart, copyStart + copyLength), 0.01, 0.001));
+      } else {
+        int sectionLength = Math.min(200 + this.random.nextInt(5000), remaining);
+        for (int i = 0; i < sectionLength; i++) {
+          builder.append(this.randomBase());
+        }
+      }
+    }
+    builder.setLength(length);
+    return builder.toString();
+  }
+
+  // Applies point mutations at rate <snpRate> and single-basepair indels at rate <indelRate>
+  private String mutate(String text, double snpRate, double indelRate) {
+    StringBuilder builder = new StringBuilder(text.length() + 4);
+    for (int i = 0; i < text.length(); i++) {
+      double choice = this.random.nextDouble();
+      if (choice < snpRate) {
+        builder.append(this.differentBase(text.charAt(i)));
+      } else if (choice < snpRate + indelRate / 2) {
+        // deletion
+      } else if (choice < snpRate + indelRate) {
+        // insertion
+        builder.append(text.charAt(i));
+        builder.append(this.randomBase());
+      } else {
+        builder.append(text.charAt(i));
+      }
+    }
+    return builder.toString();
+  }
+
+  private String reverseComplement(String text) {
+    StringBuilder builder = new StringBuilder(text.length());
+    for (int i = text.length() - 1; i >= 0; i--) {
+      char c = text.charAt(i);
+      switch (c) {
+        case 'A':
+          builder.append('T');
+          break;
+        case 'C':
+          builder.append('G');
+          break;
+        case 'G':
+          builder.append('C');
+          break;
+        case 'T':
+          builder.append('A');
+          break;
+        default:
+          builder.append(c);
+          break;
+      }
+    }
+    return builder.toString();
+  }
+
+  private char randomBase() {
+    return "ACGT".charAt(this.random.nextInt(4));
+  }
+
+  private char differentBase(char original) {
+    while (true) {
+      char result = this.randomBase();
+      if (result != original)
+        return result;
+    }
+  }
+
+  private Random random;
+  private List<String> contigNames;
+  private List<String> contigs;
+
+  private boolean paired;
+  private List<String> lefts;
+  private List<String> rights;
+  // where each read came from
+  private int[] truthContigs;
+  private int[] truthLeftPositions;
+  private int[] truthRightPositions;
+}
@@ -0,0 +1,333 @@
+package mapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Throughput_Benchmark runs the whole Mapper pipeline in-process on simulated reads and reports how fast and how accurate it was
+// Run it via `./gradlew throughputBenchmark -PbenchmarkArgs="<arguments>"`
+public class Throughput_Benchmark {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    long referenceLength = 10000000;
+    int numContigs = 1;
+    double repeatFraction = 0.1;
+    int numReads = 100000;
+    int readLength = 150;
+    int pairedInnerDistance = -1;
+    double snpRate = 0.01;
+    double indelRate = 0.001;
+    double duplicateFraction = 0;
+    int numThreads = 1;
+    boolean useCache = true;
+    long seed = 0;
+    File workDir = new File("build/throughput-benchmark");
+    String outJsonPath = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ("--reference-length".equals(arg)) {
+        referenceLength = Long.parseLong(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--num-contigs".equals(arg)) {
+        numContigs = Integer.parseInt(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--repeat-fraction".equals(arg)) {
+        repeatFraction = Double.parseDouble(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--num-reads".equals(arg)) {
+        numReads = Integer.parseInt(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--read-length".equals(arg)) {
+        readLength = Integer.parseInt(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--paired".equals(arg)) {
+        pairedInnerDistance = Integer.parseInt(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--snp-rate".equals(arg)) {
+        snpRate = Double.parseDouble(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--indel-rate".equals(arg)) {
+        indelRate = Double.parseDouble(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--duplicate-fraction".equals(arg)) {
+        duplicateFraction = Double.parseDouble(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--num-threads".equals(arg)) {
+        numThreads = Integer.parseInt(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--no-cache".equals(arg)) {
+        useCache = false;
+        continue;
+      }
+      if ("--seed".equals(arg)) {
+        seed = Long.parseLong(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--work-dir".equals(arg)) {
+        workDir = new File(args[i + 1]);
+        i++;
+        continue;
+      }
+      if ("--out-json".equals(arg)) {
+        outJsonPath = args[i + 1];
+        i++;
+        continue;
+      }
+      if ("--help".equals(arg)) {
+        usage();
+        return;
+      }
+      System.err.println("Unrecognized argument: " + arg);
+      usage();
+      System.exit(1);
+    }
+
+    // generate data
+    workDir.mkdirs();
+    long generateStart = System.currentTimeMillis();
+    ReadSimulator simulator = new ReadSimulator(seed);
+    simulator.generateReference(referenceLength, numContigs, repeatFraction);
+    simulator.simulateReads(numReads, readLength, pairedInnerDistance, snpRate, indelRate, duplicateFraction);
+    File referenceFile = new File(workDir, "reference.fasta");
+    File leftsFile = new File(workDir, "reads.fastq");
+    File rightsFile = new File(workDir, "reads2.fastq");
+    File samFile = new File(workDir, "out.sam");
+    simulator.writeReference(referenceFile);
+    simulator.writeReads(leftsFile, false);
+    if (simulator.isPaired())
+      simulator.writeReads(rightsFile, true);
+    System.out.println("Generated " + referenceLength + "bp reference and " + numReads + " reads in " + (System.currentTimeMillis() - generateStart) + "ms");
+
+    Mapper.alignmentLogger = new Logger(Mapper.outputWriter, 1, 0);
+    Mapper.referenceLogger = new Logger(Mapper.outputWriter, 1, 0);
+
+    double indexingSeconds = -1;
+    double alignmentSeconds;
+    long peakHeapBytes;
+    if (useCache) {
+      // The first run indexes the reference and saves the index; the second run loads it
+      File cacheDir = new File(workDir, "cache");
+      deleteRecursively(cacheDir);
+      double coldSeconds = runMapper(referenceFile, leftsFile, rightsFile, simulator.isPaired(), cacheDir, samFile, numThreads);
+      long coldPeakHeapBytes = getPeakHeapBytes();
+      alignmentSeconds = runMapper(referenceFile, leftsFile, rightsFile, simulator.isPaired(), cacheDir, samFile, numThreads);
+      peakHeapBytes = Math.max(coldPeakHeapBytes, getPeakHeapBytes());
+      indexingSeconds = Math.max(0, coldSeconds - alignmentSeconds);
+    } else {
+      alignmentSeconds = runMapper(referenceFile, leftsFile, rightsFile, simulator.isPaired(), null, samFile, numThreads);
+      peakHeapBytes = getPeakHeapBytes();
+    }
+    long peakRssBytes = getPeakRssBytes();
+
+    // check accuracy
+    long[] counts = checkAccuracy(simulator, samFile, readLength);
+    long numSequences = counts[0];
+    long numMapped = counts[1];
+    long numCorrect = counts[2];
+
+    double readsPerSecond = (double)numSequences / alignmentSeconds;
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    json.append("\"referenceLength\": " + referenceLength + ", ");
+    json.append("\"numReads\": " + numSequences + ", ");
+    json.append("\"paired\": " + simulator.isPaired() + ", ");
+    json.append("\"numThreads\": " + numThreads + ", ");
+    json.append("\"cache\": " + useCache + ", ");
+    json.append("\"readsPerSecond\": " + readsPerSecond + ", ");
+    json.append("\"alignmentSeconds\": " + alignmentSeconds + ", ");
+    json.append("\"indexingSeconds\": " + indexingSeconds + ", ");
+    json.append("\"peakHeapBytes\": " + peakHeapBytes + ", ");
+    json.append("\"peakRssBytes\": " + peakRssBytes + ", ");
+    json.append("\"mappedFraction\": " + ((double)numMapped / (double)numSequences) + ", ");
+    json.append("\"correctFraction\": " + ((double)numCorrect / (double)numSequences));
+    json.append("}");
+
+    System.out.println("Throughput benchmark results:");
+    System.out.println(" Reads/s            : " + (long)readsPerSecond + " (" + numSequences + " reads in " + alignmentSeconds + "s using " + numThreads + " threads)");
+    if (indexingSeconds >= 0)
+      System.out.println(" Indexing           : " + indexingSeconds + "s");
+    else
+      System.out.println(" Indexing           : included above (--no-cache)");
+    System.out.println(" Peak heap          : " + (peakHeapBytes / 1024 / 1024) + "mb");
+    if (peakRssBytes >= 0)
+      System.out.println(" Peak RSS           : " + (peakRssBytes / 1024 / 1024) + "mb");
+    System.out.println(" Mapped             : " + numMapped + "/" + numSequences);
+    System.out.println(" Mapped correctly   : " + numCorrect + "/" + numSequences);
+    if (outJsonPath != null) {
+      FileWriter writer = new FileWriter(outJsonPath);
+      writer.write(json.toString() + "\n");
+      writer.close();
+      System.out.println("Saved " + outJsonPath);
+    }
+  }
+
+  private static void usage() {
+    System.err.println(
+"Usage: Throughput_Benchmark [options]\n" +
+"  --reference-length <length> total length of the simulated reference (default 10000000)\n" +
+"  --num-contigs <count> number of contigs to split the reference into (default 1)\n" +
+"  --repeat-fraction <fraction> fraction of the reference made of mutated copies of earlier parts (default 0.1)\n" +
+"  --num-reads <count> number of reads, or read pairs, to simulate (default 100000)\n" +
+"  --read-length <length> length of each read (default 150)\n" +
+"  --paired <innerDistance> simulate paired-end reads with this expected inner distance\n" +
+"  --snp-rate <rate> point mutations per basepair in reads (default 0.01)\n" +
+"  --indel-rate <rate> single-basepair indels per basepair in reads (default 0.001)\n" +
+"  --duplicate-fraction <fraction> fraction of reads that are exact copies of earlier reads (default 0)\n" +
+"  --num-threads <count> passed to Mapper (default 1)\n" +
+"  --no-cache don't save the reference index; report indexing and alignment together\n" +
+"  --seed <seed> random seed (default 0)\n" +
+"  --work-dir <dir> where to put the simulated data and outputs (default build/throughput-benchmark)\n" +
+"  --out-json <path> also write the results as json\n");
+  }
+
+  // Runs Mapper and returns the elapsed time in seconds
+  private static double runMapper(File referenceFile, File leftsFile, File rightsFile, boolean paired, File cacheDir, File samFile, int numThreads) throws IOException, InterruptedException {
+    List<String> referencePaths = new ArrayList<String>();
+    referencePaths.add(referenceFile.getPath());
+    List<QueryProvider> queries = new ArrayList<QueryProvider>();
+    if (paired) {
+      SequenceProvider lefts = DataLoader.LoadFrom(leftsFile.getPath(), true);
+      SequenceProvider rights = DataLoader.LoadFrom(rightsFile.getPath(), true);
+      queries.add(new PairedEndQueryProvider(lefts, rights, Mapper.defaultExpectedDistanceBetweenPairedSequences, Mapper.defaultSpacingDeviationPerUnitPenalty));
+    } else {
+      queries.add(new SimpleQueryProvider(DataLoader.LoadFrom(leftsFile.getPath(), true)));
+    }
+    resetPeakHeap();
+    long startMillis = System.currentTimeMillis();
+    boolean successful = Mapper.run(referencePaths, queries, cacheDir, false, null, true, true, samFile.getPath(), null, null, MutationDetectionParameters.defaultFilter(), MutationDetectionParameters.emptyFilter(), null, newParameters(), numThreads, new PerformanceOptions(), 0.1, false, false, null, true, false, startMillis);
+    if (!successful)
+      throw new IllegalStateException("Mapper failed");
+    return (double)(System.currentTimeMillis() - startMillis) / 1000.0;
+  }
+
+  // Mapper's default parameters
+  private static AlignmentParameters newParameters() {
+    AlignmentParameters parameters = BenchmarkData.newParameters();
+    parameters.MaxNumMatches = Integer.MAX_VALUE;
+    return parameters;
+  }
+
+  // Returns {number of reads, number mapped, number mapped to where they came from}, counting each read of a pair separately
+  private static long[] checkAccuracy(ReadSimulator simulator, File samFile, int readLength) throws IOException {
+    int numReads = simulator.getNumReads();
+    int numComponents = 1;
+    if (simulator.isPaired())
+      numComponents = 2;
+    boolean[] mapped = new boolean[numReads * numComponents];
+    boolean[] correct = new boolean[numReads * numComponents];
+    // allow for soft-clipping and indels near the ends of the read
+    int tolerance = Math.max(10, readLength / 10);
+
+    BufferedReader reader = new BufferedReader(new FileReader(samFile));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("@"))
+        continue;
+      String[] fields = line.split("\t");
+      if (fields.length < 4)
+        continue;
+      int readIndex = ReadSimulator.parseReadName(fields[0]);
+      if (readIndex < 0 || readIndex >= numReads)
+        continue;
+      int flags = Integer.parseInt(fields[1]);
+      if ((flags & 4) != 0)
+        continue;
+      boolean right = (flags & 128) != 0;
+      int index = readIndex * numComponents;
+      if (right)
+        index++;
+      mapped[index] = true;
+      int position = Integer.parseInt(fields[3]) - 1;
+      if (simulator.isCorrect(readIndex, right, fields[2], position, tolerance))
+        correct[index] = true;
+    }
+    reader.close();
+
+    long numMapped = 0;
+    long numCorrect = 0;
+    for (int i = 0; i < mapped.length; i++) {
+      if (mapped[i])
+        numMapped++;
+      if (correct[i])
+        numCorrect++;
+    }
+    return new long[]{mapped.length, numMapped, numCorrect};
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    }
+  }
+
+  private static long getPeakHeapBytes() {
+    long total = 0;
+    for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        total += pool.getPeakUsage().getUsed();
+    }
+    return total;
+  }
+
+  // Returns the peak resident set size of this process, or -1 if we're not on Linux
+  private static long getPeakRssBytes() {
+    File status = new File("/proc/self/status");
+    if (!status.exists())
+      return -1;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(status));
+      String line;
+      long result = -1;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("VmHWM:")) {
+          // formatted like "VmHWM:     12345 kB"
+          String[] fields = line.trim().split("\\s+");
+          result = Long.parseLong(fields[1]) * 1024;
+        }
+      }
+      reader.close();
+      return result;
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child: children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
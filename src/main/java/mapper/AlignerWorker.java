@@ -14,7 +14,13 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AlignerWorker extends Thread {
   static Logger silentLogger = Logger.NoOpLogger;
@@ -37,6 +43,7 @@ public class AlignerWorker extends Thread {
     this.logger = logger;
     this.referenceLogger = logger;
     this.detailedAlignmentLogger = logger.incrementScope();
+    this.longReadAligner = null;
   }
 
   public void requestProcess(List<QueryBuilder> queries, long startMillis, long estimatedTotalNumQueries, Logger alignmentLogger, Logger referenceLogger) {
@@ -46,6 +53,8 @@ public class AlignerWorker extends Thread {
     this.logger = alignmentLogger;
     this.referenceLogger = referenceLogger;
     this.detailedAlignmentLogger = alignmentLogger.incrementScope();
+    // the LongReadAligner logs to the alignment logger, which can change between batches
+    this.longReadAligner = null;
     this.queries = queries;
 
     try {
@@ -69,6 +78,11 @@ public class AlignerWorker extends Thread {
     millisThroughOptimisticBestAlignments = 0;
     numCasesImmediatelyAcceptingFirstAlignment = 0;
     numIndels = 0;
+    deferredQueries = new ArrayList<QueryBuilder>();
+    if (queryTimer != null)
+      queryTimer = new QueryTimer();
+    if (slowQuerySampler != null)
+      slowQuerySampler = slowQuerySampler.newEmpty();
   }
 
   public void noMoreQueries() {
@@ -95,7 +109,15 @@ public class AlignerWorker extends Thread {
         }
         if (!moreWork)
           break;
-        this.process();
+        // hold a thread permit while working so that candidate helpers only use threads that would otherwise be idle
+        if (this.threadPermits != null)
+          this.threadPermits.acquireUninterruptibly();
+        try {
+          this.process();
+        } finally {
+          if (this.threadPermits != null)
+            this.threadPermits.release();
+        }
         this.completionListener.add(this);
       }
       succeeded = true;
@@ -114,6 +136,7 @@ public class AlignerWorker extends Thread {
     this.referenceDatabase = hashblockDatabase.getView();
     this.sequenceDatabase = hashblockDatabase.getSequenceDatabase();
     this.shortestHashblockLength = hashblockDatabase.getMinInterestingSize();
+    this.longReadAligner = null;
     this.duplicationDetector.helpSetup();
   }
 
@@ -174,10 +197,21 @@ public class AlignerWorker extends Thread {
       // now that we've hashed the reference, we can run queries
       // List that for each query says where it aligns
       List<QueryAlignments> alignments = new ArrayList<QueryAlignments>();
+      MapperEvent batchEvent = MapperEvents.beginAlignmentBatch(this.workerId, this.queries.size());
+      long numCandidatesInBatch = 0;
       for (QueryBuilder queryBuilder : queries) {
         long start = System.currentTimeMillis();
+        if (this.queryTimer != null)
+          this.queryTimer.startQuery();
+        long startNanos = System.nanoTime();
+        this.numCandidatesInQuery = 0;
         this.latestQueryAlignmentStart = start;
+        if (this.queryMillisBudget >= 0)
+          this.latestQueryDeadline = start + this.queryMillisBudget;
+        else
+          this.latestQueryDeadline = Long.MAX_VALUE;
         Query query = queryBuilder.build();
+        MapperEvent queryEvent = MapperEvents.beginQuery(query.getId(), query.getLength());
         QueryAlignments alignmentsHere;
         int previousHashedLength = this.referenceDatabase.getHashedLength();
         try {
@@ -187,6 +221,12 @@ public class AlignerWorker extends Thread {
           // So, if we increased the max hashed length in the hashblock database, then we rerun the query and time how long it takes to run it the second time
           if (newHashedLength != previousHashedLength) {
             start = System.currentTimeMillis();
+            if (this.queryTimer != null)
+              this.queryTimer.startQuery();
+            startNanos = System.nanoTime();
+            this.numCandidatesInQuery = 0;
+            if (this.queryMillisBudget >= 0)
+              this.latestQueryDeadline = start + this.queryMillisBudget;
             if (logger.getEnabled()) {
               logger.log("Re-running query to determine how long it takes to align this query without the time required to hash the reference");
             }
@@ -195,9 +235,24 @@ public class AlignerWorker extends Thread {
         } catch (Exception e) {
           throw new RuntimeException("Failed to align " + query.format(), e);
         }
+        MapperEvents.endQuery(queryEvent, this.numCandidatesInQuery, alignmentsHere == null);
+        numCandidatesInBatch += this.numCandidatesInQuery;
+        if (alignmentsHere == null) {
+          // This query took longer than its time budget, so we give it back to be aligned later
+          if (this.logger.getEnabled()) {
+            log("Deferring slow query: " + query.format());
+          }
+          this.deferredQueries.add(queryBuilder);
+          continue;
+        }
         // update some timing information
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (this.queryTimer != null)
+          this.queryTimer.finishQuery(elapsedNanos);
         long end = System.currentTimeMillis();
         long elapsed = end - start;
+        if (this.slowQuerySampler != null)
+          this.slowQuerySampler.offer(query, elapsedNanos, this.numCandidatesInQuery, end);
         if (elapsed > this.slowestAlignmentMillis) {
           this.slowestAlignmentMillis = (int)elapsed;
           this.slowestQuery = query;
@@ -228,7 +283,13 @@ public class AlignerWorker extends Thread {
           log(" ");
         }
       }
+      MapperEvents.endAlignmentBatch(batchEvent, this.deferredQueries.size(), numCandidatesInBatch);
+      long outputStart = System.nanoTime();
+      MapperEvent outputEvent = MapperEvents.beginOutput(alignments.size());
       this.sendResults(alignments);
+      MapperEvents.end(outputEvent);
+      if (this.queryTimer != null)
+        this.queryTimer.recordOutput(System.nanoTime() - outputStart);
     }
     this.afterBatch();
   }
@@ -253,15 +314,9 @@ public class AlignerWorker extends Thread {
     this.logger.log(message);
   }
 
+  // returns null if this query exceeded its time budget
+  // The aligners read the query from PackedSequence copies of its strands, so we don't decompress the query first
   public QueryAlignments align(Query query) {
-    query.decompress();
-    QueryAlignments result = this.checkCacheAndAlign(query);
-    query.compress();
-    return result;
-  }
-
-  // checks the cache and aligns the query
-  private QueryAlignments checkCacheAndAlign(Query query) {
     // First check the cache
     QueryAlignments cached = this.resultsCache.get(query);
     if (cached != null) {
@@ -280,6 +335,8 @@ public class AlignerWorker extends Thread {
       }
     }
     QueryAlignments result = this.alignWithoutCache(query);
+    if (result == null)
+      return null;
     int hashCode = query.hashCode();
     if (hashCode <= this.maxHashcodeToCache) {
       this.resultsCache.addAlignment(query, result);
@@ -291,8 +348,11 @@ public class AlignerWorker extends Thread {
   }
 
   // aligns to the unmodified reference we've been given
+  // returns null if this query exceeded its time budget
   public QueryAlignments alignWithoutCache(Query query) {
     QueryAlignments results = this.alignToAncestralReference(query);
+    if (results == null)
+      return null;
     for (List<QueryAlignment> subAlignments: results.getAlignments()) {
       for (QueryAlignment alignment: subAlignments) {
         this.updateSequenceB(alignment);
@@ -307,6 +367,8 @@ public class AlignerWorker extends Thread {
     if (this.logger.getEnabled()) {
       log("Aligning      " + query.format());
     }
+    if (parameters.LongReadMinLength > 0 && query.getNumSequences() == 1 && query.getLength() >= parameters.LongReadMinLength)
+      return this.alignLongRead(query);
     double maxInterestingPenalty = query.getLength() * parameters.MaxErrorRate;
     int maxInnerDistance = (int)(maxInterestingPenalty * query.getSpacingDeviationPerUnitPenalty() + query.getExpectedInnerDistance());
 
@@ -321,9 +383,11 @@ public class AlignerWorker extends Thread {
       HashBlock_Stream stream = new HashBlock_Stream(querySequence, false, null);
       HashBlock_Pyramid pyramid = new HashBlock_Pyramid(stream);
       Counting_HashBlockPath component = new Counting_HashBlockPath(pyramid, referenceDatabase, sequenceDatabase, querySequence, componentName, this.detailedAlignmentLogger, parameters);
+      component.setQueryTimer(this.queryTimer);
       components.add(component);
     }
     HashBlockPaths_Counter path = new HashBlockPaths_Counter(components, (int)query.getExpectedInnerDistance(), maxInnerDistance, this.detailedAlignmentLogger);
+    path.setJoiner(this.pairJoiner);
 
     QueryAlignment optimisticBestAlignment = null;
     QueryMatch optimisticBestMatch = null;
@@ -331,8 +395,16 @@ public class AlignerWorker extends Thread {
     int numMismatches = 0;
 
     // check the first match
+    long rankingStart = this.startPhase();
     List<QueryMatch> bestMatches = path.optimisticGetBestMatches();
-    QueryMatch_Aligner aligner = new QueryMatch_Aligner(query, this.parameters, logger);
+    this.stopPhase(QueryTimer.CANDIDATE_RANKING, rankingStart);
+    QueryMatch_Aligner aligner = new QueryMatch_Aligner(query, this.parameters, logger, this.queryTimer);
+    for (Counting_HashBlockPath component: components) {
+      aligner.addPackedSequence(component.getPackedQuery());
+    }
+    // the matchers from the previous query aren't used anymore
+    this.matcherPool.clear();
+    aligner.setMatcherPool(this.matcherPool);
     if (bestMatches.size() == 1) {
       optimisticBestMatch = bestMatches.get(0);
       optimisticBestAlignment = this.alignMatch(optimisticBestMatch, aligner);
@@ -373,7 +445,9 @@ public class AlignerWorker extends Thread {
             this.detailedAlignmentLogger.log("cannot prove optimistic alignment is best yet: penalty could be " + possiblePenalty + " for " + numMismatches + " distinct mismatched blocks");
           }
         }
+        rankingStart = this.startPhase();
         List<QueryMatch> matches = path.findGoodPositionsHavingPriority(numMismatches);
+        this.stopPhase(QueryTimer.CANDIDATE_RANKING, rankingStart);
         numMismatches++;
         boolean done = false;
         for (QueryMatch match: matches) {
@@ -391,6 +465,27 @@ public class AlignerWorker extends Thread {
       }
     }
 
+    // If only one end of a paired query has good positions, we look for the other end near them before searching the rest of the reference for it
+    boolean triedMateRescue = false;
+    // the good positions of each end, computed at most once per query
+    List<List<SequenceMatch>> mateRescueAnchors = null;
+    if (bestMatches.size() < 1 && query.getNumSequences() > 1 && parameters.UseMateRescue) {
+      mateRescueAnchors = this.getMateRescueAnchors(query, path);
+      int anchorIndex = this.chooseMateRescueAnchor(mateRescueAnchors);
+      if (anchorIndex >= 0) {
+        if (logger.getEnabled())
+          logger.log("Only seq" + (anchorIndex + 1) + " has good positions. Looking for the other end near them");
+        triedMateRescue = true;
+        long rescueStart = this.startPhase();
+        boolean completed = this.rescueMates(query, aligner, anchorIndex, mateRescueAnchors.get(anchorIndex));
+        this.stopPhase(QueryTimer.MATE_RESCUE, rescueStart);
+        if (!completed)
+          return null;
+        if (aligner.getBestAlignments().size() > 0)
+          return this.getBestAlignments(query, path, aligner);
+      }
+    }
+
     // If we get here then we're not sure whether the first alignment we found will be the best
     // So, we check more offsets, and we order our search by their number of mismatched hashblocks
     double bestPenalty = Integer.MAX_VALUE;
@@ -415,26 +510,48 @@ public class AlignerWorker extends Thread {
         break;
       }
 
+      if (this.exceededTimeBudget())
+        return null;
+
       // Check positions having the current number of mismatches that we're expecting
+      rankingStart = this.startPhase();
       List<QueryMatch> candidates = path.findGoodPositionsHavingPriority(candidateNumMismatches);
+      this.stopPhase(QueryTimer.CANDIDATE_RANKING, rankingStart);
       if (logger.getEnabled()) {
         if (candidates.size() > 0) {
           log("Checking positions having number of hashblock mismatches = " + candidateNumMismatches);
         }
       }
-      for (QueryMatch match : candidates) {
-        QueryAlignment alignment;
-        if (optimisticBestMatch != null && match.samePosition(optimisticBestMatch)) {
-          if (logger.getEnabled())
-            logger.log("Already computed alignment for " + match.summarizePositionB());
-          alignment = optimisticBestAlignment;
-        } else {
-          alignment = this.alignMatch(match, aligner);
+      if (this.shouldAlignInParallel(candidates)) {
+        List<QueryMatch> remainingCandidates = new ArrayList<QueryMatch>(candidates.size());
+        for (QueryMatch match : candidates) {
+          if (optimisticBestMatch != null && match.samePosition(optimisticBestMatch)) {
+            if (optimisticBestAlignment != null)
+              bestPenalty = Math.min(bestPenalty, optimisticBestAlignment.getPenalty());
+          } else {
+            remainingCandidates.add(match);
+          }
         }
-        if (alignment != null) {
-          double penalty = alignment.getPenalty();
-          if (bestPenalty > penalty)
-            bestPenalty = penalty;
+        long parallelStart = this.startPhase();
+        bestPenalty = Math.min(bestPenalty, this.alignInParallel(remainingCandidates, aligner));
+        this.stopPhase(QueryTimer.PARALLEL_CANDIDATES, parallelStart);
+      } else {
+        for (QueryMatch match : candidates) {
+          if (this.exceededTimeBudget())
+            return null;
+          QueryAlignment alignment;
+          if (optimisticBestMatch != null && match.samePosition(optimisticBestMatch)) {
+            if (logger.getEnabled())
+              logger.log("Already computed alignment for " + match.summarizePositionB());
+            alignment = optimisticBestAlignment;
+          } else {
+            alignment = this.alignMatch(match, aligner);
+          }
+          if (alignment != null) {
+            double penalty = alignment.getPenalty();
+            if (bestPenalty > penalty)
+              bestPenalty = penalty;
+          }
         }
       }
       // If the estimated penalty of this alignment is the maximum interesting penalty, then we don't need to check alignments having even more mismatched hashblocks
@@ -449,14 +566,33 @@ public class AlignerWorker extends Thread {
       candidateNumMismatches++;
     }
 
+    if (aligner.getBestAlignments().size() < 1 && query.getNumSequences() > 1 && parameters.UseMateRescue && !triedMateRescue) {
+      if (logger.getEnabled())
+        logger.log("Found no alignments having good support. Looking for each end near the other");
+      long rescueStart = this.startPhase();
+      if (mateRescueAnchors == null)
+        mateRescueAnchors = this.getMateRescueAnchors(query, path);
+      for (int anchorIndex = 0; anchorIndex < query.getNumSequences(); anchorIndex++) {
+        if (!this.rescueMates(query, aligner, anchorIndex, mateRescueAnchors.get(anchorIndex))) {
+          this.stopPhase(QueryTimer.MATE_RESCUE, rescueStart);
+          return null;
+        }
+      }
+      this.stopPhase(QueryTimer.MATE_RESCUE, rescueStart);
+    }
+
     if (aligner.getBestAlignments().size() < 1 && query.getNumSequences() > 1) {
       if (logger.getEnabled())
         logger.log("Found no alignments having good support. Looking for alignments with some support");
+      rankingStart = this.startPhase();
       List<QueryMatch> partiallyGoodPositions = path.findPartiallyGoodPositions();
+      this.stopPhase(QueryTimer.CANDIDATE_RANKING, rankingStart);
       if (logger.getEnabled())
         logger.log("Found " + partiallyGoodPositions.size() + " positions having some support");
 
       for (QueryMatch match: partiallyGoodPositions) {
+        if (this.exceededTimeBudget())
+          return null;
         QueryAlignment alignment = this.alignMatch(match, aligner);
         if (alignment != null) {
           double penalty = alignment.getPenalty();
@@ -466,6 +602,11 @@ public class AlignerWorker extends Thread {
       }
     }
 
+    return this.getBestAlignments(query, path, aligner);
+  }
+
+  // Returns the best alignments found by <aligner>, or the best alignments of each end of the query if it didn't find any
+  private QueryAlignments getBestAlignments(Query query, HashBlockPaths_Counter path, QueryMatch_Aligner aligner) {
     List<QueryAlignment> bestAlignments = aligner.getBestAlignments();
 
     QueryAlignments result = QueryAlignments.singleComponent(query.getSequences(), bestAlignments);
@@ -484,6 +625,11 @@ public class AlignerWorker extends Thread {
   }
 
 
+  // Whether the current query has taken longer than we're willing to spend on it for now
+  private boolean exceededTimeBudget() {
+    return System.currentTimeMillis() > this.latestQueryDeadline;
+  }
+
   private double getPenaltyLowerBound(int numMismatchedHashblocks) {
     double mutationPenalty = numMismatchedHashblocks * parameters.MutationPenalty;
     double indelPenalty = this.shortestHashblockLength * numMismatchedHashblocks * parameters.DeletionExtension_Penalty;
@@ -591,6 +737,7 @@ public class AlignerWorker extends Thread {
   }
 
   private QueryAlignment alignMatch(QueryMatch match, double extraSpacing, QueryMatch_Aligner aligner) {
+    this.numCandidatesInQuery++;
     long start = System.currentTimeMillis();
     QueryAlignment result = aligner.align(match, extraSpacing);
     long end = System.currentTimeMillis();
@@ -599,6 +746,178 @@ public class AlignerWorker extends Thread {
     return result;
   }
 
+  // Decides whether this query is slow enough that it's worth checking these candidates on several threads
+  private boolean shouldAlignInParallel(List<QueryMatch> candidates) {
+    if (this.candidateExecutor == null || candidates.size() < 2)
+      return false;
+    // every thread is already busy
+    if (this.threadPermits.availablePermits() < 1)
+      return false;
+    // keep the log output in order
+    if (this.logger.getEnabled())
+      return false;
+    if (candidates.size() >= this.parallelCandidatesMinCount)
+      return true;
+    return System.currentTimeMillis() - this.latestQueryAlignmentStart >= this.parallelCandidatesMinMillis;
+  }
+
+  // Aligns these candidates using the candidate executor as well as this thread, and returns the lowest penalty found
+  // Each helper takes a thread permit that no worker is using, so workers plus helpers never use more than --num-threads threads
+  private double alignInParallel(final List<QueryMatch> candidates, QueryMatch_Aligner aligner) {
+    this.numCandidatesInQuery += candidates.size();
+    final AtomicInteger nextIndex = new AtomicInteger();
+    List<QueryMatch_Aligner> helperAligners = new ArrayList<QueryMatch_Aligner>();
+    List<Future<Long>> helperResults = new ArrayList<Future<Long>>();
+    while (helperResults.size() < candidates.size() - 1 && this.threadPermits.tryAcquire()) {
+      final QueryMatch_Aligner helperAligner = aligner.newParallelAligner(silentLogger);
+      final Semaphore permits = this.threadPermits;
+      helperAligners.add(helperAligner);
+      helperResults.add(this.candidateExecutor.submit(new Callable<Long>() {
+        public Long call() {
+          try {
+            return alignCandidates(candidates, nextIndex, helperAligner);
+          } finally {
+            permits.release();
+          }
+        }
+      }));
+    }
+    int numHelpers = helperResults.size();
+    QueryMatch_Aligner ownAligner = aligner.newParallelAligner(silentLogger);
+    this.millisSpentAligningMatches += alignCandidates(candidates, nextIndex, ownAligner);
+    aligner.addAlignments(ownAligner);
+    for (int i = 0; i < numHelpers; i++) {
+      Future<Long> helperResult = helperResults.get(i);
+      // If a helper hasn't started yet then there's nothing left for it to do
+      if (helperResult.cancel(false)) {
+        this.threadPermits.release();
+        continue;
+      }
+      try {
+        this.millisSpentAligningMatches += helperResult.get();
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while aligning candidates", e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Failed to align candidates", e.getCause());
+      }
+      aligner.addAlignments(helperAligners.get(i));
+    }
+    return aligner.getBestPenalty();
+  }
+
+  // Repeatedly claims the next unchecked candidate and aligns it, and returns the time spent
+  private static long alignCandidates(List<QueryMatch> candidates, AtomicInteger nextIndex, QueryMatch_Aligner aligner) {
+    long start = System.currentTimeMillis();
+    while (true) {
+      int index = nextIndex.getAndIncrement();
+      if (index >= candidates.size())
+        break;
+      aligner.align(candidates.get(index));
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  // Sets the amount of time that each query in the next batch may take before being deferred, or -1 for no limit
+  public void setQueryMillisBudget(long queryMillisBudget) {
+    this.queryMillisBudget = queryMillisBudget;
+  }
+
+  // the queries from the latest batch that exceeded their time budget and still need to be aligned
+  public List<QueryBuilder> getDeferredQueries() {
+    return this.deferredQueries;
+  }
+
+  // Measures how long each query spends in each phase of alignment, see getQueryTimer
+  public void enableQueryTiming() {
+    this.queryTimer = new QueryTimer();
+  }
+
+  // If we're timing queries, starts timing a phase of the current one and returns its start time, to pass to stopPhase()
+  private long startPhase() {
+    if (this.queryTimer == null)
+      return 0;
+    return this.queryTimer.start();
+  }
+
+  private void stopPhase(int phase, long startNanos) {
+    if (this.queryTimer != null)
+      this.queryTimer.stop(phase, startNanos);
+  }
+
+  // Remembers the slowest queries of each batch and a sample of the others, with the same capacity as <sampler>
+  public void enableSlowQuerySampling(SlowQuerySampler sampler) {
+    this.slowQuerySampler = sampler.newEmpty();
+  }
+
+  // Allows the candidate positions of slow queries to be aligned on several threads
+  // Each worker holds one of <threadPermits> while processing queries, and each helper thread also needs one
+  public void enableParallelCandidates(ExecutorService candidateExecutor, Semaphore threadPermits, int minNumCandidates, long minMillis) {
+    this.candidateExecutor = candidateExecutor;
+    this.threadPermits = threadPermits;
+    this.parallelCandidatesMinCount = minNumCandidates;
+    this.parallelCandidatesMinMillis = minMillis;
+  }
+
+  // aligns a long query by chaining the matches of its hashblocks
+  private QueryAlignments alignLongRead(Query query) {
+    if (this.longReadAligner == null)
+      this.longReadAligner = new LongReadAligner(this.referenceDatabase, this.sequenceDatabase, this.parameters, this.logger);
+    long chainingStart = this.startPhase();
+    List<QueryAlignment> alignments = this.longReadAligner.align(query.getSequence(0));
+    this.stopPhase(QueryTimer.LONG_READ_CHAINING, chainingStart);
+    if (alignments.size() < 1)
+      return QueryAlignments.unaligned(query.getSequences());
+    return QueryAlignments.singleComponent(query.getSequences(), alignments);
+  }
+
+  // Returns the index of the end of a paired query that we should look for the other end near, or -1 if there isn't one
+  // That is the case when one end has a few good positions and the other has none
+  // <anchors> lists the good positions of each end, from getMateRescueAnchors
+  private int chooseMateRescueAnchor(List<List<SequenceMatch>> anchors) {
+    int anchorIndex = -1;
+    for (int sequenceIndex = 0; sequenceIndex < anchors.size(); sequenceIndex++) {
+      int numAnchors = anchors.get(sequenceIndex).size();
+      if (numAnchors > 0) {
+        if (anchorIndex >= 0 || numAnchors > maxMateRescueAnchors)
+          return -1;
+        anchorIndex = sequenceIndex;
+      }
+    }
+    return anchorIndex;
+  }
+
+  // Returns the good positions of each end of a paired query, near which we could look for the other end
+  private List<List<SequenceMatch>> getMateRescueAnchors(Query query, HashBlockPaths_Counter path) {
+    List<List<SequenceMatch>> anchors = new ArrayList<List<SequenceMatch>>(query.getNumSequences());
+    for (int sequenceIndex = 0; sequenceIndex < query.getNumSequences(); sequenceIndex++) {
+      Sequence sequence = query.getSequence(sequenceIndex);
+      int maxNumMismatches = (int)(sequence.getLength() * parameters.MaxErrorRate / parameters.MutationPenalty);
+      anchors.add(path.findGoodComponentMatches(sequenceIndex, maxNumMismatches));
+    }
+    return anchors;
+  }
+
+  // For each of the good positions <anchors> of end <anchorIndex> of a paired query, looks for the other end nearby, and aligns any pairs that it finds
+  // Returns false if it ran out of time
+  private boolean rescueMates(Query query, QueryMatch_Aligner aligner, int anchorIndex, List<SequenceMatch> anchors) {
+    if (this.mateRescuer == null)
+      this.mateRescuer = new MateRescuer(this.parameters);
+    this.mateRescuer.setLogger(this.logger);
+    if (anchors.size() > maxMateRescueAnchors) {
+      if (logger.getEnabled())
+        logger.log("Not rescuing mates of seq" + (anchorIndex + 1) + " because it has " + anchors.size() + " good positions");
+      return true;
+    }
+    for (SequenceMatch anchor: anchors) {
+      if (this.exceededTimeBudget())
+        return false;
+      QueryMatch match = this.mateRescuer.rescue(query, anchor, anchorIndex);
+      if (match != null)
+        this.alignMatch(match, aligner);
+    }
+    return true;
+  }
+
   private QueryAlignments getUnpairedAlignments(Query query, HashBlockPaths_Counter path) {
     if (logger.getEnabled()) {
       log("Checking for unpaired alignments");
@@ -685,6 +1004,18 @@ public class AlignerWorker extends Thread {
   public long getNumIndels() {
     return this.numIndels;
   }
+  // how long the queries in the latest batch spent in each phase of alignment, or null if not enabled
+  public QueryTimer getQueryTimer() {
+    return this.queryTimer;
+  }
+  // the slowest and sampled queries from the latest batch, or null if not enabled
+  public SlowQuerySampler getSlowQuerySampler() {
+    return this.slowQuerySampler;
+  }
+  // the number of queries from the latest batch that were aligned rather than deferred
+  public int getNumQueriesCompleted() {
+    return this.queries.size() - this.deferredQueries.size();
+  }
 
   private void updateSequenceB(QueryAlignment queryAlignment) {
     Sequence computedSequenceB = queryAlignment.getSequenceB();
@@ -719,7 +1050,19 @@ public class AlignerWorker extends Thread {
   long millisSpentAligningMatches;
   long millisThroughOptimisticBestAlignments;
   long latestQueryAlignmentStart;
+  long latestQueryDeadline = Long.MAX_VALUE;
+  long queryMillisBudget = -1;
+  List<QueryBuilder> deferredQueries = new ArrayList<QueryBuilder>();
   int numCasesImmediatelyAcceptingFirstAlignment;
+  QueryTimer queryTimer;
+  HashBlockPaths_Joiner pairJoiner = new HashBlockPaths_Joiner();
+  HashBlock_MatcherPool matcherPool = new HashBlock_MatcherPool();
+  MateRescuer mateRescuer;
+  // if one end of a paired query has more good positions than this, we don't look for the other end near each of them
+  static int maxMateRescueAnchors = 8;
+  LongReadAligner longReadAligner;
+  SlowQuerySampler slowQuerySampler;
+  int numCandidatesInQuery;
   Queue<AlignerWorker> completionListener;
   List<QueryBuilder> queries = new ArrayList<QueryBuilder>(0);
 
@@ -727,4 +1070,9 @@ public class AlignerWorker extends Thread {
   AlignmentCache resultsCache;
   long estimatedTotalNumQueries;
   long maxHashcodeToCache;
+
+  ExecutorService candidateExecutor;
+  Semaphore threadPermits;
+  int parallelCandidatesMinCount;
+  long parallelCandidatesMinMillis;
 }
@@ -7,6 +7,11 @@ public class AlignmentAnalysis {
   private static double large = 1000000;
 
   public HashBlock_Matcher hashBlock_matcher;
+  // if not null, where to get new HashBlock_Matchers from
+  public HashBlock_MatcherPool matcherPool;
+
+  // the query sequence being aligned, already packed, or null if we don't have it
+  public PackedSequence packedQuery;
 
   // we believe that the best alignment intersects this alignment
   public int predictedBestOffset;
@@ -18,11 +23,20 @@ public class AlignmentAnalysis {
   public double maxInsertionExtensionPenalty = large;
   public double maxDeletionExtensionPenalty  = large;
 
+  // returns packedQuery if it is a copy of <query>, otherwise null
+  public PackedSequence getPackedQuery(Sequence query) {
+    if (this.packedQuery != null && this.packedQuery.getSequence() == query)
+      return this.packedQuery;
+    return null;
+  }
+
   public AlignmentAnalysis child() {
     AlignmentAnalysis result = new AlignmentAnalysis();
     result.predictedBestOffset = this.predictedBestOffset;
     result.confidentAboutBestOffset = this.confidentAboutBestOffset;
     result.hashBlock_matcher = this.hashBlock_matcher;
+    result.matcherPool = this.matcherPool;
+    result.packedQuery = this.packedQuery;
     result.maxInsertionExtensionPenalty = this.maxInsertionExtensionPenalty;
     result.maxDeletionExtensionPenalty = this.maxDeletionExtensionPenalty;
     result.lastCheckedOffset = this.lastCheckedOffset;
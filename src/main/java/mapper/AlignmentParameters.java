@@ -32,6 +32,15 @@ public class AlignmentParameters {
   // The maximum difference in penalty between the lowest-penalty alignment that we report and the highest-penalty alignment that we report
   public double Max_PenaltySpan;
 
+  // Whether to search for indels using a BandedAligner when we're confident about the offset of an alignment
+  public boolean UseBandedAligner;
+
+  // Whether to look for an unaligned end of a paired query near where the other end aligns, using a MateRescuer
+  public boolean UseMateRescue;
+
+  // Queries at least this long are aligned by a LongReadAligner instead of by searching for each candidate position, or -1 to disable
+  public int LongReadMinLength = -1;
+
   public boolean StartingInsertionStartFree;
   public double getStartingInsertionStartPenalty() {
     if (StartingInsertionStartFree)
@@ -60,6 +69,9 @@ public class AlignmentParameters {
     result.MaxNumMatches = MaxNumMatches;
     result.Max_PenaltySpan = Max_PenaltySpan;
     result.StartingInsertionStartFree = StartingInsertionStartFree;
+    result.UseBandedAligner = UseBandedAligner;
+    result.UseMateRescue = UseMateRescue;
+    result.LongReadMinLength = LongReadMinLength;
 
     return result;
   }
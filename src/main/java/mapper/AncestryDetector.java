@@ -1,18 +1,18 @@
 package mapper;
 
 import java.io.FileNotFoundException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // An AncestryDetector tries to estimate the ancestry of certain positions in a genome
 // It uses information from similar sections of the genome
@@ -52,6 +52,16 @@ public class AncestryDetector implements ReferenceProvider {
     return this;
   }
 
+  public AncestryDetector setResultingDatabaseMemoryBudget(long memoryBudget) {
+    this.resultingDatabaseMemoryBudget = memoryBudget;
+    return this;
+  }
+
+  public AncestryDetector setResultingDatabaseNumThreads(int numThreads) {
+    this.resultingDatabaseNumThreads = numThreads;
+    return this;
+  }
+
   public boolean getCanUseHelp() {
     HashBlock_Database hashblockDatabase;
     synchronized(this) {
@@ -87,15 +97,21 @@ public class AncestryDetector implements ReferenceProvider {
       this.numActiveWorkers++;
     }
 
-    // Process duplications one at a time
+    // Process batches of neighboring duplications
+    // Different duplications write to different positions, so workers only have to coordinate when claiming a batch and when writing to the same OverriddenSequence
     Readable_DuplicationDetector duplicationDetector = this.duplicationDetector.getView(logger);
+    Duplication[] duplications = this.getDuplicationsToProcess(duplicationDetector, logger);
     while(true) {
-      Duplication duplication = this.getNextDuplicationToProcess(duplicationDetector, logger);
-      if (duplication == null) {
+      int batchStart = this.nextDuplicationIndex.getAndAdd(duplicationsPerBatch);
+      if (batchStart >= duplications.length) {
         break;
       }
-      // process this duplication
-      this.analyze(duplication, duplicationDetector, logger);
+      int batchEnd = Math.min(batchStart + duplicationsPerBatch, duplications.length);
+      this.statusLogger.log("Processing duplication " + batchStart + " of " + duplications.length, false);
+      for (int i = batchStart; i < batchEnd; i++) {
+        // process this duplication
+        this.analyze(duplications[i], duplicationDetector, logger);
+      }
     }
     // the last worker should put the results together
     synchronized(this) {
@@ -107,34 +123,33 @@ public class AncestryDetector implements ReferenceProvider {
         List<Sequence> forwardOverrides = new ArrayList<Sequence>();
         for (Map.Entry<Sequence, OverriddenSequence> entry: this.sequenceOverrides.entrySet()) {
           Sequence original = entry.getKey();
-          Sequence overridden = entry.getValue();
+          OverriddenSequence overridden = entry.getValue();
           if (original.getComplementedFrom() == null) {
-            // Also decompress these sequences because OverriddenSequence can otherwise be a bit slow
-            overridden.decompress();
+            // Sort the overrides now so reading them later doesn't have to wait for a lock
+            overridden.compactOverrides();
             forwardOverrides.add(overridden);
           }
         }
         SequenceDatabase sequenceDatabase = new SequenceDatabase(forwardOverrides, true);
         // Inform the SequenceDatabase that it came from an AncestryDetector in case anything tries to cache it in the future
         sequenceDatabase.setAncestral();
-        this.result = new HashBlock_Database(sequenceDatabase, -1, -1, -1, this.resultingDatabaseEnableGapmers, null, this.statusLogger);
+        HashBlock_Database result = new HashBlock_Database(sequenceDatabase, -1, -1, -1, this.resultingDatabaseEnableGapmers, null, this.statusLogger, false, this.resultingDatabaseMemoryBudget);
+        if (this.resultingDatabaseNumThreads > 0)
+          result.setNumThreads(this.resultingDatabaseNumThreads);
+        this.result = result;
         this.considerSavingDatabase(sequenceDatabase);
         this.statusLogger.log("AncestryDetector done", true);
+        this.notifyAll();
       }
-    }
-    // wait for all workers to be done
-    while(true) {
-      synchronized(this) {
-        if (this.result != null) {
-          break;
+      // wait for all workers to be done
+      while (this.result == null) {
+        try {
+          this.wait();
+        } catch (InterruptedException e) {
         }
       }
-      try {
-        Thread.sleep(1);
-      } catch (InterruptedException e) {
-      }
+      return this.result;
     }
-    return this.result;
   }
 
   public boolean getEnableGapmers() {
@@ -142,8 +157,10 @@ public class AncestryDetector implements ReferenceProvider {
   }
 
   private void analyze(Duplication duplication, Readable_DuplicationDetector duplicationDetector, Logger logger) {
+    MapperEvent event = MapperEvents.beginAncestryAnalysis(duplication.getLength(), duplication.getNumInstances());
     this.analyze(duplication, duplicationDetector, -1, logger);
     this.analyze(duplication, duplicationDetector, 1, logger);
+    MapperEvents.end(event);
   }
 
   private void analyze(Duplication duplication, Readable_DuplicationDetector duplicationDetector, int polarity, Logger logger) {
@@ -152,82 +169,98 @@ public class AncestryDetector implements ReferenceProvider {
       return;
     }
     // compute bounds
-    // availableComponents is the set of SimilarityAnalysis that we can use to help us infer common ancestors
-    Set<SimilarityAnalysis> availableComponents = new HashSet<SimilarityAnalysis>();
-
-    // interestedComponents is the set of SimilarityAnalysis for which we're trying to infer the common ancestor
-    Set<SimilarityAnalysis> interestedComponents = new HashSet<SimilarityAnalysis>();
-
+    // Each SimilarityAnalysis gets a slot in <components>, and the sets below hold slots
+    List<SimilarityAnalysis> analyses = new ArrayList<SimilarityAnalysis>();
+    List<SimilarityAnalysis> interestingAnalyses = new ArrayList<SimilarityAnalysis>();
     for (SequencePosition startPosition: duplication.getStartPositions()) {
       SimilarityAnalysis analysis = computeAnalysisBounds(duplication, startPosition, duplicationDetector, polarity);
       if (analysis != null) {
-        availableComponents.add(analysis);
+        analyses.add(analysis);
         TreeMap<Integer, Duplication> interestingPositions = duplicationDetector.getInterestingDuplicationsOnSequence(startPosition.getSequence());
         Duplication interestingDuplicationHere = interestingPositions.get(startPosition.getStartIndex());
         if (duplication == interestingDuplicationHere)
-          interestedComponents.add(analysis);
+          interestingAnalyses.add(analysis);
+      }
+    }
+    int numComponents = analyses.size();
+    SimilarityAnalysis[] components = analyses.toArray(new SimilarityAnalysis[numComponents]);
+
+    // availableComponents is the set of SimilarityAnalysis that we can use to help us infer common ancestors
+    SlotSet availableComponents = new SlotSet(numComponents);
+    // interestedComponents is the set of SimilarityAnalysis for which we're trying to infer the common ancestor
+    SlotSet interestedComponents = new SlotSet(numComponents);
+    int interestingIndex = 0;
+    for (int slot = 0; slot < numComponents; slot++) {
+      availableComponents.add(slot);
+      if (interestingIndex < interestingAnalyses.size() && interestingAnalyses.get(interestingIndex) == components[slot]) {
+        interestedComponents.add(slot);
+        interestingIndex++;
       }
     }
     if (logger.getEnabled()) {
       StringBuilder messageBuilder = new StringBuilder();
       messageBuilder.append("For " + duplication + " polarity " + polarity + ", created " + availableComponents.size() + " similarity analyses: ");
-      for (SimilarityAnalysis analysis: availableComponents) {
-        messageBuilder.append(analysis.toString());
+      for (int slot = 0; slot < numComponents; slot++) {
+        messageBuilder.append(components[slot].toString());
         messageBuilder.append(", ");
       }
       logger.log(messageBuilder.toString());
     }
     // analyze
     // for each offset, we keep track of how many of each allele we found there
-    List<Byte> mostPopularEncodedAlleles = new ArrayList<Byte>();
+    byte[] mostPopularEncodedAlleles = new byte[64];
+    int numOffsets = 0;
+    int[] countsHere = new int[16];
+    SlotSet noLongerInterestedComponents = new SlotSet(numComponents);
+    SlotSet noLongerAvailableComponents = new SlotSet(numComponents);
     byte noAncestor = Basepairs.encode('-');
     while (interestedComponents.size() >= 1 && availableComponents.size() >= 3) {
-      Set<SimilarityAnalysis> noLongerInterestedComponents = new HashSet<SimilarityAnalysis>();
-      Set<SimilarityAnalysis> noLongerAvailableComponents = new HashSet<SimilarityAnalysis>();
+      noLongerInterestedComponents.clear();
+      noLongerAvailableComponents.clear();
 
       // check for analyses that no longer need ancestor inferences
-      Map<Byte, Integer> countsHere = new HashMap<Byte, Integer>();
-      for (SimilarityAnalysis similarity: interestedComponents) {
-        int currentPosition = similarity.currentIndex;
+      for (int i = 0; i < interestedComponents.size(); i++) {
+        int slot = interestedComponents.get(i);
+        SimilarityAnalysis similarity = components[slot];
         if (similarity.currentIndex == similarity.boundIndex) {
-          if (interestedComponents.contains(similarity)) {
-            if (logger.getEnabled())
-              logger.log("No longer interested in " + similarity + " (offset = " + mostPopularEncodedAlleles.size() + ") because reached bound " + similarity.boundIndex);
-            noLongerInterestedComponents.add(similarity);
-          }
+          if (logger.getEnabled())
+            logger.log("No longer interested in " + similarity + " (offset = " + numOffsets + ") because reached bound " + similarity.boundIndex);
+          noLongerInterestedComponents.add(slot);
         }
       }
       // count the distribution of alleles at this next offset
-      for (SimilarityAnalysis similarity: availableComponents) {
+      for (int i = 0; i < countsHere.length; i++) {
+        countsHere[i] = 0;
+      }
+      for (int i = 0; i < availableComponents.size(); i++) {
+        int slot = availableComponents.get(i);
+        SimilarityAnalysis similarity = components[slot];
         int currentPosition = similarity.currentIndex;
         Sequence sequence = similarity.sequence;
         if (currentPosition < 0 || currentPosition >= sequence.getLength()) {
-          noLongerAvailableComponents.add(similarity);
-          if (interestedComponents.contains(similarity)) {
-            noLongerInterestedComponents.add(similarity);
+          noLongerAvailableComponents.add(slot);
+          if (interestedComponents.contains(slot)) {
+            noLongerInterestedComponents.add(slot);
             if (logger.getEnabled())
               logger.log("No longer interested in " + similarity + " because reached end " + currentPosition);
           }
         } else {
-          byte itemHere = sequence.encodedCharAt(currentPosition);
-          Integer existingCount = countsHere.get(itemHere);
-          if (existingCount == null) {
-            existingCount = 0;
-          }
-          countsHere.put(itemHere, existingCount + 1);
+          countsHere[sequence.encodedCharAt(currentPosition) & 0xF]++;
         }
       }
 
       // find the most popular allele at this offset
+      // It's a tie if more than one allele has the highest count
       int bestCount = 0;
       byte mostPopularEncodedItem = 0;
       boolean tie = false;
-      for (Map.Entry<Byte, Integer> entry: countsHere.entrySet()) {
-        byte item = entry.getKey();
-        int count = entry.getValue();
+      for (int item = 0; item < countsHere.length; item++) {
+        int count = countsHere[item];
+        if (count < 1)
+          continue;
         if (count > bestCount) {
           bestCount = count;
-          mostPopularEncodedItem = item;
+          mostPopularEncodedItem = (byte)item;
           tie = false;
         } else {
           if (count == bestCount) {
@@ -237,14 +270,17 @@ public class AncestryDetector implements ReferenceProvider {
       }
       if (tie) {
         if (logger.getEnabled())
-          logger.log("For " + duplication + " offset = " + mostPopularEncodedAlleles.size() + " most popular allele is tied (num readable sections here = " + availableComponents.size() + ", highest allele count = " + bestCount + ")");
-        //noLongerInterestedComponents = new HashSet<SimilarityAnalysis>(interestedComponents);
+          logger.log("For " + duplication + " offset = " + numOffsets + " most popular allele is tied (num readable sections here = " + availableComponents.size() + ", highest allele count = " + bestCount + ")");
         mostPopularEncodedItem = noAncestor;
       }
-      mostPopularEncodedAlleles.add(mostPopularEncodedItem);
+      if (numOffsets >= mostPopularEncodedAlleles.length)
+        mostPopularEncodedAlleles = Arrays.copyOf(mostPopularEncodedAlleles, mostPopularEncodedAlleles.length * 2);
+      mostPopularEncodedAlleles[numOffsets] = mostPopularEncodedItem;
+      numOffsets++;
 
       // remove any similarity analyses that reached the end of the region for which they're responsible for inferring ancestors for
-      for (SimilarityAnalysis similarity: noLongerInterestedComponents) {
+      for (int i = 0; i < noLongerInterestedComponents.size(); i++) {
+        SimilarityAnalysis similarity = components[noLongerInterestedComponents.get(i)];
         boolean hasNeighborAnalysis = !similarity.getReachedEndOfSequence();
         boolean hasScore = similarity.cumulativeScore >= 0;
         boolean reachedNeighborAnalysis = hasNeighborAnalysis && hasScore;
@@ -261,70 +297,71 @@ public class AncestryDetector implements ReferenceProvider {
           // So, we consider it likely that similar section will extend to its neighbor even if there are three SNPs between the highest-scoring position and the neighbor
           similarity.addScore(getMismatchScore(3) * -1);
           if (logger.getEnabled()) {
-            logger.log("For " + duplication + " offset = " + mostPopularEncodedAlleles.size() + " applying bonus score for similarity that reached the end " + similarity + ": new score = " + similarity.cumulativeScore);
+            logger.log("For " + duplication + " offset = " + numOffsets + " applying bonus score for similarity that reached the end " + similarity + ": new score = " + similarity.cumulativeScore);
           }
         }
-        interestedComponents.remove(similarity);
+        interestedComponents.remove(noLongerInterestedComponents.get(i));
       }
 
       // remove any similarity analyses that reached the end
-      for (SimilarityAnalysis similarity: noLongerAvailableComponents) {
-        availableComponents.remove(similarity);
+      for (int i = 0; i < noLongerAvailableComponents.size(); i++) {
+        availableComponents.remove(noLongerAvailableComponents.get(i));
       }
 
       // update score of similarity analyses
-      for (SimilarityAnalysis similarity: availableComponents) {
+      double matchScore = getMatchScore(1);
+      double mismatchScore = getMismatchScore(1);
+      for (int i = 0; i < availableComponents.size(); i++) {
+        int slot = availableComponents.get(i);
+        SimilarityAnalysis similarity = components[slot];
         byte encodedItemHere = similarity.sequence.encodedCharAt(similarity.currentIndex);
         double scoreHere;
         if (encodedItemHere == mostPopularEncodedItem) {
-          scoreHere = getMatchScore(1);
+          scoreHere = matchScore;
         } else {
-          scoreHere = getMismatchScore(1);
+          scoreHere = mismatchScore;
         }
         similarity.addScore(scoreHere);
 
         if (similarity.cumulativeScore < 0) {
-          noLongerAvailableComponents.add(similarity);
-          if (interestedComponents.contains(similarity))
-            noLongerInterestedComponents.add(similarity);
+          noLongerAvailableComponents.add(slot);
+          if (interestedComponents.contains(slot))
+            noLongerInterestedComponents.add(slot);
           if (logger.getEnabled())
-            logger.log("No longer considering " + similarity + " (offset = " + mostPopularEncodedAlleles.size() + ") because cumulativeScore = " + similarity.cumulativeScore);
-        } else {
-          //if (logger.getEnabled()) {
-          //  logger.log("Similarity " + similarity + " offset " + mostPopularEncodedAlleles.size() + " cumulativeScore = " + similarity.cumulativeScore + " bestScore = " + similarity.bestScore);
-          //}
+            logger.log("No longer considering " + similarity + " (offset = " + numOffsets + ") because cumulativeScore = " + similarity.cumulativeScore);
         }
       }
 
       // remove any similarity analyses we're no longer interested in
-      for (SimilarityAnalysis similarity: noLongerAvailableComponents) {
-        availableComponents.remove(similarity);
+      for (int i = 0; i < noLongerAvailableComponents.size(); i++) {
+        availableComponents.remove(noLongerAvailableComponents.get(i));
       }
       // remove any similarity analyses whose score is insufficient
-      for (SimilarityAnalysis similarity: noLongerInterestedComponents) {
-        interestedComponents.remove(similarity);
+      for (int i = 0; i < noLongerInterestedComponents.size(); i++) {
+        interestedComponents.remove(noLongerInterestedComponents.get(i));
       }
       // advance to next position
-      for (SimilarityAnalysis similarity: availableComponents) {
-        similarity.currentIndex += polarity;
+      for (int i = 0; i < availableComponents.size(); i++) {
+        components[availableComponents.get(i)].currentIndex += polarity;
       }
 
       // write differences
-      for (SimilarityAnalysis similarity: noLongerInterestedComponents) {
-        for (int offset = 0; offset < mostPopularEncodedAlleles.size(); offset++) {
+      for (int i = 0; i < noLongerInterestedComponents.size(); i++) {
+        SimilarityAnalysis similarity = components[noLongerInterestedComponents.get(i)];
+        for (int offset = 0; offset < numOffsets; offset++) {
           int index = similarity.startIndex + offset * polarity;
           if (index == similarity.boundIndex) {
             if (logger.getEnabled())
               logger.log("For duplication " + duplication + " similarity " + similarity + " done inferring ancestors at offset " + offset + " because reached bound index " + index);
             break;
           }
-          byte encodedCommonAncestor = mostPopularEncodedAlleles.get(offset);
+          byte encodedCommonAncestor = mostPopularEncodedAlleles[offset];
           byte itemHere = similarity.sequence.encodedCharAt(index);
           if ((encodedCommonAncestor != itemHere && encodedCommonAncestor != noAncestor) || (this.verifyNoDuplicateAnalyses)) {
             byte hereOrAncestor = Basepairs.union(encodedCommonAncestor, itemHere);
             if (logger.getEnabled())
               logger.log("For duplication " + duplication + ", similarity " + similarity + " inferred ancestor " + Basepairs.decode(encodedCommonAncestor) + " (here = " + Basepairs.decode(itemHere) + ", union = " + Basepairs.decode(hereOrAncestor) + ") index " + index + " (offset " + offset + ")");
-            this.write(similarity.sequence, index, Basepairs.union(encodedCommonAncestor, itemHere), similarity);
+            this.write(similarity.sequence, index, hereOrAncestor, similarity);
           }
           if (index == similarity.bestIndex) {
             if (logger.getEnabled())
@@ -441,20 +478,7 @@ public class AncestryDetector implements ReferenceProvider {
     return start + length / 2;
   }
 
-  private Duplication getNextDuplicationToProcess(Readable_DuplicationDetector duplicationDetector, Logger logger) {
-    Queue<Duplication> duplicationsToProcess = this.getDuplicationsToProcess(duplicationDetector, logger);
-
-    synchronized(this) {
-      int numDuplicationsRemaining = duplicationsToProcess.size();
-      if (numDuplicationsRemaining < 1)
-        return null;
-      int numDuplicationsProcessed = this.totalNumDuplications - numDuplicationsRemaining;
-      this.statusLogger.log("Processing duplication " + numDuplicationsProcessed + " of " + this.totalNumDuplications, false);
-      return duplicationsToProcess.remove();
-    }
-  }
-
-  private Queue<Duplication> getDuplicationsToProcess(Readable_DuplicationDetector duplicationDetector, Logger logger) {
+  private Duplication[] getDuplicationsToProcess(Readable_DuplicationDetector duplicationDetector, Logger logger) {
     // check whether we've already found the duplications
     synchronized(this) {
       if (this.duplicationsToProcess != null) {
@@ -465,32 +489,63 @@ public class AncestryDetector implements ReferenceProvider {
     // search for duplications in parallel
     Set<Duplication> allDuplications = duplicationDetector.getAll();
 
-    // update our result queue and return it
+    // Sort duplications by where they start so that each batch covers a region of one contig
+    // This means that concurrent batches usually write to different sequences
+    final Map<Sequence, Integer> sequenceIndices = new HashMap<Sequence, Integer>();
+    for (Sequence sequence: this.reference) {
+      sequenceIndices.put(sequence, sequenceIndices.size());
+    }
+    Duplication[] sortedDuplications = allDuplications.toArray(new Duplication[allDuplications.size()]);
+    Arrays.sort(sortedDuplications, new Comparator<Duplication>() {
+      public int compare(Duplication a, Duplication b) {
+        SequencePosition positionA = a.getStartPositions().get(0);
+        SequencePosition positionB = b.getStartPositions().get(0);
+        int comparison = Integer.compare(getIndex(positionA.getSequence()), getIndex(positionB.getSequence()));
+        if (comparison != 0)
+          return comparison;
+        comparison = Integer.compare(positionA.getStartIndex(), positionB.getStartIndex());
+        if (comparison != 0)
+          return comparison;
+        return a.compareTo(b);
+      }
+
+      private int getIndex(Sequence sequence) {
+        Integer index = sequenceIndices.get(sequence);
+        if (index == null)
+          return -1;
+        return index;
+      }
+    });
+
+    // update our result array and return it
     boolean duplicationsAreNew = false;
     synchronized(this) {
       if (this.duplicationsToProcess == null) {
-        this.duplicationsToProcess = new ArrayDeque<Duplication>(allDuplications);
+        this.duplicationsToProcess = sortedDuplications;
         duplicationsAreNew = true;
-        this.totalNumDuplications = allDuplications.size();
       }
     }
     if (duplicationsAreNew) {
-      this.statusLogger.log("AncestryDetector processing " + this.duplicationsToProcess.size() + " duplications", true);
+      this.statusLogger.log("AncestryDetector processing " + sortedDuplications.length + " duplications", true);
       if (logger.getEnabled()) {
-        logger.log("AncestryDetector processing " + this.duplicationsToProcess.size() + " duplications");
-        for (Duplication duplication: allDuplications) {
+        logger.log("AncestryDetector processing " + sortedDuplications.length + " duplications");
+        for (Duplication duplication: sortedDuplications) {
           logger.log(" " + duplication);
         }
       }
     }
-    return this.duplicationsToProcess;
+    synchronized(this) {
+      return this.duplicationsToProcess;
+    }
   }
 
   private List<Sequence> reference;
   private DuplicationDetector duplicationDetector;
 
-  private Queue<Duplication> duplicationsToProcess;
-  private int totalNumDuplications;
+  // the number of neighboring duplications that a worker claims at once
+  private static int duplicationsPerBatch = 16;
+  private Duplication[] duplicationsToProcess;
+  private AtomicInteger nextDuplicationIndex = new AtomicInteger();
   private HashBlock_Database result;
   private int numActiveWorkers;
 
@@ -504,4 +559,6 @@ public class AncestryDetector implements ReferenceProvider {
 
   private boolean resultingDatabaseEnableGapmers = true;
   private boolean resultingDatabaseVerifyConsistency = false;
+  private long resultingDatabaseMemoryBudget = -1;
+  private int resultingDatabaseNumThreads = -1;
 }
@@ -0,0 +1,385 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A BandedAligner aligns two sequences using dynamic programming restricted to a band of diagonals around the predicted best offset
+// It only runs when we're confident about the best offset (so the band is already known); otherwise it defers to the next aligner
+// It computes the same penalties as a PathAligner but stores its state in primitive arrays rather than in AlignmentNode objects
+public class BandedAligner implements LocalAligner {
+  public BandedAligner(LocalAligner nextAligner) {
+    this.nextAligner = nextAligner;
+  }
+
+  public void setLogger(Logger logger) {
+    this.logger = logger;
+    this.nextAligner.setLogger(logger);
+  }
+
+  public SequenceAlignment align(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, AlignmentAnalysis alignmentAnalysis) {
+    if (!alignmentAnalysis.confidentAboutBestOffset) {
+      return this.nextAligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+    }
+    int queryLength = querySection.getLength();
+    int referenceLength = referenceSection.getLength();
+    if (queryLength < 1 || referenceLength < 1) {
+      return this.nextAligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+    }
+
+    // determine which diagonals we have to check
+    // Moving right along a row (a deletion) increases the diagonal and moving down a column (an insertion) decreases it
+    int maxInsertionLength = (int)Math.min(queryLength, alignmentAnalysis.maxInsertionExtensionPenalty / parameters.InsertionExtension_Penalty);
+    int maxDeletionLength = (int)Math.min(referenceLength, alignmentAnalysis.maxDeletionExtensionPenalty / parameters.DeletionExtension_Penalty);
+    int predictedDiagonal = querySection.getStartIndex() + alignmentAnalysis.predictedBestOffset - referenceSection.getStartIndex();
+    int minDiagonal = Math.max(-queryLength, predictedDiagonal - maxInsertionLength);
+    int maxDiagonal = Math.min(referenceLength, predictedDiagonal + maxDeletionLength);
+    if (minDiagonal > maxDiagonal) {
+      if (logger.getEnabled()) {
+        logger.log("BandedAligner found empty band around diagonal " + predictedDiagonal + "; deferring to next aligner");
+      }
+      return this.nextAligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+    }
+    int bandWidth = maxDiagonal - minDiagonal + 1;
+    if ((long)bandWidth * (long)(queryLength + 1) > maxNumCells) {
+      if (logger.getEnabled()) {
+        logger.log("BandedAligner band of width " + bandWidth + " for query length " + queryLength + " is too large; deferring to next aligner");
+      }
+      return this.nextAligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+    }
+
+    SequenceAlignment result = this.alignBand(querySection, referenceSection, parameters, minDiagonal, bandWidth, alignmentAnalysis.getPackedQuery(querySection.getSequence()));
+    if (logger.getEnabled()) {
+      if (result != null) {
+        logger.log("BandedAligner found alignment at " + referenceSection.getSequence().getName() + " position " + result.getStartIndexB() + " aligned penalty = " + result.getAlignedPenalty() + " using " + bandWidth + " diagonals");
+        logger.log("Query:" + result.getAlignedTextA());
+        logger.log("Ref  :" + result.getAlignedTextB());
+      } else {
+        logger.log("BandedAligner finds no sufficient alignment using " + bandWidth + " diagonals starting at " + minDiagonal);
+      }
+    }
+    return result;
+  }
+
+  // Runs an affine-gap dynamic program over the cells (i, j) with minDiagonal <= j - i < minDiagonal + bandWidth
+  // i counts query characters consumed and j counts reference characters consumed
+  // Each row is stored by diagonal, so the diagonal and insertion predecessors of a cell are at the same and next index of the previous row, and the loop over them has no dependencies between iterations
+  // If packedQuery is not null, it is a copy of the query that we can read more quickly
+  private SequenceAlignment alignBand(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, int minDiagonal, int bandWidth, PackedSequence packedQuery) {
+    Sequence query = querySection.getSequence();
+    Sequence reference = referenceSection.getSequence();
+    int queryStart = querySection.getStartIndex();
+    int referenceStart = referenceSection.getStartIndex();
+    int queryLength = querySection.getLength();
+    int referenceLength = referenceSection.getLength();
+    double maxInterestingPenalty = queryLength * parameters.MaxErrorRate;
+    // add a little bit extra penalty to the threshold for rounding error
+    double pruningThreshold = maxInterestingPenalty + 0.000001;
+
+    byte[] queryChars;
+    if (packedQuery != null)
+      queryChars = packedQuery.getEncodedChars(queryStart, queryLength);
+    else
+      queryChars = this.sequenceToEncodedChars(query, queryStart, queryLength);
+    byte[] referenceChars = this.sequenceToEncodedChars(reference, referenceStart, referenceLength);
+    double[] substitutionPenalties = this.getSubstitutionPenalties(parameters);
+
+    double insertionOpen = parameters.InsertionStart_Penalty + parameters.InsertionExtension_Penalty;
+    double startingInsertionOpen = parameters.getStartingInsertionStartPenalty() + parameters.InsertionExtension_Penalty;
+    double insertionExtend = parameters.InsertionExtension_Penalty;
+    double deletionOpen = parameters.DeletionStart_Penalty + parameters.DeletionExtension_Penalty;
+    double deletionExtend = parameters.DeletionExtension_Penalty;
+    double unalignedPenalty = parameters.UnalignedPenalty;
+    // If the reference section touches the end of its sequence, then the query may extend past it, and those query positions are unaligned rather than inserted
+    boolean mayExtendPastReferenceStart = (referenceStart == 0);
+    boolean mayExtendPastReferenceEnd = (referenceStart + referenceLength == reference.getLength());
+
+    // one extra slot so that reading the insertion predecessor of the last index needs no special case
+    this.ensureCapacity(bandWidth + 1, (queryLength + 1) * bandWidth);
+    double[] previousBest = this.previousBest;
+    double[] previousInsertion = this.previousInsertion;
+    double[] currentBest = this.currentBest;
+    double[] currentInsertion = this.currentInsertion;
+    double[] currentDeletion = this.currentDeletion;
+    byte[] trace = this.trace;
+
+    // first row: skipping any prefix of the reference is free
+    for (int k = 0; k <= bandWidth; k++) {
+      int j = minDiagonal + k;
+      previousBest[k] = (k < bandWidth && j >= 0 && j <= referenceLength) ? 0 : disallowed;
+      previousInsertion[k] = disallowed;
+      if (k < bandWidth)
+        trace[k] = FROM_START;
+    }
+    currentBest[bandWidth] = disallowed;
+    currentInsertion[bandWidth] = disallowed;
+
+    double bestFinalPenalty = disallowed;
+    int bestFinalI = -1;
+    int bestFinalJ = -1;
+    for (int i = 1; i <= queryLength; i++) {
+      int rowOffset = i * bandWidth;
+      // the range of band indices whose reference index is within the reference section
+      int kStart = Math.max(0, -(i + minDiagonal));
+      int kEnd = Math.min(bandWidth, referenceLength - (i + minDiagonal) + 1);
+      // Like the PathAligner, we only give an insertion at the start of the query a different penalty if the query may extend past the start of the reference
+      double openHere = (i == 1 && mayExtendPastReferenceStart) ? startingInsertionOpen : insertionOpen;
+      int substitutionRow = queryChars[i - 1] * 16;
+
+      for (int k = 0; k < kStart; k++) {
+        currentBest[k] = disallowed;
+        currentInsertion[k] = disallowed;
+        currentDeletion[k] = disallowed;
+      }
+      for (int k = Math.max(kEnd, 0); k < bandWidth; k++) {
+        currentBest[k] = disallowed;
+        currentInsertion[k] = disallowed;
+        currentDeletion[k] = disallowed;
+      }
+
+      // diagonal moves and insertions only depend on the previous row
+      for (int k = kStart; k < kEnd; k++) {
+        int j = i + minDiagonal + k;
+        double insertionFromBest = previousBest[k + 1] + openHere;
+        double insertionFromInsertion = previousInsertion[k + 1] + insertionExtend;
+        byte traceHere;
+        double insertion;
+        if (insertionFromInsertion <= insertionFromBest) {
+          insertion = insertionFromInsertion;
+          traceHere = INSERTION_EXTENDED;
+        } else {
+          insertion = insertionFromBest;
+          traceHere = 0;
+        }
+        double best;
+        if (j > 0) {
+          best = previousBest[k] + substitutionPenalties[substitutionRow + referenceChars[j - 1]];
+          traceHere |= FROM_DIAGONAL;
+        } else {
+          best = disallowed;
+          traceHere |= FROM_START;
+          if (mayExtendPastReferenceStart)
+            best = i * unalignedPenalty;
+        }
+        if (insertion < best) {
+          best = insertion;
+          traceHere = (byte)((traceHere & ~SOURCE_MASK) | FROM_INSERTION);
+        }
+        currentInsertion[k] = insertion;
+        currentBest[k] = best;
+        trace[rowOffset + k] = traceHere;
+      }
+
+      // deletions depend on the cell to their left in the same row
+      double rowMin = disallowed;
+      double deletion = disallowed;
+      for (int k = kStart; k < kEnd; k++) {
+        byte traceHere = trace[rowOffset + k];
+        if (k > kStart) {
+          double deletionFromBest = currentBest[k - 1] + deletionOpen;
+          double deletionFromDeletion = deletion + deletionExtend;
+          if (deletionFromDeletion <= deletionFromBest) {
+            deletion = deletionFromDeletion;
+            traceHere |= DELETION_EXTENDED;
+          } else {
+            deletion = deletionFromBest;
+          }
+          if (deletion < currentBest[k]) {
+            currentBest[k] = deletion;
+            traceHere = (byte)((traceHere & ~SOURCE_MASK) | FROM_DELETION);
+          }
+        }
+        currentDeletion[k] = deletion;
+        trace[rowOffset + k] = traceHere;
+        double best = currentBest[k];
+        if (best < rowMin)
+          rowMin = best;
+
+        if (mayExtendPastReferenceEnd && i + minDiagonal + k == referenceLength) {
+          // the rest of the query can hang off of the end of the reference
+          double penalty = best + (queryLength - i) * unalignedPenalty;
+          if (penalty < bestFinalPenalty) {
+            bestFinalPenalty = penalty;
+            bestFinalI = i;
+            bestFinalJ = referenceLength;
+          }
+        }
+      }
+      if (rowMin > pruningThreshold) {
+        // Penalties never decrease, so no path through this row can be good enough
+        if (logger.getEnabled()) {
+          logger.log("BandedAligner stopping at query position " + i + " because min penalty in row = " + rowMin + " > " + maxInterestingPenalty);
+        }
+        return null;
+      }
+
+      // swap rows
+      double[] temp = previousBest;
+      previousBest = currentBest;
+      currentBest = temp;
+      temp = previousInsertion;
+      previousInsertion = currentInsertion;
+      currentInsertion = temp;
+    }
+    // skipping any suffix of the reference is free
+    int lastRowOffset = queryLength * bandWidth;
+    for (int k = 0; k < bandWidth; k++) {
+      double penalty = previousBest[k];
+      // break ties in favor of aligning the whole query
+      if (penalty < bestFinalPenalty || (penalty == bestFinalPenalty && bestFinalI != queryLength)) {
+        bestFinalPenalty = penalty;
+        bestFinalI = queryLength;
+        bestFinalJ = queryLength + minDiagonal + k;
+      }
+    }
+    if (bestFinalPenalty > pruningThreshold) {
+      return null;
+    }
+
+    List<AlignedBlock> blocks = this.traceBack(query, reference, queryStart, referenceStart, bestFinalI, bestFinalJ, minDiagonal, bandWidth);
+    if (blocks.size() < 1)
+      return null;
+    SequenceAlignment result = parameters.newSequenceAlignment(blocks, (query.getComplementedFrom() != null));
+    // check for rounding error
+    if (result.getAlignedPenalty() > maxInterestingPenalty) {
+      if (logger.getEnabled()) {
+        logger.log("BandedAligner alignment penalty too high: aligned penalty " + result.getAlignedPenalty() + " > " + maxInterestingPenalty);
+      }
+      return null;
+    }
+    return result;
+  }
+
+  // walks backwards from the given cell and converts the path into AlignedBlocks
+  private List<AlignedBlock> traceBack(Sequence query, Sequence reference, int queryStart, int referenceStart, int i, int j, int minDiagonal, int bandWidth) {
+    List<AlignedBlock> blocks = new ArrayList<AlignedBlock>();
+    int state = FROM_DIAGONAL;
+    boolean inBest = true;
+    int blockEndI = i;
+    int blockEndJ = j;
+    int blockType = -1;
+    while (true) {
+      byte traceHere = this.trace[i * bandWidth + (j - i - minDiagonal)];
+      int move;
+      if (inBest) {
+        int source = traceHere & SOURCE_MASK;
+        if (source == FROM_START)
+          break;
+        if (source == FROM_DIAGONAL) {
+          move = FROM_DIAGONAL;
+        } else {
+          // switch into the indel state at this same cell
+          inBest = false;
+          state = source;
+          continue;
+        }
+      } else {
+        move = state;
+        boolean extended;
+        if (state == FROM_INSERTION)
+          extended = (traceHere & INSERTION_EXTENDED) != 0;
+        else
+          extended = (traceHere & DELETION_EXTENDED) != 0;
+        if (!extended)
+          inBest = true;
+      }
+      if (move != blockType) {
+        if (blockType >= 0)
+          blocks.add(new AlignedBlock(query, reference, queryStart + i, referenceStart + j, blockEndI - i, blockEndJ - j));
+        blockType = move;
+        blockEndI = i;
+        blockEndJ = j;
+      }
+      if (move == FROM_DIAGONAL) {
+        i--;
+        j--;
+      } else {
+        if (move == FROM_INSERTION)
+          i--;
+        else
+          j--;
+      }
+    }
+    if (blockType >= 0)
+      blocks.add(new AlignedBlock(query, reference, queryStart + i, referenceStart + j, blockEndI - i, blockEndJ - j));
+    // We walked backwards, so the blocks are in the wrong order
+    int middle = blocks.size() / 2;
+    for (int index = 0; index < middle; index++) {
+      int other = blocks.size() - index - 1;
+      AlignedBlock left = blocks.get(index);
+      blocks.set(index, blocks.get(other));
+      blocks.set(other, left);
+    }
+    return blocks;
+  }
+
+  // returns a table of penalties indexed by (encoded query char * 16 + encoded reference char)
+  private double[] getSubstitutionPenalties(AlignmentParameters parameters) {
+    if (this.substitutionPenalties == null || this.substitutionParameters == null || !this.samePenalties(this.substitutionParameters, parameters)) {
+      double[] penalties = new double[16 * 16];
+      for (int a = 0; a < 16; a++) {
+        for (int b = 0; b < 16; b++) {
+          penalties[a * 16 + b] = parameters.getPenalty((byte)a, (byte)b);
+        }
+      }
+      this.substitutionPenalties = penalties;
+      this.substitutionParameters = parameters;
+    }
+    return this.substitutionPenalties;
+  }
+
+  private boolean samePenalties(AlignmentParameters a, AlignmentParameters b) {
+    return a.MutationPenalty == b.MutationPenalty && a.AmbiguityPenalty == b.AmbiguityPenalty;
+  }
+
+  private void ensureCapacity(int rowLength, int numCells) {
+    if (this.previousBest == null || this.previousBest.length < rowLength) {
+      this.previousBest = new double[rowLength];
+      this.previousInsertion = new double[rowLength];
+      this.currentBest = new double[rowLength];
+      this.currentInsertion = new double[rowLength];
+      this.currentDeletion = new double[rowLength];
+    }
+    if (this.trace == null || this.trace.length < numCells) {
+      this.trace = new byte[numCells];
+    }
+  }
+
+  private byte[] sequenceToEncodedChars(Sequence sequence, int startIndex, int length) {
+    PackedSequence packed = PackedReferenceSequence.getPacked(sequence);
+    if (packed != null)
+      return packed.getEncodedChars(startIndex, length);
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = sequence.encodedCharAt(startIndex + i);
+    }
+    return result;
+  }
+
+  // which predecessor the best penalty of a cell came from
+  private static final int SOURCE_MASK = 3;
+  private static final byte FROM_DIAGONAL = 0;
+  private static final byte FROM_INSERTION = 1;
+  private static final byte FROM_DELETION = 2;
+  private static final byte FROM_START = 3;
+  // whether the insertion or deletion ending at a cell continued an existing one rather than starting a new one
+  private static final byte INSERTION_EXTENDED = 4;
+  private static final byte DELETION_EXTENDED = 8;
+
+  // a large number that will be worse than any other penalty
+  private static double disallowed = 1000000.0;
+  // the largest number of cells we're willing to allocate for traceback information
+  private static long maxNumCells = 1 << 24;
+
+  private Logger logger;
+  private LocalAligner nextAligner;
+
+  // buffers reused across alignments
+  private double[] previousBest;
+  private double[] previousInsertion;
+  private double[] currentBest;
+  private double[] currentInsertion;
+  private double[] currentDeletion;
+  private byte[] trace;
+  private double[] substitutionPenalties;
+  private AlignmentParameters substitutionParameters;
+}
@@ -16,6 +16,9 @@ public class Counting_HashBlockPath {
   static long[] emptyList = new long[0];
 
   private static int usualNumberOfMatchesRequiredBeforeInvestigating = 1;
+  // when checking for a hash collision, how far past each end of the hashblock to look, plus one
+  private static int maxCheckDistance = 20;
+  private static long UNKNOWN_MISMATCHES = -1;
 
   public Counting_HashBlockPath(HashBlock_Pyramid pyramid, Readable_HashBlock_Database database, SequenceDatabase sequenceDatabase, Sequence query, String queryShortName, Logger logger, AlignmentParameters alignmentParameters) {
     this.path = new HashBlockPath(pyramid, database, sequenceDatabase, query, logger.incrementScope(), queryShortName);
@@ -23,6 +26,7 @@ public class Counting_HashBlockPath {
     this.database = database;
     this.sequenceDatabase = sequenceDatabase;
     this.query = query;
+    this.packedQuery = new PackedSequence(query);
     this.reverseComplementQuery = query.reverseComplement();
     this.queryShortName = queryShortName;
     this.logger = logger;
@@ -36,8 +40,27 @@ public class Counting_HashBlockPath {
     this.maxIndelLengthToConsider = maxPossibleIndel / 2;
   }
 
+  // the query, packed so it can be read more quickly
+  public PackedSequence getPackedQuery() {
+    return this.packedQuery;
+  }
+
+  // If timer is not null, the time spent finding hashblock matches is reported to it
+  public void setQueryTimer(QueryTimer timer) {
+    this.timer = timer;
+  }
+
   // advance the path, update the match counts, and return whether we made any progress
   public boolean step() {
+    if (this.timer == null)
+      return this.untimedStep();
+    long start = this.timer.start();
+    boolean result = this.untimedStep();
+    this.timer.stop(QueryTimer.SEED_LOOKUP, start);
+    return result;
+  }
+
+  private boolean untimedStep() {
     if (this.done)
       return false;
     if (this.logger.getEnabled()) {
@@ -94,8 +117,19 @@ public class Counting_HashBlockPath {
 
       int numMismatchedItems = 0;
       int numMatchedItems = 0;
+      // If the reference is packed, we compare the basepairs on each side of the hashblock a word at a time
+      PackedSequence packedReference = PackedReferenceSequence.getPacked(currentMatchedSequence);
+      int leftQueryStart = queryBlock.getStartIndex() - (maxCheckDistance - 1);
+      int leftReferenceStart = referenceBlock.getStartIndex() - (maxCheckDistance - 1);
+      int leftClip = Math.max(0, Math.max(-leftQueryStart, -leftReferenceStart));
+      leftQueryStart += leftClip;
+      leftReferenceStart += leftClip;
+      long leftMismatches = this.getMismatchFlags(packedReference, leftQueryStart, leftReferenceStart);
+      int rightQueryStart = queryBlock.getStartIndex() + queryBlock.getLength();
+      int rightReferenceStart = referenceBlock.getStartIndex() + queryBlock.getLength();
+      long rightMismatches = this.getMismatchFlags(packedReference, rightQueryStart, rightReferenceStart);
       // do a brief check to try to skip non-matching positions (hash collisions)
-      for (int distance = 1; distance < 20; distance++) {
+      for (int distance = 1; distance < maxCheckDistance; distance++) {
         int checkOffset;
         int queryIndex;
 
@@ -105,10 +139,15 @@ public class Counting_HashBlockPath {
         if (queryIndex >= 0 && queryIndex < query.getLength()) {
           int referenceIndex = referenceBlock.getStartIndex() + checkOffset;
           if (referenceIndex >= 0 && referenceIndex < currentMatchedSequence.getLength()) {
-            byte encodedQueryChar = this.query.encodedCharAt(queryIndex);
-            byte encodedRefChar = currentMatchedSequence.encodedCharAt(referenceIndex);
-            if (!Basepairs.canMatch(encodedQueryChar, encodedRefChar)) {
+            boolean canMatch;
+            if (leftMismatches != UNKNOWN_MISMATCHES)
+              canMatch = (leftMismatches & getMismatchFlag(queryIndex - leftQueryStart)) == 0;
+            else
+              canMatch = Basepairs.canMatch(this.packedQuery.encodedCharAt(queryIndex), currentMatchedSequence.encodedCharAt(referenceIndex));
+            if (!canMatch) {
               if (logger.getEnabled()) {
+                byte encodedQueryChar = this.packedQuery.encodedCharAt(queryIndex);
+                byte encodedRefChar = currentMatchedSequence.encodedCharAt(referenceIndex);
                 logger.log("   checked basepair " + checkOffset + " in query block: got " + Basepairs.decode(encodedQueryChar) + " in query and " + Basepairs.decode(encodedRefChar) + " in reference");
               }
               // Query block detected as different from reference block (hash collision). Skipping
@@ -125,10 +164,15 @@ public class Counting_HashBlockPath {
         if (queryIndex >= 0 && queryIndex < query.getLength()) {
           int referenceIndex = referenceBlock.getStartIndex() + checkOffset;
           if (referenceIndex >= 0 && referenceIndex < currentMatchedSequence.getLength()) {
-            byte encodedQueryChar = this.query.encodedCharAt(queryIndex);
-            byte encodedRefChar = currentMatchedSequence.encodedCharAt(referenceIndex);
-            if (!Basepairs.canMatch(encodedQueryChar, encodedRefChar)) {
+            boolean canMatch;
+            if (rightMismatches != UNKNOWN_MISMATCHES)
+              canMatch = (rightMismatches & getMismatchFlag(queryIndex - rightQueryStart)) == 0;
+            else
+              canMatch = Basepairs.canMatch(this.packedQuery.encodedCharAt(queryIndex), currentMatchedSequence.encodedCharAt(referenceIndex));
+            if (!canMatch) {
               if (logger.getEnabled()) {
+                byte encodedQueryChar = this.packedQuery.encodedCharAt(queryIndex);
+                byte encodedRefChar = currentMatchedSequence.encodedCharAt(referenceIndex);
                 logger.log("   checked basepair " + checkOffset + " in query block: got " + Basepairs.decode(encodedQueryChar) + " in query and " + Basepairs.decode(encodedRefChar) + " in reference");
               }
               // Query block detected as different from reference block (hash collision). Skipping
@@ -178,6 +222,24 @@ public class Counting_HashBlockPath {
     return true; // there may be more work left to do
   }
 
+  // Returns one flag (see getMismatchFlag) for each of the 32 basepairs starting at query[queryIndex] and reference[referenceIndex], which is set if they differ
+  // Returns UNKNOWN_MISMATCHES if the reference isn't packed, or if either range starts past its end or contains an ambiguous basepair
+  private long getMismatchFlags(PackedSequence reference, int queryIndex, int referenceIndex) {
+    if (reference == null || queryIndex >= this.packedQuery.getLength() || referenceIndex >= reference.getLength())
+      return UNKNOWN_MISMATCHES;
+    if (this.packedQuery.containsAmbiguity(queryIndex, Math.min(queryIndex + 32, this.packedQuery.getLength())))
+      return UNKNOWN_MISMATCHES;
+    if (reference.containsAmbiguity(referenceIndex, Math.min(referenceIndex + 32, reference.getLength())))
+      return UNKNOWN_MISMATCHES;
+    long differences = this.packedQuery.get32BasesAt(queryIndex) ^ reference.get32BasesAt(referenceIndex);
+    return (differences | (differences >>> 1)) & 0x5555555555555555L;
+  }
+
+  // the bit that getMismatchFlags sets if the basepair at <offset> differs
+  private static long getMismatchFlag(int offset) {
+    return 1L << (62 - 2 * offset);
+  }
+
   private HashBlockMatch_Counter getCounter(Map<Integer, HashBlockMatch_Counter> map, int position, SequenceMatch match, HashBlock queryBlock) {
     HashBlockMatch_Counter counter = map.get(position);
     return counter;
@@ -526,8 +588,10 @@ public class Counting_HashBlockPath {
   int numMatchCounters;
   SequenceDatabase sequenceDatabase;
   Sequence query;
+  PackedSequence packedQuery;
   Sequence reverseComplementQuery;
   Logger logger;
+  QueryTimer timer;
 
   // the end index of the latest nonoverlapping block that we've seen
   int maxNonoverlappingBlockVisited;
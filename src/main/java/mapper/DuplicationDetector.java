@@ -128,6 +128,7 @@ public class DuplicationDetector {
 
   private void process(int blockLength, Logger logger) {
     this.statusLogger.log("DuplicationDetector starting to process length " + blockLength, false);
+    MapperEvent event = MapperEvents.beginDuplicationDetection(blockLength);
     HashBlock_Database hashblockDatabase = this.getHashblockDatabase(logger);
     Readable_HashBlock_Database readableHashblockDatabase = this.get_ReadableHashblockDatabase(logger);
     SequenceDatabase sequenceDatabase = hashblockDatabase.getSequenceDatabase();
@@ -212,6 +213,7 @@ public class DuplicationDetector {
         }
       }
     }
+    MapperEvents.endDuplicationDetection(event, loadedFromCache);
 
     // record that we're done
     synchronized(this) {
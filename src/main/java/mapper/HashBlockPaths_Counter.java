@@ -2,11 +2,7 @@ package mapper;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
 
 // a HashBlockPaths_Counter keeps track of some metrics about several HashBlockPaths
 public class HashBlockPaths_Counter {
@@ -133,7 +129,7 @@ public class HashBlockPaths_Counter {
   }
 
   // given a List<PossibleSequenceMatches>, matches up nearby sequence matches, and makes a QueryMatch for each
-  private List<QueryMatch> matchWithoutCache(List<List<HashBlockMatch_Counter>> components) {
+  List<QueryMatch> matchWithoutCache(List<List<HashBlockMatch_Counter>> components) {
     if (components.size() > 2) {
       throw new IllegalArgumentException("It is currently only supported to match 2 query ends at a time, not " + components.size());
     }
@@ -150,16 +146,13 @@ public class HashBlockPaths_Counter {
     // We have to match up each pair of nearby potential sequence matches even if their total number of hashblock mismatches is higher than the penalty limit,
     // because hashblock mismatches shared between two different sequence matches might not be distinct (two paired-end reads might overlap and each share the same hashblock mismatch)
 
-    // LinkedHashMap<reference contig, TreeMap<offset, List<nearby HashBlockMatch_Counter>>>
-    LinkedHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> forwardMatchingComponents = new LinkedHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>>();
-    LinkedHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> reverseMatchingComponents = new LinkedHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>>();
-
-    // essentially a List<QueryMatch>
-    List<List<HashBlockMatch_Counter>> matchedCounters = new ArrayList<List<HashBlockMatch_Counter>>();
+    // We save the positions of the smaller component, sorted by (reference contig, strand, offset), and then search near each position of the larger component
+    HashBlockPaths_Joiner joiner = this.getJoiner();
+    joiner.clear();
+    List<QueryMatch> results = new ArrayList<QueryMatch>();
 
-    boolean lastComponentIsLargest = components.size() <= 1 || components.get(0).size() <= components.get(1).size();
+    boolean lastComponentIsLargest = components.get(0).size() <= components.get(1).size();
     // check each query sequence
-    List<QueryMatch> guessedMatches = new ArrayList<QueryMatch>();
     for (int i = 0; i < components.size(); i++) {
       int componentIndex;
       if (lastComponentIsLargest)
@@ -171,97 +164,72 @@ public class HashBlockPaths_Counter {
 
       // check each position where that query sequence could align
       for (HashBlockMatch_Counter counter: choices) {
-        // search for this match in our data structure
         SequenceMatch match = counter.getMatch();
-        Sequence referenceSequence = match.getSequenceB();
-        // allow the two query sequences to be shifted in the opposite direction by up to this much
-        int querySequenceLength = match.getSequenceA().getLength();
-        int maxReverseOffset = querySequenceLength / 2;
-
-        // separate forward matches from reverse matches
-        LinkedHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> matchingComponents;
         // determine whether this SequenceMatch corresponds to a forward or reverse QueryMatch
         boolean sequenceMatchReversed = match.getReversed();
         boolean queryMatchReversed = (sequenceMatchReversed == (componentIndex % 2 == 0));
-        if (queryMatchReversed) {
-          matchingComponents = reverseMatchingComponents;
-        } else {
-          matchingComponents = forwardMatchingComponents;
-        }
-        TreeMap<Integer, HashBlockMatch_Counter> matchesOnThisSequence = matchingComponents.get(referenceSequence);
-        if (matchesOnThisSequence == null) {
-          matchesOnThisSequence = new TreeMap<Integer, HashBlockMatch_Counter>();
-          matchingComponents.put(referenceSequence, matchesOnThisSequence);
+        if (i == 0) {
+          // save this position for us to check in the next iteration
+          joiner.add(counter, queryMatchReversed);
+          continue;
         }
+        // allow the two query sequences to be shifted in the opposite direction by up to this much
+        int querySequenceLength = match.getSequenceA().getLength();
+        int maxReverseOffset = querySequenceLength / 2;
         int offset = match.getOffset();
-        if (i == 0) {
-          if (i == components.size() - 1) {
-            // this is the only component
-            List<HashBlockMatch_Counter> group = new ArrayList<HashBlockMatch_Counter>(1);
-            group.add(counter);
-            matchedCounters.add(group);
-          } else {
-            // save this position for us to check in the next iteration
-            matchesOnThisSequence.put(offset, counter);
-          }
-        } else {
-          // check for each nearby position from the first iteration
-          int searchStart, searchEnd;
-          // Reversing the query should reverse the direction of the search
-          // Reversing the order in which we check query components should reverse the order of the search
-          // When the qury match is reverse and we're iterating in forward order, maxOffsetBetweenComponents should be added
-          boolean otherSequenceExpectEarlier = (queryMatchReversed == lastComponentIsLargest);
-          if (otherSequenceExpectEarlier) {
-            searchStart = offset - maxReverseOffset;
-            searchEnd = offset + this.maxOffsetBetweenComponents;
-          } else {
-            searchStart = offset - this.maxOffsetBetweenComponents;
-            searchEnd = offset + maxReverseOffset;
-          }
 
-          // find nearby entries
-          NavigableMap<Integer, HashBlockMatch_Counter> nearbyEntries = matchesOnThisSequence.subMap(searchStart, true, searchEnd, true);
-          if (queryMatchReversed && nearbyEntries.size() > 1) {
-            nearbyEntries = nearbyEntries.descendingMap();
-          }
+        // check for each nearby position from the first iteration
+        int searchStart, searchEnd;
+        // Reversing the query should reverse the direction of the search
+        // Reversing the order in which we check query components should reverse the order of the search
+        // When the qury match is reverse and we're iterating in forward order, maxOffsetBetweenComponents should be added
+        boolean otherSequenceExpectEarlier = (queryMatchReversed == lastComponentIsLargest);
+        if (otherSequenceExpectEarlier) {
+          searchStart = offset - maxReverseOffset;
+          searchEnd = offset + this.maxOffsetBetweenComponents;
+        } else {
+          searchStart = offset - this.maxOffsetBetweenComponents;
+          searchEnd = offset + maxReverseOffset;
+        }
 
-          for (Map.Entry<Integer, HashBlockMatch_Counter> nearbyEntry: nearbyEntries.entrySet()) {
-            List<HashBlockMatch_Counter> matchingCounters = new ArrayList<HashBlockMatch_Counter>(2);
-            if (lastComponentIsLargest) {
-              matchingCounters.add(nearbyEntry.getValue());
-              matchingCounters.add(counter);
-            } else {
-              matchingCounters.add(counter);
-              matchingCounters.add(nearbyEntry.getValue());
-            }
-            matchedCounters.add(matchingCounters);
+        // find nearby entries
+        int numNearby = joiner.findNearby(match.getSequenceB(), queryMatchReversed, searchStart, searchEnd, queryMatchReversed);
+        for (int j = 0; j < numNearby; j++) {
+          HashBlockMatch_Counter nearby = joiner.getFound(j);
+          if (lastComponentIsLargest) {
+            results.add(this.assembleQueryMatch(nearby, counter));
+          } else {
+            results.add(this.assembleQueryMatch(counter, nearby));
           }
         }
       }
+      if (i == 0) {
+        // findNearby binary-searches the saved positions
+        joiner.sort();
+      }
     }
-
-    // now collect the results where each component had a match
-    List<QueryMatch> results = assembleQueryMatches(matchedCounters);
-    results.addAll(guessedMatches);
+    joiner.clear();
     return results;
   }
 
-  private List<QueryMatch> assembleQueryMatches(List<List<HashBlockMatch_Counter>> matchingComponents) {
-    List<QueryMatch> results = new ArrayList<QueryMatch>();
+  // Specifies the HashBlockPaths_Joiner to use for matching up the components, so its buffers can be reused
+  public void setJoiner(HashBlockPaths_Joiner joiner) {
+    this.joiner = joiner;
+  }
 
-    for (List<HashBlockMatch_Counter> group: matchingComponents) {
-      List<SequenceMatch> sequenceMatches = matchCountersToSequenceMatches(group);
-      boolean hintSearchForward;
-      if (group.size() > 1) {
-        hintSearchForward = group.get(0).getNumDistinctMismatches() < group.get(1).getNumDistinctMismatches();
-      } else {
-        hintSearchForward = true;
-      }
-      int numMismatches = countPriority(group);
-      results.add(new QueryMatch(sequenceMatches, numMismatches, hintSearchForward));
-    }
+  private HashBlockPaths_Joiner getJoiner() {
+    if (this.joiner == null)
+      this.joiner = new HashBlockPaths_Joiner();
+    return this.joiner;
+  }
 
-    return results;
+  private QueryMatch assembleQueryMatch(HashBlockMatch_Counter first, HashBlockMatch_Counter second) {
+    List<SequenceMatch> sequenceMatches = new ArrayList<SequenceMatch>(2);
+    sequenceMatches.add(first.getMatch());
+    sequenceMatches.add(second.getMatch());
+    boolean hintSearchForward = first.getNumDistinctMismatches() < second.getNumDistinctMismatches();
+    int numMismatches = countPriority(first, second);
+    return new QueryMatch(sequenceMatches, numMismatches, hintSearchForward);
   }
 
   private List<QueryMatch> filterMatchesHavingPriority(List<QueryMatch> matches, int numDistinctMismatches) {
@@ -311,26 +279,16 @@ public class HashBlockPaths_Counter {
     return matches;
   }
 
-  private int countPriority(List<HashBlockMatch_Counter> counters) {
-    if (counters.size() == 2) {
-      SequenceMatch match1 = counters.get(0).getMatch();
-      SequenceMatch match2 = counters.get(1).getMatch();
-      if (match1.getStartIndexB() < match2.getEndIndexB() && match1.getEndIndexB() > match2.getStartIndexB()) {
-        // If any sequence matches overlap, then any hashblock mismatches might be counted multiple times
-        // We want to compute the priority of the query match, so we need a lower bound on the deduplicated mismatches
-        int max = 0;
-        for (HashBlockMatch_Counter counter: counters) {
-          max = Math.max(max, counter.getPriority());
-        }
-        return max;
-      }
+  private int countPriority(HashBlockMatch_Counter first, HashBlockMatch_Counter second) {
+    SequenceMatch match1 = first.getMatch();
+    SequenceMatch match2 = second.getMatch();
+    if (match1.getStartIndexB() < match2.getEndIndexB() && match1.getEndIndexB() > match2.getStartIndexB()) {
+      // If any sequence matches overlap, then any hashblock mismatches might be counted multiple times
+      // We want to compute the priority of the query match, so we need a lower bound on the deduplicated mismatches
+      return Math.max(0, Math.max(first.getPriority(), second.getPriority()));
     }
     // If the matches don't overlap, then each mismatch is distinct
-    int total = 0;
-    for (HashBlockMatch_Counter counter: counters) {
-      total += counter.getPriority();
-    }
-    return total;
+    return first.getPriority() + second.getPriority();
   }
 
   private List<Counting_HashBlockPath> components;
@@ -341,4 +299,5 @@ public class HashBlockPaths_Counter {
   private List<QueryMatch> previousAssembledMatches;
   private List<List<HashBlockMatch_Counter>> previousMatchComponents;
   private boolean foundNonemptyResult;
+  private HashBlockPaths_Joiner joiner;
 }
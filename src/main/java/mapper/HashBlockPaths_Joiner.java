@@ -0,0 +1,132 @@
+package mapper;
+
+import java.util.Arrays;
+
+// A HashBlockPaths_Joiner matches up the candidate positions of the two ends of a paired query
+// It sorts the candidates of one end by (contig, strand, offset) and then, for each candidate of the other end, scans the nearby sorted candidates
+// It keeps its arrays between queries, so each AlignerWorker can reuse one instead of allocating maps for each query
+public class HashBlockPaths_Joiner {
+  public HashBlockPaths_Joiner() {
+  }
+
+  // Forgets all saved candidates
+  public void clear() {
+    for (int i = 0; i < this.count; i++) {
+      this.counters[i] = null;
+    }
+    for (int i = 0; i < this.numFound; i++) {
+      this.found[i] = null;
+    }
+    this.count = 0;
+    this.numFound = 0;
+  }
+
+  // Saves a candidate for subsequent calls to findNearby, which should happen after calling sort
+  public void add(HashBlockMatch_Counter counter, boolean queryMatchReversed) {
+    if (this.count >= this.counters.length) {
+      int newCapacity = this.counters.length * 2;
+      this.counters = Arrays.copyOf(this.counters, newCapacity);
+      this.groups = Arrays.copyOf(this.groups, newCapacity);
+      this.positions = Arrays.copyOf(this.positions, newCapacity);
+      this.superseded = Arrays.copyOf(this.superseded, newCapacity);
+    }
+    SequenceMatch match = counter.getMatch();
+    this.counters[this.count] = counter;
+    this.groups[this.count] = makeGroup(match.getSequenceB(), queryMatchReversed);
+    this.positions[this.count] = makePosition(match.getOffset(), this.count);
+    this.count++;
+  }
+
+  // Sorts the saved candidates
+  // If several candidates have the same contig, strand and offset, only the one added last is kept
+  public void sort() {
+    HashBlock_RunBuffer.sort(this.groups, this.positions, 0, this.count - 1);
+    int runStart = 0;
+    for (int i = 0; i < this.count; i++) {
+      if (i > runStart && (this.groups[i] != this.groups[runStart] || getOffset(this.positions[i]) != getOffset(this.positions[runStart])))
+        runStart = i;
+      this.superseded[i] = false;
+      // Within a run, candidates are ordered by when they were added, and different contigs can share a group
+      Sequence sequence = this.getCounter(i).getMatch().getSequenceB();
+      for (int j = runStart; j < i; j++) {
+        if (!this.superseded[j] && this.getCounter(j).getMatch().getSequenceB() == sequence)
+          this.superseded[j] = true;
+      }
+    }
+  }
+
+  // Finds the saved candidates on <sequence> and <queryMatchReversed> having offsets from <searchStart> to <searchEnd>, inclusive
+  // They're in order of increasing offset, or decreasing offset if <descending>
+  // Returns the number found; use getFound to read them
+  public int findNearby(Sequence sequence, boolean queryMatchReversed, int searchStart, int searchEnd, boolean descending) {
+    for (int i = 0; i < this.numFound; i++) {
+      this.found[i] = null;
+    }
+    this.numFound = 0;
+    long group = makeGroup(sequence, queryMatchReversed);
+    long startPosition = makePosition(searchStart, 0);
+    // binary search for the first candidate at or after (group, searchStart)
+    int low = 0;
+    int high = this.count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (HashBlock_RunBuffer.compare(this.groups[middle], this.positions[middle], group, startPosition) < 0)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    for (int i = low; i < this.count && this.groups[i] == group && getOffset(this.positions[i]) <= searchEnd; i++) {
+      if (this.superseded[i])
+        continue;
+      HashBlockMatch_Counter counter = this.getCounter(i);
+      if (counter.getMatch().getSequenceB() != sequence)
+        continue;
+      if (this.numFound >= this.found.length)
+        this.found = Arrays.copyOf(this.found, this.found.length * 2);
+      this.found[this.numFound] = counter;
+      this.numFound++;
+    }
+    if (descending) {
+      for (int i = 0, j = this.numFound - 1; i < j; i++, j--) {
+        HashBlockMatch_Counter temp = this.found[i];
+        this.found[i] = this.found[j];
+        this.found[j] = temp;
+      }
+    }
+    return this.numFound;
+  }
+
+  public HashBlockMatch_Counter getFound(int index) {
+    return this.found[index];
+  }
+
+  private HashBlockMatch_Counter getCounter(int sortedIndex) {
+    return this.counters[(int)this.positions[sortedIndex]];
+  }
+
+  // Different contigs can have the same identity hash code, so callers still have to compare the contigs themselves
+  private static long makeGroup(Sequence sequence, boolean queryMatchReversed) {
+    long group = ((long)System.identityHashCode(sequence)) << 1;
+    if (queryMatchReversed)
+      group |= 1;
+    return group;
+  }
+
+  private static long makePosition(int offset, int index) {
+    return (((long)offset) << 32) | index;
+  }
+
+  private static int getOffset(long position) {
+    return (int)(position >> 32);
+  }
+
+  private HashBlockMatch_Counter[] counters = new HashBlockMatch_Counter[16];
+  private long[] groups = new long[16];
+  // each position is (offset << 32 | index into <counters>)
+  private long[] positions = new long[16];
+  private boolean[] superseded = new boolean[16];
+  private int count;
+
+  private HashBlockMatch_Counter[] found = new HashBlockMatch_Counter[16];
+  private int numFound;
+}
@@ -115,7 +115,10 @@ public class HashBlock_Aligner implements LocalAligner {
       if (logger.getEnabled()) {
         logger.log("Creating new HashBlock_Matcher with section length " + lookupUncertainty);
       }
-      matcher = new HashBlock_Matcher(query, referenceSection, lookupUncertainty);
+      if (alignmentAnalysis.matcherPool != null)
+        matcher = alignmentAnalysis.matcherPool.getMatcher(query, alignmentAnalysis.getPackedQuery(query), referenceSection, lookupUncertainty);
+      else
+        matcher = new HashBlock_Matcher(query, alignmentAnalysis.getPackedQuery(query), referenceSection, lookupUncertainty, null);
       if (alignmentAnalysis.hashBlock_matcher == null)
         alignmentAnalysis.hashBlock_matcher = matcher;
     }
@@ -6,9 +6,15 @@ import java.util.List;
 // a HashBlock_Buffer listens for hashblocks in a certain area, stores them, and emits a lot of them at once to a HashBlock_Database
 public class HashBlock_Buffer {
   public HashBlock_Buffer(HashJob section, HashBlock_Database database, int minInterestingSize) {
+    this(section, database, minInterestingSize, null);
+  }
+
+  // If sink is not null, the hashblocks are given to it instead of being added to the PackedMaps of the database
+  public HashBlock_Buffer(HashJob section, HashBlock_Database database, int minInterestingSize, HashBlock_Sink sink) {
     this.section = section;
     this.database = database;
     this.minInterestingSize = minInterestingSize;
+    this.sink = sink;
   }
 
   public void addHashblock(IMultiHashBlock block) {
@@ -33,9 +39,9 @@ public class HashBlock_Buffer {
   }
 
   public void flush() {
-    this.database.addHashblocks(this.section.sequence, this.multiBlocks);
+    this.database.addHashblocks(this.section.sequence, this.multiBlocks, this.sink);
     this.multiBlocks.clear();
-    this.database.addHashblocks(this.section.sequence, this.singleBlocks);
+    this.database.addHashblocks(this.section.sequence, this.singleBlocks, this.sink);
     this.singleBlocks.clear();
   }
 
@@ -47,5 +53,6 @@ public class HashBlock_Buffer {
   private List<IMultiHashBlock> singleBlocks = new ArrayList<IMultiHashBlock>();
   private HashBlock_Database database;
   private HashJob section;
+  private HashBlock_Sink sink;
   private int minInterestingSize; // we don't have to save any hashblocks shorter than this because the HashBlock_Database won't be interested in them
 }
@@ -6,6 +6,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,25 +21,29 @@ import java.util.TreeSet;
 // If two HashBlocks have the same text, they are considered equal.
 public class HashBlock_Database implements ReferenceProvider {
   public HashBlock_Database(SequenceDatabase sequences) {
-    this.initialize(sequences, -1, -1, -1, true, null, new StatusLogger(new Logger(new mapper.StderrWriter()), 0), false);
+    this.initialize(sequences, -1, -1, -1, true, null, new StatusLogger(new Logger(new mapper.StderrWriter()), 0), false, -1);
   }
 
   public HashBlock_Database(SequenceDatabase sequences, StatusLogger statusLogger) {
-    this.initialize(sequences, -1, -1, -1, true, null, statusLogger, false);
+    this.initialize(sequences, -1, -1, -1, true, null, statusLogger, false, -1);
   }
 
   public HashBlock_Database(SequenceDatabase sequences, DirCache dirCache, StatusLogger statusLogger) {
-    this.initialize(sequences, -1, -1, -1, true, dirCache, statusLogger, false);
+    this.initialize(sequences, -1, -1, -1, true, dirCache, statusLogger, false, -1);
   }
 
   public HashBlock_Database(SequenceDatabase sequences, int minInterestingSize, int hintMaxInterestingSize, int maxNumShortMatches, boolean enableGapmers, DirCache dirCache, StatusLogger statusLogger) {
-    this.initialize(sequences, minInterestingSize, hintMaxInterestingSize, maxNumShortMatches, enableGapmers, dirCache, statusLogger, false);
+    this.initialize(sequences, minInterestingSize, hintMaxInterestingSize, maxNumShortMatches, enableGapmers, dirCache, statusLogger, false, -1);
   }
   public HashBlock_Database(SequenceDatabase sequences, int minInterestingSize, int hintMaxInterestingSize, int maxNumShortMatches, boolean enableGapmers, DirCache dirCache, StatusLogger statusLogger, boolean hashInReverseOrder) {
-    this.initialize(sequences, minInterestingSize, hintMaxInterestingSize, maxNumShortMatches, enableGapmers, dirCache, statusLogger, hashInReverseOrder);
+    this.initialize(sequences, minInterestingSize, hintMaxInterestingSize, maxNumShortMatches, enableGapmers, dirCache, statusLogger, hashInReverseOrder, -1);
+  }
+  // If memoryBudget > 0, we plan our hashing to use no more than that many bytes, otherwise we use the maximum heap size
+  public HashBlock_Database(SequenceDatabase sequences, int minInterestingSize, int hintMaxInterestingSize, int maxNumShortMatches, boolean enableGapmers, DirCache dirCache, StatusLogger statusLogger, boolean hashInReverseOrder, long memoryBudget) {
+    this.initialize(sequences, minInterestingSize, hintMaxInterestingSize, maxNumShortMatches, enableGapmers, dirCache, statusLogger, hashInReverseOrder, memoryBudget);
   }
 
-  private void initialize(SequenceDatabase sequences, int minInterestingSize, int hintMaxInterestingSize, int maxNumShortMatches, boolean enableGapmers, DirCache dirCache, StatusLogger statusLogger, boolean hashInReverseOrder) {
+  private void initialize(SequenceDatabase sequences, int minInterestingSize, int hintMaxInterestingSize, int maxNumShortMatches, boolean enableGapmers, DirCache dirCache, StatusLogger statusLogger, boolean hashInReverseOrder, long memoryBudget) {
     this.logger = statusLogger.getLogger();
     this.statusLogger = statusLogger;
     this.enableGapmers = enableGapmers;
@@ -54,18 +59,15 @@ public class HashBlock_Database implements ReferenceProvider {
       this.minInterestingSize = minInterestingSize;
     }
     if (hintMaxInterestingSize > 0) {
-      if (sequences.getTotalForwardSize() > 1000000000L) {
-        // The reference sequences are really large and we might not have enough memory
-        // Start by hashing a smaller size to reduce the maximum memory usage (due to uncompressed pending adds)
-        // After hashing the smaller size we can hash the larger size
-        this.maxInterestingSize = (hintMaxInterestingSize + 1) / 2;
-      } else {
-        // The reference sequences don't seem to be too large so we try to save all of the interesting hashblocks in the first pass over the reference
-        this.maxInterestingSize = hintMaxInterestingSize;
-      }
+      // We try to save all of the interesting hashblocks in the first pass over the reference, unless planHashing finds that we don't have enough memory
+      this.maxInterestingSize = hintMaxInterestingSize;
     } else {
       this.maxInterestingSize = -1;
     }
+    if (memoryBudget > 0)
+      this.memoryBudget = memoryBudget;
+    else
+      this.memoryBudget = Runtime.getRuntime().maxMemory();
     if (maxNumShortMatches < 0) {
       // Advancing to the next level approximately multiplies the number of hashblocks by about 3/4.
 
@@ -85,9 +87,10 @@ public class HashBlock_Database implements ReferenceProvider {
     } else {
       this.maxNumShortMatches = maxNumShortMatches;
     }
+    this.dirCache = dirCache;
     this.cacheDir = this.chooseCacheDir(dirCache);
     this.hashInReverseOrder = hashInReverseOrder;
-    this.chooseNextHashSize(0);
+    // We plan the first pass in planFirstPass rather than here, so that it can use the number of threads and other options from the setters
   }
 
   // choose a directory to save this database into
@@ -108,6 +111,9 @@ public class HashBlock_Database implements ReferenceProvider {
     keys.put("enableGapmers", "" + this.enableGapmers);
     keys.put("minInterestingSize", "" + this.minInterestingSize);
     keys.put("maxNumShortMatches", "" + this.maxNumShortMatches);
+    // PackedMaps having a MinimalPerfectHash use different bins, so they're saved separately
+    if (this.usePerfectHashing)
+      keys.put("perfectHashing", "true");
     keys.put("formatVersion", "2");
     keys.put("type", "HashBlock_Database");
     return keys;
@@ -151,7 +157,9 @@ public class HashBlock_Database implements ReferenceProvider {
         if (this.maxFullySetUpSize >= size) {
           return;
         }
-        if (maxFullySetUpSize >= this.maxInterestingSize) {
+        if (!this.plannedFirstPass) {
+          this.planFirstPass();
+        } else if (maxFullySetUpSize >= this.maxInterestingSize) {
           // Completed previous hashing so now we can hash again
           this.chooseNextHashSize(size);
         }
@@ -180,19 +188,42 @@ public class HashBlock_Database implements ReferenceProvider {
     return false;
   }
 
+  // plans the first pass over the reference, once the setters have had a chance to configure this database
+  private void planFirstPass() {
+    this.plannedFirstPass = true;
+    this.chooseNextHashSize(0);
+  }
+
   private void chooseNextHashSize(int requestSize) {
+    int requestedMaxSize;
     if (this.maxFullySetUpSize < 1) {
       // we haven't hashed anything yet
       if (this.maxInterestingSize < 0) {
         // don't have a default max interesting size yet
         int initialSize = DuplicationDetector.chooseMaxDuplicationLength(this.sequenceDatabase);
-        this.maxInterestingSize = Math.max(initialSize, requestSize);
+        requestedMaxSize = Math.max(initialSize, requestSize);
+      } else {
+        requestedMaxSize = this.maxInterestingSize;
       }
     } else {
-      this.maxInterestingSize = requestSize * 2;
+      requestedMaxSize = requestSize * 2;
     }
+    this.planHashing(requestSize, requestedMaxSize);
     if (this.logger.getEnabled())
       this.logger.log("hashing lengths " + (this.maxFullySetUpSize + 1) + " - " + this.maxInterestingSize);
+    this.listLengthsToLoad();
+    this.cumulativeHashedSize = 0;
+    if (this.countKeysFirst) {
+      // Start with a pass that only counts keys, see setCountKeysFirst
+      this.countingKeys = true;
+      this.keyCounter = new HashBlock_KeyCounter();
+    }
+    // Also list the sequences that we will need to hash if loading from the cache isn't sufficient
+    this.split_hashJobs();
+  }
+
+  // lists the lengths in the next pass that we can try to load from the cache
+  private void listLengthsToLoad() {
     this.lengthsLeftToLoad = new ArrayDeque<Integer>();
     if (this.cacheDir != null) {
       this.minNonloadableLength = this.maxInterestingSize + 1;
@@ -209,33 +240,110 @@ public class HashBlock_Database implements ReferenceProvider {
         }
       }
     }
-    this.cumulativeHashedSize = 0;
-    // Also list the sequences that we will need to hash if loading from the cache isn't sufficient
-    this.split_hashJobs();
+  }
+
+  // Decides how many lengths to hash in the next pass over the reference and how many threads may hash at once, to fit in our memory budget
+  // Each pass keeps the hashblocks it finds until they're added into their PackedMap, so hashing fewer lengths at once or using fewer threads uses less memory
+  private void planHashing(int requiredMaxSize, int requestedMaxSize) {
+    int firstSize = Math.max(this.minInterestingSize, this.maxFullySetUpSize + 1);
+    IndexingPlanner planner = new IndexingPlanner(this.memoryBudget, this.totalForwardSize, this.sequenceDatabase.getEncodedLength(1), this.enableGapmers);
+    if (this.spill != null)
+      planner.setPendingBytesPerHasher(this.spill.getBytesPerBuffer());
+    planner.plan(firstSize, requiredMaxSize, requestedMaxSize, this.numThreads, this.measureUsedBytes(planner));
+    this.maxInterestingSize = planner.getMaxLength();
+    this.numHashersAllowed = planner.getNumHashers();
+    long projectedMB = planner.getProjectedPeakBytes() / 1024 / 1024;
+    long budgetMB = this.memoryBudget / 1024 / 1024;
+    String message = "Planning to hash lengths " + firstSize + "-" + this.maxInterestingSize + " using up to " + this.numHashersAllowed + " threads: projected peak memory " + projectedMB + "M of " + budgetMB + "M";
+    if (!planner.getFitsInBudget())
+      message += ". Low memory! Try larger Xmx or --memory-budget";
+    this.statusLogger.log(message, true);
+  }
+
+  // Measures how much memory is used by the reference and by the PackedMaps we've already made
+  // We measure our own data structures rather than asking the Runtime, whose used memory also counts garbage that hasn't been collected yet
+  private long measureUsedBytes(IndexingPlanner planner) {
+    long total = 0;
+    // reverse strands are views of their forward strands
+    for (Sequence sequence: this.sequenceDatabase.getForwardSequencesOnly()) {
+      PackedSequence packed = PackedReferenceSequence.getPacked(sequence);
+      if (packed != null)
+        total += packed.getNumBytes();
+      else
+        total += sequence.getLength();
+    }
+    for (PackedMap map: this.hashedBlocks) {
+      if (map != null)
+        total += planner.measureMapBytes(map);
+    }
+    return total;
   }
 
   // generates a collection of HashJobs requesting to hash each part of the reference
+  // Each group of HashJobs is hashed by one worker at a time
   private void split_hashJobs() {
-    int targetJobSize = 50000;
-    this.sectionsLeftToHash = new ArrayDeque<HashJob>();
+    int minJobSize = this.chooseMinHashJobSize();
+    int numThreads = this.estimateNumHashingThreads();
+    this.sectionsLeftToHash = new ArrayDeque<List<HashJob>>();
     List<Sequence> sequences = this.sequenceDatabase.getForwardSequencesOnly();
     if (this.hashInReverseOrder) { // for consistency unit tests
       Collections.reverse(sequences);
     }
+    long remainingSize = 0;
+    for (Sequence sequence: sequences) {
+      remainingSize += sequence.getLength();
+    }
+    List<HashJob> group = new ArrayList<HashJob>();
+    long groupSize = 0;
+    long targetGroupSize = 0;
     for (Sequence sequence: sequences) {
-      int numJobsForThisSequence = (sequence.getLength() + targetJobSize - 1) / targetJobSize;
-      int previousStartIndex = 0;
-      for (int i = 1; i <= numJobsForThisSequence; i++) {
-        int startIndex = (int)((long)((long)sequence.getLength() * (long)i / (long)numJobsForThisSequence));
-        this.sectionsLeftToHash.add(new HashJob(sequence, previousStartIndex, startIndex));
-        previousStartIndex = startIndex;
+      int startIndex = 0;
+      while (startIndex < sequence.getLength()) {
+        if (groupSize == 0) {
+          // Give out large groups first and smaller groups later so that the workers finish at around the same time
+          targetGroupSize = Math.max(minJobSize, remainingSize / (numThreads * 4));
+        }
+        int endIndex = (int)Math.min((long)sequence.getLength(), startIndex + targetGroupSize - groupSize);
+        group.add(new HashJob(sequence, startIndex, endIndex));
+        groupSize += endIndex - startIndex;
+        remainingSize -= endIndex - startIndex;
+        startIndex = endIndex;
+        // Small sequences share a group with other sequences
+        if (groupSize >= targetGroupSize) {
+          this.sectionsLeftToHash.add(group);
+          group = new ArrayList<HashJob>();
+          groupSize = 0;
+        }
       }
     }
+    if (group.size() > 0)
+      this.sectionsLeftToHash.add(group);
     this.numHashJobsOfThisLength = this.sectionsLeftToHash.size();
   }
 
+  // chooses the minimum number of basepairs to give to a worker at once, based on how quickly we've hashed so far
+  private int chooseMinHashJobSize() {
+    if (this.measuredHashingSize < 1 || this.measuredHashingMillis < 1)
+      return 50000;
+    // Aim for each group to take a noticeable amount of time compared to the overhead of starting it
+    long targetMillisPerJob = 100;
+    long size = targetMillisPerJob * this.measuredHashingSize / this.measuredHashingMillis;
+    return (int)Math.max(1000, Math.min(size, 1000000));
+  }
+
+  // estimates how many threads will help hash the reference
+  private int estimateNumHashingThreads() {
+    if (this.maxNumActiveHashers > 0)
+      return this.maxNumActiveHashers;
+    return Math.min(this.numThreads, this.numHashersAllowed);
+  }
+
   // called by a thread to contribute to setting up
   public void helpSetUp() {
+    synchronized(this) {
+      if (!this.plannedFirstPass)
+        this.planFirstPass();
+    }
     this.helpLoad();
     this.helpHash();
     this.helpPack();
@@ -244,9 +352,48 @@ public class HashBlock_Database implements ReferenceProvider {
   // Specifies that this HashBlock_Database should verify its contents with a new HashBlock_Database for checking deterministic results
   public void setVerifyConsistency() {
     HashBlock_Database other = new HashBlock_Database(this.sequenceDatabase, minInterestingSize, -1, maxNumShortMatches, enableGapmers, null, statusLogger);
+    if (this.countKeysFirst)
+      other.setCountKeysFirst();
     this.setVerifyWith(other);
   }
 
+  // Specifies that while hashing, this HashBlock_Database should write hashblocks into sorted runs in its cache directory rather than holding them in memory
+  // After each pass over the reference, the runs are merged to build one PackedMap at a time, which is then saved into the cache
+  // Should be called before setting up starts, so that planHashing can count the memory used by the spill buffers
+  public void setSpillToDisk() {
+    if (this.cacheDir == null)
+      throw new IllegalArgumentException("Spilling hashblocks to disk requires a cache directory");
+    this.spill = new HashBlock_Spill(this.cacheDir, this.sequenceDatabase, spillRecordsPerRun);
+  }
+
+  // Specifies that after spilling hashblocks to disk (see setSpillToDisk), each PackedMap should be built with a MinimalPerfectHash over its hashcodes
+  // Then each hashcode gets its own bin, and looking up a hashcode that isn't in the reference usually finds nothing rather than the positions of some other hashcode
+  public void setPerfectHashing() {
+    if (this.spill == null)
+      throw new IllegalArgumentException("Perfect hashing requires spilling hashblocks to disk");
+    this.usePerfectHashing = true;
+    // That changes our cache keys, so we have to use a different cache directory
+    this.cacheDir = this.chooseCacheDir(this.dirCache);
+    this.spill = new HashBlock_Spill(this.cacheDir, this.sequenceDatabase, spillRecordsPerRun);
+  }
+
+  // Specifies that before each pass of hashing the reference, this HashBlock_Database should make an extra pass to count the distinct hashblocks of each length
+  // This lets us choose the capacity of each PackedMap from the count rather than from estimateRequiredCapacity, which can overestimate (wasting memory) or underestimate (saturating bins)
+  // Should be called before setting up starts, so that the first pass counts keys too
+  public void setCountKeysFirst() {
+    this.countKeysFirst = true;
+    if (this.compareTo != null)
+      this.compareTo.setCountKeysFirst();
+  }
+
+  // Specifies how many threads will help set up this HashBlock_Database, which is the most that planHashing will let hash at once
+  // Should be called before setting up starts, because that's when the first pass is planned
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+    if (this.compareTo != null)
+      this.compareTo.setNumThreads(numThreads);
+  }
+
   // Specifies that any information put into this HashBlock_Database should be checked as matching with <other>
   // This helps identify nondeterminisms
   public void setVerifyWith(HashBlock_Database other) {
@@ -293,6 +440,7 @@ public class HashBlock_Database implements ReferenceProvider {
 
     File cacheFile = chooseMapCacheFile(numBasepairsUsed);
     PackedMap map = null;
+    MapperEvent event = MapperEvents.beginReferenceJob("load", numBasepairsUsed, 1, null, -1, -1);
     try {
       map = new PackedMap(cacheFile, this.sequenceDatabase);
     } catch (Exception e) {
@@ -304,6 +452,7 @@ public class HashBlock_Database implements ReferenceProvider {
       }
       this.minNonloadableLength = Math.min(this.minNonloadableLength, numBasepairsUsed);
     }
+    MapperEvents.end(event);
     synchronized(this) {
       this.numActiveLoaders--;
       // save this map
@@ -324,7 +473,7 @@ public class HashBlock_Database implements ReferenceProvider {
         }
         if (this.minNonloadableLength > this.maxInterestingSize) {
           // We loaded each PackedMap and don't need to re-hash any sequences
-          this.sectionsLeftToHash = new ArrayDeque<HashJob>();
+          this.sectionsLeftToHash = new ArrayDeque<List<HashJob>>();
         }
         // Record that we don't need to rehash any lengths that we loaded successfully
         this.maxFullySetUpSize = Math.max(this.maxFullySetUpSize, this.minNonloadableLength - 1);
@@ -345,6 +494,9 @@ public class HashBlock_Database implements ReferenceProvider {
             // still waiting for some other workers
             sleep = true;
           }
+        } else if (this.numActiveHashers >= this.numHashersAllowed) {
+          // we don't have enough memory for another thread to hash now
+          sleep = true;
         }
       }
       if (sleep) {
@@ -359,29 +511,91 @@ public class HashBlock_Database implements ReferenceProvider {
 
   // does one iteration of helping hash the reference sequences
   private void helpHashOnce() {
-    HashJob job;
+    List<HashJob> jobs;
     int size;
+    boolean counting;
     synchronized(this) {
       size = this.maxInterestingSize;
+      counting = this.countingKeys;
       if (this.sectionsLeftToHash.size() < 1) {
         return;
       }
-      job = this.sectionsLeftToHash.remove();
+      if (this.numActiveHashers >= this.numHashersAllowed) {
+        return;
+      }
+      jobs = this.sectionsLeftToHash.remove();
       this.numActiveHashers++;
+      this.maxNumActiveHashers = Math.max(this.maxNumActiveHashers, this.numActiveHashers);
+    }
+    long startMillis = System.currentTimeMillis();
+    String phase = "hash";
+    if (counting)
+      phase = "count";
+    long jobsSize = 0;
+    HashBlock_KeyCounter keyCounter = null;
+    HashBlock_RunBuffer runBuffer = null;
+    HashBlock_Sink sink = null;
+    if (counting) {
+      keyCounter = new HashBlock_KeyCounter();
+      sink = keyCounter;
+    } else if (this.spill != null) {
+      runBuffer = this.spill.takeBuffer();
+      sink = runBuffer;
+    }
+    for (HashJob job: jobs) {
+      // The jobs in one group can be on different contigs, so we report each one separately
+      MapperEvent event = MapperEvents.beginReferenceJob(phase, size, 1, job.sequence.getName(), job.minStartIndex, job.maxStartIndexExclusive);
+      this.hashSequenceThroughSize(job, size, sink);
+      MapperEvents.end(event);
+      jobsSize += job.maxStartIndexExclusive - job.minStartIndex;
     }
-    Sequence sequence = job.sequence;
-    this.hashSequenceThroughSize(job, size);
+    if (runBuffer != null) {
+      try {
+        runBuffer.flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      this.spill.returnBuffer(runBuffer);
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
     synchronized(this) {
       int previousNumActiveHashers = this.numActiveHashers;
       this.numActiveHashers--;
       int numJobsRemaining = this.sectionsLeftToHash.size() + this.numActiveHashers;
-      this.cumulativeHashedSize += job.maxStartIndexExclusive - job.minStartIndex;
+      this.cumulativeHashedSize += jobsSize;
+      this.measuredHashingSize += jobsSize;
+      this.measuredHashingMillis += elapsedMillis;
       long percentComplete = this.cumulativeHashedSize * 100 / this.totalForwardSize;
       int numJobsOfThisLength = this.numHashJobsOfThisLength;
       int completionIndex = numJobsOfThisLength - numJobsRemaining;
       boolean important = (numJobsRemaining == 0);
-      this.statusLogger.log("Hashed section " + completionIndex + "/" + numJobsOfThisLength + " (" + percentComplete + "%) with " + previousNumActiveHashers + " active workers", important);
-      if (numJobsRemaining < 1) {
+      if (counting) {
+        this.keyCounter.addAll(keyCounter);
+        this.statusLogger.log("Counted section " + completionIndex + "/" + numJobsOfThisLength + " (" + percentComplete + "%) with " + previousNumActiveHashers + " active workers", important);
+      } else {
+        this.statusLogger.log("Hashed section " + completionIndex + "/" + numJobsOfThisLength + " (" + percentComplete + "%) with " + previousNumActiveHashers + " active workers", important);
+      }
+      if (numJobsRemaining < 1 && counting) {
+        // Now that we know how many keys each PackedMap needs, we can hash the reference again to fill them
+        this.countingKeys = false;
+        this.statusLogger.log("Counted distinct hashblocks through size " + this.maxInterestingSize, true);
+        this.cumulativeHashedSize = 0;
+        this.split_hashJobs();
+      } else if (numJobsRemaining < 1 && this.spill != null) {
+        // The hashblocks are on disk, and helpMerge will build the PackedMaps from them
+        this.statusLogger.log("Hashed reference through size " + this.maxInterestingSize + " into " + this.spill.getNumRuns() + " runs of " + this.spill.getNumRecords() + " total positions", true);
+        this.spill.releaseBuffers();
+        int firstSize = Math.max(this.minInterestingSize, this.maxFullySetUpSize + 1);
+        while (size >= this.hashedBlocks.size())
+          this.hashedBlocks.add(null);
+        for (int i = 0; i < firstSize; i++) {
+          if (this.hashedBlocks.get(i) == null)
+            this.hashedBlocks.set(i, new PackedMap(1, 1, this.sequenceDatabase, i));
+        }
+        for (int i = firstSize; i <= size; i++) {
+          this.lengthsLeftToMerge.add(i);
+        }
+      } else if (numJobsRemaining < 1) {
         while (size >= this.hashedBlocks.size())
           this.hashedBlocks.add(null);
         for (int i = 0; i <= size; i++) {
@@ -403,6 +617,7 @@ public class HashBlock_Database implements ReferenceProvider {
   }
 
   private void helpPack() {
+    this.helpMerge();
     while (true) {
       synchronized(this) {
         if (this.mapsLeftToPack.size() < 1) {
@@ -421,6 +636,7 @@ public class HashBlock_Database implements ReferenceProvider {
       map = mapsLeftToPack.remove();
       this.numActivePackers++;
     }
+    MapperEvent event = MapperEvents.beginReferenceJob("pack", map.getId(), 1, null, -1, -1);
     map.pack();
     try {
       this.exportMap(map);
@@ -428,10 +644,106 @@ public class HashBlock_Database implements ReferenceProvider {
       // If we're supposed to save the map but we can't, then we just report a failure
       throw new RuntimeException(e);
     }
-    // Maybe dump to cache here too
+    MapperEvents.end(event);
     synchronized(this) {
       this.numActivePackers--;
-      if (mapsLeftToPack.size() < 1 && this.numActivePackers < 1) {
+    }
+    this.finishPackingIfDone();
+  }
+
+  // merges the runs that were spilled to disk during hashing, and builds the resulting PackedMaps one length at a time
+  // Several threads can each build a different length at once, and other threads can pack and save each map after it is built
+  private void helpMerge() {
+    while (true) {
+      int size;
+      synchronized(this) {
+        if (this.lengthsLeftToMerge.size() < 1)
+          return;
+        size = this.lengthsLeftToMerge.remove();
+        this.numActivePackers++;
+        this.numActiveMergers++;
+      }
+      long startMillis = System.currentTimeMillis();
+      MapperEvent event = MapperEvents.beginReferenceJob("merge", size, this.spill.getNumRuns(), null, -1, -1);
+      PackedMap map = null;
+      try {
+        map = this.buildMapFromSpill(size);
+      } catch (IOException e) {
+        // If we can't read back the hashblocks that we wrote, we can't finish building this database
+        throw new RuntimeException(e);
+      } finally {
+        synchronized(this) {
+          this.numActiveMergers--;
+          if (map == null) {
+            // this merge failed, so don't start any more of them
+            this.lengthsLeftToMerge.clear();
+          }
+          if (this.lengthsLeftToMerge.size() < 1 && this.numActiveMergers < 1) {
+            this.spill.clear();
+          }
+        }
+      }
+      map.totalAddMillis += System.currentTimeMillis() - startMillis;
+      MapperEvents.end(event);
+      synchronized(this) {
+        this.hashedBlocks.set(size, map);
+        this.mapsLeftToPack.add(map);
+        this.numActivePackers--;
+      }
+    }
+  }
+
+  // builds the PackedMap for one length from the runs that were spilled to disk
+  private PackedMap buildMapFromSpill(int size) throws IOException {
+    MinimalPerfectHash perfectHash = null;
+    if (this.usePerfectHashing) {
+      // first read the keys, so we can give each one its own bin
+      int[] keys = this.readDistinctKeysFromSpill(size);
+      if (keys.length < 1)
+        return new PackedMap(1, 1, this.sequenceDatabase, size);
+      perfectHash = new MinimalPerfectHash(keys);
+    }
+    HashBlock_RunMerger merger = this.spill.openMerger(size);
+    PackedMap map = null;
+    while (merger.next()) {
+      if (map == null)
+        map = this.newPackedMap(size, perfectHash);
+      map.addEncoded(merger.getKey(), merger.getPosition(), merger.getPreventDuplicates());
+    }
+    merger.close();
+    if (map == null)
+      map = new PackedMap(1, 1, this.sequenceDatabase, size);
+    return map;
+  }
+
+  // returns each distinct hashcode of the given length in the spilled runs
+  private int[] readDistinctKeysFromSpill(int size) throws IOException {
+    HashBlock_RunMerger merger = this.spill.openMerger(size);
+    int[] keys = new int[1024];
+    int numKeys = 0;
+    while (merger.next()) {
+      if (numKeys >= keys.length)
+        keys = Arrays.copyOf(keys, keys.length * 2);
+      keys[numKeys] = merger.getKey();
+      numKeys++;
+    }
+    merger.close();
+    // Records are sorted by whether they check for duplicates and then by key, so the same key can appear in two places
+    Arrays.sort(keys, 0, numKeys);
+    int numDistinct = 0;
+    for (int i = 0; i < numKeys; i++) {
+      if (numDistinct == 0 || keys[i] != keys[numDistinct - 1]) {
+        keys[numDistinct] = keys[i];
+        numDistinct++;
+      }
+    }
+    return Arrays.copyOf(keys, numDistinct);
+  }
+
+  // called after a thread finishes packing or merging, to check whether this pass is done
+  private void finishPackingIfDone() {
+    synchronized(this) {
+      if (mapsLeftToPack.size() < 1 && this.numActivePackers < 1 && this.lengthsLeftToMerge.size() < 1 && this.maxFullySetUpSize < this.maxInterestingSize) {
 
         int cumulativeCapacity = 0;
         while (this.maxInterestingSize >= this.hashedBlocks.size())
@@ -457,6 +769,36 @@ public class HashBlock_Database implements ReferenceProvider {
     }
   }
 
+  // Adds information about how long it took to set up this database, and how full it is
+  public void addMetrics(PerformanceMetrics metrics) {
+    TreeMap<Integer, PackedMap> readyMaps = new TreeMap<Integer, PackedMap>();
+    synchronized(this) {
+      metrics.add("reference_forward_size", this.totalForwardSize);
+      metrics.add("reference_min_interesting_size", this.minInterestingSize);
+      metrics.add("reference_max_fully_set_up_size", this.maxFullySetUpSize);
+      metrics.add("reference_hashed_size", this.cumulativeHashedSize);
+      metrics.add("reference_cpu_millis_hashing", this.measuredHashingMillis);
+      metrics.add("reference_max_num_active_hashers", this.maxNumActiveHashers);
+      // Only describe the maps that are done being modified
+      for (int i = this.minInterestingSize; i <= this.maxFullySetUpSize && i < this.hashedBlocks.size(); i++) {
+        PackedMap map = this.hashedBlocks.get(i);
+        if (map != null && map.getCapacity() > 1)
+          readyMaps.put(i, map);
+      }
+    }
+    // Counting overfilled keys can take a while, so we do it without holding the lock
+    for (Map.Entry<Integer, PackedMap> entry: readyMaps.entrySet()) {
+      String length = "" + entry.getKey();
+      PackedMap map = entry.getValue();
+      metrics.add("packed_map_capacity", "length", length, map.getCapacity());
+      metrics.add("packed_map_num_overfilled_keys", "length", length, map.getNumOverfilledKeys());
+      metrics.add("packed_map_num_items", "length", length, map.getNumItemsAdded());
+      metrics.add("packed_map_add_millis", "length", length, map.getTotalAddMillis());
+      metrics.add("packed_map_pack_millis", "length", length, map.getPackMillis());
+      metrics.add("packed_map_load_millis", "length", length, map.getLoadMillis());
+    }
+  }
+
   // this function gets called whenever a new batch of PackedMaps becomes ready (either hashed or loaded from cache)
   private void onReady() {
     if (this.compareTo != null) {
@@ -487,8 +829,9 @@ public class HashBlock_Database implements ReferenceProvider {
   }
 
   // Generates hashblocks that start in the given section
-  private void hashSequenceThroughSize(HashJob section, int size) {
-    HashBlock_Buffer buffer = new HashBlock_Buffer(section, this, this.minInterestingSize);
+  // If sink is not null, we give the hashblocks to it rather than to our PackedMaps
+  private void hashSequenceThroughSize(HashJob section, int size, HashBlock_Sink sink) {
+    HashBlock_Buffer buffer = new HashBlock_Buffer(section, this, this.minInterestingSize, sink);
     Sequence sequence = section.sequence;
     HashBlock_Stream stream = new HashBlock_Stream(sequence, true, buffer);
 
@@ -528,6 +871,10 @@ public class HashBlock_Database implements ReferenceProvider {
   }
 
   public void addHashblocks(Sequence sequence, List<IMultiHashBlock> blocks) {
+    this.addHashblocks(sequence, blocks, null);
+  }
+
+  public void addHashblocks(Sequence sequence, List<IMultiHashBlock> blocks, HashBlock_Sink sink) {
     // first group the hashblocks by size
     boolean containsAmbiguousPosition = false;
     Map<Integer, List<HashBlock>> blocksBySize = new HashMap<Integer, List<HashBlock>>();
@@ -554,27 +901,21 @@ public class HashBlock_Database implements ReferenceProvider {
       int key1 = numBasepairsUsed;
       List<HashBlock> blocksHere = entry.getValue();
 
+      if (sink != null) {
+        try {
+          sink.add(sequence, numBasepairsUsed, blocksHere, containsAmbiguousPosition);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        continue;
+      }
+
       PackedMap blocksOfThisSize = null;
       synchronized(this) {
         if (key1 < this.hashedBlocks.size())
           blocksOfThisSize = this.hashedBlocks.get(key1);
         if (blocksOfThisSize == null) {
-          int estimatedCapacity = estimateRequiredCapacity(numBasepairsUsed);
-
-          // Decide how many matches we allow in this map
-
-          // required number of base pairs to identify a specific position in a random reference genome
-          int targetBlockLength = (int)(Math.log((double)this.sequenceDatabase.getTotalForwardAndReverseSize()) / Math.log(4.0)) + 1;
-
-          int maxNumInterestingMatches = numBasepairsUsed * numBasepairsUsed;
-          if (maxNumInterestingMatches < this.maxNumShortMatches)
-            maxNumInterestingMatches = this.maxNumShortMatches;
-          if (maxNumInterestingMatches > 32766) {
-            maxNumInterestingMatches = 32766; // must fit into a short, see PackedMap
-          }
-          if (maxNumInterestingMatches < 1)
-            maxNumInterestingMatches = 1;
-          blocksOfThisSize = new PackedMap(maxNumInterestingMatches, estimatedCapacity, this.sequenceDatabase, key1);
+          blocksOfThisSize = this.newPackedMap(numBasepairsUsed);
           while (this.hashedBlocks.size() <= key1)
             this.hashedBlocks.add(null);
           this.hashedBlocks.set(key1, blocksOfThisSize);
@@ -589,6 +930,39 @@ public class HashBlock_Database implements ReferenceProvider {
     }
   }
 
+  // Creates an empty PackedMap for holding hashblocks of the given length
+  private PackedMap newPackedMap(int numBasepairsUsed) {
+    return this.newPackedMap(numBasepairsUsed, null);
+  }
+
+  // If perfectHash is not null, the PackedMap gives each of its keys its own bin
+  private PackedMap newPackedMap(int numBasepairsUsed, MinimalPerfectHash perfectHash) {
+    int estimatedCapacity = estimateRequiredCapacity(numBasepairsUsed);
+    if (this.keyCounter != null) {
+      long numKeys = this.keyCounter.estimateNumKeys(numBasepairsUsed);
+      if (numKeys > 0) {
+        // we counted the keys, so we don't need to guess
+        estimatedCapacity = (int)Math.min(numKeys, Integer.MAX_VALUE - 1);
+        if (estimatedCapacity % 2 == 0)
+          estimatedCapacity++;
+      }
+    }
+
+    // Decide how many matches we allow in this map
+
+    int maxNumInterestingMatches = numBasepairsUsed * numBasepairsUsed;
+    if (maxNumInterestingMatches < this.maxNumShortMatches)
+      maxNumInterestingMatches = this.maxNumShortMatches;
+    if (maxNumInterestingMatches > 32766) {
+      maxNumInterestingMatches = 32766; // must fit into a short, see PackedMap
+    }
+    if (maxNumInterestingMatches < 1)
+      maxNumInterestingMatches = 1;
+    if (perfectHash != null)
+      return new PackedMap(maxNumInterestingMatches, perfectHash, this.sequenceDatabase, numBasepairsUsed);
+    return new PackedMap(maxNumInterestingMatches, estimatedCapacity, this.sequenceDatabase, numBasepairsUsed);
+  }
+
   // Adds a HashBlock into a Map<length, List<HashBlock>>
   // Used by the previous function, addHashBlocks
   private void addToBlocksBySize(HashBlock block, Sequence sequence, Map<Integer, List<HashBlock>> blocksBySize) {
@@ -618,8 +992,13 @@ public class HashBlock_Database implements ReferenceProvider {
 
   // estimates the maximum capacity that could be required to hold all relevant HashBlocks of the given length, assuming that there aren't many duplicate hashblocks among them
   private int estimateRequiredCapacity(int numPositionsPerBlock) {
+    return estimateRequiredCapacity(numPositionsPerBlock, this.totalForwardSize, this.getEnableGapmers());
+  }
+
+  // the probability that a block from the nearest batch has this size and any particular offset
+  private static double getBlockPossibilityProbability(int numPositionsPerBlock, boolean enableGapmers) {
     int anchorBlockSize;
-    if (this.getEnableGapmers())
+    if (enableGapmers)
       anchorBlockSize = numPositionsPerBlock * 2 / 3;
     else
       anchorBlockSize = numPositionsPerBlock;
@@ -629,8 +1008,17 @@ public class HashBlock_Database implements ReferenceProvider {
     // the probability that a block from the nearest batch has any particular offset
     double offsetProbability = Math.min(1, 2.0 / anchorBlockSize);
 
+    return sizeProbability * offsetProbability;
+  }
+
+  // estimates the number of blocks of the given length in a reference of size <totalForwardSize>, including duplicates
+  static long estimateNumBlocks(int numPositionsPerBlock, long totalForwardSize, boolean enableGapmers) {
+    return (long)(totalForwardSize * getBlockPossibilityProbability(numPositionsPerBlock, enableGapmers));
+  }
+
+  static int estimateRequiredCapacity(int numPositionsPerBlock, long totalForwardSize, boolean enableGapmers) {
     // the probability that a block from the nearest batch has this size and any particular offset
-    double blockPossibilityProbability = sizeProbability * offsetProbability;
+    double blockPossibilityProbability = getBlockPossibilityProbability(numPositionsPerBlock, enableGapmers);
 
     // the number of unique sequences of this length that can ever exist
     long maxNumSequencesOfThisLength;
@@ -647,7 +1035,7 @@ public class HashBlock_Database implements ReferenceProvider {
     long maxNumExistentHashcodes = (long)(maxNumStoredSequencesOfThisLength * blockPossibilityProbability);
 
     // estimate effective size including ambiguities
-    long effectiveSize = this.totalForwardSize;
+    long effectiveSize = totalForwardSize;
 
     // the number of blocks of this size that we might have including duplicates
     long numBlocksOfThisSize = (long)(effectiveSize * blockPossibilityProbability);
@@ -684,6 +1072,8 @@ public class HashBlock_Database implements ReferenceProvider {
 
   // we've already hashed all possible blocks of this size or larger
   int maxFullySetUpSize = 0;
+  // whether planFirstPass has run
+  boolean plannedFirstPass;
   int maxInterestingSize = 0;
   int minInterestingSize;
 
@@ -693,18 +1083,39 @@ public class HashBlock_Database implements ReferenceProvider {
   long totalForwardSize;
   SequenceDatabase sequenceDatabase;
   Queue<Integer> lengthsLeftToLoad = new ArrayDeque<Integer>();
-  Queue<HashJob> sectionsLeftToHash = new ArrayDeque<HashJob>();
+  Queue<List<HashJob>> sectionsLeftToHash = new ArrayDeque<List<HashJob>>();
   Queue<PackedMap> mapsLeftToPack = new ArrayDeque<PackedMap>();
   int numActiveLoaders;
   int numActiveHashers;
+  int maxNumActiveHashers;
+  // how many threads may hash at once, chosen by planHashing
+  int numHashersAllowed = 1;
+  // how many threads will help set up this HashBlock_Database, see setNumThreads
+  int numThreads = Runtime.getRuntime().availableProcessors();
+  long memoryBudget;
   int numActivePackers;
   int minNonloadableLength;
   int numHashJobsOfThisLength;
   Logger logger;
+  DirCache dirCache;
   File cacheDir;
   StatusLogger statusLogger;
   long cumulativeHashedSize;
+  // how many basepairs we've hashed and how long it took, for choosing the sizes of future HashJobs
+  long measuredHashingSize;
+  long measuredHashingMillis;
   boolean enableGapmers = true;
   HashBlock_Database compareTo;
   boolean hashInReverseOrder;
+  // if not null, where we write hashblocks while hashing, see setSpillToDisk
+  HashBlock_Spill spill;
+  Queue<Integer> lengthsLeftToMerge = new ArrayDeque<Integer>();
+  int numActiveMergers;
+  // see setPerfectHashing
+  boolean usePerfectHashing;
+  // see setCountKeysFirst
+  boolean countKeysFirst;
+  boolean countingKeys;
+  HashBlock_KeyCounter keyCounter;
+  static int spillRecordsPerRun = 1 << 20;
 }
@@ -0,0 +1,46 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// a HashBlock_KeyCounter estimates how many distinct hashcodes of each length a hashing thread finds, so that a HashBlock_Database can size each PackedMap before filling it
+public class HashBlock_KeyCounter implements HashBlock_Sink {
+  public void add(Sequence sequence, int length, List<HashBlock> blocks, boolean preventDuplicates) {
+    HyperLogLog counter = this.getCounter(length);
+    for (HashBlock block : blocks) {
+      if (block.isPrimaryPolarity())
+        counter.add(block.getForwardHash());
+      if (block.isSecondaryPolarity())
+        counter.add(block.getReverseHash());
+    }
+  }
+
+  // adds the counts from <other> into this counter
+  public void addAll(HashBlock_KeyCounter other) {
+    for (int length = 0; length < other.counters.size(); length++) {
+      HyperLogLog counter = other.counters.get(length);
+      if (counter != null)
+        this.getCounter(length).addAll(counter);
+    }
+  }
+
+  // estimates the number of distinct hashcodes of this length, or returns -1 if none were counted
+  public long estimateNumKeys(int length) {
+    if (length >= this.counters.size() || this.counters.get(length) == null)
+      return -1;
+    return this.counters.get(length).estimateCount();
+  }
+
+  private HyperLogLog getCounter(int length) {
+    while (this.counters.size() <= length)
+      this.counters.add(null);
+    HyperLogLog counter = this.counters.get(length);
+    if (counter == null) {
+      counter = new HyperLogLog();
+      this.counters.set(length, counter);
+    }
+    return counter;
+  }
+
+  private List<HyperLogLog> counters = new ArrayList<HyperLogLog>();
+}
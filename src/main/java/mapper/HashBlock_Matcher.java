@@ -1,6 +1,7 @@
 package mapper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -12,20 +13,37 @@ public class HashBlock_Matcher {
   public static int UNKNOWN = -3;
 
   public HashBlock_Matcher(Sequence query, SequenceSection referenceSection, int sectionLength) {
+    this(query, null, referenceSection, sectionLength, null);
+  }
+
+  // If packedQuery is not null, it must be a copy of query, and we read the query from it
+  // If pool is not null, we take our tables from it
+  public HashBlock_Matcher(Sequence query, PackedSequence packedQuery, SequenceSection referenceSection, int sectionLength, HashBlock_MatcherPool pool) {
+    this.pool = pool;
     if (sectionLength < 1)
       sectionLength = 1;
     this.blockLength = (int)(Math.log(sectionLength * 5) / Math.log(4) + 1);
     if (this.blockLength < 3)
       this.blockLength = 3; // with the way we interpret the results currently, it's more useful if we have blocks of at least this size
     this.reference = referenceSection.getSequence();
+    if (this.blockLength <= 15)
+      this.packedReference = PackedReferenceSequence.getPacked(this.reference);
     this.referenceStart = referenceSection.getStartIndex();
     this.referenceLength = referenceSection.getLength();
     this.sectionLength = sectionLength;
     this.query = query;
+    // PackedSequence can only encode blocks of up to 15 basepairs into an int
+    if (this.blockLength <= 15)
+      this.packedQuery = packedQuery;
     this.maxSectionIndex =  this.getSectionIndex(reference.getLength() - 1);
     this.numPossibilities = (int)Math.pow(4, blockLength);
     this.maxPossibility = numPossibilities - 1;
-    this.locations = new ArrayList<int[]>();
+    this.locations = new ArrayList<HashBlock_MatcherTable>();
+  }
+
+  // tells whether this matcher was created with these arguments
+  public boolean isFor(Sequence query, SequenceSection referenceSection, int sectionLength) {
+    return this.query == query && this.reference == referenceSection.getSequence() && this.referenceStart == referenceSection.getStartIndex() && this.referenceLength == referenceSection.getLength() && this.sectionLength == sectionLength;
   }
 
   public int getBlockLength() {
@@ -36,17 +54,19 @@ public class HashBlock_Matcher {
     return this.sectionLength;
   }
 
-  // Returns a Map<encoded content, position>
-  private int[] indexSection(int sectionIndex, int[] section) {
-    for (int i = 0; i < numPossibilities; i++) {
-      section[i] = NO_MATCHES;
-    }
+  // Fills <section> with the position of each encoded block in this section, and returns it
+  private HashBlock_MatcherTable indexSection(int sectionIndex, HashBlock_MatcherTable section) {
     int previousEncoded = UNKNOWN;
     int startIndex = this.referenceStart + sectionIndex * this.sectionLength;
     int endIndex = Math.min(startIndex + this.sectionLength, referenceStart + referenceLength - this.blockLength);
     for (int i = startIndex; i < endIndex; i++) {
       int encoded;
-      if (previousEncoded == UNKNOWN) {
+      if (this.packedReference != null) {
+        // read the whole block at once
+        encoded = this.packedReference.encodeBlock(i, this.blockLength);
+        if (encoded < 0)
+          encoded = UNKNOWN;
+      } else if (previousEncoded == UNKNOWN) {
         // recompute the encoded value
         encoded = encodeBlock(reference, i);
       } else {
@@ -64,11 +84,11 @@ public class HashBlock_Matcher {
         // however, it's also very expensive to check the ambiguous basepair here so we ignore it
         continue;
       } else {
-        int existing = section[encoded];
+        int existing = section.get(encoded);
         if (existing == NO_MATCHES) {
-          section[encoded] = i;
+          section.put(encoded, i);
         } else {
-          section[encoded] = MULTIPLE_MATCHES;
+          section.put(encoded, MULTIPLE_MATCHES);
         }
       }
       previousEncoded = encoded;
@@ -101,7 +121,11 @@ public class HashBlock_Matcher {
     if (maxReferenceIndex > this.reference.getLength())
       return UNKNOWN; // the reference sequence we have might not be the true complete reference
 
-    int encoded = encodeBlock(this.query, queryIndex);
+    int encoded;
+    if (this.packedQuery != null)
+      encoded = this.packedQuery.encodeBlock(queryIndex, this.blockLength);
+    else
+      encoded = encodeBlock(this.query, queryIndex);
     if (encoded < 0)
       return UNKNOWN;
     int matched = NO_MATCHES;
@@ -109,14 +133,14 @@ public class HashBlock_Matcher {
     int maxSectionIndex = Math.min(this.maxSectionIndex, this.getSectionIndex(maxReferenceIndex));
     // check each section
     for (int sectionIndex = minSectionIndex; sectionIndex <= maxSectionIndex; sectionIndex++) {
-      int[] section = this.getSection(sectionIndex);
       int lookedUp;
       // if the sections are very short, it's faster to not index them, and to fall back to scanSection
       if (this.sectionLength < 3) {
         lookedUp = scanSection(queryIndex, sectionIndex);
       } else {
+        HashBlock_MatcherTable section = this.getSection(sectionIndex);
         if (section != null) {
-          lookedUp = section[encoded];
+          lookedUp = section.get(encoded);
         } else {
           // There is an ambiguity in this section of the reference, so we don't store lookup information for this section and have to re-scan this section
           return UNKNOWN;
@@ -159,8 +183,19 @@ public class HashBlock_Matcher {
   private boolean canPositionsMatch(int queryIndex, int referenceIndex) {
     if (referenceIndex + this.blockLength > this.referenceStart + this.referenceLength)
       return false;
+    if (this.packedQuery != null && this.packedReference != null) {
+      // compare the whole blocks at once unless one of them contains an ambiguous basepair
+      int queryBlock = this.packedQuery.encodeBlock(queryIndex, this.blockLength);
+      int referenceBlock = this.packedReference.encodeBlock(referenceIndex, this.blockLength);
+      if (queryBlock >= 0 && referenceBlock >= 0)
+        return queryBlock == referenceBlock;
+    }
     for (int i = 0; i < this.blockLength; i++) {
-      byte a = this.query.encodedCharAt(queryIndex);
+      byte a;
+      if (this.packedQuery != null)
+        a = this.packedQuery.encodedCharAt(queryIndex);
+      else
+        a = this.query.encodedCharAt(queryIndex);
       queryIndex++;
       byte b = this.reference.encodedCharAt(referenceIndex);
       referenceIndex++;
@@ -200,23 +235,54 @@ public class HashBlock_Matcher {
     return (referenceIndex - this.referenceStart) / this.sectionLength;
   }
 
-  private int[] getSection(int index) {
+  // Returns the index of the given section, or null if we skipped it
+  // Sections are requested in increasing order, and a section that wasn't requested before a later section was is skipped, so lookups there are unknown
+  // When a HashBlock_MatcherPool gives this matcher out again, restart() forgets which sections were requested but keeps their indices
+  private HashBlock_MatcherTable getSection(int index) {
+    if (index < this.numSectionsReached) {
+      if (this.sectionRequests[index] != this.numRestarts)
+        return null;
+    } else {
+      if (index >= this.sectionRequests.length)
+        this.sectionRequests = Arrays.copyOf(this.sectionRequests, Math.max(index + 1, this.sectionRequests.length * 2));
+      this.sectionRequests[index] = this.numRestarts;
+      this.numSectionsReached = index + 1;
+    }
+
     // if we already indexed this section, we can reuse it
-    if (this.locations.size() > index)
+    if (this.locations.size() > index && this.locations.get(index) != null)
       return this.locations.get(index);
 
     // allocate jump to this section and index just this section
     while (this.locations.size() <= index) {
       this.locations.add(null);
     }
-    int[] section = new int[this.numPossibilities];
+    HashBlock_MatcherTable section;
+    if (this.pool != null)
+      section = this.pool.takeTable(this.numPossibilities);
+    else
+      section = new HashBlock_MatcherTable(this.numPossibilities);
     this.locations.set(index, this.indexSection(index, section));
     return this.locations.get(index);
   }
 
+  // Makes this matcher behave as if it was just created, without discarding the sections it has already indexed
+  public void restart() {
+    this.numRestarts++;
+    this.numSectionsReached = 0;
+  }
+
   private Sequence query;
+  private PackedSequence packedQuery;
   private Sequence reference;
-  private List<int[]> locations;
+  private PackedSequence packedReference;
+  // the index of each section, or null if we haven't indexed it
+  private List<HashBlock_MatcherTable> locations;
+  // the value of numRestarts when each section was requested, and the number of sections up to the last one requested since the latest restart
+  private int[] sectionRequests = new int[0];
+  private int numSectionsReached;
+  private int numRestarts = 1;
+  private HashBlock_MatcherPool pool;
   private int referenceStart;
   private int referenceLength;
   private int blockLength;
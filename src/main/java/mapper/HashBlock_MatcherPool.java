@@ -0,0 +1,68 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A HashBlock_MatcherPool lets one thread reuse HashBlock_Matchers and their tables
+// While aligning one query, a matcher for the same query and reference window is reused by each candidate that needs it
+// Between queries, clear() makes all of the tables available to be reused without allocating them again
+public class HashBlock_MatcherPool {
+  // the maximum total number of table entries to keep for reuse after clear()
+  private static long maxNumPooledEntries = 1 << 21;
+  // the number of recently created matchers to check for reuse
+  private static int maxNumMatchersToCheck = 16;
+
+  // returns a HashBlock_Matcher for these arguments, reusing a previous one if it has the same arguments
+  public HashBlock_Matcher getMatcher(Sequence query, PackedSequence packedQuery, SequenceSection referenceSection, int sectionLength) {
+    int minIndex = Math.max(0, this.matchers.size() - maxNumMatchersToCheck);
+    for (int i = this.matchers.size() - 1; i >= minIndex; i--) {
+      HashBlock_Matcher matcher = this.matchers.get(i);
+      if (matcher.isFor(query, referenceSection, sectionLength)) {
+        matcher.restart();
+        return matcher;
+      }
+    }
+    HashBlock_Matcher matcher = new HashBlock_Matcher(query, packedQuery, referenceSection, sectionLength, this);
+    this.matchers.add(matcher);
+    return matcher;
+  }
+
+  // returns an empty table with the given size
+  public HashBlock_MatcherTable takeTable(int size) {
+    HashBlock_MatcherTable table = null;
+    List<HashBlock_MatcherTable> available = this.availableTables.get(size);
+    if (available != null && available.size() > 0) {
+      table = available.remove(available.size() - 1);
+      this.numAvailableEntries -= size;
+      table.clear();
+    } else {
+      table = new HashBlock_MatcherTable(size);
+    }
+    this.usedTables.add(table);
+    return table;
+  }
+
+  // Makes all matchers given out so far unusable, and makes their tables available again
+  public void clear() {
+    this.matchers.clear();
+    for (HashBlock_MatcherTable table: this.usedTables) {
+      if (this.numAvailableEntries + table.size() > maxNumPooledEntries)
+        continue;
+      List<HashBlock_MatcherTable> available = this.availableTables.get(table.size());
+      if (available == null) {
+        available = new ArrayList<HashBlock_MatcherTable>();
+        this.availableTables.put(table.size(), available);
+      }
+      available.add(table);
+      this.numAvailableEntries += table.size();
+    }
+    this.usedTables.clear();
+  }
+
+  private List<HashBlock_Matcher> matchers = new ArrayList<HashBlock_Matcher>();
+  private List<HashBlock_MatcherTable> usedTables = new ArrayList<HashBlock_MatcherTable>();
+  private Map<Integer, List<HashBlock_MatcherTable>> availableTables = new HashMap<Integer, List<HashBlock_MatcherTable>>();
+  private long numAvailableEntries;
+}
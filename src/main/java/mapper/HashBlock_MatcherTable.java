@@ -0,0 +1,44 @@
+package mapper;
+
+import java.util.Arrays;
+
+// A HashBlock_MatcherTable stores the position of each encoded block within one section of a HashBlock_Matcher's reference
+// It also remembers which keys it has written, so clear() only has to reset those rather than every entry
+public class HashBlock_MatcherTable {
+  public HashBlock_MatcherTable(int size) {
+    this.entries = new int[size];
+    Arrays.fill(this.entries, HashBlock_Matcher.NO_MATCHES);
+  }
+
+  public int size() {
+    return this.entries.length;
+  }
+
+  // returns the position saved for <key>, or HashBlock_Matcher.NO_MATCHES if there isn't one
+  public int get(int key) {
+    return this.entries[key];
+  }
+
+  public void put(int key, int value) {
+    if (this.entries[key] == HashBlock_Matcher.NO_MATCHES) {
+      if (this.numWrittenKeys >= this.writtenKeys.length)
+        this.writtenKeys = Arrays.copyOf(this.writtenKeys, this.writtenKeys.length * 2);
+      this.writtenKeys[this.numWrittenKeys] = key;
+      this.numWrittenKeys++;
+    }
+    this.entries[key] = value;
+  }
+
+  // removes all entries
+  public void clear() {
+    for (int i = 0; i < this.numWrittenKeys; i++) {
+      this.entries[this.writtenKeys[i]] = HashBlock_Matcher.NO_MATCHES;
+    }
+    this.numWrittenKeys = 0;
+  }
+
+  private int[] entries;
+  // the keys whose entries aren't NO_MATCHES
+  private int[] writtenKeys = new int[16];
+  private int numWrittenKeys;
+}
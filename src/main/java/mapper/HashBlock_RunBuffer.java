@@ -0,0 +1,136 @@
+package mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+
+// a HashBlock_RunBuffer collects the positions of hashblocks in fixed-size arrays and writes them to its HashBlock_Spill as a sorted run whenever it fills up
+// Each hashing thread uses its own HashBlock_RunBuffer
+public class HashBlock_RunBuffer implements HashBlock_Sink {
+  public HashBlock_RunBuffer(HashBlock_Spill spill, SequenceDatabase sequenceDatabase, int capacity) {
+    this.spill = spill;
+    this.sequenceDatabase = sequenceDatabase;
+    this.groups = new long[capacity];
+    this.positions = new long[capacity];
+  }
+
+  // Adds the given hashblocks, all having <length> basepairs, in the same way that PackedMap.add does
+  public void add(Sequence sequence, int length, List<HashBlock> blocks, boolean preventDuplicates) throws IOException {
+    Sequence reverseSequence = this.sequenceDatabase.getReverseComplement(sequence);
+    for (HashBlock block : blocks) {
+      if (block.isPrimaryPolarity()) {
+        long encoded = this.sequenceDatabase.encodePosition(sequence, block.getStartIndex());
+        this.add(HashBlock_Spill.makeGroup(length, block.getForwardHash(), preventDuplicates), encoded);
+      }
+      if (block.isSecondaryPolarity()) {
+        int blockStart = reverseSequence.getLength() - block.getEndIndex();
+        long encoded = this.sequenceDatabase.encodePosition(reverseSequence, blockStart);
+        this.add(HashBlock_Spill.makeGroup(length, block.getReverseHash(), preventDuplicates), encoded);
+      }
+    }
+  }
+
+  void add(long group, long position) throws IOException {
+    if (this.count >= this.groups.length)
+      this.flush();
+    this.groups[this.count] = group;
+    this.positions[this.count] = position;
+    this.count++;
+  }
+
+  // sorts and writes any buffered records
+  public void flush() throws IOException {
+    if (this.count < 1)
+      return;
+    sort(this.groups, this.positions, 0, this.count - 1);
+    File file = this.spill.newRunFile();
+    TreeMap<Integer, Integer> lengthStarts = new TreeMap<Integer, Integer>();
+    TreeMap<Integer, Integer> lengthCounts = new TreeMap<Integer, Integer>();
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    output.writeLong(this.count);
+    int previousLength = -1;
+    int lengthStart = 0;
+    for (int i = 0; i < this.count; i++) {
+      output.writeLong(this.groups[i]);
+      output.writeLong(this.positions[i]);
+      // remember where each length starts, so each length can be read separately later
+      int length = HashBlock_Spill.getLength(this.groups[i]);
+      if (length != previousLength) {
+        if (previousLength >= 0) {
+          lengthStarts.put(previousLength, lengthStart);
+          lengthCounts.put(previousLength, i - lengthStart);
+        }
+        previousLength = length;
+        lengthStart = i;
+      }
+    }
+    lengthStarts.put(previousLength, lengthStart);
+    lengthCounts.put(previousLength, this.count - lengthStart);
+    output.close();
+    this.spill.addRun(file, this.count, lengthStarts, lengthCounts);
+    this.count = 0;
+  }
+
+  // sorts records by group and then position, using quicksort on the two arrays at once
+  static void sort(long[] groups, long[] positions, int low, int high) {
+    while (high - low > 16) {
+      int middle = (low + high) >>> 1;
+      long pivotGroup = groups[middle];
+      long pivotPosition = positions[middle];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (compare(groups[i], positions[i], pivotGroup, pivotPosition) < 0)
+          i++;
+        while (compare(groups[j], positions[j], pivotGroup, pivotPosition) > 0)
+          j--;
+        if (i <= j) {
+          swap(groups, positions, i, j);
+          i++;
+          j--;
+        }
+      }
+      // recurse into the smaller side and loop on the larger side to limit the stack depth
+      if (j - low < high - i) {
+        sort(groups, positions, low, j);
+        low = i;
+      } else {
+        sort(groups, positions, i, high);
+        high = j;
+      }
+    }
+    // insertion sort for small ranges
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; j > low && compare(groups[j - 1], positions[j - 1], groups[j], positions[j]) > 0; j--) {
+        swap(groups, positions, j - 1, j);
+      }
+    }
+  }
+
+  static int compare(long group1, long position1, long group2, long position2) {
+    if (group1 != group2)
+      return group1 < group2 ? -1 : 1;
+    if (position1 != position2)
+      return position1 < position2 ? -1 : 1;
+    return 0;
+  }
+
+  private static void swap(long[] groups, long[] positions, int i, int j) {
+    long group = groups[i];
+    groups[i] = groups[j];
+    groups[j] = group;
+    long position = positions[i];
+    positions[i] = positions[j];
+    positions[j] = position;
+  }
+
+  private HashBlock_Spill spill;
+  private SequenceDatabase sequenceDatabase;
+  private long[] groups;
+  private long[] positions;
+  private int count;
+}
@@ -0,0 +1,74 @@
+package mapper;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// a HashBlock_RunMerger reads several sorted runs at once and returns all of their records in sorted order
+public class HashBlock_RunMerger {
+  public HashBlock_RunMerger(List<HashBlock_RunReader> readers) throws IOException {
+    int capacity = Math.max(1, readers.size());
+    this.queue = new PriorityQueue<HashBlock_RunReader>(capacity, new Comparator<HashBlock_RunReader>() {
+      public int compare(HashBlock_RunReader a, HashBlock_RunReader b) {
+        return HashBlock_RunBuffer.compare(a.getGroup(), a.getPosition(), b.getGroup(), b.getPosition());
+      }
+    });
+    for (HashBlock_RunReader reader: readers) {
+      if (reader.next())
+        this.queue.add(reader);
+      else
+        reader.close();
+    }
+  }
+
+  // advances to the next record, or returns false if there are no more
+  public boolean next() throws IOException {
+    if (this.current != null) {
+      if (this.current.next())
+        this.queue.add(this.current);
+      else
+        this.current.close();
+    }
+    this.current = this.queue.poll();
+    if (this.current == null)
+      return false;
+    this.group = this.current.getGroup();
+    this.position = this.current.getPosition();
+    return true;
+  }
+
+  public long getGroup() {
+    return this.group;
+  }
+
+  public int getLength() {
+    return HashBlock_Spill.getLength(this.group);
+  }
+
+  public int getKey() {
+    return HashBlock_Spill.getKey(this.group);
+  }
+
+  public boolean getPreventDuplicates() {
+    return HashBlock_Spill.getPreventDuplicates(this.group);
+  }
+
+  public long getPosition() {
+    return this.position;
+  }
+
+  public void close() throws IOException {
+    if (this.current != null)
+      this.current.close();
+    this.current = null;
+    while (this.queue.size() > 0) {
+      this.queue.poll().close();
+    }
+  }
+
+  private PriorityQueue<HashBlock_RunReader> queue;
+  private HashBlock_RunReader current;
+  private long group;
+  private long position;
+}
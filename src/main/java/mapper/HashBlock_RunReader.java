@@ -0,0 +1,46 @@
+package mapper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// a HashBlock_RunReader reads some consecutive records from one sorted run written by a HashBlock_RunBuffer
+public class HashBlock_RunReader {
+  // Reads <numRecords> records starting from record number <startRecord>
+  public HashBlock_RunReader(File file, long startRecord, long numRecords) throws IOException {
+    FileInputStream fileStream = new FileInputStream(file);
+    // skip the header (the record count) and the earlier records
+    fileStream.getChannel().position(8 + startRecord * HashBlock_Spill.bytesPerRecord);
+    this.input = new DataInputStream(new BufferedInputStream(fileStream, 1 << 16));
+    this.numRemaining = numRecords;
+  }
+
+  // advances to the next record, or returns false if there are no more
+  public boolean next() throws IOException {
+    if (this.numRemaining < 1)
+      return false;
+    this.group = this.input.readLong();
+    this.position = this.input.readLong();
+    this.numRemaining--;
+    return true;
+  }
+
+  public long getGroup() {
+    return this.group;
+  }
+
+  public long getPosition() {
+    return this.position;
+  }
+
+  public void close() throws IOException {
+    this.input.close();
+  }
+
+  private DataInputStream input;
+  private long numRemaining;
+  private long group;
+  private long position;
+}
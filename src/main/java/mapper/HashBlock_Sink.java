@@ -0,0 +1,11 @@
+package mapper;
+
+import java.io.IOException;
+import java.util.List;
+
+// a HashBlock_Sink receives the hashblocks that a hashing thread finds, in place of the PackedMaps of a HashBlock_Database
+public interface HashBlock_Sink {
+  // Receives some hashblocks from <sequence>, all having <length> basepairs
+  // If preventDuplicates is true, some of these blocks might describe the same position (see HashBlock_Database.addHashblocks)
+  void add(Sequence sequence, int length, List<HashBlock> blocks, boolean preventDuplicates) throws IOException;
+}
@@ -0,0 +1,226 @@
+package mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// A HashBlock_Spill holds the hashblocks found during one pass over the reference in sorted run files on disk, rather than in memory
+// Each hashing thread fills a fixed-size HashBlock_RunBuffer, which writes a sorted run here whenever it fills up
+// After hashing, a HashBlock_RunMerger reads the records of one length from all of the runs at once, so a HashBlock_Database can build one PackedMap at a time
+public class HashBlock_Spill {
+  // each record is two longs
+  public static long bytesPerRecord = 16;
+  // the most runs that we read at once
+  static int maxRunsPerMerge = 64;
+
+  // Runs are written into a new temporary directory inside <parentDir>, so several processes can spill into the same cache directory at once
+  public HashBlock_Spill(File parentDir, SequenceDatabase sequenceDatabase, int recordsPerRun) {
+    this.parentDir = parentDir;
+    this.sequenceDatabase = sequenceDatabase;
+    this.recordsPerRun = recordsPerRun;
+  }
+
+  public HashBlock_RunBuffer newBuffer() {
+    return new HashBlock_RunBuffer(this, this.sequenceDatabase, this.recordsPerRun);
+  }
+
+  // Returns an empty HashBlock_RunBuffer for a hashing thread to fill, reusing one from returnBuffer if possible
+  // Each buffer is large, so we only make as many as the number of threads hashing at once
+  public synchronized HashBlock_RunBuffer takeBuffer() {
+    if (this.freeBuffers.size() > 0)
+      return this.freeBuffers.remove(this.freeBuffers.size() - 1);
+    return this.newBuffer();
+  }
+
+  // Saves a flushed buffer for a later call to takeBuffer
+  public synchronized void returnBuffer(HashBlock_RunBuffer buffer) {
+    this.freeBuffers.add(buffer);
+  }
+
+  // Forgets the buffers saved by returnBuffer, after we finish hashing
+  public synchronized void releaseBuffers() {
+    this.freeBuffers.clear();
+  }
+
+  // the approximate memory used by each HashBlock_RunBuffer
+  public long getBytesPerBuffer() {
+    return this.recordsPerRun * bytesPerRecord;
+  }
+
+  // chooses a file for a new run
+  public synchronized File newRunFile() throws IOException {
+    if (this.dir == null) {
+      if (!this.parentDir.isDirectory()) {
+        if (!this.parentDir.mkdirs())
+          throw new IOException("Could not create " + this.parentDir);
+      }
+      this.dir = Files.createTempDirectory(this.parentDir.toPath(), "spill").toFile();
+    }
+    File file = new File(this.dir, "run-" + this.nextRunId);
+    this.nextRunId++;
+    return file;
+  }
+
+  // records that a run was written successfully
+  // lengthStarts tells the index of the first record of each length in the run, and lengthCounts tells how many records have that length
+  public synchronized void addRun(File file, int numRecords, TreeMap<Integer, Integer> lengthStarts, TreeMap<Integer, Integer> lengthCounts) {
+    this.runs.add(file);
+    this.runLengthStarts.add(lengthStarts);
+    this.runLengthCounts.add(lengthCounts);
+    this.numRecords += numRecords;
+  }
+
+  public synchronized int getNumRuns() {
+    return this.runs.size();
+  }
+
+  public synchronized long getNumRecords() {
+    return this.numRecords;
+  }
+
+  // Opens the records of the given length from all of the runs written so far, for reading in order
+  // Reading a run uses a buffer, so if there are more than maxRunsPerMerge runs, we first merge groups of them into fewer, longer runs
+  public HashBlock_RunMerger openMerger(int length) throws IOException {
+    List<File> files = new ArrayList<File>();
+    List<Long> starts = new ArrayList<Long>();
+    // Merged runs can hold more than Integer.MAX_VALUE records, so we count records using longs
+    List<Long> counts = new ArrayList<Long>();
+    synchronized(this) {
+      for (int i = 0; i < this.runs.size(); i++) {
+        Integer count = this.runLengthCounts.get(i).get(length);
+        if (count != null) {
+          files.add(this.runs.get(i));
+          starts.add((long)this.runLengthStarts.get(i).get(length));
+          counts.add((long)count);
+        }
+      }
+    }
+    List<File> originalFiles = new ArrayList<File>(files);
+    // the runs that we wrote while merging
+    List<File> mergedFiles = new ArrayList<File>();
+    while (files.size() > maxRunsPerMerge) {
+      List<File> nextFiles = new ArrayList<File>();
+      List<Long> nextStarts = new ArrayList<Long>();
+      List<Long> nextCounts = new ArrayList<Long>();
+      for (int groupStart = 0; groupStart < files.size(); groupStart += maxRunsPerMerge) {
+        int groupEnd = Math.min(files.size(), groupStart + maxRunsPerMerge);
+        if (groupEnd - groupStart == 1) {
+          nextFiles.add(files.get(groupStart));
+          nextStarts.add(starts.get(groupStart));
+          nextCounts.add(counts.get(groupStart));
+          continue;
+        }
+        long numRecords = 0;
+        for (int i = groupStart; i < groupEnd; i++) {
+          numRecords += counts.get(i);
+        }
+        HashBlock_RunMerger merger = new HashBlock_RunMerger(openReaders(files, starts, counts, groupStart, groupEnd));
+        File file = this.newRunFile();
+        writeRun(merger, numRecords, file);
+        merger.close();
+        nextFiles.add(file);
+        nextStarts.add(0L);
+        nextCounts.add(numRecords);
+      }
+      // the runs from the previous pass of merging aren't needed anymore
+      for (File file: mergedFiles) {
+        if (!nextFiles.contains(file))
+          file.delete();
+      }
+      mergedFiles.clear();
+      for (File file: nextFiles) {
+        if (!originalFiles.contains(file))
+          mergedFiles.add(file);
+      }
+      files = nextFiles;
+      starts = nextStarts;
+      counts = nextCounts;
+    }
+    synchronized(this) {
+      // clear deletes the last merged runs, after the returned merger is finished with them
+      this.mergedRuns.addAll(mergedFiles);
+    }
+    return new HashBlock_RunMerger(openReaders(files, starts, counts, 0, files.size()));
+  }
+
+  private static List<HashBlock_RunReader> openReaders(List<File> files, List<Long> starts, List<Long> counts, int startIndex, int endIndex) throws IOException {
+    List<HashBlock_RunReader> readers = new ArrayList<HashBlock_RunReader>();
+    for (int i = startIndex; i < endIndex; i++) {
+      readers.add(new HashBlock_RunReader(files.get(i), starts.get(i), counts.get(i)));
+    }
+    return readers;
+  }
+
+  // writes all of the remaining records of <merger> into <file>, in the same format as HashBlock_RunBuffer.flush
+  private static void writeRun(HashBlock_RunMerger merger, long numRecords, File file) throws IOException {
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      output.writeLong(numRecords);
+      while (merger.next()) {
+        output.writeLong(merger.getGroup());
+        output.writeLong(merger.getPosition());
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  // deletes all runs and their directory, after they have been merged or if merging fails
+  public synchronized void clear() {
+    for (File file: this.runs) {
+      file.delete();
+    }
+    for (File file: this.mergedRuns) {
+      file.delete();
+    }
+    this.runs.clear();
+    this.mergedRuns.clear();
+    this.freeBuffers.clear();
+    this.runLengthStarts.clear();
+    this.runLengthCounts.clear();
+    this.numRecords = 0;
+    if (this.dir != null)
+      this.dir.delete();
+    this.dir = null;
+  }
+
+  // Records are sorted first by group: the length of the hashblock, then whether to check for duplicates, then the hashcode
+  public static long makeGroup(int length, int key, boolean preventDuplicates) {
+    long group = ((long)length) << 33;
+    if (preventDuplicates)
+      group |= (1L << 32);
+    return group | (key & 0xffffffffL);
+  }
+
+  public static int getLength(long group) {
+    return (int)(group >>> 33);
+  }
+
+  public static boolean getPreventDuplicates(long group) {
+    return ((group >>> 32) & 1) != 0;
+  }
+
+  public static int getKey(long group) {
+    return (int)group;
+  }
+
+  private File parentDir;
+  // the directory holding the current runs, or null if there aren't any
+  private File dir;
+  private SequenceDatabase sequenceDatabase;
+  private int recordsPerRun;
+  private List<File> runs = new ArrayList<File>();
+  // runs written by openMerger, which hold records of only one length
+  private List<File> mergedRuns = new ArrayList<File>();
+  private List<HashBlock_RunBuffer> freeBuffers = new ArrayList<HashBlock_RunBuffer>();
+  private List<TreeMap<Integer, Integer>> runLengthStarts = new ArrayList<TreeMap<Integer, Integer>>();
+  private List<TreeMap<Integer, Integer>> runLengthCounts = new ArrayList<TreeMap<Integer, Integer>>();
+  private int nextRunId;
+  private long numRecords;
+}
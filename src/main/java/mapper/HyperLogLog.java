@@ -0,0 +1,67 @@
+package mapper;
+
+// A HyperLogLog estimates how many distinct values it has been given, using a fixed amount of memory
+// With the default precision of 14 bits it uses 16KB and is usually accurate to within about 1%
+public class HyperLogLog {
+  public HyperLogLog() {
+    this(14);
+  }
+
+  public HyperLogLog(int precision) {
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public void add(int value) {
+    long hash = mix(value);
+    int index = (int)(hash >>> (64 - this.precision));
+    // count the leading zeros of the remaining bits, plus one
+    long remaining = (hash << this.precision) | (1L << (this.precision - 1));
+    byte rank = (byte)(Long.numberOfLeadingZeros(remaining) + 1);
+    if (rank > this.registers[index])
+      this.registers[index] = rank;
+  }
+
+  // adds all of the values that <other> has been given
+  public void addAll(HyperLogLog other) {
+    if (other.registers.length != this.registers.length)
+      throw new IllegalArgumentException("Cannot combine HyperLogLog of precision " + other.precision + " into precision " + this.precision);
+    for (int i = 0; i < this.registers.length; i++) {
+      if (other.registers[i] > this.registers[i])
+        this.registers[i] = other.registers[i];
+    }
+  }
+
+  // estimates the number of distinct values given
+  public long estimateCount() {
+    int numRegisters = this.registers.length;
+    double sum = 0;
+    int numZeros = 0;
+    for (int i = 0; i < numRegisters; i++) {
+      sum += 1.0 / (1L << this.registers[i]);
+      if (this.registers[i] == 0)
+        numZeros++;
+    }
+    double alpha = 0.7213 / (1 + 1.079 / numRegisters);
+    double estimate = alpha * numRegisters * numRegisters / sum;
+    if (estimate <= 2.5 * numRegisters && numZeros > 0) {
+      // for small counts, counting empty registers is more accurate
+      estimate = numRegisters * Math.log((double)numRegisters / numZeros);
+    }
+    return Math.round(estimate);
+  }
+
+  // spreads the bits of <value> across a long so that similar values don't land in similar registers
+  private static long mix(int value) {
+    long hash = value * 0x9E3779B97F4A7C15L;
+    hash ^= (hash >>> 33);
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= (hash >>> 33);
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= (hash >>> 33);
+    return hash;
+  }
+
+  private int precision;
+  private byte[] registers;
+}
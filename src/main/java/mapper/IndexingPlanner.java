@@ -0,0 +1,111 @@
+package mapper;
+
+// An IndexingPlanner decides how many lengths of hashblocks a HashBlock_Database should hash in one pass over the reference, and how many threads may hash at once, to fit within a memory budget
+// Its estimates are approximate: they're meant to choose a reasonable plan up front rather than to account for every byte
+public class IndexingPlanner {
+  // approximate size of a HashBlock waiting to be added to a PackedMap, including its share of the list holding it
+  private static long bytesPerPendingBlock = 64;
+  // approximate number of hashblocks of each length that each hashing thread can have waiting to be added (see HashBlock_Buffer and PackedMap.processAll)
+  private static long pendingBlocksPerHasherPerLength = 8096;
+  // approximate memory used by each key in a PackedMap, not counting the positions stored there
+  private static long bytesPerKey = 4;
+
+  public IndexingPlanner(long memoryBudget, long totalForwardSize, int bytesPerPosition, boolean enableGapmers) {
+    this.memoryBudget = memoryBudget;
+    this.totalForwardSize = totalForwardSize;
+    this.bytesPerPosition = bytesPerPosition;
+    this.enableGapmers = enableGapmers;
+  }
+
+  // estimates how much memory the PackedMap holding hashblocks of this length will use
+  public long estimateMapBytes(int length) {
+    long capacity = HashBlock_Database.estimateRequiredCapacity(length, this.totalForwardSize, this.enableGapmers);
+    // each block can be saved once for each strand
+    long numPositions = HashBlock_Database.estimateNumBlocks(length, this.totalForwardSize, this.enableGapmers) * 2;
+    return capacity * bytesPerKey + numPositions * this.bytesPerPosition;
+  }
+
+  // measures how much memory <map> uses, from how many keys and positions it actually holds
+  public long measureMapBytes(PackedMap map) {
+    long numPositions = Math.min(map.getNumItemsAdded(), (long)map.getCapacity() * (long)map.getMaxInterestingCountPerKey());
+    long total = (long)map.getCapacity() * bytesPerKey + numPositions * this.bytesPerPosition;
+    if (map.getPerfectHash() != null)
+      total += map.getPerfectHash().getNumBytes();
+    return total;
+  }
+
+  // Specifies that each hashing thread holds a fixed amount of memory for pending hashblocks, regardless of how many lengths it hashes, such as when spilling them to disk
+  public void setPendingBytesPerHasher(long bytes) {
+    this.pendingBytesPerHasher = bytes;
+  }
+
+  // estimates how much memory is used by hashblocks that have been generated but not yet added to their PackedMap
+  public long estimatePendingBytes(int numLengths, int numHashers) {
+    if (this.pendingBytesPerHasher > 0)
+      return (long)numHashers * this.pendingBytesPerHasher;
+    return (long)numLengths * (long)numHashers * pendingBlocksPerHasherPerLength * bytesPerPendingBlock;
+  }
+
+  // Plans the next pass, which starts at <firstLength> and must reach <requiredMaxLength>, and ideally reaches <requestedMaxLength>
+  // <usedBytes> is the measured size of the data structures that we already have, such as the reference and any PackedMaps from previous passes
+  // We first choose the most threads (up to <maxNumHashers>) that fit while hashing through <requiredMaxLength>, and then hash as many more lengths as still fit
+  public void plan(int firstLength, int requiredMaxLength, int requestedMaxLength, int maxNumHashers, long usedBytes) {
+    requiredMaxLength = Math.max(requiredMaxLength, firstLength);
+    requestedMaxLength = Math.max(requestedMaxLength, requiredMaxLength);
+    long availableBytes = this.memoryBudget - usedBytes;
+
+    long requiredMapBytes = 0;
+    for (int length = firstLength; length <= requiredMaxLength; length++) {
+      requiredMapBytes += this.estimateMapBytes(length);
+    }
+    int numRequiredLengths = requiredMaxLength - firstLength + 1;
+    int numHashers = Math.max(1, maxNumHashers);
+    while (numHashers > 1 && requiredMapBytes + this.estimatePendingBytes(numRequiredLengths, numHashers) > availableBytes) {
+      numHashers--;
+    }
+
+    int maxLength = requiredMaxLength;
+    long mapBytes = requiredMapBytes;
+    while (maxLength < requestedMaxLength) {
+      long nextMapBytes = mapBytes + this.estimateMapBytes(maxLength + 1);
+      int nextNumLengths = maxLength + 1 - firstLength + 1;
+      if (nextMapBytes + this.estimatePendingBytes(nextNumLengths, numHashers) > availableBytes)
+        break;
+      maxLength++;
+      mapBytes = nextMapBytes;
+    }
+
+    this.maxLength = maxLength;
+    this.numHashers = numHashers;
+    this.projectedPeakBytes = usedBytes + mapBytes + this.estimatePendingBytes(maxLength - firstLength + 1, numHashers);
+  }
+
+  // the largest length to hash in the planned pass
+  public int getMaxLength() {
+    return this.maxLength;
+  }
+
+  // the number of threads that may hash at once in the planned pass
+  public int getNumHashers() {
+    return this.numHashers;
+  }
+
+  // the memory that we expect to be in use at the end of the planned pass
+  public long getProjectedPeakBytes() {
+    return this.projectedPeakBytes;
+  }
+
+  public boolean getFitsInBudget() {
+    return this.projectedPeakBytes <= this.memoryBudget;
+  }
+
+  private long memoryBudget;
+  private long totalForwardSize;
+  private int bytesPerPosition;
+  private boolean enableGapmers;
+  private long pendingBytesPerHasher = -1;
+
+  private int maxLength;
+  private int numHashers;
+  private long projectedPeakBytes;
+}
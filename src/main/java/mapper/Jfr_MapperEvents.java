@@ -0,0 +1,196 @@
+package mapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// The Java Flight Recorder event types used by MapperEvents
+// Only MapperEvents should use this class, and only after checking that the JVM has JFR
+class Jfr_MapperEvents {
+  static boolean isAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  // Checking the EventType first means we don't create any events while JFR isn't recording them
+  private static EventType referenceJobType = EventType.getEventType(ReferenceJobEvent.class);
+  private static EventType duplicationDetectionType = EventType.getEventType(DuplicationDetectionEvent.class);
+  private static EventType ancestryAnalysisType = EventType.getEventType(AncestryAnalysisEvent.class);
+  private static EventType alignmentBatchType = EventType.getEventType(AlignmentBatchEvent.class);
+  private static EventType queryType = EventType.getEventType(QueryEvent.class);
+  private static EventType outputType = EventType.getEventType(OutputEvent.class);
+
+  static MapperEvent beginReferenceJob(String phase, int length, int numJobs, String contig, int jobStart, int jobEnd) {
+    if (!referenceJobType.isEnabled())
+      return null;
+    ReferenceJobEvent event = new ReferenceJobEvent();
+    event.phase = phase;
+    event.length = length;
+    event.numJobs = numJobs;
+    event.contig = contig;
+    event.jobStart = jobStart;
+    event.jobEnd = jobEnd;
+    event.begin();
+    return event;
+  }
+
+  static MapperEvent beginDuplicationDetection(int length) {
+    if (!duplicationDetectionType.isEnabled())
+      return null;
+    DuplicationDetectionEvent event = new DuplicationDetectionEvent();
+    event.length = length;
+    event.begin();
+    return event;
+  }
+
+  static void endDuplicationDetection(MapperEvent event, boolean loadedFromCache) {
+    DuplicationDetectionEvent converted = (DuplicationDetectionEvent)event;
+    converted.loadedFromCache = loadedFromCache;
+    converted.commit();
+  }
+
+  static MapperEvent beginAncestryAnalysis(int duplicationLength, int numInstances) {
+    if (!ancestryAnalysisType.isEnabled())
+      return null;
+    AncestryAnalysisEvent event = new AncestryAnalysisEvent();
+    event.duplicationLength = duplicationLength;
+    event.numInstances = numInstances;
+    event.begin();
+    return event;
+  }
+
+  static MapperEvent beginAlignmentBatch(String workerId, int numQueries) {
+    if (!alignmentBatchType.isEnabled())
+      return null;
+    AlignmentBatchEvent event = new AlignmentBatchEvent();
+    event.workerId = workerId.trim();
+    event.numQueries = numQueries;
+    event.begin();
+    return event;
+  }
+
+  static void endAlignmentBatch(MapperEvent event, int numDeferred, long numCandidates) {
+    AlignmentBatchEvent converted = (AlignmentBatchEvent)event;
+    converted.numDeferred = numDeferred;
+    converted.numCandidates = numCandidates;
+    converted.commit();
+  }
+
+  static MapperEvent beginQuery(long queryId, int queryLength) {
+    if (!queryType.isEnabled())
+      return null;
+    QueryEvent event = new QueryEvent();
+    event.queryId = queryId;
+    event.queryLength = queryLength;
+    event.begin();
+    return event;
+  }
+
+  static void endQuery(MapperEvent event, int numCandidates, boolean deferred) {
+    QueryEvent converted = (QueryEvent)event;
+    converted.numCandidates = numCandidates;
+    converted.deferred = deferred;
+    converted.commit();
+  }
+
+  static MapperEvent beginOutput(int numQueries) {
+    if (!outputType.isEnabled())
+      return null;
+    OutputEvent event = new OutputEvent();
+    event.numQueries = numQueries;
+    event.begin();
+    return event;
+  }
+
+  @Name("xmapper.ReferenceJob")
+  @Label("Reference Job")
+  @Description("Loading, hashing or packing the hashblocks of one length")
+  @Category({"X-Mapper", "Reference"})
+  @StackTrace(false)
+  static class ReferenceJobEvent extends Event implements MapperEvent {
+    @Label("Phase")
+    String phase;
+    @Label("Hashblock Length")
+    int length;
+    @Label("Number of Jobs")
+    int numJobs;
+    @Label("Contig")
+    String contig;
+    @Label("Job Start")
+    int jobStart;
+    @Label("Job End")
+    int jobEnd;
+  }
+
+  @Name("xmapper.DuplicationDetection")
+  @Label("Duplication Detection")
+  @Description("Finding duplicated sections of the reference having one length")
+  @Category({"X-Mapper", "Reference"})
+  @StackTrace(false)
+  static class DuplicationDetectionEvent extends Event implements MapperEvent {
+    @Label("Length")
+    int length;
+    @Label("Loaded From Cache")
+    boolean loadedFromCache;
+  }
+
+  @Name("xmapper.AncestryAnalysis")
+  @Label("Ancestry Analysis")
+  @Description("Inferring the common ancestor of one duplicated section of the reference")
+  @Category({"X-Mapper", "Reference"})
+  @StackTrace(false)
+  static class AncestryAnalysisEvent extends Event implements MapperEvent {
+    @Label("Duplication Length")
+    int duplicationLength;
+    @Label("Number of Instances")
+    int numInstances;
+  }
+
+  @Name("xmapper.AlignmentBatch")
+  @Label("Alignment Batch")
+  @Description("One worker aligning one batch of queries")
+  @Category({"X-Mapper", "Alignment"})
+  @StackTrace(false)
+  static class AlignmentBatchEvent extends Event implements MapperEvent {
+    @Label("Worker")
+    String workerId;
+    @Label("Number of Queries")
+    int numQueries;
+    @Label("Number of Deferred Queries")
+    int numDeferred;
+    @Label("Number of Candidates")
+    long numCandidates;
+  }
+
+  @Name("xmapper.Query")
+  @Label("Query")
+  @Description("Aligning one query")
+  @Category({"X-Mapper", "Alignment"})
+  @StackTrace(false)
+  @Threshold("10 ms")
+  static class QueryEvent extends Event implements MapperEvent {
+    @Label("Query Id")
+    long queryId;
+    @Label("Query Length")
+    int queryLength;
+    @Label("Number of Candidates")
+    int numCandidates;
+    @Label("Deferred")
+    boolean deferred;
+  }
+
+  @Name("xmapper.Output")
+  @Label("Output")
+  @Description("Sending the alignments of one batch of queries to the output writers")
+  @Category({"X-Mapper", "Alignment"})
+  @StackTrace(false)
+  static class OutputEvent extends Event implements MapperEvent {
+    @Label("Number of Queries")
+    int numQueries;
+  }
+}
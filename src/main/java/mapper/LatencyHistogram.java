@@ -0,0 +1,82 @@
+package mapper;
+
+// A LatencyHistogram counts durations (in nanoseconds) using buckets whose width grows with the duration
+// Each bucket is at most 1/8 as wide as the values in it, so percentiles are accurate to within about 12%
+public class LatencyHistogram {
+  private static int numLinearBuckets = 16;
+  private static int subBucketBits = 3;
+  private static int numSubBuckets = 1 << subBucketBits;
+
+  public LatencyHistogram() {
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    this.counts[getBucketIndex(nanos)]++;
+    this.count++;
+    this.totalNanos += nanos;
+    if (nanos > this.maxNanos)
+      this.maxNanos = nanos;
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += other.counts[i];
+    }
+    this.count += other.count;
+    this.totalNanos += other.totalNanos;
+    this.maxNanos = Math.max(this.maxNanos, other.maxNanos);
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  public long getTotalNanos() {
+    return this.totalNanos;
+  }
+
+  public long getMaxNanos() {
+    return this.maxNanos;
+  }
+
+  // Returns a duration that at least <percentile> percent of the recorded durations are no longer than
+  public long getNanosAtPercentile(double percentile) {
+    if (this.count < 1)
+      return 0;
+    long target = (long)Math.ceil(percentile / 100.0 * this.count);
+    if (target < 1)
+      target = 1;
+    long cumulative = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      cumulative += this.counts[i];
+      if (cumulative >= target)
+        return Math.min(getBucketMax(i), this.maxNanos);
+    }
+    return this.maxNanos;
+  }
+
+  static int getBucketIndex(long nanos) {
+    if (nanos < numLinearBuckets)
+      return (int)nanos;
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int subBucket = (int)(nanos >>> (exponent - subBucketBits)) & (numSubBuckets - 1);
+    return numLinearBuckets + (exponent - 4) * numSubBuckets + subBucket;
+  }
+
+  // the largest value that falls into this bucket
+  static long getBucketMax(int index) {
+    if (index < numLinearBuckets)
+      return index;
+    int exponent = (index - numLinearBuckets) / numSubBuckets + 4;
+    int subBucket = (index - numLinearBuckets) % numSubBuckets;
+    long shift = exponent - subBucketBits;
+    return ((long)(numSubBuckets + subBucket + 1) << shift) - 1;
+  }
+
+  private long[] counts = new long[getBucketIndex(Long.MAX_VALUE) + 1];
+  private long count;
+  private long totalNanos;
+  private long maxNanos;
+}
@@ -0,0 +1,434 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A LongReadAligner aligns a long query without splitting it into smaller queries
+// It follows a HashBlockPath along the query and saves each match of each hashblock as an anchor
+// Then it finds the highest-scoring chain of colinear anchors using dynamic programming (similarly to minimap2), and only aligns individual basepairs in the gaps between consecutive anchors
+public class LongReadAligner {
+  // anchors can only be chained if they are at most this far apart
+  private static int maxChainDistance = 5000;
+  // anchors can only be chained if the distances between them on the query and on the reference differ by at most this much
+  private static int maxChainIndelLength = 500;
+  // the number of previous anchors to consider chaining each anchor to
+  private static int maxChainPredecessors = 50;
+  // a hashblock matching more positions than this isn't a useful anchor
+  private static int maxMatchesPerBlock = 50;
+  // gaps requiring more dynamic programming cells than this are aligned without searching for indels
+  static long maxGapCells = 1 << 22;
+  // besides the best chain, we also align chains scoring at least this fraction as much, to tell whether the best alignment is ambiguous
+  private static double minRunnerUpScoreFraction = 0.8;
+  // the most chains that we align for each query
+  private static int maxAlignedChains = 5;
+
+  public LongReadAligner(Readable_HashBlock_Database database, SequenceDatabase sequenceDatabase, AlignmentParameters parameters, Logger logger) {
+    this.database = database;
+    this.sequenceDatabase = sequenceDatabase;
+    this.parameters = parameters;
+    this.logger = logger;
+    // If the BandedAligner can't align a gap, we align it without indels instead
+    LocalAligner giveUp = new LocalAligner() {
+      public SequenceAlignment align(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, AlignmentAnalysis alignmentAnalysis) {
+        return null;
+      }
+      public void setLogger(Logger logger) {
+      }
+    };
+    this.gapAligner = new BandedAligner(giveUp);
+    this.gapAligner.setLogger(logger.incrementScope());
+  }
+
+  // Returns the best alignments of <query>, or an empty list if we can't find one having acceptable penalty
+  // Besides the best chain we also align runner-up chains scoring nearly as well, and like QueryMatch_Aligner.getBestAlignments we return each alignment whose penalty is within Max_PenaltySpan of the best
+  // So a read from a duplicated region gets an alignment to each copy, rather than one alignment that looks unique
+  public List<QueryAlignment> align(Sequence query) {
+    List<QueryAlignment> results = new ArrayList<QueryAlignment>();
+    this.collectAnchors(query);
+    if (this.count < 1) {
+      if (this.logger.getEnabled())
+        this.logger.log("LongReadAligner found no anchors");
+      return results;
+    }
+    this.chain();
+    Sequence reverseQuery = query.reverseComplement();
+    double maxPenalty = query.getLength() * this.parameters.MaxErrorRate;
+    double bestPenalty = Double.MAX_VALUE;
+    List<QueryAlignment> alignments = new ArrayList<QueryAlignment>();
+    for (int[] chain: this.chooseChains()) {
+      QueryAlignment alignment = this.alignChain(chain, query, reverseQuery, maxPenalty);
+      if (alignment == null)
+        continue;
+      alignments.add(alignment);
+      bestPenalty = Math.min(bestPenalty, alignment.getPenalty());
+    }
+    double cutoffPenalty = Math.min(bestPenalty + this.parameters.Max_PenaltySpan, maxPenalty);
+    for (QueryAlignment alignment: alignments) {
+      if (alignment.getPenalty() <= cutoffPenalty)
+        results.add(alignment);
+    }
+    return results;
+  }
+
+  // Aligns the query along the given chain of anchors, and returns null if the penalty is more than maxPenalty
+  private QueryAlignment alignChain(int[] chain, Sequence query, Sequence reverseQuery, double maxPenalty) {
+    int first = (int)this.positions[chain[0]];
+    Sequence reference = this.anchorReferences[first];
+    boolean reversed = this.anchorReversed[first];
+    Sequence alignedQuery;
+    if (reversed)
+      alignedQuery = reverseQuery;
+    else
+      alignedQuery = query;
+    if (this.logger.getEnabled()) {
+      this.logger.log("LongReadAligner chained " + chain.length + " of " + this.count + " anchors on " + reference.getName() + (reversed ? " (reverse)" : "") + " with score " + this.scores[chain[chain.length - 1]]);
+    }
+
+    List<AlignedBlock> blocks = this.alignAnchors(chain, alignedQuery, reference);
+    if (blocks.size() < 1)
+      return null;
+    SequenceAlignment alignment = this.parameters.newSequenceAlignment(blocks, alignedQuery.getComplementedFrom() != null);
+    if (this.logger.getEnabled()) {
+      this.logger.log("LongReadAligner alignment at " + reference.getName() + " position " + blocks.get(0).getStartIndexB() + " has penalty " + alignment.getPenalty() + " (max allowed " + maxPenalty + ")");
+    }
+    if (alignment.getPenalty() > maxPenalty)
+      return null;
+    List<SequenceAlignment> components = new ArrayList<SequenceAlignment>(1);
+    components.add(alignment);
+    return new QueryAlignment(components, 0, 1, 0, alignment.getPenalty(), 0);
+  }
+
+  // Saves the positions where hashblocks along the query match the reference
+  // Matches against the reverse complement of a contig are saved as matches of the reverse complement of the query against the contig
+  private void collectAnchors(Sequence query) {
+    this.count = 0;
+    HashBlock_Pyramid pyramid = new HashBlock_Pyramid(new HashBlock_Stream(query, false, null));
+    HashBlockPath path = new HashBlockPath(pyramid, this.database, this.sequenceDatabase, query, this.logger.incrementScope(), "long");
+    while (true) {
+      HashBlock block = path.getNextInterestingBlock();
+      if (block == null)
+        break;
+      SequencePosition[] matches = this.database.matchBlock(block, maxMatchesPerBlock);
+      if (matches == null || matches.length > maxMatchesPerBlock)
+        continue;
+      for (SequencePosition position: matches) {
+        Sequence reference = position.getSequence();
+        int length = block.getLength();
+        if (position.getStartIndex() < 0 || position.getStartIndex() + length > reference.getLength())
+          continue;
+        if (reference.getComplementedFrom() != null) {
+          int queryStart = query.getLength() - block.getEndIndex();
+          int referenceStart = reference.getLength() - (position.getStartIndex() + length);
+          this.addAnchor(reference.getComplementedFrom(), true, queryStart, referenceStart, length);
+        } else {
+          this.addAnchor(reference, false, block.getStartIndex(), position.getStartIndex(), length);
+        }
+      }
+    }
+  }
+
+  private void addAnchor(Sequence reference, boolean reversed, int queryStart, int referenceStart, int length) {
+    if (this.count >= this.anchorReferences.length) {
+      int newCapacity = this.anchorReferences.length * 2;
+      this.anchorReferences = Arrays.copyOf(this.anchorReferences, newCapacity);
+      this.anchorReversed = Arrays.copyOf(this.anchorReversed, newCapacity);
+      this.queryStarts = Arrays.copyOf(this.queryStarts, newCapacity);
+      this.referenceStarts = Arrays.copyOf(this.referenceStarts, newCapacity);
+      this.lengths = Arrays.copyOf(this.lengths, newCapacity);
+      this.groups = Arrays.copyOf(this.groups, newCapacity);
+      this.positions = Arrays.copyOf(this.positions, newCapacity);
+      this.scores = Arrays.copyOf(this.scores, newCapacity);
+      this.predecessors = Arrays.copyOf(this.predecessors, newCapacity);
+      this.endGroups = Arrays.copyOf(this.endGroups, newCapacity);
+      this.endPositions = Arrays.copyOf(this.endPositions, newCapacity);
+      this.used = Arrays.copyOf(this.used, newCapacity);
+    }
+    this.anchorReferences[this.count] = reference;
+    this.anchorReversed[this.count] = reversed;
+    this.queryStarts[this.count] = queryStart;
+    this.referenceStarts[this.count] = referenceStart;
+    this.lengths[this.count] = length;
+    // Different contigs can have the same identity hash code, so we still compare the contigs when chaining
+    long group = ((long)System.identityHashCode(reference)) << 1;
+    if (reversed)
+      group |= 1;
+    this.groups[this.count] = group;
+    this.positions[this.count] = (((long)referenceStart) << 32) | this.count;
+    this.count++;
+  }
+
+  // Sorts the anchors by strand, contig and reference position, and computes the best chain ending at each one
+  private void chain() {
+    HashBlock_RunBuffer.sort(this.groups, this.positions, 0, this.count - 1);
+    double averageLength = 0;
+    for (int i = 0; i < this.count; i++) {
+      averageLength += this.lengths[i];
+    }
+    averageLength /= this.count;
+
+    for (int i = 0; i < this.count; i++) {
+      int anchor = (int)this.positions[i];
+      int queryStart = this.queryStarts[anchor];
+      int referenceStart = this.referenceStarts[anchor];
+      int length = this.lengths[anchor];
+      double score = length;
+      int predecessor = -1;
+      int minPredecessor = Math.max(0, i - maxChainPredecessors);
+      for (int j = i - 1; j >= minPredecessor; j--) {
+        if (this.groups[j] != this.groups[i])
+          break;
+        int other = (int)this.positions[j];
+        int referenceDistance = referenceStart - this.referenceStarts[other];
+        if (referenceDistance > maxChainDistance)
+          break;
+        if (this.anchorReferences[other] != this.anchorReferences[anchor])
+          continue;
+        int queryDistance = queryStart - this.queryStarts[other];
+        if (queryDistance <= 0 || referenceDistance <= 0 || queryDistance > maxChainDistance)
+          continue;
+        int indelLength = Math.abs(referenceDistance - queryDistance);
+        if (indelLength > maxChainIndelLength)
+          continue;
+        // the number of new basepairs covered by this anchor, minus a penalty for the implied indel
+        double gain = Math.min(Math.min(queryDistance, referenceDistance), length);
+        double cost = 0;
+        if (indelLength > 0)
+          cost = 0.01 * averageLength * indelLength + 0.5 * Math.log(indelLength + 1) / Math.log(2);
+        double candidate = this.scores[j] + gain - cost;
+        if (candidate > score) {
+          score = candidate;
+          predecessor = j;
+        }
+      }
+      this.scores[i] = score;
+      this.predecessors[i] = predecessor;
+    }
+  }
+
+  // Returns the best chain, followed by any other chains scoring at least minRunnerUpScoreFraction as much, up to maxAlignedChains chains in total
+  // A chain that shares an anchor with a better chain is usually part of it, so we skip those
+  private List<int[]> chooseChains() {
+    // sort the chain ends by decreasing score; scores are positive, so their bits are ordered the same way as their values
+    for (int i = 0; i < this.count; i++) {
+      this.endGroups[i] = -Double.doubleToLongBits(this.scores[i]);
+      this.endPositions[i] = i;
+      this.used[i] = false;
+    }
+    HashBlock_RunBuffer.sort(this.endGroups, this.endPositions, 0, this.count - 1);
+    List<int[]> chains = new ArrayList<int[]>();
+    double minScore = 0;
+    for (int i = 0; i < this.count && chains.size() < maxAlignedChains; i++) {
+      int end = (int)this.endPositions[i];
+      if (this.used[end])
+        continue;
+      if (this.scores[end] < minScore)
+        break;
+      int[] chain = this.getChain(end);
+      boolean sharesAnchor = false;
+      for (int index: chain) {
+        if (this.used[index])
+          sharesAnchor = true;
+        this.used[index] = true;
+      }
+      if (sharesAnchor)
+        continue;
+      if (chains.size() < 1)
+        minScore = this.scores[end] * minRunnerUpScoreFraction;
+      chains.add(chain);
+    }
+    return chains;
+  }
+
+  // returns the sorted indices of the anchors in the chain ending at <end>, in order
+  private int[] getChain(int end) {
+    int length = 0;
+    for (int i = end; i >= 0; i = this.predecessors[i]) {
+      length++;
+    }
+    int[] chain = new int[length];
+    int index = length - 1;
+    for (int i = end; i >= 0; i = this.predecessors[i]) {
+      chain[index] = i;
+      index--;
+    }
+    return chain;
+  }
+
+  // Converts the chain of anchors into a list of AlignedBlocks, aligning the basepairs between and around the anchors
+  private List<AlignedBlock> alignAnchors(int[] chain, Sequence query, Sequence reference) {
+    List<AlignedBlock> blocks = new ArrayList<AlignedBlock>();
+    int queryEnd = -1;
+    int referenceEnd = -1;
+    for (int i = 0; i < chain.length; i++) {
+      int anchor = (int)this.positions[chain[i]];
+      int queryStart = this.queryStarts[anchor];
+      int referenceStart = this.referenceStarts[anchor];
+      int length = this.lengths[anchor];
+      if (queryEnd < 0) {
+        this.alignStart(blocks, query, reference, queryStart, referenceStart);
+      } else {
+        // skip any part of this anchor that overlaps the previous anchor
+        int overlap = Math.max(queryEnd - queryStart, referenceEnd - referenceStart);
+        if (overlap > 0) {
+          queryStart += overlap;
+          referenceStart += overlap;
+          length -= overlap;
+        }
+        if (length < 1)
+          continue;
+        this.alignGap(blocks, query, reference, queryEnd, queryStart, referenceEnd, referenceStart);
+      }
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryStart, referenceStart, length, length));
+      queryEnd = queryStart + length;
+      referenceEnd = referenceStart + length;
+    }
+    this.alignEnd(blocks, query, reference, queryEnd, referenceEnd);
+    return blocks;
+  }
+
+  // aligns the query before the first anchor, which starts at (queryStart, referenceStart)
+  private void alignStart(List<AlignedBlock> blocks, Sequence query, Sequence reference, int queryStart, int referenceStart) {
+    if (queryStart < 1 || referenceStart < 1)
+      return;
+    int slack = (int)(queryStart * this.parameters.MaxErrorRate) + 1;
+    int sectionStart = Math.max(0, referenceStart - queryStart - slack);
+    SequenceAlignment alignment = this.alignSection(query, 0, queryStart, reference, sectionStart, referenceStart);
+    if (alignment == null) {
+      // extend the first anchor without indels; any remaining basepairs are left unaligned
+      int extension = Math.min(queryStart, referenceStart);
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryStart - extension, referenceStart - extension, extension, extension));
+      return;
+    }
+    // skipping the start of the reference section is free, but skipping its end is a deletion
+    int alignedReferenceEnd = this.addBlocks(blocks, alignment);
+    if (alignedReferenceEnd < referenceStart)
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryStart, alignedReferenceEnd, 0, referenceStart - alignedReferenceEnd));
+  }
+
+  // aligns the query after the last anchor, which ends at (queryEnd, referenceEnd)
+  private void alignEnd(List<AlignedBlock> blocks, Sequence query, Sequence reference, int queryEnd, int referenceEnd) {
+    int remainingQueryLength = query.getLength() - queryEnd;
+    if (remainingQueryLength < 1 || referenceEnd >= reference.getLength())
+      return;
+    int slack = (int)(remainingQueryLength * this.parameters.MaxErrorRate) + 1;
+    int sectionEnd = Math.min(reference.getLength(), referenceEnd + remainingQueryLength + slack);
+    SequenceAlignment alignment = this.alignSection(query, queryEnd, query.getLength(), reference, referenceEnd, sectionEnd);
+    if (alignment == null) {
+      int extension = Math.min(remainingQueryLength, reference.getLength() - referenceEnd);
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryEnd, referenceEnd, extension, extension));
+      return;
+    }
+    // skipping the end of the reference section is free, but skipping its start is a deletion
+    int alignedReferenceStart = alignment.getSections().get(0).getStartIndexB();
+    if (alignedReferenceStart > referenceEnd)
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryEnd, referenceEnd, 0, alignedReferenceStart - referenceEnd));
+    this.addBlocks(blocks, alignment);
+  }
+
+  // aligns the query and reference between two consecutive anchors
+  private void alignGap(List<AlignedBlock> blocks, Sequence query, Sequence reference, int queryStart, int queryEnd, int referenceStart, int referenceEnd) {
+    int queryLength = queryEnd - queryStart;
+    int referenceLength = referenceEnd - referenceStart;
+    if (queryLength == referenceLength) {
+      if (queryLength > 0)
+        this.addBlock(blocks, new AlignedBlock(query, reference, queryStart, referenceStart, queryLength, queryLength));
+      return;
+    }
+    SequenceAlignment alignment = this.alignSection(query, queryStart, queryEnd, reference, referenceStart, referenceEnd);
+    if (alignment == null) {
+      // align without indels as much as we can, and then add one indel
+      int straightLength = Math.min(queryLength, referenceLength);
+      if (straightLength > 0)
+        this.addBlock(blocks, new AlignedBlock(query, reference, queryStart, referenceStart, straightLength, straightLength));
+      if (queryLength > referenceLength)
+        this.addBlock(blocks, new AlignedBlock(query, reference, queryStart + straightLength, referenceStart + straightLength, queryLength - straightLength, 0));
+      else
+        this.addBlock(blocks, new AlignedBlock(query, reference, queryStart + straightLength, referenceStart + straightLength, 0, referenceLength - straightLength));
+      return;
+    }
+    // the BandedAligner may skip the start or end of the reference section, which here are deletions
+    int alignedReferenceStart = alignment.getSections().get(0).getStartIndexB();
+    if (alignedReferenceStart > referenceStart)
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryStart, referenceStart, 0, alignedReferenceStart - referenceStart));
+    int alignedReferenceEnd = this.addBlocks(blocks, alignment);
+    if (alignedReferenceEnd < referenceEnd)
+      this.addBlock(blocks, new AlignedBlock(query, reference, queryEnd, alignedReferenceEnd, 0, referenceEnd - alignedReferenceEnd));
+  }
+
+  // Aligns query[queryStart:queryEnd] somewhere within reference[referenceStart:referenceEnd] using the BandedAligner with a band covering the whole section
+  // Returns null if either section is empty or the band is too large
+  private SequenceAlignment alignSection(Sequence query, int queryStart, int queryEnd, Sequence reference, int referenceStart, int referenceEnd) {
+    int queryLength = queryEnd - queryStart;
+    int referenceLength = referenceEnd - referenceStart;
+    if (queryLength < 1 || referenceLength < 1)
+      return null;
+    long bandWidth = queryLength + referenceLength + 1;
+    if (bandWidth * (queryLength + 1) > maxGapCells)
+      return null;
+    AlignmentAnalysis analysis = new AlignmentAnalysis();
+    analysis.confidentAboutBestOffset = true;
+    analysis.predictedBestOffset = referenceStart - queryStart;
+    analysis.maxInsertionExtensionPenalty = (queryLength + 1) * this.parameters.InsertionExtension_Penalty;
+    analysis.maxDeletionExtensionPenalty = (referenceLength + 1) * this.parameters.DeletionExtension_Penalty;
+    // No alignment of this section needs more penalty than inserting all of the query and deleting all of the reference
+    AlignmentParameters sectionParameters = this.parameters.clone();
+    double maxPenalty = this.parameters.InsertionStart_Penalty + this.parameters.InsertionExtension_Penalty * queryLength + this.parameters.DeletionStart_Penalty + this.parameters.DeletionExtension_Penalty * referenceLength;
+    sectionParameters.MaxErrorRate = Math.nextUp(maxPenalty / queryLength);
+    SequenceSection querySection = new SequenceSection(query, queryStart, queryEnd);
+    SequenceSection referenceSection = new SequenceSection(reference, referenceStart, referenceEnd);
+    SequenceAlignment alignment = this.gapAligner.align(querySection, referenceSection, sectionParameters, analysis);
+    if (alignment == null || alignment.getSections().size() < 1)
+      return null;
+    return alignment;
+  }
+
+  // adds the blocks from <alignment> and returns the reference index where they end
+  private int addBlocks(List<AlignedBlock> blocks, SequenceAlignment alignment) {
+    int referenceEnd = -1;
+    for (AlignedBlock block: alignment.getSections()) {
+      this.addBlock(blocks, block);
+      referenceEnd = block.getStartIndexB() + block.getLengthB();
+    }
+    return referenceEnd;
+  }
+
+  // adds <block>, merging it into the previous block if both are contiguous basepair matches
+  private void addBlock(List<AlignedBlock> blocks, AlignedBlock block) {
+    if (block.getLengthA() < 1 && block.getLengthB() < 1)
+      return;
+    if (blocks.size() > 0 && block.getLengthA() == block.getLengthB()) {
+      AlignedBlock previous = blocks.get(blocks.size() - 1);
+      if (previous.getLengthA() == previous.getLengthB() && previous.getStartIndexA() + previous.getLengthA() == block.getStartIndexA() && previous.getStartIndexB() + previous.getLengthB() == block.getStartIndexB()) {
+        int length = previous.getLengthA() + block.getLengthA();
+        blocks.set(blocks.size() - 1, new AlignedBlock(previous.getSequenceA(), previous.getSequenceB(), previous.getStartIndexA(), previous.getStartIndexB(), length, length));
+        return;
+      }
+    }
+    blocks.add(block);
+  }
+
+  private Readable_HashBlock_Database database;
+  private SequenceDatabase sequenceDatabase;
+  private AlignmentParameters parameters;
+  private Logger logger;
+  private BandedAligner gapAligner;
+
+  // anchors, in the order they were found
+  private Sequence[] anchorReferences = new Sequence[16];
+  private boolean[] anchorReversed = new boolean[16];
+  private int[] queryStarts = new int[16];
+  private int[] referenceStarts = new int[16];
+  private int[] lengths = new int[16];
+  // sort keys: (contig identity hash << 1 | reversed) and (reference start << 32 | anchor index)
+  private long[] groups = new long[16];
+  private long[] positions = new long[16];
+  // the best chain score ending at each sorted anchor, and the sorted index of the previous anchor in that chain
+  private double[] scores = new double[16];
+  private int[] predecessors = new int[16];
+  // sort keys for choosing chains: (-score bits) and (sorted anchor index), and whether each sorted anchor is part of a chosen or skipped chain
+  private long[] endGroups = new long[16];
+  private long[] endPositions = new long[16];
+  private boolean[] used = new boolean[16];
+  private int count;
+}
@@ -20,6 +20,9 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServer;
@@ -71,10 +74,24 @@ public class Mapper {
     double ambiguityPenalty = -1;
     int maxNumMatches = Integer.MAX_VALUE;
     double max_penaltySpan = -1;
+    boolean useBandedAligner = false;
+    boolean useMateRescue = false;
 
     int numThreadsRequested = 0;
+    long memoryBudget = -1;
+    boolean spillIndexToDisk = false;
+    boolean exactIndexCapacity = false;
+    boolean packReference = false;
+    boolean perfectHashIndex = false;
+    int parallelCandidatesMinCount = -1;
+    long parallelCandidatesMinMillis = -1;
+    long queryMillisBudget = -1;
+    MetricsWriter metricsWriter = null;
+    SlowQuerySampler slowQuerySampler = null;
+    String outSlowQueriesPath = null;
     double queryEndFraction = 0.1;
     int splitQueriesPastSize = -1;
+    int longReadMinLength = -1;
 
     boolean hasPairedQueriesWithoutSpecifyingSpacing = false;
     boolean requestedAlignment = false; // whether the user requested doing an alignment (including implicitly requesting it)
@@ -133,11 +150,53 @@ public class Mapper {
         queries.add(queryBuilder);
         continue;
       }
+      if ("--replay-queries".equals(arg)) {
+        String replayPath = args[i + 1];
+        i++;
+        double expectedDistanceBetweenPairedSequences = defaultExpectedDistanceBetweenPairedSequences;
+        double spacingDeviationPerUnitPenalty = defaultSpacingDeviationPerUnitPenalty;
+        if (i + 1 < args.length && "--spacing".equals(args[i + 1])) {
+          expectedDistanceBetweenPairedSequences = Double.parseDouble(args[i + 2]);
+          spacingDeviationPerUnitPenalty = Double.parseDouble(args[i + 3]);
+          i += 3;
+        }
+        if (new File(replayPath).length() > 0)
+          queries.add(new SimpleQueryProvider(DataLoader.LoadFrom(replayPath, true)));
+        String leftsPath = SlowQuerySampler.getPairedPath(replayPath, 1);
+        String rightsPath = SlowQuerySampler.getPairedPath(replayPath, 2);
+        if (new File(leftsPath).exists() && new File(rightsPath).exists()) {
+          SequenceProvider lefts = DataLoader.LoadFrom(leftsPath, true);
+          SequenceProvider rights = DataLoader.LoadFrom(rightsPath, true);
+          queries.add(new PairedEndQueryProvider(lefts, rights, expectedDistanceBetweenPairedSequences, spacingDeviationPerUnitPenalty));
+        }
+        // We're replaying these queries to see what happens while aligning them
+        alignmentVerbosity = Math.max(alignmentVerbosity, Integer.MAX_VALUE);
+        if (numThreadsRequested < 1)
+          numThreadsRequested = 1;
+        allowNoOutput = true;
+        continue;
+      }
       if ("--cache-dir".equals(arg)) {
         cacheDir = new File(args[i + 1]);
         i++;
         continue;
       }
+      if ("--spill-index-to-disk".equals(arg)) {
+        spillIndexToDisk = true;
+        continue;
+      }
+      if ("--exact-index-capacity".equals(arg)) {
+        exactIndexCapacity = true;
+        continue;
+      }
+      if ("--pack-reference".equals(arg)) {
+        packReference = true;
+        continue;
+      }
+      if ("--perfect-hash-index".equals(arg)) {
+        perfectHashIndex = true;
+        continue;
+      }
       if ("--split-queries-past-size".equals(arg)) {
         if (queries.size() > 0) {
           throw new IllegalArgumentException("Sorry, " + arg + " currently is only supported before --queries");
@@ -146,6 +205,14 @@ public class Mapper {
         i++;
         continue;
       }
+      if ("--long-read-chaining".equals(arg)) {
+        longReadMinLength = Integer.parseInt(args[i + 1]);
+        if (longReadMinLength < 1) {
+          throw new IllegalArgumentException("" + arg + " requires a positive length, not " + longReadMinLength);
+        }
+        i++;
+        continue;
+      }
       if ("--out-vcf".equals(arg)) {
         outVcfPath = args[i + 1];
         i += 2;
@@ -339,6 +406,64 @@ public class Mapper {
         i++;
         continue;
       }
+      if ("--banded-alignment".equals(arg)) {
+        useBandedAligner = true;
+        continue;
+      }
+      if ("--mate-rescue".equals(arg)) {
+        useMateRescue = true;
+        continue;
+      }
+      if ("--parallel-candidates".equals(arg)) {
+        parallelCandidatesMinCount = Integer.parseInt(args[i + 1]);
+        parallelCandidatesMinMillis = Long.parseLong(args[i + 2]);
+        if (parallelCandidatesMinCount < 2) {
+          usageError("--parallel-candidates <count> must be >= 2");
+        }
+        if (parallelCandidatesMinMillis < 0) {
+          usageError("--parallel-candidates <millis> must be >= 0");
+        }
+        i += 2;
+        continue;
+      }
+      if ("--defer-queries-slower-than".equals(arg)) {
+        queryMillisBudget = Long.parseLong(args[i + 1]);
+        if (queryMillisBudget < 0) {
+          usageError("--defer-queries-slower-than must be >= 0");
+        }
+        i++;
+        continue;
+      }
+      if ("--metrics-out".equals(arg)) {
+        String metricsPath = args[i + 1];
+        i++;
+        long metricsIntervalMillis = -1;
+        if (i + 1 < args.length && "--metrics-interval".equals(args[i + 1])) {
+          metricsIntervalMillis = (long)(Double.parseDouble(args[i + 2]) * 1000);
+          if (metricsIntervalMillis <= 0) {
+            usageError("--metrics-interval must be > 0");
+          }
+          i += 2;
+        }
+        metricsWriter = new MetricsWriter(metricsPath, metricsIntervalMillis);
+        continue;
+      }
+      if ("--out-slow-queries".equals(arg)) {
+        outSlowQueriesPath = args[i + 1];
+        i++;
+        int numSlowest = 10;
+        int numSampled = 10;
+        if (i + 1 < args.length && "--slow-query-counts".equals(args[i + 1])) {
+          numSlowest = Integer.parseInt(args[i + 2]);
+          numSampled = Integer.parseInt(args[i + 3]);
+          if (numSlowest < 0 || numSampled < 0) {
+            usageError("--slow-query-counts must be >= 0");
+          }
+          i += 3;
+        }
+        slowQuerySampler = new SlowQuerySampler(numSlowest, numSampled);
+        continue;
+      }
       if ("--num-threads".equals(arg)) {
         String value = args[i + 1];
         numThreadsRequested = Integer.parseInt(value);
@@ -348,6 +473,14 @@ public class Mapper {
         i++;
         continue;
       }
+      if ("--memory-budget".equals(arg)) {
+        memoryBudget = parseMemorySize(args[i + 1]);
+        if (memoryBudget < 1) {
+          usageError("--memory-budget must be positive");
+        }
+        i++;
+        continue;
+      }
       if ("--distinguish-query-ends".equals(arg)) {
         String value = args[i + 1];
         queryEndFraction = Double.parseDouble(value);
@@ -395,7 +528,13 @@ public class Mapper {
       usageError("--reference is required");
     }
     if (queries.size() < 1) {
-      usageError("--queries or --paired-queries is required");
+      usageError("--queries, --paired-queries or --replay-queries is required");
+    }
+    if (spillIndexToDisk && cacheDir == null) {
+      usageError("--spill-index-to-disk requires --cache-dir");
+    }
+    if (perfectHashIndex && !spillIndexToDisk) {
+      usageError("--perfect-hash-index requires --spill-index-to-disk");
     }
     if (outVcfPath == null && outSamPath == null && outRefsMapCountPath == null && outUnalignedPath == null && outMutationsPath == null && !allowNoOutput) {
       usageError("No output specified. Try --out-vcf <output path>, or if you really don't want to generate an output file, --no-output");
@@ -451,6 +590,22 @@ public class Mapper {
     parameters.UnalignedPenalty = ambiguityPenalty;
     parameters.MaxNumMatches = maxNumMatches;
     parameters.Max_PenaltySpan = max_penaltySpan;
+    parameters.UseBandedAligner = useBandedAligner;
+    parameters.UseMateRescue = useMateRescue;
+    parameters.LongReadMinLength = longReadMinLength;
+
+    PerformanceOptions performanceOptions = new PerformanceOptions();
+    performanceOptions.MemoryBudget = memoryBudget;
+    performanceOptions.SpillIndexToDisk = spillIndexToDisk;
+    performanceOptions.ExactIndexCapacity = exactIndexCapacity;
+    performanceOptions.PerfectHashIndex = perfectHashIndex;
+    performanceOptions.PackReference = packReference;
+    performanceOptions.ParallelCandidatesMinCount = parallelCandidatesMinCount;
+    performanceOptions.ParallelCandidatesMinMillis = parallelCandidatesMinMillis;
+    performanceOptions.QueryMillisBudget = queryMillisBudget;
+    performanceOptions.Metrics = metricsWriter;
+    performanceOptions.SlowQueries = slowQuerySampler;
+    performanceOptions.SlowQueriesPath = outSlowQueriesPath;
 
     outputWriter.write("" + referencePaths.size() + " reference files:");
     for (String referencePath: referencePaths) {
@@ -460,7 +615,7 @@ public class Mapper {
     for (QueryProvider queryBuilder : queries) {
       outputWriter.write(queryBuilder.toString());
     }
-    boolean successful = run(referencePaths, queries, cacheDir, allowDuplicateContigNames, outVcfPath, vcfIncludeNonMutations, vcfShowSupportRead, outSamPath, outRefsMapCountPath, outMutationsPath, mutationFilterParameters, vcfFilterParameters, outUnalignedPath, parameters, numThreadsRequested, queryEndFraction, autoVerbose, guessReferenceAncestors, outAncestorPath, enableGapmers, verifyConsistentDatabase, startMillis);
+    boolean successful = run(referencePaths, queries, cacheDir, allowDuplicateContigNames, outVcfPath, vcfIncludeNonMutations, vcfShowSupportRead, outSamPath, outRefsMapCountPath, outMutationsPath, mutationFilterParameters, vcfFilterParameters, outUnalignedPath, parameters, numThreadsRequested, performanceOptions, queryEndFraction, autoVerbose, guessReferenceAncestors, outAncestorPath, enableGapmers, verifyConsistentDatabase, startMillis);
     if (successful)
       System.exit(0);
     else
@@ -500,6 +655,9 @@ public class Mapper {
 "    --split-queries-past-size <size> Any queries longer than <size> will be split into smaller queries.\n" +
 "      THIS OPTION IS A TEMPORARY EXPERIMENT FOR LONG READS TO DETECT REARRANGEMENTS AND IMPROVE PERFORMANCE.\n" +
 "\n" +
+"    --long-read-chaining <minLength> Any unpaired queries at least <minLength> long will be aligned without splitting them: Mapper chains the positions where hashblocks along the query match the reference, and only aligns individual basepairs in the gaps between them.\n" +
+"      This is much faster for long reads and reports one alignment per query.\n" +
+"\n" +
 "    --allow-duplicate-contig-names if multiple contigs have the same name, continue instead of throwing an error.\n" +
 "      This can be confusing but shouldn't cause any incorrect results.\n" +
 "\n" +
@@ -602,6 +760,12 @@ public class Mapper {
 "    --max-num-matches <count> (default unlimited) the maximum number of positions on the reference that any query may match.\n" +
 "      Any query that appears to match more than this many positions on the reference will be reported as unmatched.\n" +
 "\n" +
+"    --banded-alignment when the approximate position of an alignment is already known, search for indels there using banded dynamic programming rather than a best-first search.\n" +
+"      This can be faster for queries containing indels and never finds alignments having more penalty.\n" +
+"\n" +
+"    --mate-rescue when only one end of a paired query has good candidate positions, look for the other end near each of them using banded dynamic programming.\n" +
+"      The other end is only searched for where the spacing penalty would be acceptable, which is faster than searching the whole reference and can pair more queries.\n" +
+"\n" +
 "  OTHER:\n" +
 "\n" +
 "    Memory usage: to control the amount of memory that Java makes available to Mapper, give the appropriate arguments to Java:\n" +
@@ -613,12 +777,45 @@ public class Mapper {
 "\n" +
 "        java -Xms200m -Xmx4g -jar x-mapper.jar <other Mapper arguments>\n" +
 "\n" +
+"    --memory-budget <amount> (default: the -Xmx amount) plan the indexing of the reference to use no more than <amount> of memory, for example 3g or 500m.\n" +
+"      Mapper chooses how many hashblock lengths to index at once and how many threads to index with, and reports its projected peak memory usage before starting.\n" +
+"\n" +
 "    --num-threads <count> number of threads to use at once for processing. Higher values will run more quickly on a system that has that many CPUs available.\n" +
 "\n" +
+"    --defer-queries-slower-than <millis> if aligning a query takes more than <millis> milliseconds, set it aside and align it again with no time limit after the other queries.\n" +
+"      This prevents a few slow queries from delaying the other queries that were grouped with them.\n" +
+"\n" +
+"    --parallel-candidates <count> <millis> when a query has at least <count> candidate positions having the same number of mismatches, or has already taken <millis> milliseconds, check its candidate positions using several threads.\n" +
+"      This can reduce the time spent waiting for the slowest queries at the end of a run. Has no effect unless --num-threads is more than 1.\n" +
+"      The extra threads only run while fewer than --num-threads workers are busy, so the total number of aligning threads stays within --num-threads.\n" +
+"\n" +
+"    --metrics-out <file> [--metrics-interval <seconds>] save performance metrics (timings, cache usage, reference index sizes, garbage collection) into <file> at the end of the run.\n" +
+"      If <file> ends with .prom, uses the Prometheus text format, and otherwise json.\n" +
+"      If --metrics-interval is given, also rewrites <file> every <seconds> seconds during the run.\n" +
+"      Also measures how long each query spends in each phase of alignment, and shows query latencies in the performance summary.\n" +
+"\n" +
+"    --out-slow-queries <file> [--slow-query-counts <slowest> <sampled>] (default 10 10) save the <slowest> slowest queries, plus <sampled> queries chosen at random moments, into <file> in .fastq format.\n" +
+"      The header of each read says how long it took and how many candidate positions were checked. Paired queries are saved into <file>_1 and <file>_2 (before the extension).\n" +
+"\n" +
+"    --replay-queries <file> [--spacing <expected> <distancePerPenalty>] align the queries saved by --out-slow-queries <file> again using one thread, with --verbose-alignment.\n" +
+"      Give the same --reference and alignment parameters as the original run.\n" +
+"\n" +
 "    --cache-dir <dir> save and load analyses from this directory to save time.\n" +
 "      Currently what we save here is most of our analyses of the reference genomes (information relating to --infer-ancestors is not currently saved).\n" +
 "      You may specify the same <dir> for multiple executions; data is actually stored in an appropriate subdirectory.\n" +
 "\n" +
+"    --spill-index-to-disk while indexing the reference, write hashblocks into sorted files in the --cache-dir instead of holding them in memory, and then build the index one hashblock length at a time.\n" +
+"      This uses less memory while indexing large references, and requires --cache-dir.\n" +
+"\n" +
+"    --perfect-hash-index when building the index from the files written by --spill-index-to-disk, give each distinct hashblock its own slot using a minimal perfect hash.\n" +
+"      The index then uses less memory and returns fewer unrelated positions for each lookup. Requires --spill-index-to-disk.\n" +
+"\n" +
+"    --exact-index-capacity before indexing the reference, make an extra pass over it to count the distinct hashblocks of each length, and size each part of the index to fit.\n" +
+"      Indexing takes longer, but the index wastes less memory and reports fewer positions as having too many matches.\n" +
+"\n" +
+"    --pack-reference store both strands of each contig of the reference using 2 bits per basepair, plus a list of its runs of ambiguous basepairs.\n" +
+"      The reference then uses less memory, and aligning can read several reference basepairs at once.\n" +
+"\n" +
 "    --help output this help message\n" +
 "      If no other arguments are given, exit instead of attempting an alignment\n" +
 "\n" +
@@ -635,8 +832,28 @@ public class Mapper {
     System.exit(1);
   }
 
+  // parses an amount of memory such as "4g", "500m", "800k" or "1000000" into a number of bytes
+  public static long parseMemorySize(String text) {
+    String lower = text.trim().toLowerCase();
+    long multiplier = 1;
+    if (lower.endsWith("k")) {
+      multiplier = 1024L;
+    } else if (lower.endsWith("m")) {
+      multiplier = 1024L * 1024L;
+    } else if (lower.endsWith("g")) {
+      multiplier = 1024L * 1024L * 1024L;
+    }
+    if (multiplier != 1)
+      lower = lower.substring(0, lower.length() - 1);
+    try {
+      return (long)(Double.parseDouble(lower) * multiplier);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Could not parse memory size: '" + text + "'. Try for example 4g or 500m", e);
+    }
+  }
+
   // performs alignment and outputs results
-  public static boolean run(List<String> referencePaths, List<QueryProvider> queriesList, File cacheDir, boolean allowDuplicateContigNames, String outVcfPath, boolean vcfIncludeNonMutations, boolean vcfShowSupportRead, String outSamPath, String outRefsMapCountPath, String outMutationsPath, MutationDetectionParameters mutationFilterParameters, MutationDetectionParameters vcfFilterParameters, String outUnalignedPath, AlignmentParameters parameters, int numThreadsRequested, double queryEndFraction, boolean autoVerbose, boolean guessReferenceAncestors, String outAncestorPath, boolean enableGapmers, boolean verifyConsistentDatabase, long startMillis) throws IllegalArgumentException, FileNotFoundException, IOException, InterruptedException {
+  public static boolean run(List<String> referencePaths, List<QueryProvider> queriesList, File cacheDir, boolean allowDuplicateContigNames, String outVcfPath, boolean vcfIncludeNonMutations, boolean vcfShowSupportRead, String outSamPath, String outRefsMapCountPath, String outMutationsPath, MutationDetectionParameters mutationFilterParameters, MutationDetectionParameters vcfFilterParameters, String outUnalignedPath, AlignmentParameters parameters, int numThreadsRequested, PerformanceOptions performanceOptions, double queryEndFraction, boolean autoVerbose, boolean guessReferenceAncestors, String outAncestorPath, boolean enableGapmers, boolean verifyConsistentDatabase, long startMillis) throws IllegalArgumentException, FileNotFoundException, IOException, InterruptedException {
     int numThreads = Math.max(1, numThreadsRequested);
     DirCache dirCache;
     if (cacheDir != null)
@@ -655,7 +872,16 @@ public class Mapper {
     outputWriter.write("Loading reference");
     boolean keepQualityData = (outUnalignedPath != null);
     SequenceProvider reference = DataLoader.LoadFrom(referencePaths, false);
-    List<Sequence> sortedReference = sortAndComplementReference(reference);
+    List<Sequence> sortedReference = sortAndComplementReference(reference, performanceOptions.PackReference);
+    if (performanceOptions.PackReference) {
+      long packedBytes = 0;
+      for (Sequence sequence: sortedReference) {
+        PackedSequence packed = PackedReferenceSequence.getPacked(sequence);
+        if (packed != null)
+          packedBytes += packed.getNumBytes();
+      }
+      outputWriter.write("Packed reference into " + (packedBytes / 1024 / 1024) + "MB");
+    }
     ReferenceProvider referenceProvider;
     SequenceDatabase originalReference = new SequenceDatabase(sortedReference);
     if (!allowDuplicateContigNames) {
@@ -673,18 +899,34 @@ public class Mapper {
     StatusLogger statusLogger = new StatusLogger(logger, startMillis);
 
     if (guessReferenceAncestors) {
-      HashBlock_Database originalReference_database = new HashBlock_Database(originalReference, minDuplicationLength, maxDuplicationLength, duplicationDetector_maxNumShortMatches, enableGapmers, dirCache, statusLogger);
+      HashBlock_Database originalReference_database = new HashBlock_Database(originalReference, minDuplicationLength, maxDuplicationLength, duplicationDetector_maxNumShortMatches, enableGapmers, dirCache, statusLogger, false, performanceOptions.MemoryBudget);
       if (verifyConsistentDatabase)
         originalReference_database.setVerifyConsistency();
+      if (performanceOptions.SpillIndexToDisk)
+        originalReference_database.setSpillToDisk();
+      if (performanceOptions.PerfectHashIndex)
+        originalReference_database.setPerfectHashing();
+      if (performanceOptions.ExactIndexCapacity)
+        originalReference_database.setCountKeysFirst();
+      originalReference_database.setNumThreads(numThreads);
       DuplicationDetector ancestryDuplicationDetector = new DuplicationDetector(originalReference_database, minDuplicationLength, maxDuplicationLength, 3, 1, dirCache, statusLogger);
       double dissimilarityThreshold = parameters.MaxErrorRate / parameters.MutationPenalty;
-      referenceProvider = new AncestryDetector(ancestryDuplicationDetector, sortedReference, dissimilarityThreshold, statusLogger).setOutputPath(outAncestorPath).setResultingDatabaseEnableGapmers(enableGapmers).setResultingDatabaseVerifyConsistency(verifyConsistentDatabase);
+      referenceProvider = new AncestryDetector(ancestryDuplicationDetector, sortedReference, dissimilarityThreshold, statusLogger).setOutputPath(outAncestorPath).setResultingDatabaseEnableGapmers(enableGapmers).setResultingDatabaseVerifyConsistency(verifyConsistentDatabase).setResultingDatabaseMemoryBudget(performanceOptions.MemoryBudget).setResultingDatabaseNumThreads(numThreads);
 
     } else {
-      HashBlock_Database referenceDatabase = new HashBlock_Database(originalReference, -1, maxDuplicationLength, -1, enableGapmers, dirCache, statusLogger);
+      HashBlock_Database referenceDatabase = new HashBlock_Database(originalReference, -1, maxDuplicationLength, -1, enableGapmers, dirCache, statusLogger, false, performanceOptions.MemoryBudget);
       if (verifyConsistentDatabase)
         referenceDatabase.setVerifyConsistency();
+      if (performanceOptions.SpillIndexToDisk)
+        referenceDatabase.setSpillToDisk();
+      if (performanceOptions.PerfectHashIndex)
+        referenceDatabase.setPerfectHashing();
+      if (performanceOptions.ExactIndexCapacity)
+        referenceDatabase.setCountKeysFirst();
+      referenceDatabase.setNumThreads(numThreads);
       referenceProvider = referenceDatabase;
+      if (performanceOptions.Metrics != null)
+        performanceOptions.Metrics.setReferenceDatabase(referenceDatabase);
     }
 
     // We store some approximate duplication locations to help us determine which parts of the reference might be unique
@@ -731,7 +973,23 @@ public class Mapper {
     }
     listeners.add(matchCounter);
     AlignmentCache alignmentCache = new AlignmentCache();
-    AlignmentStatistics statistics = compare(referenceProvider, queries, approximateDuplicationDetector, startMillis, parameters, numThreads, queryEndFraction, alignmentCache, listeners, autoVerbose);
+    // We only time the phases of each query if the timings will be saved, because measuring them takes time too
+    QueryTimer queryTimer = null;
+    if (performanceOptions.Metrics != null) {
+      queryTimer = new QueryTimer();
+      performanceOptions.Metrics.setAlignmentCache(alignmentCache);
+      performanceOptions.Metrics.setQueryTimer(queryTimer);
+    }
+    AlignmentStatistics statistics = compare(referenceProvider, queries, approximateDuplicationDetector, startMillis, parameters, numThreads, performanceOptions, queryTimer, queryEndFraction, alignmentCache, listeners, autoVerbose);
+    if (performanceOptions.Metrics != null) {
+      if (statistics != null)
+        performanceOptions.Metrics.setReferenceDatabase(referenceProvider.get_HashBlock_database(referenceLogger));
+      performanceOptions.Metrics.write(statistics, matchCounter.getNumQueries(), startMillis, statistics != null);
+    }
+    if (performanceOptions.SlowQueries != null && statistics != null) {
+      performanceOptions.SlowQueries.write(performanceOptions.SlowQueriesPath);
+      outputWriter.write("Saved slow queries to " + performanceOptions.SlowQueriesPath + "; to investigate them, try --replay-queries " + performanceOptions.SlowQueriesPath);
+    }
 
     long numQueries = matchCounter.getNumQueries();
     long numAlignedQueries = matchCounter.getNumAlignedQueries();
@@ -857,8 +1115,10 @@ public class Mapper {
       outputWriter.write(" Time reading queries          : " + statistics.millisReadingQueries + "ms");
       outputWriter.write(" Time launching workers        : " + statistics.millisLaunchingWorkers + "ms");
       outputWriter.write(" Time waiting for workers      : " + statistics.millisWaitingForWorkers + "ms");
+      if (queryTimer != null)
+        writeQueryLatencies(queryTimer);
       if (statistics.containsLongRead) {
-        outputWriter.write("\n Not optimized for long reads. You might be interested in --split-queries-past-size.");
+        outputWriter.write("\n Not optimized for long reads. You might be interested in --long-read-chaining or --split-queries-past-size.");
       }
       if (cacheDir == null) {
         if (guessReferenceAncestors)
@@ -886,6 +1146,39 @@ public class Mapper {
     return successful;
   }
 
+  // Shows how long queries took and which phases of alignment that time went to
+  private static void writeQueryLatencies(QueryTimer queryTimer) {
+    LatencyHistogram total = queryTimer.getTotalHistogram();
+    if (total.getCount() < 1)
+      return;
+    outputWriter.write(" Query latency                 : p50 " + formatNanos(total.getNanosAtPercentile(50)) + ", p90 " + formatNanos(total.getNanosAtPercentile(90)) + ", p99 " + formatNanos(total.getNanosAtPercentile(99)) + ", max " + formatNanos(total.getMaxNanos()));
+    outputWriter.write(" Query time by phase (share of total, p99):");
+    List<String> phaseNames = queryTimer.getPhaseNames();
+    for (int i = 0; i < phaseNames.size(); i++) {
+      writePhaseLatency(phaseNames.get(i), queryTimer.getPhaseHistogram(i), total);
+    }
+    writePhaseLatency("other", queryTimer.getOtherHistogram(), total);
+    LatencyHistogram output = queryTimer.getOutputHistogram();
+    outputWriter.write("  output (per batch)           : " + formatNanos(output.getTotalNanos()) + " total, p99 " + formatNanos(output.getNanosAtPercentile(99)));
+  }
+
+  private static void writePhaseLatency(String name, LatencyHistogram histogram, LatencyHistogram total) {
+    if (histogram.getTotalNanos() <= 0)
+      return;
+    int percent = (int)((double)histogram.getTotalNanos() * 100.0 / (double)Math.max(1, total.getTotalNanos()));
+    String label = "  " + name;
+    while (label.length() < 31) {
+      label += " ";
+    }
+    outputWriter.write(label + ": " + percent + "%, p99 " + formatNanos(histogram.getNanosAtPercentile(99)));
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < 1000000)
+      return "" + (nanos / 1000) + "us";
+    return "" + (float)((double)nanos / 1000000.0) + "ms";
+  }
+
   public static void dumpHeap() throws IOException {
     String outputPath = "mapper.hprof";
     outputWriter.write("dumping heap to " + outputPath);
@@ -909,7 +1202,7 @@ public class Mapper {
     return true;
   }
 
-  public static AlignmentStatistics compare(ReferenceProvider referenceProvider, QueryProvider queries, DuplicationDetector approximateDuplicationDetector, long startMillis, AlignmentParameters parameters, int numThreads, double queryEndFraction, AlignmentCache alignmentCache, List<AlignmentListener> alignmentListeners, boolean autoVerbose) throws InterruptedException, IOException {
+  public static AlignmentStatistics compare(ReferenceProvider referenceProvider, QueryProvider queries, DuplicationDetector approximateDuplicationDetector, long startMillis, AlignmentParameters parameters, int numThreads, PerformanceOptions performanceOptions, QueryTimer queryTimer, double queryEndFraction, AlignmentCache alignmentCache, List<AlignmentListener> alignmentListeners, boolean autoVerbose) throws InterruptedException, IOException {
     long readingMillis = 0;
     long launchingMillis = 0;
     long waitingMillis = 0;
@@ -919,6 +1212,14 @@ public class Mapper {
     // Create some workers and assign some queries to each
     Set<AlignerWorker> activeWorkers = new HashSet<AlignerWorker>(numThreads);
     List<AlignerWorker> pendingWorkers = new ArrayList<AlignerWorker>();
+    // If requested, threads for aligning the candidate positions of slow queries
+    // They only run when fewer than numThreads workers are busy, see AlignerWorker.alignInParallel
+    ExecutorService candidateExecutor = null;
+    Semaphore threadPermits = null;
+    if (performanceOptions.ParallelCandidatesMinCount > 0 && numThreads > 1) {
+      candidateExecutor = Executors.newFixedThreadPool(numThreads - 1);
+      threadPermits = new Semaphore(numThreads);
+    }
 
     try {
       long numQueriesLoaded = 0;
@@ -927,6 +1228,9 @@ public class Mapper {
       int workerIndex = 0;
       boolean doneReadingQueries = false;
       List<List<QueryBuilder>> pendingQueries = new ArrayList<List<QueryBuilder>>();
+      // queries that took longer than performanceOptions.QueryMillisBudget and that we will align again after the other queries
+      List<QueryBuilder> deferredQueries = new ArrayList<QueryBuilder>();
+      boolean aligningDeferredQueries = false;
       long lastPrintTime = 0;
       long nextCountToPrint = 0;
       long slowestAlignmentMillis = -1;
@@ -934,19 +1238,30 @@ public class Mapper {
       QueryAlignments slowestAlignment = null;
       RandomMomentSelector randomMomentSelector = new RandomMomentSelector();
       Query queryAtRandomMoment = null;
-      long cpuMillisSpentOnUnalignedQueries = 0;
-      long cpuMillisSpentAligningMatches = 0;
-      long cpuMillisThroughOptimisticBestAlignments = 0;
-      int numCacheHits = 0;
-      int numCasesImmediatelyAcceptingFirstAlignment = 0;
-      long numIndels = 0;
+      long numQueriesCompleted = 0;
+      // statistics from the workers that have completed so far
+      AlignmentStatistics workerStatistics = new AlignmentStatistics();
       BlockingQueue<AlignerWorker> completedWorkers = new ArrayBlockingQueue<AlignerWorker>(numThreads);
       boolean everSaturatedWorkers = false;
       int targetNumPendingJobsPerWorker = 10;
       boolean warnedNotOptimizedForLongReads = false;
       int warnReadsLongerThanLength = 1600;
-      while (activeWorkers.size() > 0 || !doneReadingQueries || pendingQueries.size() > 0) {
+      while (activeWorkers.size() > 0 || !doneReadingQueries || pendingQueries.size() > 0 || deferredQueries.size() > 0) {
         boolean progressed = false;
+        // If we've given out all of the other queries, then we align the slow queries with no time limit, one per worker
+        if (doneReadingQueries && pendingQueries.size() < 1 && deferredQueries.size() > 0) {
+          if (!aligningDeferredQueries) {
+            outputWriter.write("Aligning " + deferredQueries.size() + " deferred slow queries");
+            aligningDeferredQueries = true;
+          }
+          for (QueryBuilder queryBuilder: deferredQueries) {
+            List<QueryBuilder> batch = new ArrayList<QueryBuilder>(1);
+            batch.add(queryBuilder);
+            pendingQueries.add(batch);
+          }
+          deferredQueries.clear();
+          progressed = true;
+        }
         if (activeWorkers.size() >= numThreads)
           everSaturatedWorkers = true;
         int targetNumPendingJobs = numThreads * targetNumPendingJobsPerWorker;
@@ -973,9 +1288,11 @@ public class Mapper {
             queryBuilder.setId(numQueriesLoaded);
             batch.add(queryBuilder);
             int queryLength = queryBuilder.getLength();
-            if (queryLength > warnReadsLongerThanLength) {
+            // queries aligned by a LongReadAligner don't need a warning
+            boolean chainingLongRead = parameters.LongReadMinLength > 0 && queryLength >= parameters.LongReadMinLength;
+            if (queryLength > warnReadsLongerThanLength && !chainingLongRead) {
               if (!warnedNotOptimizedForLongReads) {
-                outputWriter.write("\n  Warning: Found read of length " + queryLength + ", longer than " + warnReadsLongerThanLength + ". This version of Mapper is not optimized for long reads. You may be interested in --split-queries-past-size\n");
+                outputWriter.write("\n  Warning: Found read of length " + queryLength + ", longer than " + warnReadsLongerThanLength + ". This version of Mapper is not optimized for long reads. You may be interested in --long-read-chaining or --split-queries-past-size\n");
                 warnedNotOptimizedForLongReads = true;
               }
             }
@@ -1024,6 +1341,12 @@ public class Mapper {
               workerAlreadyRunning = true;
             } else {
               worker = new AlignerWorker(referenceProvider, parameters, approximateDuplicationDetector.getView(workerReferenceLogger), workerIndex, alignmentListeners, alignmentCache, completedWorkers);
+              if (candidateExecutor != null)
+                worker.enableParallelCandidates(candidateExecutor, threadPermits, performanceOptions.ParallelCandidatesMinCount, performanceOptions.ParallelCandidatesMinMillis);
+              if (performanceOptions.SlowQueries != null)
+                worker.enableSlowQuerySampling(performanceOptions.SlowQueries);
+              if (queryTimer != null)
+                worker.enableQueryTiming();
               workerAlreadyRunning = false;
             }
             long estimatedTotalNumQueries;
@@ -1032,6 +1355,10 @@ public class Mapper {
             else
               estimatedTotalNumQueries = numQueriesLoaded;
             activeWorkers.add(worker);
+            if (aligningDeferredQueries)
+              worker.setQueryMillisBudget(-1);
+            else
+              worker.setQueryMillisBudget(performanceOptions.QueryMillisBudget);
             worker.requestProcess(queriesToProcess, startMillis, estimatedTotalNumQueries, workerAlignmentLogger, workerReferenceLogger);
             numQueriesAssigned += queriesToProcess.size();
             workerIndex++;
@@ -1085,41 +1412,53 @@ public class Mapper {
             slowestQuery = worker.getSlowestQuery();
             slowestAlignment = worker.getSlowestAlignment();
           }
-          cpuMillisSpentOnUnalignedQueries += worker.getMillisSpentOnUnalignedQueries();
-          cpuMillisSpentAligningMatches += worker.getMillisSpentAligningMatches();
-          cpuMillisThroughOptimisticBestAlignments += worker.getMillisThroughOptimisticBestAlignments();
+          workerStatistics.cpuMillisSpentOnUnalignedQueries += worker.getMillisSpentOnUnalignedQueries();
+          workerStatistics.cpuMillisSpentAligningMatches += worker.getMillisSpentAligningMatches();
+          workerStatistics.cpuMillisThroughOptimisticBestAlignments += worker.getMillisThroughOptimisticBestAlignments();
 
           if (randomMomentSelector.select(System.currentTimeMillis())) {
             Query random = worker.getQueryAtRandomMoment();
             if (random != null)
               queryAtRandomMoment = random;
           }
-          numCacheHits += worker.getNumCacheHits();
-          numCasesImmediatelyAcceptingFirstAlignment += worker.getNumCasesImmediatelyAcceptingFirstAlignment();
-          numIndels += worker.getNumIndels();
+          workerStatistics.numCacheHits += worker.getNumCacheHits();
+          workerStatistics.numCasesImmediatelyAcceptingFirstAlignment += worker.getNumCasesImmediatelyAcceptingFirstAlignment();
+          workerStatistics.numIndels += worker.getNumIndels();
+          if (queryTimer != null)
+            queryTimer.add(worker.getQueryTimer());
+          if (performanceOptions.SlowQueries != null)
+            performanceOptions.SlowQueries.add(worker.getSlowQuerySampler(), System.currentTimeMillis());
+          numQueriesCompleted += worker.getNumQueriesCompleted();
+          List<QueryBuilder> workerDeferredQueries = worker.getDeferredQueries();
+          deferredQueries.addAll(workerDeferredQueries);
+          numQueriesAssigned -= workerDeferredQueries.size();
           progressed = true;
         }
         long waitEnd = System.currentTimeMillis();
         waitingMillis += (waitEnd - waitStart);
+
+        if (performanceOptions.Metrics != null) {
+          workerStatistics.numQueriesLoaded = numQueriesLoaded;
+          workerStatistics.millisReadingQueries = readingMillis;
+          workerStatistics.millisLaunchingWorkers = launchingMillis;
+          workerStatistics.millisWaitingForWorkers = waitingMillis;
+          workerStatistics.slowestQueryMillis = slowestAlignmentMillis;
+          workerStatistics.containsLongRead = warnedNotOptimizedForLongReads;
+          performanceOptions.Metrics.writeIfDue(workerStatistics, numQueriesCompleted, startMillis);
+        }
       }
       long doneAligningQueriesAt = System.currentTimeMillis();
-      AlignmentStatistics result = new AlignmentStatistics();
+      AlignmentStatistics result = workerStatistics;
       result.millisReadingQueries = readingMillis;
       result.millisLaunchingWorkers = launchingMillis;
       result.millisWaitingForWorkers = waitingMillis;
-      result.cpuMillisSpentOnUnalignedQueries = cpuMillisSpentOnUnalignedQueries;
       if (slowestQuery != null) {
         result.slowestQuery = slowestQuery;
         result.slowestQueryNumAlignments = slowestAlignment.getTotalOfAllComponents();
         result.slowestQueryMillis = slowestAlignmentMillis;
       }
       result.queryAtRandomMoment = queryAtRandomMoment;
-      result.cpuMillisSpentAligningMatches = cpuMillisSpentAligningMatches;
-      result.cpuMillisThroughOptimisticBestAlignments = cpuMillisThroughOptimisticBestAlignments;
-      result.numCasesImmediatelyAcceptingFirstAlignment = numCasesImmediatelyAcceptingFirstAlignment;
       result.numQueriesLoaded = numQueriesLoaded;
-      result.numCacheHits = numCacheHits;
-      result.numIndels = numIndels;
       result.containsLongRead = warnedNotOptimizedForLongReads;
 
       return result;
@@ -1130,6 +1469,8 @@ public class Mapper {
       for (AlignerWorker worker: activeWorkers) {
         worker.noMoreQueries();
       }
+      if (candidateExecutor != null)
+        candidateExecutor.shutdown();
     }
   }
 
@@ -1148,13 +1489,16 @@ public class Mapper {
     return true;
   }
 
-  public static List<Sequence> sortAndComplementReference(SequenceProvider provider) {
+  // If <pack> is true, each contig is replaced by a PackedReferenceSequence
+  public static List<Sequence> sortAndComplementReference(SequenceProvider provider, boolean pack) {
     Map<Integer, List<Sequence>> sequencesByLength = new TreeMap<Integer, List<Sequence>>();
     while (true) {
       SequenceBuilder builder = provider.getNextSequence();
       if (builder == null)
         break;
       Sequence sequence = builder.build();
+      if (pack)
+        sequence = new PackedReferenceSequence(sequence);
       int key = sequence.getLength() * -1;
       List<Sequence> sequencesHere = sequencesByLength.get(key);
       if (sequencesHere == null) {
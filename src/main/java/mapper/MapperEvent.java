@@ -0,0 +1,7 @@
+package mapper;
+
+// A MapperEvent is an event that MapperEvents has started reporting to Java Flight Recorder
+public interface MapperEvent {
+  // Finishes the event and records it
+  void commit();
+}
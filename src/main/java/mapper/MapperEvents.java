@@ -0,0 +1,83 @@
+package mapper;
+
+// MapperEvents reports what Mapper is doing to Java Flight Recorder (JFR), so a recording can be matched up with the phases of a run
+// Each begin* method returns an event to pass to the corresponding end* method, or null if JFR isn't recording that kind of event
+// If the JVM doesn't have JFR (Java 8 before 8u262), nothing here touches any JFR class, so these calls can stay in place everywhere
+public class MapperEvents {
+  private static boolean available = checkAvailable();
+
+  private static boolean checkAvailable() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (LinkageError e) {
+      return false;
+    }
+    return Jfr_MapperEvents.isAvailable();
+  }
+
+  // One job of setting up a HashBlock_Database: loading (phase "load"), hashing ("hash") or packing ("pack") the hashblocks of one length
+  // For hashing, each event covers one HashJob: jobStart and jobEnd are the bounds of the part of <contig> being hashed. Otherwise contig is null and they are -1
+  public static MapperEvent beginReferenceJob(String phase, int length, int numJobs, String contig, int jobStart, int jobEnd) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginReferenceJob(phase, length, numJobs, contig, jobStart, jobEnd);
+  }
+
+  // DuplicationDetector looking for duplications of one length
+  public static MapperEvent beginDuplicationDetection(int length) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginDuplicationDetection(length);
+  }
+
+  public static void endDuplicationDetection(MapperEvent event, boolean loadedFromCache) {
+    if (event != null)
+      Jfr_MapperEvents.endDuplicationDetection(event, loadedFromCache);
+  }
+
+  // AncestryDetector inferring the common ancestor of one duplication
+  public static MapperEvent beginAncestryAnalysis(int duplicationLength, int numInstances) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginAncestryAnalysis(duplicationLength, numInstances);
+  }
+
+  // One AlignerWorker aligning one batch of queries
+  public static MapperEvent beginAlignmentBatch(String workerId, int numQueries) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginAlignmentBatch(workerId, numQueries);
+  }
+
+  public static void endAlignmentBatch(MapperEvent event, int numDeferred, long numCandidates) {
+    if (event != null)
+      Jfr_MapperEvents.endAlignmentBatch(event, numDeferred, numCandidates);
+  }
+
+  // Aligning one query. By default, JFR only records queries taking at least 10ms
+  public static MapperEvent beginQuery(long queryId, int queryLength) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginQuery(queryId, queryLength);
+  }
+
+  public static void endQuery(MapperEvent event, int numCandidates, boolean deferred) {
+    if (event != null)
+      Jfr_MapperEvents.endQuery(event, numCandidates, deferred);
+  }
+
+  // Sending the results of one batch of queries to the AlignmentListeners
+  public static MapperEvent beginOutput(int numQueries) {
+    if (!available)
+      return null;
+    return Jfr_MapperEvents.beginOutput(numQueries);
+  }
+
+  // Ends an event that doesn't need any more information
+  public static void end(MapperEvent event) {
+    if (event != null)
+      event.commit();
+  }
+}
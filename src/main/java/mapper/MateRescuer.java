@@ -0,0 +1,99 @@
+package mapper;
+
+import java.util.List;
+
+// A MateRescuer looks for one end of a paired query near a position where the other end aligns
+// Rather than searching the whole reference for that end, it only searches the section of the reference where the spacing penalty would be acceptable, using a BandedAligner
+public class MateRescuer {
+  public MateRescuer(AlignmentParameters parameters) {
+    this.parameters = parameters;
+    // If the BandedAligner can't handle this window, we give up instead of falling back to a slower aligner
+    LocalAligner giveUp = new LocalAligner() {
+      public SequenceAlignment align(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, AlignmentAnalysis alignmentAnalysis) {
+        return null;
+      }
+      public void setLogger(Logger logger) {
+      }
+    };
+    this.aligner = new BandedAligner(giveUp);
+    this.setLogger(Logger.NoOpLogger);
+  }
+
+  public void setLogger(Logger logger) {
+    if (logger == this.logger)
+      return;
+    this.logger = logger;
+    this.aligner.setLogger(logger.incrementScope());
+  }
+
+  // Given that component <anchorIndex> of <query> can align at <anchor>, looks for the other component nearby
+  // Returns a QueryMatch containing both components, or null if the other component doesn't align nearby
+  public QueryMatch rescue(Query query, SequenceMatch anchor, int anchorIndex) {
+    int mateIndex = 1 - anchorIndex;
+    // The first component is reversed if the query aligns to the reverse strand, and the second component is reversed otherwise
+    boolean queryReversed;
+    if (anchorIndex == 0)
+      queryReversed = anchor.getReversed();
+    else
+      queryReversed = !anchor.getReversed();
+    boolean mateReversed = !anchor.getReversed();
+    Sequence mate = query.getSequence(mateIndex);
+    if (mateReversed)
+      mate = mate.reverseComplement();
+    Sequence reference = anchor.getSequenceB();
+    int anchorLength = anchor.getSequenceA().getLength();
+    int mateLength = mate.getLength();
+
+    // Determine which offsets of the mate have an acceptable spacing penalty
+    // The mates may overlap, which doesn't incur any spacing penalty
+    double maxPenalty = query.getLength() * this.parameters.MaxErrorRate;
+    double deviationPerPenalty = query.getSpacingDeviationPerUnitPenalty();
+    int minInnerDistance = -mateLength;
+    int maxInnerDistance = (int)(query.getExpectedInnerDistance() + (maxPenalty + 1) * deviationPerPenalty);
+    boolean mateAfterAnchor = (anchorIndex == 0) != queryReversed;
+    int minMateOffset, maxMateOffset;
+    if (mateAfterAnchor) {
+      minMateOffset = anchor.getOffset() + anchorLength + minInnerDistance;
+      maxMateOffset = anchor.getOffset() + anchorLength + maxInnerDistance;
+    } else {
+      minMateOffset = anchor.getOffset() - maxInnerDistance - mateLength;
+      maxMateOffset = anchor.getOffset() - minInnerDistance - mateLength;
+    }
+    int referenceStart = Math.max(0, minMateOffset);
+    int referenceEnd = Math.min(reference.getLength(), maxMateOffset + mateLength);
+    if (referenceEnd - referenceStart < 1)
+      return null;
+    if (this.logger.getEnabled()) {
+      this.logger.log("Looking for seq" + (mateIndex + 1) + " at " + reference.getName() + " [" + referenceStart + ":" + referenceEnd + "] near seq" + (anchorIndex + 1) + " at offset " + anchor.getOffset());
+    }
+
+    // Search every diagonal in the window, plus enough on either side for indels
+    SequenceSection querySection = new SequenceSection(mate, 0, mateLength);
+    SequenceSection referenceSection = new SequenceSection(reference, referenceStart, referenceEnd);
+    double maxMatePenalty = mateLength * this.parameters.MaxErrorRate;
+    AlignmentAnalysis analysis = new AlignmentAnalysis();
+    analysis.confidentAboutBestOffset = true;
+    analysis.predictedBestOffset = referenceStart;
+    analysis.maxInsertionExtensionPenalty = maxMatePenalty;
+    analysis.maxDeletionExtensionPenalty = (referenceEnd - referenceStart) * this.parameters.DeletionExtension_Penalty + maxMatePenalty;
+    SequenceAlignment mateAlignment = this.aligner.align(querySection, referenceSection, this.parameters, analysis);
+    if (mateAlignment == null)
+      return null;
+    List<AlignedBlock> blocks = mateAlignment.getSections();
+    if (blocks.size() < 1)
+      return null;
+
+    // Now the QueryMatch_Aligner can align both components at once and compute the total penalty
+    SequenceMatch mateMatch = new SequenceMatch(mate, reference, blocks.get(0).getOffset());
+    if (this.logger.getEnabled()) {
+      this.logger.log("Found seq" + (mateIndex + 1) + " at " + mateMatch.summarizePositionB());
+    }
+    if (anchorIndex == 0)
+      return new QueryMatch(anchor, mateMatch, 0, true);
+    return new QueryMatch(mateMatch, anchor, 0, false);
+  }
+
+  private AlignmentParameters parameters;
+  private Logger logger;
+  private BandedAligner aligner;
+}
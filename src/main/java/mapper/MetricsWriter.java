@@ -0,0 +1,137 @@
+package mapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// A MetricsWriter saves machine-readable performance metrics about a run into a file
+// If the file name ends with .prom, it uses the Prometheus text format, and otherwise json
+public class MetricsWriter {
+  // If intervalMillis > 0, writeIfDue rewrites the file at most once per interval
+  public MetricsWriter(String path, long intervalMillis) {
+    this.path = path;
+    this.intervalMillis = intervalMillis;
+  }
+
+  public void setReferenceDatabase(HashBlock_Database referenceDatabase) {
+    this.referenceDatabase = referenceDatabase;
+  }
+
+  public void setAlignmentCache(AlignmentCache alignmentCache) {
+    this.alignmentCache = alignmentCache;
+  }
+
+  public void setQueryTimer(QueryTimer queryTimer) {
+    this.queryTimer = queryTimer;
+  }
+
+  // Rewrites the metrics file if it has been long enough since the last time
+  public void writeIfDue(AlignmentStatistics statistics, long numQueriesCompleted, long startMillis) throws IOException {
+    if (this.intervalMillis <= 0)
+      return;
+    long now = System.currentTimeMillis();
+    if (now - this.lastWriteMillis < this.intervalMillis)
+      return;
+    this.write(statistics, numQueriesCompleted, startMillis, false);
+  }
+
+  public void write(AlignmentStatistics statistics, long numQueriesCompleted, long startMillis, boolean done) throws IOException {
+    long now = System.currentTimeMillis();
+    this.lastWriteMillis = now;
+    PerformanceMetrics metrics = new PerformanceMetrics();
+    metrics.add("done", done ? 1 : 0);
+    metrics.add("elapsed_millis", now - startMillis);
+    metrics.add("num_queries_completed", numQueriesCompleted);
+    if (statistics != null)
+      this.addStatistics(statistics, metrics);
+    if (this.alignmentCache != null)
+      metrics.add("alignment_cache_num_stored", this.alignmentCache.getUsage());
+    if (this.referenceDatabase != null)
+      this.referenceDatabase.addMetrics(metrics);
+    if (this.queryTimer != null)
+      this.addLatencies(this.queryTimer, metrics);
+    this.addJvmMetrics(metrics);
+
+    String text;
+    if (this.path.endsWith(".prom"))
+      text = metrics.formatPrometheus();
+    else
+      text = metrics.formatJson();
+
+    // Write to a temporary file and then rename it so anyone reading the file never sees a partial write
+    File file = new File(this.path);
+    File tempFile = new File(this.path + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tempFile);
+    stream.write(text.getBytes("UTF-8"));
+    stream.close();
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void addStatistics(AlignmentStatistics statistics, PerformanceMetrics metrics) {
+    metrics.add("num_queries_loaded", statistics.numQueriesLoaded);
+    metrics.add("num_cache_hits", statistics.numCacheHits);
+    if (statistics.numQueriesLoaded > 0)
+      metrics.add("cache_hit_rate", (double)statistics.numCacheHits / (double)statistics.numQueriesLoaded);
+    metrics.add("num_immediately_accepted", statistics.numCasesImmediatelyAcceptingFirstAlignment);
+    metrics.add("num_indels", statistics.numIndels);
+    metrics.add("cpu_millis_unaligned_queries", statistics.cpuMillisSpentOnUnalignedQueries);
+    metrics.add("cpu_millis_aligning_matches", statistics.cpuMillisSpentAligningMatches);
+    metrics.add("cpu_millis_through_optimistic_best_alignments", statistics.cpuMillisThroughOptimisticBestAlignments);
+    metrics.add("millis_reading_queries", statistics.millisReadingQueries);
+    metrics.add("millis_launching_workers", statistics.millisLaunchingWorkers);
+    metrics.add("millis_waiting_for_workers", statistics.millisWaitingForWorkers);
+    metrics.add("slowest_query_millis", statistics.slowestQueryMillis);
+    metrics.add("slowest_query_num_alignments", statistics.slowestQueryNumAlignments);
+    metrics.add("contains_long_read", statistics.containsLongRead ? 1 : 0);
+  }
+
+  private void addLatencies(QueryTimer queryTimer, PerformanceMetrics metrics) {
+    LatencyHistogram total = queryTimer.getTotalHistogram();
+    metrics.add("query_latency_count", total.getCount());
+    metrics.add("query_latency_p50_nanos", total.getNanosAtPercentile(50));
+    metrics.add("query_latency_p90_nanos", total.getNanosAtPercentile(90));
+    metrics.add("query_latency_p99_nanos", total.getNanosAtPercentile(99));
+    metrics.add("query_latency_max_nanos", total.getMaxNanos());
+    List<String> phaseNames = queryTimer.getPhaseNames();
+    for (int i = 0; i < phaseNames.size(); i++) {
+      this.addPhaseLatency(phaseNames.get(i), queryTimer.getPhaseHistogram(i), metrics);
+    }
+    this.addPhaseLatency("other", queryTimer.getOtherHistogram(), metrics);
+    this.addPhaseLatency("output", queryTimer.getOutputHistogram(), metrics);
+  }
+
+  private void addPhaseLatency(String phase, LatencyHistogram histogram, PerformanceMetrics metrics) {
+    metrics.add("query_phase_count", "phase", phase, histogram.getCount());
+    metrics.add("query_phase_total_nanos", "phase", phase, histogram.getTotalNanos());
+    metrics.add("query_phase_p50_nanos", "phase", phase, histogram.getNanosAtPercentile(50));
+    metrics.add("query_phase_p90_nanos", "phase", phase, histogram.getNanosAtPercentile(90));
+    metrics.add("query_phase_p99_nanos", "phase", phase, histogram.getNanosAtPercentile(99));
+    metrics.add("query_phase_max_nanos", "phase", phase, histogram.getMaxNanos());
+  }
+
+  private void addJvmMetrics(PerformanceMetrics metrics) {
+    long gcCount = 0;
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, collector.getCollectionCount());
+      gcMillis += Math.max(0, collector.getCollectionTime());
+    }
+    metrics.add("jvm_gc_count", gcCount);
+    metrics.add("jvm_gc_millis", gcMillis);
+    Runtime runtime = Runtime.getRuntime();
+    metrics.add("jvm_heap_used_bytes", runtime.totalMemory() - runtime.freeMemory());
+    metrics.add("jvm_heap_max_bytes", runtime.maxMemory());
+  }
+
+  private String path;
+  private long intervalMillis;
+  private long lastWriteMillis;
+  private HashBlock_Database referenceDatabase;
+  private AlignmentCache alignmentCache;
+  private QueryTimer queryTimer;
+}
@@ -0,0 +1,195 @@
+package mapper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// A MinimalPerfectHash maps each of a fixed set of n distinct int keys to its own index in [0, n), using about 3 bits per key plus an 8-bit fingerprint per key
+// It uses the BBHash construction: each level has a bit array, and each key that doesn't collide with another key at some level gets a bit there
+// The index of a key is the number of set bits before its bit; keys that still collide after the last level are stored in a small sorted array
+// The fingerprint lets lookup() reject most keys that weren't in the set, so that a PackedMap doesn't return the positions of some other key
+public class MinimalPerfectHash {
+  private static int maxNumLevels = 24;
+  // larger gamma makes fewer collisions per level, using more bits per key
+  private static double gamma = 2.0;
+
+  // <keys> must not contain duplicates
+  public MinimalPerfectHash(int[] keys) {
+    this.numKeys = keys.length;
+    long[][] levels = new long[maxNumLevels][];
+    int[] remaining = keys;
+    int numLevels = 0;
+    while (remaining.length > 0 && numLevels < maxNumLevels) {
+      int numBits = Math.max(64, (int)Math.min(Integer.MAX_VALUE - 63, (long)(remaining.length * gamma)));
+      int numWords = (numBits + 63) / 64;
+      numBits = numWords * 64;
+      long[] seen = new long[numWords];
+      long[] collided = new long[numWords];
+      for (int key: remaining) {
+        int bit = chooseBit(key, numLevels, numBits);
+        if (getBit(seen, bit))
+          setBit(collided, bit);
+        else
+          setBit(seen, bit);
+      }
+      // keep the bits that exactly one key chose, and retry the other keys in the next level
+      int numCollided = 0;
+      for (int key: remaining) {
+        if (getBit(collided, chooseBit(key, numLevels, numBits)))
+          numCollided++;
+      }
+      int[] next = new int[numCollided];
+      int nextIndex = 0;
+      for (int key: remaining) {
+        if (getBit(collided, chooseBit(key, numLevels, numBits))) {
+          next[nextIndex] = key;
+          nextIndex++;
+        }
+      }
+      for (int i = 0; i < numWords; i++) {
+        seen[i] &= ~collided[i];
+      }
+      levels[numLevels] = seen;
+      numLevels++;
+      remaining = next;
+    }
+    this.levels = Arrays.copyOf(levels, numLevels);
+    this.fallbackKeys = remaining;
+    Arrays.sort(this.fallbackKeys);
+    this.computeRanks();
+    this.fingerprints = new byte[this.numKeys];
+    for (int key: keys) {
+      this.fingerprints[this.getIndex(key)] = fingerprint(key);
+    }
+  }
+
+  // Returns the index of this key, or -1 if the key probably wasn't one of the keys given to the constructor
+  public int lookup(int key) {
+    int index = this.getIndex(key);
+    if (index < 0)
+      return -1;
+    if (this.fingerprints[index] != fingerprint(key))
+      return -1;
+    return index;
+  }
+
+  public int getNumKeys() {
+    return this.numKeys;
+  }
+
+  // the approximate memory used by this MinimalPerfectHash
+  public long getNumBytes() {
+    long numBytes = this.fingerprints.length + (long)this.fallbackKeys.length * 4;
+    for (int i = 0; i < this.levels.length; i++) {
+      numBytes += (long)this.levels[i].length * 8 + (long)this.ranks[i].length * 4;
+    }
+    return numBytes;
+  }
+
+  private int getIndex(int key) {
+    for (int level = 0; level < this.levels.length; level++) {
+      long[] bits = this.levels[level];
+      int bit = chooseBit(key, level, bits.length * 64);
+      if (getBit(bits, bit)) {
+        int word = bit >>> 6;
+        long before = bits[word] & ((1L << (bit & 63)) - 1);
+        return this.levelOffsets[level] + this.ranks[level][word] + Long.bitCount(before);
+      }
+    }
+    int fallbackIndex = Arrays.binarySearch(this.fallbackKeys, key);
+    if (fallbackIndex < 0)
+      return -1;
+    return this.numKeys - this.fallbackKeys.length + fallbackIndex;
+  }
+
+  // computes the number of set bits before each word in each level
+  private void computeRanks() {
+    this.ranks = new int[this.levels.length][];
+    this.levelOffsets = new int[this.levels.length];
+    int total = 0;
+    for (int level = 0; level < this.levels.length; level++) {
+      long[] bits = this.levels[level];
+      int[] levelRanks = new int[bits.length];
+      this.levelOffsets[level] = total;
+      int count = 0;
+      for (int word = 0; word < bits.length; word++) {
+        levelRanks[word] = count;
+        count += Long.bitCount(bits[word]);
+      }
+      this.ranks[level] = levelRanks;
+      total += count;
+    }
+  }
+
+  public void writeTo(DataOutputStream output) throws IOException {
+    output.writeInt(this.numKeys);
+    output.writeInt(this.levels.length);
+    for (int level = 0; level < this.levels.length; level++) {
+      long[] bits = this.levels[level];
+      output.writeInt(bits.length);
+      for (int i = 0; i < bits.length; i++) {
+        output.writeLong(bits[i]);
+      }
+    }
+    output.writeInt(this.fallbackKeys.length);
+    for (int i = 0; i < this.fallbackKeys.length; i++) {
+      output.writeInt(this.fallbackKeys[i]);
+    }
+    output.write(this.fingerprints);
+  }
+
+  public MinimalPerfectHash(DataInputStream input) throws IOException {
+    this.numKeys = input.readInt();
+    int numLevels = input.readInt();
+    this.levels = new long[numLevels][];
+    for (int level = 0; level < numLevels; level++) {
+      long[] bits = new long[input.readInt()];
+      for (int i = 0; i < bits.length; i++) {
+        bits[i] = input.readLong();
+      }
+      this.levels[level] = bits;
+    }
+    this.fallbackKeys = new int[input.readInt()];
+    for (int i = 0; i < this.fallbackKeys.length; i++) {
+      this.fallbackKeys[i] = input.readInt();
+    }
+    this.fingerprints = new byte[this.numKeys];
+    input.readFully(this.fingerprints);
+    this.computeRanks();
+  }
+
+  private static int chooseBit(int key, int level, int numBits) {
+    long hash = mix(((long)level << 32) ^ (key & 0xffffffffL));
+    return (int)((hash >>> 1) % numBits);
+  }
+
+  private static byte fingerprint(int key) {
+    return (byte)(mix(0x5bd1e995L << 32 ^ (key & 0xffffffffL)) >>> 56);
+  }
+
+  private static long mix(long value) {
+    long hash = value * 0x9E3779B97F4A7C15L;
+    hash ^= (hash >>> 32);
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= (hash >>> 29);
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= (hash >>> 32);
+    return hash;
+  }
+
+  private static boolean getBit(long[] bits, int bit) {
+    return (bits[bit >>> 6] & (1L << (bit & 63))) != 0;
+  }
+
+  private static void setBit(long[] bits, int bit) {
+    bits[bit >>> 6] |= (1L << (bit & 63));
+  }
+
+  private int numKeys;
+  private long[][] levels;
+  private int[][] ranks;
+  private int[] levelOffsets;
+  private int[] fallbackKeys;
+  private byte[] fingerprints;
+}
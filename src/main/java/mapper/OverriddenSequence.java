@@ -1,13 +1,14 @@
 package mapper;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 // An OverriddenSequence is a sequence that is based on another Sequence plus some changes
+// The changes are stored compactly: one bit per position saying whether it is overridden, plus a sorted array of the overridden positions and their values
 public class OverriddenSequence extends Sequence {
   public OverriddenSequence(Sequence original, String name) {
     super(name, null, original.getLength(), original.getPath());
     this.original = original;
+    this.overriddenFlags = new long[(original.getLength() + 63) / 64];
   }
 
   /*public void put(Integer offset, char value) {
@@ -15,24 +16,108 @@ public class OverriddenSequence extends Sequence {
     this.putEncoded(offset, encoded);
   }*/
 
-  public void putEncoded(Integer offset, Byte value) {
-    Byte existingOverride = this.overrides.get(offset);
-    if (existingOverride != null) {
-      throw new IllegalArgumentException("Cannot override " + this.getName() + "[" + offset + "] to " + Basepairs.decode(value) + " because it is already overridden to " + Basepairs.decode(existingOverride));
+  public synchronized void putEncoded(int offset, byte value) {
+    if (this.isOverridden(offset)) {
+      throw new IllegalArgumentException("Cannot override " + this.getName() + "[" + offset + "] to " + Basepairs.decode(value) + " because it is already overridden to " + Basepairs.decode(this.getOverride(offset)));
     }
     //System.err.println("overriding " + this.getName() + "[" + offset + "] = " + Basepairs.decode(value));
 
-    this.overrides.put(offset, value);
+    // Save the new override in a pending list for now; we sort it into the other overrides when somebody reads it
+    if (this.numPending >= this.pending.length)
+      this.pending = Arrays.copyOf(this.pending, this.pending.length * 2);
+    this.pending[this.numPending] = ((long)offset << 8) | (value & 0xFF);
+    this.numPending++;
+    this.overriddenFlags[offset >>> 6] |= (1L << (offset & 63));
+  }
+
+  // Sorts any new overrides into the others, so reading them doesn't have to
+  public synchronized void compactOverrides() {
+    if (this.numPending < 1)
+      return;
+    Arrays.sort(this.pending, 0, this.numPending);
+    SortedOverrides existing = this.sorted;
+    int total = existing.count + this.numPending;
+    int[] newPositions = new int[total];
+    byte[] newValues = new byte[total];
+    // merge the previously sorted overrides with the newly sorted ones
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < total; k++) {
+      boolean takeExisting;
+      if (i >= existing.count) {
+        takeExisting = false;
+      } else {
+        if (j >= this.numPending) {
+          takeExisting = true;
+        } else {
+          takeExisting = existing.positions[i] < (int)(this.pending[j] >>> 8);
+        }
+      }
+      if (takeExisting) {
+        newPositions[k] = existing.positions[i];
+        newValues[k] = existing.values[i];
+        i++;
+      } else {
+        newPositions[k] = (int)(this.pending[j] >>> 8);
+        newValues[k] = (byte)this.pending[j];
+        j++;
+      }
+    }
+    // Publish the merged overrides all at once, so a reader without the lock sees either the old ones or the new ones
+    this.sorted = new SortedOverrides(newPositions, newValues, total);
+    this.numPending = 0;
+    this.pending = new long[16];
+  }
+
+  // the number of positions that have been overridden
+  public synchronized int getNumOverrides() {
+    return this.sorted.count + this.numPending;
   }
 
   @Override
   protected byte computeEncodedCharAt(int index) {
-    Byte overridden = this.overrides.get(index);
-    if (overridden != null)
-      return overridden;
+    if (this.isOverridden(index))
+      return this.getOverride(index);
     return this.original.encodedCharAt(index);
   }
 
+  private boolean isOverridden(int index) {
+    return (this.overriddenFlags[index >>> 6] & (1L << (index & 63))) != 0;
+  }
+
+  private byte getOverride(int index) {
+    SortedOverrides snapshot = this.sorted;
+    int found = Arrays.binarySearch(snapshot.positions, 0, snapshot.count, index);
+    if (found >= 0)
+      return snapshot.values[found];
+    // This override is still pending, so we compact under the lock and try again
+    synchronized(this) {
+      this.compactOverrides();
+      snapshot = this.sorted;
+      return snapshot.values[Arrays.binarySearch(snapshot.positions, 0, snapshot.count, index)];
+    }
+  }
+
+  // the overridden positions, in sorted order, and their values
+  // A SortedOverrides is never modified after being published, so it can be read without locking
+  private static class SortedOverrides {
+    SortedOverrides(int[] positions, byte[] values, int count) {
+      this.positions = positions;
+      this.values = values;
+      this.count = count;
+    }
+
+    final int[] positions;
+    final byte[] values;
+    final int count;
+  }
+
   private Sequence original;
-  private Map<Integer, Byte> overrides = new HashMap<Integer, Byte>();
+  // one bit per position, set if that position is overridden
+  private long[] overriddenFlags;
+  // the overrides that have been sorted, replaced as a whole by compactOverrides
+  private volatile SortedOverrides sorted = new SortedOverrides(new int[0], new byte[0], 0);
+  // overrides that haven't been sorted into <positions> yet, each one stored as (position << 8 | value)
+  private long[] pending = new long[16];
+  private int numPending;
 }
@@ -1,7 +1,11 @@
 package mapper;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -31,9 +35,17 @@ class PackedMap {
     this.allocateStores();
   }
 
+  // Makes a PackedMap that gives each key in <perfectHash> its own bin, and that holds no other keys
+  public PackedMap(int maxInterestingCountPerKey, MinimalPerfectHash perfectHash, SequenceDatabase sequenceDatabase, int id) {
+    this(maxInterestingCountPerKey, perfectHash.getNumKeys(), sequenceDatabase, id);
+    this.perfectHash = perfectHash;
+  }
+
   public PackedMap(File fromCacheFile, SequenceDatabase sequenceDatabase) throws IOException {
     this.sequenceDatabase = sequenceDatabase;
+    long startMillis = System.currentTimeMillis();
     this.readFrom(fromCacheFile);
+    this.loadMillis = System.currentTimeMillis() - startMillis;
   }
 
   private void allocateStores() {
@@ -119,13 +131,31 @@ class PackedMap {
     }
     long endMillis = System.currentTimeMillis();
     this.totalAddMillis += (endMillis - addStartMillis);
+    this.cachedNumOverfilledKeys = -1;
   }
 
   private void add(int key, Sequence sequence, int startIndex, boolean preventDuplicates) {
+    SequencePosition position = null;
+    if (preventDuplicates)
+      position = new SequencePosition(sequence, startIndex);
+    this.add(key, this.sequenceDatabase.encodePosition(sequence, startIndex), position);
+  }
+
+  // Adds a position that was already encoded by SequenceDatabase.encodePosition, such as one read back from a HashBlock_Spill
+  // Not thread-safe: the caller must be the only thread adding to this map
+  public void addEncoded(int key, long encoded, boolean preventDuplicates) {
+    SequencePosition position = null;
+    if (preventDuplicates)
+      position = this.sequenceDatabase.decodePosition(encoded);
+    this.add(key, encoded, position);
+    this.cachedNumOverfilledKeys = -1;
+  }
+
+  // If <position> is not null, we first check that it isn't already stored here
+  private void add(int key, long encoded, SequencePosition position) {
     // make sure this data isn't already there
     boolean duplicate = false;
-    if (preventDuplicates) {
-      SequencePosition position = new SequencePosition(sequence, startIndex);
+    if (position != null) {
       SequencePosition[] existing = this.get(key, Integer.MAX_VALUE);
       if (existing != null) {
         for (int i = 0; i < existing.length; i++) {
@@ -144,7 +174,6 @@ class PackedMap {
       int indexInStore = getIndexInStore(packedKey);
       // convert to bytes and add
       ByteKeyStore store = this.stores[indexOfStore];
-      long encoded = this.sequenceDatabase.encodePosition(sequence, startIndex);
       this.sequenceDatabase.appendEncodedPosition(store, indexInStore, encoded);
     }
 
@@ -164,6 +193,8 @@ class PackedMap {
 
     // Get the byte store
     int packedKey = getPackedKey(key);
+    if (packedKey < 0)
+      return emptyList; // this key isn't here
     int indexOfStore = getIndexOfStore(packedKey);
     int indexInStore = getIndexInStore(packedKey);
     ByteKeyStore store = this.stores[indexOfStore];
@@ -173,6 +204,8 @@ class PackedMap {
 
   public boolean knowsAllMatches(int key) {
     int packedKey = getPackedKey(key);
+    if (packedKey < 0)
+      return true;
     int indexOfStore = getIndexOfStore(packedKey);
     int indexInStore = getIndexInStore(packedKey);
 
@@ -188,6 +221,9 @@ class PackedMap {
   }
 
   public int getNumOverfilledKeys() {
+    // Counting requires checking every key, so we remember the count until something changes
+    if (this.cachedNumOverfilledKeys >= 0)
+      return this.cachedNumOverfilledKeys;
     int numOverfilledKeys = 0;
     for (int packedKey = 0; packedKey < this.keyCapacity; packedKey++) {
       int indexOfStore = getIndexOfStore(packedKey);
@@ -196,6 +232,7 @@ class PackedMap {
         numOverfilledKeys++;
       }
     }
+    this.cachedNumOverfilledKeys = numOverfilledKeys;
     return numOverfilledKeys;
   }
 
@@ -207,7 +244,18 @@ class PackedMap {
     return this.totalAddMillis;
   }
 
+  public long getPackMillis() {
+    return this.packMillis;
+  }
+
+  public long getLoadMillis() {
+    return this.loadMillis;
+  }
+
+  // Returns the bin holding <originalKey>, or -1 if we have a perfect hash and know that this key isn't here
   private int getPackedKey(int originalKey) {
+    if (this.perfectHash != null)
+      return this.perfectHash.lookup(originalKey);
     int result = originalKey % getCapacity();
     if (result < 0)
       result += this.getCapacity();
@@ -227,6 +275,8 @@ class PackedMap {
   }
   public int getNumMatchesLowerBound(int key) {
     int packedKey = getPackedKey(key);
+    if (packedKey < 0)
+      return 0;
     int indexOfStore = getIndexOfStore(packedKey);
     int indexInStore = getIndexInStore(packedKey);
     ByteKeyStore store = this.stores[indexOfStore];
@@ -237,16 +287,42 @@ class PackedMap {
 
   // Orders contents deterministically, to be independent of the order it was inserted in
   public void pack() {
+    long startMillis = System.currentTimeMillis();
     for (int i = 0; i < this.stores.length; i++) {
       this.stores[i].pack();
     }
+    this.packMillis += System.currentTimeMillis() - startMillis;
+    this.cachedNumOverfilledKeys = -1;
   }
 
   public int getId() {
     return this.id;
   }
 
+  public boolean hasPerfectHash() {
+    return this.perfectHash != null;
+  }
+
+  // the MinimalPerfectHash choosing the bin for each key, or null if there isn't one
+  public MinimalPerfectHash getPerfectHash() {
+    return this.perfectHash;
+  }
+
+  // A PackedMap having a MinimalPerfectHash saves it in a separate file next to the PackedMap, so that the main file keeps the same format
+  private static File getPerfectHashFile(File file) {
+    return new File(file.getPath() + ".mph");
+  }
+
   public void writeTo(File file) throws IOException {
+    // write the perfect hash before the map so that a map file never exists without its perfect hash
+    File perfectHashFile = getPerfectHashFile(file);
+    if (this.perfectHash != null) {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(perfectHashFile), 1 << 16));
+      this.perfectHash.writeTo(output);
+      output.close();
+    } else {
+      perfectHashFile.delete();
+    }
     Serializer serializer = new Serializer(file);
     serializer.writeProperty("type", "PackedMap");
     serializer.writeProperty("keyCapacity", "" + this.keyCapacity);
@@ -263,6 +339,12 @@ class PackedMap {
 
 
   public void readFrom(File file) throws IOException {
+    File perfectHashFile = getPerfectHashFile(file);
+    if (perfectHashFile.exists()) {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(perfectHashFile), 1 << 16));
+      this.perfectHash = new MinimalPerfectHash(input);
+      input.close();
+    }
     Deserializer deserializer = new Deserializer(file);
     deserializer.readText("type:PackedMap,");
     this.keyCapacity = deserializer.readIntProperty("keyCapacity");
@@ -276,10 +358,21 @@ class PackedMap {
       this.stores[i].readFrom(deserializer);
     }
     deserializer.close();
+    this.cachedNumOverfilledKeys = -1;
+    if (this.perfectHash != null && this.perfectHash.getNumKeys() != this.keyCapacity)
+      throw new IOException("Perfect hash in " + perfectHashFile + " has " + this.perfectHash.getNumKeys() + " keys but " + file + " has capacity " + this.keyCapacity);
   }
 
   // confirms that all of the information in this PackedMap is the same as in <other>
   public void verifyMatches(PackedMap other) {
+    if (this.hasPerfectHash() != other.hasPerfectHash()) {
+      // These maps put keys into different bins, so we compare the positions that they hold instead
+      if (this.hasPerfectHash())
+        verifySamePositions(other, this);
+      else
+        verifySamePositions(this, other);
+      return;
+    }
     if (this.stores.length != other.stores.length) {
       throw new RuntimeException("" + this + " stores.length = " + this.stores.length + " != " + other + " stores.length " + other.stores.length);
     }
@@ -299,6 +392,50 @@ class PackedMap {
     }
   }
 
+  // Confirms that <map> and <perfectMap> hold the same positions, given that only <perfectMap> has a MinimalPerfectHash
+  // A bin of <map> can hold several keys and run out of space when the bins of <perfectMap> don't, so its positions need only be contained in <perfectMap>, unless none of its bins ran out of space
+  private static void verifySamePositions(PackedMap map, PackedMap perfectMap) {
+    long[] positions = map.getKnownEncodedPositions();
+    long[] perfectPositions = perfectMap.getKnownEncodedPositions();
+    boolean mapKnowsAllMatches = (map.getNumOverfilledKeys() == 0);
+    int perfectIndex = 0;
+    for (int i = 0; i < positions.length; i++) {
+      while (perfectIndex < perfectPositions.length && perfectPositions[perfectIndex] < positions[i]) {
+        if (mapKnowsAllMatches)
+          throw new RuntimeException("" + perfectMap + " has position " + map.sequenceDatabase.decodePosition(perfectPositions[perfectIndex]) + " but " + map + " doesn't");
+        perfectIndex++;
+      }
+      if (perfectIndex >= perfectPositions.length || perfectPositions[perfectIndex] != positions[i])
+        throw new RuntimeException("" + map + " has position " + map.sequenceDatabase.decodePosition(positions[i]) + " but " + perfectMap + " doesn't");
+      perfectIndex++;
+    }
+    if (mapKnowsAllMatches && perfectIndex < perfectPositions.length)
+      throw new RuntimeException("" + perfectMap + " has position " + map.sequenceDatabase.decodePosition(perfectPositions[perfectIndex]) + " but " + map + " doesn't");
+  }
+
+  // Returns the positions (encoded by SequenceDatabase.encodePosition) in each bin that knows all of its matches, in sorted order
+  private long[] getKnownEncodedPositions() {
+    long[] result = new long[16];
+    int count = 0;
+    for (int packedKey = 0; packedKey < this.keyCapacity; packedKey++) {
+      ByteKeyStore store = this.stores[getIndexOfStore(packedKey)];
+      int indexInStore = getIndexInStore(packedKey);
+      if (!store.knowsAllMatches(indexInStore))
+        continue;
+      SequencePosition[] positions = this.sequenceDatabase.unpackPositions(store, indexInStore);
+      if (positions == null)
+        continue;
+      for (SequencePosition position: positions) {
+        if (count >= result.length)
+          result = Arrays.copyOf(result, result.length * 2);
+        result[count] = this.sequenceDatabase.encodePosition(position.getSequence(), position.getStartIndex());
+        count++;
+      }
+    }
+    Arrays.sort(result, 0, count);
+    return Arrays.copyOf(result, count);
+  }
+
   private String formatPositions(SequencePosition[] positions) {
     if (positions == null) {
       return "null";
@@ -355,11 +492,16 @@ class PackedMap {
 
   ByteKeyStore[] stores;
   int keyCapacity;
+  // if not null, chooses the bin for each key, see MinimalPerfectHash
+  MinimalPerfectHash perfectHash;
 
   SequenceDatabase sequenceDatabase;
   long numItemsAdded;
   int maxInterestingCountPerKey;
   long totalAddMillis;
+  long packMillis;
+  long loadMillis;
+  int cachedNumOverfilledKeys = -1;
   int id;
 
   List<PackJob> pendingAdds = new ArrayList<PackJob>();
@@ -0,0 +1,54 @@
+package mapper;
+
+// A PackedReferenceSequence is a reference contig stored as a PackedSequence, which uses 2 bits per basepair
+// The original Sequence isn't kept, so the reference uses less memory, and the aligners can read several basepairs at once from getPacked()
+public class PackedReferenceSequence extends Sequence {
+  public PackedReferenceSequence(Sequence original) {
+    this(original, null);
+  }
+
+  // If <complementedFrom> is not null, <original> is its reverse complement
+  private PackedReferenceSequence(Sequence original, Sequence complementedFrom) {
+    super(original.getName(), null, original.getLength(), original.getPath());
+    this.packed = new PackedSequence(original, this);
+    this.complementedFrom = complementedFrom;
+  }
+
+  public PackedSequence getPacked() {
+    return this.packed;
+  }
+
+  // Returns the reverse strand of this contig, which is packed too
+  // The unpacked reverse complement is only used while packing it
+  @Override
+  public synchronized Sequence reverseComplement() {
+    if (this.complementedFrom != null)
+      return this.complementedFrom;
+    if (this.reverse == null)
+      this.reverse = new PackedReferenceSequence(super.reverseComplement(), this);
+    return this.reverse;
+  }
+
+  @Override
+  public Sequence getComplementedFrom() {
+    return this.complementedFrom;
+  }
+
+  @Override
+  protected byte computeEncodedCharAt(int index) {
+    return this.packed.encodedCharAt(index);
+  }
+
+  // returns the PackedSequence holding the basepairs of <sequence>, or null if <sequence> isn't packed
+  public static PackedSequence getPacked(Sequence sequence) {
+    if (sequence instanceof PackedReferenceSequence)
+      return ((PackedReferenceSequence)sequence).getPacked();
+    return null;
+  }
+
+  private PackedSequence packed;
+  // the forward strand, if this is a reverse strand
+  private Sequence complementedFrom;
+  // the reverse strand, if this is a forward strand and it has been made
+  private PackedReferenceSequence reverse;
+}
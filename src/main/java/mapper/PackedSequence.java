@@ -0,0 +1,187 @@
+package mapper;
+
+import java.util.Arrays;
+
+// A PackedSequence is a copy of a Sequence that stores each basepair in 2 bits, plus one bit per position saying whether it is ambiguous
+// Ambiguous basepairs are also saved as runs of equal values, because references can contain long runs of N
+// It is made once per strand of a query (and once per contig of a packed reference) so that the aligners can read several basepairs at once instead of calling Sequence.encodedCharAt for each one
+public class PackedSequence {
+  public PackedSequence(Sequence sequence) {
+    this(sequence, sequence);
+  }
+
+  // Packs the basepairs of <source>, and reports <sequence> as the Sequence that this is a copy of
+  // This lets a PackedReferenceSequence replace its source without keeping it in memory
+  public PackedSequence(Sequence source, Sequence sequence) {
+    this.sequence = sequence;
+    this.length = source.getLength();
+    this.bases = new long[(this.length + 31) / 32];
+    this.ambiguousFlags = new long[(this.length + 63) / 64];
+    for (int i = 0; i < this.length; i++) {
+      byte encoded = source.encodedCharAt(i);
+      int code = encodedCharToCode(encoded);
+      if (code < 0) {
+        this.ambiguousFlags[i >>> 6] |= (1L << (i & 63));
+        this.addAmbiguity(i, encoded);
+      } else {
+        // the first basepair in each word is stored in its most significant bits, so a block of basepairs can be read with shifts
+        this.bases[i >>> 5] |= ((long)code) << (62 - 2 * (i & 31));
+      }
+    }
+  }
+
+  // the Sequence that this is a copy of
+  public Sequence getSequence() {
+    return this.sequence;
+  }
+
+  public int getLength() {
+    return this.length;
+  }
+
+  public boolean isAmbiguous(int index) {
+    return (this.ambiguousFlags[index >>> 6] & (1L << (index & 63))) != 0;
+  }
+
+  // returns the same value as Sequence.encodedCharAt
+  public byte encodedCharAt(int index) {
+    if (this.isAmbiguous(index))
+      return this.runValues[this.findRun(index)];
+    return (byte)(1 << this.getCode(index));
+  }
+
+  // saves that sequence[index] is the ambiguous value <encoded>
+  private void addAmbiguity(int index, byte encoded) {
+    if (this.numRuns > 0) {
+      int last = this.numRuns - 1;
+      if (this.runEnds[last] == index && this.runValues[last] == encoded) {
+        this.runEnds[last]++;
+        return;
+      }
+    }
+    if (this.numRuns >= this.runStarts.length) {
+      int newCapacity = Math.max(4, this.runStarts.length * 2);
+      this.runStarts = Arrays.copyOf(this.runStarts, newCapacity);
+      this.runEnds = Arrays.copyOf(this.runEnds, newCapacity);
+      this.runValues = Arrays.copyOf(this.runValues, newCapacity);
+    }
+    this.runStarts[this.numRuns] = index;
+    this.runEnds[this.numRuns] = index + 1;
+    this.runValues[this.numRuns] = encoded;
+    this.numRuns++;
+  }
+
+  // returns the index of the last run of ambiguous basepairs starting at or before <index>, or -1 if there isn't one
+  private int findRun(int index) {
+    int found = Arrays.binarySearch(this.runStarts, 0, this.numRuns, index);
+    if (found >= 0)
+      return found;
+    return -found - 2;
+  }
+
+  // returns the 2-bit code (A=0, C=1, G=2, T=3) of an unambiguous basepair
+  public int getCode(int index) {
+    return (int)(this.bases[index >>> 5] >>> (62 - 2 * (index & 31))) & 3;
+  }
+
+  // Returns the 2-bit codes of sequence[startIndex:startIndex+blockLength], with the first basepair in the most significant bits
+  // Returns -1 if the block extends past the end of the sequence or contains an ambiguous basepair
+  // blockLength must be at most 15
+  public int encodeBlock(int startIndex, int blockLength) {
+    if (startIndex < 0 || startIndex + blockLength > this.length)
+      return -1;
+    if (this.numRuns > 0 && this.containsAmbiguity(startIndex, startIndex + blockLength))
+      return -1;
+    return (int)(this.get32BasesAt(startIndex) >>> (64 - 2 * blockLength));
+  }
+
+  // Returns the 2-bit codes of sequence[startIndex:startIndex+32], with the first basepair in the most significant bits
+  // Ambiguous basepairs and positions past the end of the sequence are returned as 0, so callers should check containsAmbiguity if it matters
+  // startIndex must be less than getLength()
+  public long get32BasesAt(int startIndex) {
+    int wordIndex = startIndex >>> 5;
+    int shift = 2 * (startIndex & 31);
+    long window = this.bases[wordIndex] << shift;
+    if (shift > 0 && wordIndex + 1 < this.bases.length)
+      window |= this.bases[wordIndex + 1] >>> (64 - shift);
+    return window;
+  }
+
+  // the approximate number of bytes used by this PackedSequence
+  public long getNumBytes() {
+    return (long)this.bases.length * 8 + (long)this.ambiguousFlags.length * 8 + (long)this.runStarts.length * 9;
+  }
+
+  // tells whether any basepair in sequence[startIndex:endIndex] is ambiguous
+  public boolean containsAmbiguity(int startIndex, int endIndex) {
+    if (this.numRuns < 1 || startIndex >= endIndex)
+      return false;
+    int firstWord = startIndex >>> 6;
+    int lastWord = (endIndex - 1) >>> 6;
+    for (int word = firstWord; word <= lastWord; word++) {
+      long mask = -1L;
+      if (word == firstWord)
+        mask &= -1L << (startIndex & 63);
+      if (word == lastWord)
+        mask &= -1L >>> (63 - ((endIndex - 1) & 63));
+      if ((this.ambiguousFlags[word] & mask) != 0)
+        return true;
+    }
+    return false;
+  }
+
+  // returns the values of Sequence.encodedCharAt for sequence[startIndex:startIndex+count]
+  public byte[] getEncodedChars(int startIndex, int count) {
+    byte[] result = new byte[count];
+    int i = 0;
+    while (i < count) {
+      // decode up to 32 basepairs from each word that we read
+      long window = this.get32BasesAt(startIndex + i);
+      int end = Math.min(count, i + 32);
+      for (; i < end; i++) {
+        result[i] = (byte)(1 << (int)(window >>> 62));
+        window <<= 2;
+      }
+    }
+    // fill in any ambiguous basepairs afterward
+    if (this.numRuns > 0) {
+      int endIndex = startIndex + count;
+      int run = Math.max(0, this.findRun(startIndex));
+      while (run < this.numRuns && this.runStarts[run] < endIndex) {
+        int start = Math.max(startIndex, this.runStarts[run]);
+        int end = Math.min(endIndex, this.runEnds[run]);
+        for (int index = start; index < end; index++) {
+          result[index - startIndex] = this.runValues[run];
+        }
+        run++;
+      }
+    }
+    return result;
+  }
+
+  // converts from Basepairs encoding to a 2-bit code, or -1 if ambiguous
+  private static int encodedCharToCode(byte encoded) {
+    switch (encoded) {
+      case 1:
+        return 0;
+      case 2:
+        return 1;
+      case 4:
+        return 2;
+      case 8:
+        return 3;
+      default:
+        return -1;
+    }
+  }
+
+  private Sequence sequence;
+  private int length;
+  private long[] bases;
+  private long[] ambiguousFlags;
+  // each run of equal ambiguous basepairs covers sequence[runStarts[i]:runEnds[i]]
+  private int[] runStarts = new int[0];
+  private int[] runEnds = new int[0];
+  private byte[] runValues = new byte[0];
+  private int numRuns;
+}
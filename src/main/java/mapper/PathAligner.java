@@ -70,7 +70,11 @@ public class PathAligner {
     this.query = querySection.getSequence();
     this.startIndexA = querySection.getStartIndex();
     this.endIndexA = querySection.getEndIndex();
-    this.queryEncodedChars = this.sequenceToEncodedChars(query, startIndexA, endIndexA);
+    PackedSequence packedQuery = alignmentAnalysis.getPackedQuery(query);
+    if (packedQuery != null)
+      this.queryEncodedChars = packedQuery.getEncodedChars(startIndexA, endIndexA - startIndexA);
+    else
+      this.queryEncodedChars = this.sequenceToEncodedChars(query, startIndexA, endIndexA);
     this.reference = referenceSection.getSequence();
     this.startIndexB = referenceSection.getStartIndex();
     this.endIndexB = referenceSection.getEndIndex();
@@ -760,6 +764,9 @@ public class PathAligner {
   }
   private byte[] sequenceToEncodedChars(Sequence sequence, int startIndex, int endIndex) {
     int length = endIndex - startIndex;
+    PackedSequence packed = PackedReferenceSequence.getPacked(sequence);
+    if (packed != null)
+      return packed.getEncodedChars(startIndex, length);
     byte[] result = new byte[length];
     for (int i = 0; i < length; i++) {
       result[i] = sequence.encodedCharAt(startIndex + i);
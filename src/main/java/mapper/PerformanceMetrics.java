@@ -0,0 +1,107 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A PerformanceMetrics is a snapshot of named numbers describing how a run is going
+// It can be formatted as json or as Prometheus text
+public class PerformanceMetrics {
+  public PerformanceMetrics() {
+  }
+
+  // Records a value that isn't broken down any further
+  public void add(String name, double value) {
+    this.add(name, null, null, value);
+  }
+
+  // Records one value of a metric that is broken down by <labelName>, such as the hashblock length
+  public void add(String name, String labelName, String labelValue, double value) {
+    List<Entry> entries = this.entriesByName.get(name);
+    if (entries == null) {
+      entries = new ArrayList<Entry>();
+      this.entriesByName.put(name, entries);
+    }
+    entries.add(new Entry(labelName, labelValue, value));
+  }
+
+  public String formatJson() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("{\n");
+    boolean firstMetric = true;
+    for (Map.Entry<String, List<Entry>> metric: this.entriesByName.entrySet()) {
+      if (!firstMetric)
+        builder.append(",\n");
+      firstMetric = false;
+      builder.append("  \"" + metric.getKey() + "\": ");
+      List<Entry> entries = metric.getValue();
+      if (entries.size() == 1 && entries.get(0).labelName == null) {
+        builder.append(formatJsonNumber(entries.get(0).value));
+      } else {
+        builder.append("{");
+        boolean firstEntry = true;
+        for (Entry entry: entries) {
+          if (!firstEntry)
+            builder.append(", ");
+          firstEntry = false;
+          builder.append("\"" + entry.labelValue + "\": " + formatJsonNumber(entry.value));
+        }
+        builder.append("}");
+      }
+    }
+    builder.append("\n}\n");
+    return builder.toString();
+  }
+
+  public String formatPrometheus() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, List<Entry>> metric: this.entriesByName.entrySet()) {
+      String name = "xmapper_" + metric.getKey();
+      builder.append("# TYPE " + name + " gauge\n");
+      for (Entry entry: metric.getValue()) {
+        builder.append(name);
+        if (entry.labelName != null)
+          builder.append("{" + entry.labelName + "=\"" + entry.labelValue + "\"}");
+        builder.append(" " + formatPrometheusNumber(entry.value) + "\n");
+      }
+    }
+    return builder.toString();
+  }
+
+  // JSON has no way to write NaN or infinity, so we write null instead
+  private String formatJsonNumber(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      return "null";
+    return formatNumber(value);
+  }
+
+  // Prometheus spells infinity as +Inf and -Inf
+  private String formatPrometheusNumber(double value) {
+    if (Double.isNaN(value))
+      return "NaN";
+    if (Double.isInfinite(value))
+      return value > 0 ? "+Inf" : "-Inf";
+    return formatNumber(value);
+  }
+
+  private String formatNumber(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15)
+      return "" + (long)value;
+    return "" + value;
+  }
+
+  private static class Entry {
+    Entry(String labelName, String labelValue, double value) {
+      this.labelName = labelName;
+      this.labelValue = labelValue;
+      this.value = value;
+    }
+
+    String labelName;
+    String labelValue;
+    double value;
+  }
+
+  private Map<String, List<Entry>> entriesByName = new LinkedHashMap<String, List<Entry>>();
+}
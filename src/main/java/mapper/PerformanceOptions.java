@@ -0,0 +1,34 @@
+package mapper;
+
+// PerformanceOptions are the options that affect how much time and memory Mapper uses, or what it reports about them, but not which alignments it finds
+public class PerformanceOptions {
+  // The approximate number of bytes that building the reference index may use, or -1 for no limit
+  public long MemoryBudget = -1;
+
+  // Whether to save hashblocks into sorted runs on disk while indexing the reference, instead of keeping them all in memory
+  public boolean SpillIndexToDisk;
+
+  // Whether to count the hashblocks of each length before indexing them, to choose the capacity of each PackedMap
+  public boolean ExactIndexCapacity;
+
+  // Whether to give each hashcode in the reference index its own bin, using a MinimalPerfectHash
+  public boolean PerfectHashIndex;
+
+  // Whether to store each contig of the reference as a PackedReferenceSequence
+  public boolean PackReference;
+
+  // A query having at least this many candidate positions with the same number of mismatches, or having already taken ParallelCandidatesMinMillis, has its candidates aligned on several threads
+  // -1 to never align candidates on several threads
+  public int ParallelCandidatesMinCount = -1;
+  public long ParallelCandidatesMinMillis = -1;
+
+  // A query taking longer than this many milliseconds is deferred until after the other queries, or -1 to never defer queries
+  public long QueryMillisBudget = -1;
+
+  // If not null, saves performance metrics at the end of the run
+  public MetricsWriter Metrics;
+
+  // If not null, saves the slowest queries and a sample of the others into SlowQueriesPath
+  public SlowQuerySampler SlowQueries;
+  public String SlowQueriesPath;
+}
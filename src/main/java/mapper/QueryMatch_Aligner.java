@@ -1,58 +1,119 @@
 package mapper;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueryMatch_Aligner {
   public QueryMatch_Aligner(Query query, AlignmentParameters initialParameters, Logger logger) {
+    this(query, initialParameters, logger, null);
+  }
+
+  // If timer is not null, the time spent in each LocalAligner is reported to it
+  public QueryMatch_Aligner(Query query, AlignmentParameters initialParameters, Logger logger, QueryTimer timer) {
     this.logger = logger;
     this.verboseLogger = logger.incrementScope();
     this.parameters = initialParameters;
     this.query = query;
-    this.aligner = buildAligner(this.verboseLogger.incrementScope());
+    this.aligner = buildAligner(initialParameters, this.verboseLogger.incrementScope(), timer);
   }
 
-  private static LocalAligner buildAligner(Logger logger) {
-    LocalAligner aligner = new PathAligner_Runner();
-    aligner = new StraightAligner(aligner);
-    aligner = new HashBlock_Aligner(aligner);
-    aligner = new StraightAligner(aligner);
-    aligner = new BlockAligner(aligner);
-    aligner = new HashBlock_Aligner(aligner);
-    aligner = new SkipHighAmbiguity_Aligner(aligner);
-    aligner = new StraightAligner(aligner);
+  private static LocalAligner buildAligner(AlignmentParameters parameters, Logger logger, QueryTimer timer) {
+    Map<String, Integer> stageCounts = new HashMap<String, Integer>();
+    LocalAligner aligner = timed(new PathAligner_Runner(), timer, stageCounts);
+    if (parameters.UseBandedAligner)
+      aligner = timed(new BandedAligner(aligner), timer, stageCounts);
+    aligner = timed(new StraightAligner(aligner), timer, stageCounts);
+    aligner = timed(new HashBlock_Aligner(aligner), timer, stageCounts);
+    aligner = timed(new StraightAligner(aligner), timer, stageCounts);
+    aligner = timed(new BlockAligner(aligner), timer, stageCounts);
+    aligner = timed(new SkipHighEditDistance_Aligner(aligner), timer, stageCounts);
+    aligner = timed(new HashBlock_Aligner(aligner), timer, stageCounts);
+    aligner = timed(new SkipHighAmbiguity_Aligner(aligner), timer, stageCounts);
+    aligner = timed(new StraightAligner(aligner), timer, stageCounts);
     aligner.setLogger(logger);
     return aligner;
   }
 
+  // Wraps this aligner in a Timed_Aligner if we have a timer
+  // Phases are named by class, starting from the innermost aligner, and numbered if a class is used more than once
+  private static LocalAligner timed(LocalAligner aligner, QueryTimer timer, Map<String, Integer> stageCounts) {
+    if (timer == null)
+      return aligner;
+    String className = aligner.getClass().getName();
+    className = className.substring(className.lastIndexOf('.') + 1);
+    Integer previousCount = stageCounts.get(className);
+    int count = 1;
+    if (previousCount != null)
+      count = previousCount + 1;
+    stageCounts.put(className, count);
+    String name = "align_" + className;
+    if (count > 1)
+      name += "_" + count;
+    return new Timed_Aligner(aligner, timer, timer.getPhase(name));
+  }
+
   public QueryAlignment align(QueryMatch match) {
     return this.align(match, 0);
   }
 
   public QueryAlignment align(QueryMatch match, double extraSpacing) {
+    if (this.sharedBestPenalty != null) {
+      // another thread might have found a better alignment for this query
+      this.updateBestPenalty(Double.longBitsToDouble(this.sharedBestPenalty.get()));
+    }
     QueryAlignment alignment = this.doAlign(match, extraSpacing);
     if (alignment != null) {
-      double targetPenalty = this.bestPenalty + this.parameters.Max_PenaltySpan;
-      if (alignment.getPenalty() < this.bestPenalty) {
-        // also reduce the minimum interesting error rate for this query
-        this.bestPenalty = alignment.getPenalty();
-        double newTargetPenalty = alignment.getPenalty() + parameters.Max_PenaltySpan;
-        double newTargetErrorRate = divideRoundUp(newTargetPenalty, query.getLength());
-        if (newTargetErrorRate < this.parameters.MaxErrorRate) {
-          AlignmentParameters stricterParams = this.parameters.clone();
-          stricterParams.MaxErrorRate = newTargetErrorRate;
-          this.parameters = stricterParams;
-        }
-      }
-
+      this.updateBestPenalty(alignment.getPenalty());
       this.goodAlignments.add(alignment);
     }
     return alignment;
   }
 
+  private void updateBestPenalty(double penalty) {
+    if (penalty < this.bestPenalty) {
+      // also reduce the minimum interesting error rate for this query
+      this.bestPenalty = penalty;
+      double newTargetPenalty = penalty + parameters.Max_PenaltySpan;
+      double newTargetErrorRate = divideRoundUp(newTargetPenalty, query.getLength());
+      if (newTargetErrorRate < this.parameters.MaxErrorRate) {
+        AlignmentParameters stricterParams = this.parameters.clone();
+        stricterParams.MaxErrorRate = newTargetErrorRate;
+        this.parameters = stricterParams;
+      }
+      if (this.sharedBestPenalty != null) {
+        // Penalties are nonnegative, so their bits are ordered the same way as their values
+        long penaltyBits = Double.doubleToLongBits(penalty);
+        while (true) {
+          long existingBits = this.sharedBestPenalty.get();
+          if (existingBits <= penaltyBits || this.sharedBestPenalty.compareAndSet(existingBits, penaltyBits))
+            break;
+        }
+      }
+    }
+  }
+
+  // Makes another aligner for this query that shares its best penalty with this aligner, so the two can check different matches on different threads
+  public QueryMatch_Aligner newParallelAligner(Logger logger) {
+    if (this.sharedBestPenalty == null)
+      this.sharedBestPenalty = new AtomicLong(Double.doubleToLongBits(this.bestPenalty));
+    QueryMatch_Aligner other = new QueryMatch_Aligner(this.query, this.parameters, logger);
+    other.packedSequences.addAll(this.packedSequences);
+    other.bestPenalty = this.bestPenalty;
+    other.sharedBestPenalty = this.sharedBestPenalty;
+    return other;
+  }
+
+  // Adds the alignments found by an aligner created by newParallelAligner
+  public void addAlignments(QueryMatch_Aligner other) {
+    this.goodAlignments.addAll(other.goodAlignments);
+    this.updateBestPenalty(other.bestPenalty);
+  }
+
   public double divideRoundUp(double a, double b) {
     double result = a / b;
     if (result * b < a)
@@ -68,6 +129,10 @@ public class QueryMatch_Aligner {
     return null;
   }
 
+  public double getBestPenalty() {
+    return this.bestPenalty;
+  }
+
   public List<QueryAlignment> getBestAlignments() {
     double maxInterestingPenaltyAnywhere = query.getLength() * parameters.MaxErrorRate;
     double cutoffPenalty = this.bestPenalty + this.parameters.Max_PenaltySpan;
@@ -404,6 +469,27 @@ public class QueryMatch_Aligner {
     return result;
   }
 
+  // Reuses HashBlock_Matchers from <pool>, which must only be used by the thread using this aligner
+  public void setMatcherPool(HashBlock_MatcherPool pool) {
+    this.matcherPool = pool;
+  }
+
+  // Saves a PackedSequence that was already made for one strand of this query, so we don't have to make it again
+  public void addPackedSequence(PackedSequence packedSequence) {
+    this.packedSequences.add(packedSequence);
+  }
+
+  // returns a PackedSequence copy of <sequence>, which is one strand of this query
+  private PackedSequence getPackedSequence(Sequence sequence) {
+    for (PackedSequence packedSequence: this.packedSequences) {
+      if (packedSequence.getSequence() == sequence)
+        return packedSequence;
+    }
+    PackedSequence packedSequence = new PackedSequence(sequence);
+    this.packedSequences.add(packedSequence);
+    return packedSequence;
+  }
+
   private double computeUngappedPenalty(SequenceMatch sequenceMatch) {
     AlignedBlock block = new AlignedBlock(sequenceMatch.getSequenceA(), sequenceMatch.getSequenceB(), sequenceMatch.getStartIndexA(), sequenceMatch.getStartIndexB(), sequenceMatch.getLength(), sequenceMatch.getLength());
     return this.parameters.getPenalty(block);
@@ -436,6 +522,8 @@ public class QueryMatch_Aligner {
     alignmentAnalysis.maxDeletionExtensionPenalty = maxInterestingPenalty - parameters.DeletionStart_Penalty;
     alignmentAnalysis.predictedBestOffset = bestOffset;
     alignmentAnalysis.confidentAboutBestOffset = sequenceMatch.fromHashblockMatch;
+    alignmentAnalysis.packedQuery = this.getPackedSequence(sequenceMatch.getSequenceA());
+    alignmentAnalysis.matcherPool = this.matcherPool;
 
     if (verboseLogger.getEnabled()) {
       double maxAllowedPenalty = querySection.getSequence().getLength() * parameters.MaxErrorRate + parameters.Max_PenaltySpan;
@@ -561,5 +649,10 @@ public class QueryMatch_Aligner {
   private LocalAligner aligner;
   private Query query;
   private List<QueryAlignment> goodAlignments = new ArrayList<QueryAlignment>();
+  // the strands of this query that we've packed so far
+  private List<PackedSequence> packedSequences = new ArrayList<PackedSequence>(2);
+  private HashBlock_MatcherPool matcherPool;
   private double bestPenalty = Integer.MAX_VALUE;
+  // the best penalty found by any aligner for this query, if several threads are aligning it
+  private AtomicLong sharedBestPenalty;
 }
@@ -0,0 +1,133 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A QueryTimer measures how much time each query spends in each phase of alignment and keeps a LatencyHistogram for each phase
+// Timed sections may be nested; each phase is only charged for the time not spent in a nested timed section
+// A QueryTimer is not thread-safe: each AlignerWorker has its own, and they get merged afterward
+public class QueryTimer {
+  public static final int SEED_LOOKUP = 0;
+  public static final int CANDIDATE_RANKING = 1;
+  public static final int PARALLEL_CANDIDATES = 2;
+  public static final int MATE_RESCUE = 3;
+  public static final int LONG_READ_CHAINING = 4;
+
+  public QueryTimer() {
+    this.getPhase("seed_lookup");
+    this.getPhase("candidate_ranking");
+    this.getPhase("parallel_candidates");
+    this.getPhase("mate_rescue");
+    this.getPhase("long_read_chaining");
+  }
+
+  // Returns the index of the phase having this name, adding it if needed
+  public int getPhase(String name) {
+    Integer index = this.phaseIndices.get(name);
+    if (index != null)
+      return index;
+    index = this.phaseNames.size();
+    this.phaseNames.add(name);
+    this.phaseIndices.put(name, index);
+    this.phaseHistograms.add(new LatencyHistogram());
+    if (this.currentQueryNanos.length <= index) {
+      long[] newNanos = new long[index * 2];
+      System.arraycopy(this.currentQueryNanos, 0, newNanos, 0, this.currentQueryNanos.length);
+      this.currentQueryNanos = newNanos;
+    }
+    return index;
+  }
+
+  public void startQuery() {
+    for (int i = 0; i < this.currentQueryNanos.length; i++) {
+      this.currentQueryNanos[i] = 0;
+    }
+    this.depth = 0;
+    this.nestedNanos = 0;
+  }
+
+  // Starts timing a section and returns its start time, to pass to stop()
+  public long start() {
+    if (this.depth >= this.nestedNanosStack.length) {
+      long[] newStack = new long[this.nestedNanosStack.length * 2];
+      System.arraycopy(this.nestedNanosStack, 0, newStack, 0, this.nestedNanosStack.length);
+      this.nestedNanosStack = newStack;
+    }
+    this.nestedNanosStack[this.depth] = this.nestedNanos;
+    this.depth++;
+    return System.nanoTime();
+  }
+
+  // Stops timing a section and charges its time, minus any nested sections, to <phase>
+  public void stop(int phase, long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    this.depth--;
+    long nestedBefore = this.nestedNanosStack[this.depth];
+    long nestedHere = this.nestedNanos - nestedBefore;
+    this.currentQueryNanos[phase] += elapsed - nestedHere;
+    this.nestedNanos = nestedBefore + elapsed;
+  }
+
+  // Records the time spent by the current query
+  public void finishQuery(long totalNanos) {
+    long otherNanos = totalNanos;
+    for (int i = 0; i < this.phaseHistograms.size(); i++) {
+      long nanos = this.currentQueryNanos[i];
+      this.phaseHistograms.get(i).record(nanos);
+      otherNanos -= nanos;
+    }
+    this.otherHistogram.record(otherNanos);
+    this.totalHistogram.record(totalNanos);
+  }
+
+  // Records the time spent sending a batch of results to the AlignmentListeners
+  public void recordOutput(long nanos) {
+    this.outputHistogram.record(nanos);
+  }
+
+  public void add(QueryTimer other) {
+    for (int i = 0; i < other.phaseNames.size(); i++) {
+      int phase = this.getPhase(other.phaseNames.get(i));
+      this.phaseHistograms.get(phase).add(other.phaseHistograms.get(i));
+    }
+    this.otherHistogram.add(other.otherHistogram);
+    this.totalHistogram.add(other.totalHistogram);
+    this.outputHistogram.add(other.outputHistogram);
+  }
+
+  public List<String> getPhaseNames() {
+    return this.phaseNames;
+  }
+
+  public LatencyHistogram getPhaseHistogram(int phase) {
+    return this.phaseHistograms.get(phase);
+  }
+
+  // time not attributed to any specific phase, such as checking the cache
+  public LatencyHistogram getOtherHistogram() {
+    return this.otherHistogram;
+  }
+
+  public LatencyHistogram getTotalHistogram() {
+    return this.totalHistogram;
+  }
+
+  // time per batch spent sending results to the AlignmentListeners
+  public LatencyHistogram getOutputHistogram() {
+    return this.outputHistogram;
+  }
+
+  private List<String> phaseNames = new ArrayList<String>();
+  private Map<String, Integer> phaseIndices = new HashMap<String, Integer>();
+  private List<LatencyHistogram> phaseHistograms = new ArrayList<LatencyHistogram>();
+  private LatencyHistogram otherHistogram = new LatencyHistogram();
+  private LatencyHistogram totalHistogram = new LatencyHistogram();
+  private LatencyHistogram outputHistogram = new LatencyHistogram();
+
+  private long[] currentQueryNanos = new long[16];
+  private long[] nestedNanosStack = new long[16];
+  private int depth;
+  private long nestedNanos;
+}
@@ -20,14 +20,17 @@ public class SequenceSplitter implements SequenceProvider {
     int startIndex = this.getStartIndex();
     this.numSectionsConsumed++;
     int endIndex = this.getStartIndex();
-    Sequence nextSequence = this.pendingSequence.getSubsequence((int)startIndex, (int)(endIndex - startIndex));
 
     // convert from Sequence back to SequenceBuilder
-    // TODO: make this faster if it's important
+    // SequenceBuilder can only be given text, so we copy just this section's text rather than first making a Sequence for it
     SequenceBuilder builder = new SequenceBuilder();
-    builder.setName(nextSequence.getName());
-    builder.setPath(nextSequence.getPath());
-    builder.add(nextSequence.getText());
+    builder.setName(this.pendingSequence.getName());
+    builder.setPath(this.pendingSequence.getPath());
+    builder.add(this.pendingSequence.getRange(startIndex, endIndex - startIndex));
+    if (this.numSectionsConsumed >= this.numSections) {
+      // we're done with this sequence and don't need to keep it in memory while the next one is being read
+      this.pendingSequence = null;
+    }
     return builder;
   }
 
@@ -38,7 +41,7 @@ public class SequenceSplitter implements SequenceProvider {
   }
 
   public boolean get_allReadsContainQualityInformation() {
-    // not implemented
+    // SequenceBuilder doesn't give us access to quality information, so we can't copy it into each section
     return false;
   }
 
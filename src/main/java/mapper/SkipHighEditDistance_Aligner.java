@@ -0,0 +1,144 @@
+package mapper;
+
+// A SkipHighEditDistance_Aligner quickly computes a lower bound on the penalty of aligning a query to a reference section and skips sections that can't have a low enough penalty
+// It uses Myers' bit-parallel edit distance algorithm (as extended by Hyyro to queries longer than 64 basepairs)
+public class SkipHighEditDistance_Aligner implements LocalAligner {
+  public SkipHighEditDistance_Aligner(LocalAligner nextAligner) {
+    this.nextAligner = nextAligner;
+  }
+
+  public void setLogger(Logger logger) {
+    this.logger = logger;
+    this.nextAligner.setLogger(logger);
+  }
+
+  public SequenceAlignment align(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, AlignmentAnalysis alignmentAnalysis) {
+    int maxNumEdits = this.getMaxNumEdits(querySection, referenceSection, parameters);
+    if (maxNumEdits >= 0 && maxNumEdits < querySection.getLength()) {
+      int numEdits = this.computeMinEditDistance(querySection, referenceSection, maxNumEdits);
+      if (numEdits > maxNumEdits) {
+        if (this.logger.getEnabled()) {
+          this.logger.log("Skipping checking for indels because edit distance from query" + querySection.formatRange() + " to " + referenceSection.format() + " is more than " + maxNumEdits);
+        }
+        return null;
+      }
+    }
+    return this.nextAligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+  }
+
+  // Returns the largest number of edits that an alignment could have and still be within the penalty limit, or -1 if we can't tell
+  private int getMaxNumEdits(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters) {
+    // If the query can extend past the end of the reference, some of its basepairs might be unaligned rather than being edits
+    if (referenceSection.getStartIndex() <= 0 || referenceSection.getEndIndex() >= referenceSection.getSequence().getLength())
+      return -1;
+    // Each edit costs at least this much: a mismatch, or one basepair of an insertion or deletion
+    double minPenaltyPerEdit = Math.min(parameters.MutationPenalty, Math.min(parameters.InsertionExtension_Penalty, parameters.DeletionExtension_Penalty));
+    if (minPenaltyPerEdit <= 0)
+      return -1;
+    double maxInterestingPenalty = querySection.getLength() * parameters.MaxErrorRate;
+    // add a little bit extra penalty to the threshold for rounding error
+    return (int)((maxInterestingPenalty + 0.000001) / minPenaltyPerEdit);
+  }
+
+  // Computes the edit distance from the query section to its best-matching substring of the reference section
+  // If this edit distance is at most maxNumEdits, returns some value that is at most maxNumEdits
+  // Otherwise, returns some value that is greater than maxNumEdits
+  int computeMinEditDistance(SequenceSection querySection, SequenceSection referenceSection, int maxNumEdits) {
+    Sequence query = querySection.getSequence();
+    Sequence reference = referenceSection.getSequence();
+    int queryStart = querySection.getStartIndex();
+    int queryLength = querySection.getLength();
+    int numWords = (queryLength + 63) / 64;
+    if (this.matchMasks == null || this.matchMasks[0].length < numWords) {
+      this.matchMasks = new long[16][numWords];
+      this.positiveVertical = new long[numWords];
+      this.negativeVertical = new long[numWords];
+    }
+    long[][] matchMasks = this.matchMasks;
+    long[] positiveVertical = this.positiveVertical;
+    long[] negativeVertical = this.negativeVertical;
+
+    // For each possible reference basepair, find which query positions it can match
+    for (int b = 0; b < 16; b++) {
+      long[] masks = matchMasks[b];
+      for (int w = 0; w < numWords; w++) {
+        masks[w] = 0;
+      }
+    }
+    for (int i = 0; i < queryLength; i++) {
+      byte queryBase = query.encodedCharAt(queryStart + i);
+      long bit = 1L << (i & 63);
+      int word = i >>> 6;
+      for (int b = 1; b < 16; b++) {
+        if (Basepairs.canMatch(queryBase, (byte)b))
+          matchMasks[b][word] |= bit;
+      }
+    }
+
+    // Initially, we haven't consumed any reference, so each query basepair is one more edit than the previous one
+    for (int w = 0; w < numWords; w++) {
+      positiveVertical[w] = -1L;
+      negativeVertical[w] = 0;
+    }
+    int lastWord = numWords - 1;
+    long lastBit = 1L << ((queryLength - 1) & 63);
+    long highBit = 1L << 63;
+    int score = queryLength;
+    int minScore = score;
+    if (minScore <= maxNumEdits)
+      return minScore;
+
+    int referenceEnd = referenceSection.getEndIndex();
+    for (int j = referenceSection.getStartIndex(); j < referenceEnd; j++) {
+      long[] masks = matchMasks[reference.encodedCharAt(j) & 15];
+      // The alignment may start anywhere in the reference, so the top row never changes
+      int horizontalIn = 0;
+      for (int w = 0; w < numWords; w++) {
+        long pv = positiveVertical[w];
+        long mv = negativeVertical[w];
+        long eq = masks[w];
+        long xv = eq | mv;
+        if (horizontalIn < 0)
+          eq |= 1L;
+        long xh = (((eq & pv) + pv) ^ pv) | eq;
+        long ph = mv | ~(xh | pv);
+        long mh = pv & xh;
+
+        long outputBit = (w == lastWord) ? lastBit : highBit;
+        int horizontalOut = 0;
+        if ((ph & outputBit) != 0)
+          horizontalOut = 1;
+        else if ((mh & outputBit) != 0)
+          horizontalOut = -1;
+
+        ph <<= 1;
+        mh <<= 1;
+        if (horizontalIn < 0)
+          mh |= 1L;
+        else if (horizontalIn > 0)
+          ph |= 1L;
+        positiveVertical[w] = mh | ~(xv | ph);
+        negativeVertical[w] = ph & xv;
+        horizontalIn = horizontalOut;
+      }
+      score += horizontalIn;
+      if (score < minScore) {
+        minScore = score;
+        if (minScore <= maxNumEdits)
+          return minScore;
+      }
+      // The score can decrease by at most 1 per remaining reference basepair
+      if (score - (referenceEnd - 1 - j) > maxNumEdits)
+        return minScore;
+    }
+    return minScore;
+  }
+
+  Logger logger;
+  LocalAligner nextAligner;
+
+  // reused across calls to reduce allocation
+  private long[][] matchMasks;
+  private long[] positiveVertical;
+  private long[] negativeVertical;
+}
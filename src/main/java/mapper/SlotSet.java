@@ -0,0 +1,58 @@
+package mapper;
+
+// A SlotSet is a set of the integers in [0, capacity) that can add, remove and check for an item in constant time without allocating
+// Removing an item moves the last item into its place, so the order of items changes as items are removed
+public class SlotSet {
+  public SlotSet(int capacity) {
+    this.items = new int[capacity];
+    this.indices = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      this.indices[i] = -1;
+    }
+  }
+
+  // adds <slot> if it isn't already present
+  public void add(int slot) {
+    if (this.indices[slot] >= 0)
+      return;
+    this.indices[slot] = this.size;
+    this.items[this.size] = slot;
+    this.size++;
+  }
+
+  // removes <slot> if it is present
+  public void remove(int slot) {
+    int index = this.indices[slot];
+    if (index < 0)
+      return;
+    int last = this.items[this.size - 1];
+    this.items[index] = last;
+    this.indices[last] = index;
+    this.indices[slot] = -1;
+    this.size--;
+  }
+
+  public boolean contains(int slot) {
+    return this.indices[slot] >= 0;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  // returns the item at the given index in [0, size())
+  public int get(int index) {
+    return this.items[index];
+  }
+
+  public void clear() {
+    for (int i = 0; i < this.size; i++) {
+      this.indices[this.items[i]] = -1;
+    }
+    this.size = 0;
+  }
+
+  private int[] items;
+  private int[] indices;
+  private int size;
+}
@@ -0,0 +1,196 @@
+package mapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// A SlowQuerySampler remembers the slowest queries along with a sample of queries chosen at random moments in time
+// The random moments make the sample weighted by time: a query that took twice as long is twice as likely to be chosen
+// The chosen queries can be saved to a replay file and aligned again with --replay-queries to investigate why they were slow
+// A SlowQuerySampler is not thread-safe: each AlignerWorker has its own, and they get merged afterward
+public class SlowQuerySampler {
+  private static Comparator<Sample> fastestFirst = new Comparator<Sample>() {
+    public int compare(Sample a, Sample b) {
+      return Long.compare(a.nanos, b.nanos);
+    }
+  };
+
+  public SlowQuerySampler(int numSlowest, int numSampled) {
+    this.numSlowest = numSlowest;
+    this.numSampled = numSampled;
+    this.slowest = new PriorityQueue<Sample>(Math.max(1, numSlowest), fastestFirst);
+    this.sampled = new Sample[numSampled];
+    this.selectors = new RandomMomentSelector[numSampled];
+    for (int i = 0; i < numSampled; i++) {
+      this.selectors[i] = new RandomMomentSelector();
+    }
+  }
+
+  // Returns a new, empty SlowQuerySampler having the same capacity
+  public SlowQuerySampler newEmpty() {
+    return new SlowQuerySampler(this.numSlowest, this.numSampled);
+  }
+
+  // Considers this query, which just finished at <currentTimeMillis>
+  public void offer(Query query, long nanos, int numCandidates, long currentTimeMillis) {
+    Sample sample = null;
+    if (this.numSlowest > 0 && (this.slowest.size() < this.numSlowest || nanos > this.slowest.peek().nanos)) {
+      sample = new Sample(query, nanos, numCandidates);
+      this.addSlow(sample);
+    }
+    for (int i = 0; i < this.numSampled; i++) {
+      if (this.selectors[i].select(currentTimeMillis)) {
+        if (sample == null)
+          sample = new Sample(query, nanos, numCandidates);
+        this.sampled[i] = sample;
+      }
+    }
+  }
+
+  // Adds the queries chosen by <other>, which has the same capacity
+  // Like Mapper.compare does for the single query at a random moment, each sampled query from <other> replaces ours only if this moment is selected
+  public void add(SlowQuerySampler other, long currentTimeMillis) {
+    for (Sample sample: other.slowest) {
+      if (this.slowest.size() < this.numSlowest || sample.nanos > this.slowest.peek().nanos)
+        this.addSlow(sample);
+    }
+    for (int i = 0; i < this.numSampled; i++) {
+      if (other.sampled[i] != null && this.selectors[i].select(currentTimeMillis))
+        this.sampled[i] = other.sampled[i];
+    }
+  }
+
+  private void addSlow(Sample sample) {
+    this.slowest.add(sample);
+    if (this.slowest.size() > this.numSlowest)
+      this.slowest.poll();
+  }
+
+  // the slowest queries, slowest first
+  public List<Sample> getSlowest() {
+    List<Sample> result = new ArrayList<Sample>(this.slowest);
+    Collections.sort(result, Collections.reverseOrder(fastestFirst));
+    return result;
+  }
+
+  // the queries chosen at random moments, without duplicates
+  public List<Sample> getSampled() {
+    List<Sample> result = new ArrayList<Sample>();
+    for (Sample sample: this.sampled) {
+      if (sample != null && !result.contains(sample))
+        result.add(sample);
+    }
+    return result;
+  }
+
+  // Saves the chosen queries in fastq format
+  // Unpaired queries are written to <path>, and paired queries are written to getPairedPath(path, 1) and getPairedPath(path, 2)
+  // The header of each read says why it was chosen, how long it took, and how many candidate positions it checked
+  public void write(String path) throws IOException {
+    List<Sample> samples = new ArrayList<Sample>();
+    List<String> reasons = new ArrayList<String>();
+    int rank = 1;
+    for (Sample sample: this.getSlowest()) {
+      samples.add(sample);
+      reasons.add("slowest_rank=" + rank);
+      rank++;
+    }
+    for (Sample sample: this.getSampled()) {
+      int index = samples.indexOf(sample);
+      if (index >= 0) {
+        reasons.set(index, reasons.get(index) + ",sampled");
+      } else {
+        samples.add(sample);
+        reasons.add("sampled");
+      }
+    }
+
+    Writer unpairedWriter = newWriter(path);
+    Writer leftWriter = null;
+    Writer rightWriter = null;
+    for (int i = 0; i < samples.size(); i++) {
+      Sample sample = samples.get(i);
+      Query query = sample.query;
+      String description = "query=" + query.getId() + " reason=" + reasons.get(i) + " millis=" + (float)((double)sample.nanos / 1000000.0) + " candidates=" + sample.numCandidates;
+      if (query.getNumSequences() == 1) {
+        writeRead(query.getSequence(0), description, unpairedWriter);
+      } else {
+        if (leftWriter == null) {
+          leftWriter = newWriter(getPairedPath(path, 1));
+          rightWriter = newWriter(getPairedPath(path, 2));
+        }
+        writeRead(query.getSequence(0), description, leftWriter);
+        writeRead(query.getSequence(1), description, rightWriter);
+      }
+    }
+    unpairedWriter.close();
+    if (leftWriter != null) {
+      leftWriter.close();
+      rightWriter.close();
+    } else {
+      // don't leave paired reads from a previous run, which --replay-queries would pick up
+      new File(getPairedPath(path, 1)).delete();
+      new File(getPairedPath(path, 2)).delete();
+    }
+  }
+
+  // The path of the file holding the <index>th read of each paired query saved to <path>
+  // For example, getPairedPath("slow.fastq", 2) is "slow_2.fastq"
+  public static String getPairedPath(String path, int index) {
+    int extensionStart = path.lastIndexOf('.');
+    if (extensionStart <= path.lastIndexOf(File.separatorChar))
+      extensionStart = path.length();
+    return path.substring(0, extensionStart) + "_" + index + path.substring(extensionStart);
+  }
+
+  private static Writer newWriter(String path) throws IOException {
+    return new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+  }
+
+  // We don't keep the quality of each query, so we write a placeholder quality
+  private static void writeRead(Sequence sequence, String description, Writer writer) throws IOException {
+    String text = sequence.getText();
+    StringBuilder quality = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      quality.append('I');
+    }
+    writer.write("@" + sequence.getName() + " " + description + "\n" + text + "\n+\n" + quality + "\n");
+  }
+
+  public static class Sample {
+    Sample(Query query, long nanos, int numCandidates) {
+      this.query = query;
+      this.nanos = nanos;
+      this.numCandidates = numCandidates;
+    }
+
+    public Query getQuery() {
+      return this.query;
+    }
+
+    public long getNanos() {
+      return this.nanos;
+    }
+
+    public int getNumCandidates() {
+      return this.numCandidates;
+    }
+
+    Query query;
+    long nanos;
+    int numCandidates;
+  }
+
+  private int numSlowest;
+  private int numSampled;
+  private PriorityQueue<Sample> slowest;
+  private Sample[] sampled;
+  private RandomMomentSelector[] selectors;
+}
@@ -0,0 +1,25 @@
+package mapper;
+
+// A Timed_Aligner measures the time spent by another LocalAligner and reports it to a QueryTimer
+public class Timed_Aligner implements LocalAligner {
+  public Timed_Aligner(LocalAligner aligner, QueryTimer timer, int phase) {
+    this.aligner = aligner;
+    this.timer = timer;
+    this.phase = phase;
+  }
+
+  public void setLogger(Logger logger) {
+    this.aligner.setLogger(logger);
+  }
+
+  public SequenceAlignment align(SequenceSection querySection, SequenceSection referenceSection, AlignmentParameters parameters, AlignmentAnalysis alignmentAnalysis) {
+    long start = this.timer.start();
+    SequenceAlignment result = this.aligner.align(querySection, referenceSection, parameters, alignmentAnalysis);
+    this.timer.stop(this.phase, start);
+    return result;
+  }
+
+  LocalAligner aligner;
+  QueryTimer timer;
+  int phase;
+}
@@ -3,6 +3,7 @@ package mapper;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -709,6 +710,49 @@ public class AlignerWorker_Test {
     }
   }
 
+  @Test
+  public void testMateRescue() {
+    doTestMateRescue(false);
+    doTestMateRescue(true);
+  }
+
+  // One end of the pair matches the reference exactly, and the other end has a mutation in every 6 basepairs, so few of its hashblocks match
+  // If <reversed>, the query aligns to the reverse strand, so the mutated end is seq1 instead of seq2
+  private void doTestMateRescue(boolean reversed) {
+    Random random = new Random(0);
+    StringBuilder referenceBuilder = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      referenceBuilder.append("ACGT".charAt(random.nextInt(4)));
+    }
+    String referenceText = referenceBuilder.toString();
+    StringBuilder mutated = new StringBuilder(referenceText.substring(1200, 1300));
+    for (int i = 3; i < mutated.length(); i += 6) {
+      mutated.setCharAt(i, mutated.charAt(i) == 'A' ? 'C' : 'A');
+    }
+    String anchorText = referenceText.substring(1000, 1100);
+    String mateText = new SequenceBuilder().setName("temp").add(mutated.toString()).build().reverseComplement().getText();
+    Query query;
+    int anchorIndex;
+    if (reversed) {
+      query = new Query(new SequenceBuilder().setName("query1").add(mateText).build(), new SequenceBuilder().setName("query2").add(anchorText).build(), 100, 2);
+      anchorIndex = 1;
+    } else {
+      query = new Query(new SequenceBuilder().setName("query1").add(anchorText).build(), new SequenceBuilder().setName("query2").add(mateText).build(), 100, 2);
+      anchorIndex = 0;
+    }
+    int mateIndex = 1 - anchorIndex;
+    AlignmentParameters parameters = makeParameters();
+    parameters.UseMateRescue = true;
+    List<QueryAlignment> alignments = align(query, referenceText, parameters);
+    QueryAlignment alignment = verifyOneAlignment(alignments);
+    if (alignment.getComponent(anchorIndex).getStartIndexB() != 1000) {
+      fail("With reversed = " + reversed + ", expected seq" + (anchorIndex + 1) + " to align at 1000, not " + alignment.getComponent(anchorIndex).getStartIndexB());
+    }
+    if (alignment.getComponent(mateIndex).getStartIndexB() != 1200) {
+      fail("With reversed = " + reversed + ", expected seq" + (mateIndex + 1) + " to align at 1200, not " + alignment.getComponent(mateIndex).getStartIndexB());
+    }
+  }
+
   private void doTestPairedEndQueries(boolean reverseQuerySequence2, int expectedNumMatches) {
     String reference = "AAAAAAAAAAACGGAAAGAAATAACTTAAACGAACTAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAACGGAAAGAAATAAA";
     String sequence1 =            "CGGAAAGAAA";                                                        // could also be here
@@ -0,0 +1,129 @@
+package mapper;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BandedAligner_Test {
+  public BandedAligner_Test() {
+  }
+
+  @Test
+  public void testInsertion() {
+    String query        =    "ACGTTGCAAGGCTTACGGATCCA";
+    String ref          = "TTTACGTTGCAAGCTTACGGATCCATTT";
+    AlignmentParameters parameters = makeParameters();
+    parameters.MaxErrorRate = 1;
+    check(query, ref, 3, parameters);
+  }
+
+  @Test
+  public void testDeletion() {
+    String query        =    "ACGTTGCAAGCTTACGGATCCA";
+    String ref          = "TTTACGTTGCAAGTTCTTACGGATCCATTT";
+    AlignmentParameters parameters = makeParameters();
+    parameters.MaxErrorRate = 1;
+    check(query, ref, 3, parameters);
+  }
+
+  // The reference section doesn't touch either end of the reference, so an insertion at the start of the query gets the usual penalty even when StartingInsertionStartFree is set
+  @Test
+  public void testStartingInsertion() {
+    AlignmentParameters parameters = makeParameters();
+    parameters.MaxErrorRate = 1;
+    parameters.StartingInsertionStartFree = true;
+    String query = "GGACGTTGCAAGCTTACGGATCCA";
+    String ref   = "TTTACGTTGCAAGCTTACGGATCCATTT";
+    check(query, ref, 1, ref.length() - 1, 1, parameters);
+  }
+
+  @Test
+  public void testNoAlignmentWithinPenalty() {
+    String query = "ACGTACGTACGTACGTACGT";
+    String ref   = "TGCATGCATGCATGCATGCA";
+    AlignmentParameters parameters = makeParameters();
+    SequenceAlignment result = align(query, ref, 0, parameters, new BandedAligner(new PathAligner_Runner()));
+    if (result != null) {
+      fail("Expected no alignment but got alignment with penalty " + result.getPenalty() + ":\n" + result.format());
+    }
+  }
+
+  // Compares the BandedAligner against the PathAligner on sequences containing some random mutations
+  @Test
+  public void testSamePenaltyAsPathAligner() {
+    Random random = new Random(0);
+    AlignmentParameters parameters = makeParameters();
+    parameters.MaxErrorRate = 0.25;
+    for (int trial = 0; trial < 200; trial++) {
+      String ref = RandomText.randomText(random, 60);
+      int start = 10;
+      String query = RandomText.mutate(random, ref.substring(start, start + 40), 3, 5);
+      SequenceAlignment pathResult = align(query, ref, start, parameters, new PathAligner_Runner());
+      SequenceAlignment bandedResult = align(query, ref, start, parameters, new BandedAligner(new PathAligner_Runner()));
+      if (pathResult == null)
+        continue;
+      if (bandedResult == null) {
+        fail("BandedAligner found no alignment for query " + query + " and reference " + ref + " but PathAligner found:\n" + pathResult.format());
+      }
+      if (bandedResult.getPenalty() > pathResult.getPenalty() + 0.000001) {
+        fail("BandedAligner found alignment with penalty " + bandedResult.getPenalty() + ":\n" + bandedResult.format() + "\nbut PathAligner found alignment with penalty " + pathResult.getPenalty() + ":\n" + pathResult.format());
+      }
+    }
+  }
+
+  // Checks that the BandedAligner finds the same alignment as the PathAligner
+  private void check(String textA, String textB, int offset, AlignmentParameters parameters) {
+    check(textA, textB, 0, textB.length(), offset, parameters);
+  }
+
+  // Checks that the BandedAligner finds the same alignment as the PathAligner when aligning to textB[referenceStart:referenceEnd]
+  private void check(String textA, String textB, int referenceStart, int referenceEnd, int offset, AlignmentParameters parameters) {
+    SequenceAlignment bandedResult = align(textA, textB, referenceStart, referenceEnd, offset, parameters, new BandedAligner(new PathAligner_Runner()));
+    SequenceAlignment pathResult = align(textA, textB, referenceStart, referenceEnd, offset, parameters, new PathAligner_Runner());
+    if (pathResult == null) {
+      fail("PathAligner found no alignment of " + textA + " to " + textB);
+    }
+    if (bandedResult == null) {
+      fail("Expected alignment:\n" + pathResult.format() + "\nnot null");
+    }
+    if (bandedResult.getPenalty() != pathResult.getPenalty()) {
+      fail("Expected alignment penalty of " + pathResult.getPenalty() + " for alignment\n" + pathResult.format() + "\nbut got " + bandedResult.getPenalty() + " for alignment:\n" + bandedResult.format());
+    }
+    if (!bandedResult.getAlignedTextA().equals(pathResult.getAlignedTextA()) || !bandedResult.getAlignedTextB().equals(pathResult.getAlignedTextB())) {
+      fail("Expected alignment:\n" + pathResult.format() + "\nbut got alignment:\n" + bandedResult.format());
+    }
+  }
+
+  private SequenceAlignment align(String textA, String textB, int offset, AlignmentParameters parameters, LocalAligner aligner) {
+    return align(textA, textB, 0, textB.length(), offset, parameters, aligner);
+  }
+
+  private SequenceAlignment align(String textA, String textB, int referenceStart, int referenceEnd, int offset, AlignmentParameters parameters, LocalAligner aligner) {
+    Sequence a = new SequenceBuilder().setName("a").add(textA).build();
+    Sequence b = new SequenceBuilder().setName("b").add(textB).build();
+    aligner.setLogger(new Logger(new StderrWriter()));
+    AlignmentAnalysis analysis = new AlignmentAnalysis();
+    analysis.predictedBestOffset = offset;
+    analysis.confidentAboutBestOffset = true;
+    analysis.maxInsertionExtensionPenalty = 4;
+    analysis.maxDeletionExtensionPenalty = 4;
+    return aligner.align(new SequenceSection(a, 0, a.getLength()), new SequenceSection(b, referenceStart, referenceEnd), parameters, analysis);
+  }
+
+  private void fail(String message) {
+    Assert.fail(message);
+  }
+
+  private AlignmentParameters makeParameters() {
+    AlignmentParameters parameters = new AlignmentParameters();
+    parameters.MutationPenalty = 1;
+    parameters.InsertionStart_Penalty = 2;
+    parameters.InsertionExtension_Penalty = 0.5;
+    parameters.DeletionStart_Penalty = 2;
+    parameters.DeletionExtension_Penalty = 0.5;
+    parameters.MaxErrorRate = 0.1;
+    parameters.AmbiguityPenalty = 0.1;
+    parameters.UnalignedPenalty = parameters.AmbiguityPenalty;
+    return parameters;
+  }
+}
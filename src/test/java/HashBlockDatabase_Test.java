@@ -1,5 +1,8 @@
 package mapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Assert;
@@ -26,6 +29,66 @@ public class HashBlockDatabase_Test {
     db1.verifyMatches(db2);
   }
 
+  @Test
+  public void testSpillMatchesInMemory() throws IOException {
+    Sequence a = new SequenceBuilder().setName("contig1").add("ACGTTGCAACCGGTTAACGTAGCTAGCTAACGGT").build();
+    Sequence b = new SequenceBuilder().setName("contig2").add("CTTTTTTTGACGTACGATCGATGCATGCAACGTT").build();
+    List<Sequence> list1 = new ArrayList<Sequence>();
+    list1.add(a);
+    list1.add(b);
+    SequenceDatabase s = new SequenceDatabase(list1, true);
+    StatusLogger statusLogger = new StatusLogger(new Logger(new StderrWriter()), 0);
+    File cacheDir = Files.createTempDirectory("cache").toFile();
+    int previousRecordsPerRun = HashBlock_Database.spillRecordsPerRun;
+    int previousMaxRunsPerMerge = HashBlock_Spill.maxRunsPerMerge;
+    // use small runs and merges so that building the database writes and merges several runs
+    HashBlock_Database.spillRecordsPerRun = 8;
+    HashBlock_Spill.maxRunsPerMerge = 3;
+    try {
+      HashBlock_Database inMemory = new HashBlock_Database(s, 1, 1, -1, true, null, statusLogger, false);
+      HashBlock_Database spilled = new HashBlock_Database(s, 1, 1, -1, true, new DirCache(cacheDir, StorageFilesystem.Instance), statusLogger, false);
+      spilled.setSpillToDisk();
+      inMemory.requireSetUpThroughSize(100);
+      spilled.requireSetUpThroughSize(100);
+      inMemory.verifyMatches(spilled);
+    } finally {
+      HashBlock_Database.spillRecordsPerRun = previousRecordsPerRun;
+      HashBlock_Spill.maxRunsPerMerge = previousMaxRunsPerMerge;
+    }
+  }
+
+  @Test
+  public void testCountKeysFirstChoosesCapacities() {
+    Sequence a = new SequenceBuilder().setName("contig1").add("ACGTTGCAACCGGTTAACGTAGCTAGCTAACGGT").build();
+    Sequence b = new SequenceBuilder().setName("contig2").add("CTTTTTTTGACGTACGATCGATGCATGCAACGTT").build();
+    List<Sequence> list1 = new ArrayList<Sequence>();
+    list1.add(a);
+    list1.add(b);
+    SequenceDatabase s = new SequenceDatabase(list1, true);
+    StatusLogger statusLogger = new StatusLogger(new Logger(new StderrWriter()), 0);
+    HashBlock_Database db = new HashBlock_Database(s, 1, 8, -1, true, null, statusLogger, false);
+    // setCountKeysFirst is called after the constructor, like in Mapper, and should still apply to the first pass
+    db.setCountKeysFirst();
+    db.requireSetUpThroughSize(4);
+    if (db.keyCounter == null)
+      fail("First pass did not count keys");
+    int numChecked = 0;
+    for (int length = db.getMinInterestingSize(); length <= db.maxFullySetUpSize; length++) {
+      long numKeys = db.keyCounter.estimateNumKeys(length);
+      if (numKeys <= 0)
+        continue;
+      long expectedCapacity = numKeys;
+      if (expectedCapacity % 2 == 0)
+        expectedCapacity++;
+      int capacity = db.hashedBlocks.get(length).getCapacity();
+      if (capacity != expectedCapacity)
+        fail("PackedMap of length " + length + " has capacity " + capacity + " but counted " + numKeys + " keys");
+      numChecked++;
+    }
+    if (numChecked < 1)
+      fail("No PackedMaps were sized from counted keys");
+  }
+
   private void fail(String message) {
     Assert.fail(message);
   }
@@ -1,7 +1,12 @@
 package mapper;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -45,6 +50,118 @@ public class HashBlockPaths_Counter_Test {
 
   }
 
+  @Test
+  public void checkJoinMatchesTreeMapJoin() {
+    checkJoinMatchesTreeMapJoin(20, 40);
+    checkJoinMatchesTreeMapJoin(40, 20);
+  }
+
+  // Makes several candidates for each end of a paired query, on several contigs and strands, and checks that they are paired up the same way as by a TreeMap
+  private void checkJoinMatchesTreeMapJoin(int numCandidates1, int numCandidates2) {
+    Sequence query1 = new SequenceBuilder().setName("seq1").add("GAACAGTGCA").build();
+    Sequence query2 = new SequenceBuilder().setName("seq2").add("AACTAAGGGG").build();
+    Sequence reference = new SequenceBuilder().setName("ref").add("GGGGGAACAGTGCAGGGGGAACTAAGGGGAATTGTATATAGCG").build();
+    List<Sequence> referenceSequences = new ArrayList<Sequence>();
+    referenceSequences.add(reference);
+    referenceSequences.add(reference.reverseComplement());
+    SequenceDatabase referenceDatabase = new SequenceDatabase(referenceSequences);
+    List<Counting_HashBlockPath> paths = new ArrayList<Counting_HashBlockPath>();
+    paths.add(makePath(query1, referenceDatabase, "fwd-query"));
+    paths.add(makePath(query2, referenceDatabase, "rev-query"));
+    int maxInnerDistance = 20;
+    HashBlockPaths_Counter counter = new HashBlockPaths_Counter(paths, 10, maxInnerDistance, new Logger(new StderrWriter()));
+    int maxOffsetBetweenComponents = maxInnerDistance + query1.getLength();
+
+    List<Sequence> contigs = new ArrayList<Sequence>();
+    for (int i = 0; i < 3; i++) {
+      contigs.add(new SequenceBuilder().setName("contig" + i).add("ACGTACGTAC").build());
+    }
+    Random random = new Random(1);
+    List<List<HashBlockMatch_Counter>> components = new ArrayList<List<HashBlockMatch_Counter>>();
+    components.add(makeCandidates(query1, contigs, numCandidates1, random));
+    components.add(makeCandidates(query2, contigs, numCandidates2, random));
+
+    List<QueryMatch> actual = counter.matchWithoutCache(components);
+    List<List<HashBlockMatch_Counter>> expected = joinWithTreeMaps(components, maxOffsetBetweenComponents);
+    if (actual.size() != expected.size()) {
+      fail("Expected " + expected.size() + " pairs, got " + actual.size());
+    }
+    if (expected.size() < 1) {
+      fail("Expected some candidates to be nearby each other");
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      for (int j = 0; j < 2; j++) {
+        Assert.assertSame(expected.get(i).get(j).getMatch(), actual.get(i).getComponent(j));
+      }
+    }
+  }
+
+  private List<HashBlockMatch_Counter> makeCandidates(Sequence query, List<Sequence> contigs, int count, Random random) {
+    Sequence reverseQuery = query.reverseComplement();
+    List<HashBlock> history = new ArrayList<HashBlock>();
+    history.add(new HashBlock(0, 4));
+    List<HashBlockMatch_Counter> candidates = new ArrayList<HashBlockMatch_Counter>();
+    for (int i = 0; i < count; i++) {
+      Sequence contig = contigs.get(random.nextInt(contigs.size()));
+      Sequence sequenceA = random.nextBoolean() ? query : reverseQuery;
+      // a small range of offsets so that some candidates share an offset
+      int offset = random.nextInt(80);
+      candidates.add(new HashBlockMatch_Counter(new SequenceMatch(sequenceA, contig, offset), history, 0, -1));
+    }
+    return candidates;
+  }
+
+  // pairs up candidates the way HashBlockPaths_Counter did before it used a HashBlockPaths_Joiner
+  private List<List<HashBlockMatch_Counter>> joinWithTreeMaps(List<List<HashBlockMatch_Counter>> components, int maxOffsetBetweenComponents) {
+    Map<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> forwardMatchingComponents = new IdentityHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>>();
+    Map<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> reverseMatchingComponents = new IdentityHashMap<Sequence, TreeMap<Integer, HashBlockMatch_Counter>>();
+    List<List<HashBlockMatch_Counter>> matchedCounters = new ArrayList<List<HashBlockMatch_Counter>>();
+    boolean lastComponentIsLargest = components.get(0).size() <= components.get(1).size();
+    for (int i = 0; i < 2; i++) {
+      int componentIndex = lastComponentIsLargest ? i : 1 - i;
+      for (HashBlockMatch_Counter counter: components.get(componentIndex)) {
+        SequenceMatch match = counter.getMatch();
+        boolean queryMatchReversed = (match.getReversed() == (componentIndex % 2 == 0));
+        Map<Sequence, TreeMap<Integer, HashBlockMatch_Counter>> matchingComponents = queryMatchReversed ? reverseMatchingComponents : forwardMatchingComponents;
+        TreeMap<Integer, HashBlockMatch_Counter> matchesOnThisSequence = matchingComponents.get(match.getSequenceB());
+        if (matchesOnThisSequence == null) {
+          matchesOnThisSequence = new TreeMap<Integer, HashBlockMatch_Counter>();
+          matchingComponents.put(match.getSequenceB(), matchesOnThisSequence);
+        }
+        int offset = match.getOffset();
+        if (i == 0) {
+          matchesOnThisSequence.put(offset, counter);
+          continue;
+        }
+        int maxReverseOffset = match.getSequenceA().getLength() / 2;
+        int searchStart, searchEnd;
+        if (queryMatchReversed == lastComponentIsLargest) {
+          searchStart = offset - maxReverseOffset;
+          searchEnd = offset + maxOffsetBetweenComponents;
+        } else {
+          searchStart = offset - maxOffsetBetweenComponents;
+          searchEnd = offset + maxReverseOffset;
+        }
+        NavigableMap<Integer, HashBlockMatch_Counter> nearbyEntries = matchesOnThisSequence.subMap(searchStart, true, searchEnd, true);
+        if (queryMatchReversed) {
+          nearbyEntries = nearbyEntries.descendingMap();
+        }
+        for (HashBlockMatch_Counter nearby: nearbyEntries.values()) {
+          List<HashBlockMatch_Counter> pair = new ArrayList<HashBlockMatch_Counter>(2);
+          if (lastComponentIsLargest) {
+            pair.add(nearby);
+            pair.add(counter);
+          } else {
+            pair.add(counter);
+            pair.add(nearby);
+          }
+          matchedCounters.add(pair);
+        }
+      }
+    }
+    return matchedCounters;
+  }
+
   private void checkDistance(String refText, String seq1Text, String seq2Text, int innerDistance, int outerDistance) {
     System.err.println("checkDistance ref = '" + refText + "' seq1 = '" + seq1Text + "' seq2 = '" + seq2Text + "'");
     List<QueryMatch> matches = getMatches(refText, seq1Text, seq2Text);
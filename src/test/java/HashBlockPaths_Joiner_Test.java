@@ -0,0 +1,63 @@
+package mapper;
+
+import java.util.ArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashBlockPaths_Joiner_Test {
+  public HashBlockPaths_Joiner_Test() {
+  }
+
+  @Test
+  public void testFindsNearbyInOrder() {
+    Sequence query = new SequenceBuilder().setName("query").add("ACGT").build();
+    Sequence contig1 = new SequenceBuilder().setName("contig1").add("ACGTACGTACGTACGTACGT").build();
+    Sequence contig2 = new SequenceBuilder().setName("contig2").add("ACGTACGTACGTACGTACGT").build();
+    HashBlockPaths_Joiner joiner = new HashBlockPaths_Joiner();
+    HashBlockMatch_Counter a = makeCounter(query, contig1, 8);
+    HashBlockMatch_Counter b = makeCounter(query, contig1, 2);
+    HashBlockMatch_Counter c = makeCounter(query, contig2, 4);
+    HashBlockMatch_Counter d = makeCounter(query, contig1, 5);
+    HashBlockMatch_Counter e = makeCounter(query, contig1, 15);
+    joiner.add(a, false);
+    joiner.add(b, false);
+    joiner.add(c, false);
+    joiner.add(d, true);
+    joiner.add(e, false);
+    joiner.sort();
+
+    Assert.assertEquals(2, joiner.findNearby(contig1, false, 0, 10, false));
+    Assert.assertSame(b, joiner.getFound(0));
+    Assert.assertSame(a, joiner.getFound(1));
+
+    Assert.assertEquals(2, joiner.findNearby(contig1, false, 0, 10, true));
+    Assert.assertSame(a, joiner.getFound(0));
+    Assert.assertSame(b, joiner.getFound(1));
+
+    Assert.assertEquals(1, joiner.findNearby(contig1, true, 0, 10, false));
+    Assert.assertSame(d, joiner.getFound(0));
+
+    Assert.assertEquals(1, joiner.findNearby(contig2, false, 4, 4, false));
+    Assert.assertSame(c, joiner.getFound(0));
+
+    Assert.assertEquals(0, joiner.findNearby(contig2, true, 0, 20, false));
+  }
+
+  @Test
+  public void testKeepsLastCandidateAtSameOffset() {
+    Sequence query = new SequenceBuilder().setName("query").add("ACGT").build();
+    Sequence contig = new SequenceBuilder().setName("contig").add("ACGTACGTACGT").build();
+    HashBlockPaths_Joiner joiner = new HashBlockPaths_Joiner();
+    HashBlockMatch_Counter first = makeCounter(query, contig, 3);
+    HashBlockMatch_Counter second = makeCounter(query, contig, 3);
+    joiner.add(first, false);
+    joiner.add(second, false);
+    joiner.sort();
+    Assert.assertEquals(1, joiner.findNearby(contig, false, 0, 5, false));
+    Assert.assertSame(second, joiner.getFound(0));
+  }
+
+  private HashBlockMatch_Counter makeCounter(Sequence query, Sequence reference, int offset) {
+    return new HashBlockMatch_Counter(new SequenceMatch(query, reference, offset), new ArrayList<HashBlock>(), 0, -1);
+  }
+}
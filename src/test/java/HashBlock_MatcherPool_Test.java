@@ -0,0 +1,100 @@
+package mapper;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashBlock_MatcherPool_Test {
+  public HashBlock_MatcherPool_Test() {
+  }
+
+  @Test
+  public void testTableClear() {
+    HashBlock_MatcherTable table = new HashBlock_MatcherTable(16);
+    Assert.assertEquals(HashBlock_Matcher.NO_MATCHES, table.get(3));
+    table.put(3, 100);
+    table.put(4, HashBlock_Matcher.MULTIPLE_MATCHES);
+    Assert.assertEquals(100, table.get(3));
+    Assert.assertEquals(HashBlock_Matcher.MULTIPLE_MATCHES, table.get(4));
+    table.clear();
+    Assert.assertEquals(HashBlock_Matcher.NO_MATCHES, table.get(3));
+    Assert.assertEquals(HashBlock_Matcher.NO_MATCHES, table.get(4));
+    table.put(3, 7);
+    Assert.assertEquals(7, table.get(3));
+  }
+
+  @Test
+  public void testReusesTablesAfterClear() {
+    HashBlock_MatcherPool pool = new HashBlock_MatcherPool();
+    HashBlock_MatcherTable first = pool.takeTable(64);
+    first.put(5, 10);
+    HashBlock_MatcherTable second = pool.takeTable(64);
+    Assert.assertNotSame(first, second);
+    pool.clear();
+    HashBlock_MatcherTable reused = pool.takeTable(64);
+    Assert.assertTrue(reused == first || reused == second);
+    Assert.assertEquals(HashBlock_Matcher.NO_MATCHES, reused.get(5));
+    Assert.assertNotSame(first, pool.takeTable(16));
+  }
+
+  @Test
+  public void testReusesMatcherForSameWindow() {
+    Sequence query = new SequenceBuilder().setName("query").add("ACGTTGCAACGTAC").build();
+    Sequence reference = new SequenceBuilder().setName("reference").add("GGGGACGTTGCAACGTACGGGGTTTTCCCCAAAA").build();
+    HashBlock_MatcherPool pool = new HashBlock_MatcherPool();
+    HashBlock_Matcher matcher = pool.getMatcher(query, null, new SequenceSection(reference, 0, 30), 10);
+    Assert.assertSame(matcher, pool.getMatcher(query, null, new SequenceSection(reference, 0, 30), 10));
+    Assert.assertNotSame(matcher, pool.getMatcher(query, null, new SequenceSection(reference, 2, 30), 10));
+    Assert.assertEquals(4, matcher.lookup(0, 0, 9));
+    Assert.assertEquals(HashBlock_Matcher.MULTIPLE_MATCHES, matcher.lookup(0));
+    pool.clear();
+    Assert.assertNotSame(matcher, pool.getMatcher(query, null, new SequenceSection(reference, 0, 30), 10));
+  }
+
+  @Test
+  public void testReuseGivesSameResults() {
+    Random random = new Random(0);
+    Sequence reference = new SequenceBuilder().setName("reference").add(RandomText.randomText(random, 400) + "NNNN" + RandomText.randomText(random, 200)).build();
+    Sequence query = new SequenceBuilder().setName("query").add(reference.getRange(150, 100) + RandomText.randomText(random, 20)).build();
+    Sequence otherQuery = new SequenceBuilder().setName("other").add(RandomText.randomText(random, 120)).build();
+    SequenceSection window = new SequenceSection(reference, 50, 500);
+    int sectionLength = 20;
+
+    HashBlock_MatcherPool pool = new HashBlock_MatcherPool();
+    // fill some tables with another query's lookups, so they're reused after clear()
+    HashBlock_Matcher other = pool.getMatcher(otherQuery, null, window, sectionLength);
+    checkSameLookups(other, new HashBlock_Matcher(otherQuery, window, sectionLength), otherQuery, random);
+    pool.clear();
+
+    // each of these lookup sequences skips some sections, and a reused matcher should skip the same ones as a new matcher
+    HashBlock_Matcher pooled = pool.getMatcher(query, null, window, sectionLength);
+    checkSameLookups(pooled, new HashBlock_Matcher(query, window, sectionLength), query, random);
+    Assert.assertSame(pooled, pool.getMatcher(query, null, window, sectionLength));
+    checkSameLookups(pooled, new HashBlock_Matcher(query, window, sectionLength), query, random);
+  }
+
+  @Test
+  public void testSkippedSectionsAreUnknown() {
+    Random random = new Random(1);
+    Sequence reference = new SequenceBuilder().setName("reference").add(RandomText.randomText(random, 400)).build();
+    Sequence query = new SequenceBuilder().setName("query").add(reference.getRange(150, 100)).build();
+    SequenceSection window = new SequenceSection(reference, 50, 400);
+    HashBlock_Matcher matcher = new HashBlock_Matcher(query, window, 20);
+    Assert.assertEquals(150, matcher.lookup(0, 140, 160));
+    matcher = new HashBlock_Matcher(query, window, 20);
+    matcher.lookup(0, 300, 320);
+    // the section containing position 150 was skipped by the previous lookup
+    Assert.assertEquals(HashBlock_Matcher.UNKNOWN, matcher.lookup(0, 140, 160));
+  }
+
+  // checks that <matcher> and <expected> give the same results for some random lookups
+  private void checkSameLookups(HashBlock_Matcher matcher, HashBlock_Matcher expected, Sequence query, Random random) {
+    for (int i = 0; i < 200; i++) {
+      int queryIndex = random.nextInt(query.getLength());
+      int minReferenceIndex = random.nextInt(600);
+      int maxReferenceIndex = minReferenceIndex + random.nextInt(200);
+      int expectedResult = expected.lookup(queryIndex, minReferenceIndex, maxReferenceIndex);
+      Assert.assertEquals(expectedResult, matcher.lookup(queryIndex, minReferenceIndex, maxReferenceIndex));
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashBlock_Spill_Test {
+  public HashBlock_Spill_Test() {
+  }
+
+  @Test
+  public void testGroupRoundTrip() {
+    long group = HashBlock_Spill.makeGroup(37, -5, true);
+    Assert.assertEquals(37, HashBlock_Spill.getLength(group));
+    Assert.assertEquals(-5, HashBlock_Spill.getKey(group));
+    Assert.assertTrue(HashBlock_Spill.getPreventDuplicates(group));
+    group = HashBlock_Spill.makeGroup(12, Integer.MAX_VALUE, false);
+    Assert.assertEquals(12, HashBlock_Spill.getLength(group));
+    Assert.assertEquals(Integer.MAX_VALUE, HashBlock_Spill.getKey(group));
+    Assert.assertFalse(HashBlock_Spill.getPreventDuplicates(group));
+    // shorter lengths sort first, regardless of key
+    Assert.assertTrue(HashBlock_Spill.makeGroup(12, -1, true) < HashBlock_Spill.makeGroup(13, 0, false));
+  }
+
+  @Test
+  public void testMergedRunsAreSorted() throws IOException {
+    File dir = Files.createTempDirectory("spill").toFile();
+    HashBlock_Spill spill = new HashBlock_Spill(dir, null, 100);
+    Random random = new Random(0);
+    int numRecords = 0;
+    for (int buffer = 0; buffer < 3; buffer++) {
+      HashBlock_RunBuffer runBuffer = spill.newBuffer();
+      for (int i = 0; i < 250; i++) {
+        int length = 10 + random.nextInt(5);
+        runBuffer.add(HashBlock_Spill.makeGroup(length, random.nextInt(), random.nextBoolean()), random.nextInt(1000));
+        numRecords++;
+      }
+      runBuffer.flush();
+    }
+    Assert.assertEquals(9, spill.getNumRuns());
+    Assert.assertEquals(numRecords, spill.getNumRecords());
+
+    int numMerged = 0;
+    for (int length = 10; length < 15; length++) {
+      HashBlock_RunMerger merger = spill.openMerger(length);
+      long previousKey = Long.MIN_VALUE;
+      boolean previousPreventDuplicates = false;
+      while (merger.next()) {
+        Assert.assertEquals(length, merger.getLength());
+        // sorted by whether to prevent duplicates, and then by key
+        if (merger.getPreventDuplicates() == previousPreventDuplicates)
+          Assert.assertTrue(((long)merger.getKey() & 0xffffffffL) >= previousKey);
+        previousPreventDuplicates = merger.getPreventDuplicates();
+        previousKey = (long)merger.getKey() & 0xffffffffL;
+        numMerged++;
+      }
+      merger.close();
+    }
+    Assert.assertEquals(numRecords, numMerged);
+    spill.clear();
+    Assert.assertEquals(0, dir.list().length);
+    dir.delete();
+  }
+
+  @Test
+  public void testMergesInBoundedPasses() throws IOException {
+    File dir = Files.createTempDirectory("spill").toFile();
+    HashBlock_Spill spill = new HashBlock_Spill(dir, null, 10);
+    Random random = new Random(2);
+    List<Long> expected = new ArrayList<Long>();
+    HashBlock_RunBuffer runBuffer = spill.takeBuffer();
+    for (int i = 0; i < 200; i++) {
+      int key = random.nextInt(1000);
+      runBuffer.add(HashBlock_Spill.makeGroup(10, key, false), i);
+      expected.add(((long)key << 32) | i);
+    }
+    runBuffer.flush();
+    spill.returnBuffer(runBuffer);
+    Assert.assertSame(runBuffer, spill.takeBuffer());
+    Assert.assertEquals(20, spill.getNumRuns());
+    Collections.sort(expected);
+
+    int previousMaxRunsPerMerge = HashBlock_Spill.maxRunsPerMerge;
+    HashBlock_Spill.maxRunsPerMerge = 3;
+    try {
+      HashBlock_RunMerger merger = spill.openMerger(10);
+      for (long record: expected) {
+        Assert.assertTrue(merger.next());
+        Assert.assertEquals((int)(record >>> 32), merger.getKey());
+        Assert.assertEquals(record & 0xffffffffL, merger.getPosition());
+      }
+      Assert.assertFalse(merger.next());
+      merger.close();
+    } finally {
+      HashBlock_Spill.maxRunsPerMerge = previousMaxRunsPerMerge;
+    }
+    spill.clear();
+    Assert.assertEquals(0, dir.list().length);
+    dir.delete();
+  }
+
+  @Test
+  public void testSpillsShareParentDir() throws IOException {
+    File dir = Files.createTempDirectory("spill").toFile();
+    HashBlock_Spill spill1 = new HashBlock_Spill(dir, null, 10);
+    HashBlock_Spill spill2 = new HashBlock_Spill(dir, null, 10);
+    HashBlock_RunBuffer buffer1 = spill1.newBuffer();
+    buffer1.add(HashBlock_Spill.makeGroup(10, 1, false), 5);
+    buffer1.flush();
+    HashBlock_RunBuffer buffer2 = spill2.newBuffer();
+    buffer2.add(HashBlock_Spill.makeGroup(10, 2, false), 6);
+    buffer2.flush();
+    Assert.assertEquals(2, dir.list().length);
+
+    // clearing one spill shouldn't delete the runs of the other
+    spill1.clear();
+    Assert.assertEquals(1, dir.list().length);
+    HashBlock_RunMerger merger = spill2.openMerger(10);
+    Assert.assertTrue(merger.next());
+    Assert.assertEquals(2, merger.getKey());
+    Assert.assertEquals(6, merger.getPosition());
+    Assert.assertFalse(merger.next());
+    merger.close();
+    spill2.clear();
+    Assert.assertEquals(0, dir.list().length);
+    dir.delete();
+  }
+
+  @Test
+  public void testSort() {
+    Random random = new Random(1);
+    int count = 1000;
+    long[] groups = new long[count];
+    long[] positions = new long[count];
+    for (int i = 0; i < count; i++) {
+      groups[i] = random.nextInt(20);
+      positions[i] = random.nextInt(50);
+    }
+    HashBlock_RunBuffer.sort(groups, positions, 0, count - 1);
+    for (int i = 1; i < count; i++) {
+      Assert.assertTrue(HashBlock_RunBuffer.compare(groups[i - 1], positions[i - 1], groups[i], positions[i]) <= 0);
+    }
+  }
+}
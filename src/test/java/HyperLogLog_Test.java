@@ -0,0 +1,41 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLog_Test {
+  public HyperLogLog_Test() {
+  }
+
+  @Test
+  public void testSmallCount() {
+    HyperLogLog counter = new HyperLogLog();
+    for (int i = 0; i < 100; i++) {
+      counter.add(i);
+      counter.add(i);
+    }
+    Assert.assertEquals(100, counter.estimateCount(), 2);
+  }
+
+  @Test
+  public void testLargeCount() {
+    HyperLogLog counter = new HyperLogLog();
+    int count = 1000000;
+    for (int i = 0; i < count; i++) {
+      counter.add(i * 31);
+    }
+    Assert.assertEquals(count, counter.estimateCount(), count * 0.03);
+  }
+
+  @Test
+  public void testAddAll() {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (int i = 0; i < 50000; i++) {
+      a.add(i);
+      b.add(i + 25000);
+    }
+    a.addAll(b);
+    Assert.assertEquals(75000, a.estimateCount(), 75000 * 0.03);
+  }
+}
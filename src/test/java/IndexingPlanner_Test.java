@@ -0,0 +1,41 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexingPlanner_Test {
+  public IndexingPlanner_Test() {
+  }
+
+  @Test
+  public void testLargeBudgetReachesRequestedLength() {
+    IndexingPlanner planner = new IndexingPlanner(64L * 1024 * 1024 * 1024, 1000000, 4, true);
+    planner.plan(1, 10, 30, 8, 0);
+    Assert.assertEquals(30, planner.getMaxLength());
+    Assert.assertEquals(8, planner.getNumHashers());
+    Assert.assertTrue(planner.getFitsInBudget());
+  }
+
+  @Test
+  public void testSmallBudgetHashesFewerLengthsAndUsesFewerThreads() {
+    long totalForwardSize = 1000000000L;
+    IndexingPlanner large = new IndexingPlanner(64L * 1024 * 1024 * 1024, totalForwardSize, 4, true);
+    large.plan(1, 10, 30, 8, 0);
+    long budget = large.getProjectedPeakBytes() / 4;
+    IndexingPlanner small = new IndexingPlanner(budget, totalForwardSize, 4, true);
+    small.plan(1, 10, 30, 8, 0);
+    Assert.assertTrue(small.getMaxLength() < large.getMaxLength());
+    Assert.assertTrue(small.getMaxLength() >= 10);
+    Assert.assertTrue(small.getNumHashers() <= large.getNumHashers());
+    Assert.assertTrue(small.getProjectedPeakBytes() < large.getProjectedPeakBytes());
+  }
+
+  @Test
+  public void testAlwaysHashesRequiredLength() {
+    IndexingPlanner planner = new IndexingPlanner(1, 1000000000L, 4, true);
+    planner.plan(5, 12, 30, 8, 0);
+    Assert.assertEquals(12, planner.getMaxLength());
+    Assert.assertEquals(1, planner.getNumHashers());
+    Assert.assertFalse(planner.getFitsInBudget());
+  }
+}
@@ -0,0 +1,57 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogram_Test {
+  public LatencyHistogram_Test() {
+  }
+
+  @Test
+  public void testBucketsContainTheirValues() {
+    long[] values = new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+    for (long value: values) {
+      int index = LatencyHistogram.getBucketIndex(value);
+      long max = LatencyHistogram.getBucketMax(index);
+      Assert.assertTrue("value " + value + " exceeds bucket max " + max, value <= max);
+      if (index > 0) {
+        long previousMax = LatencyHistogram.getBucketMax(index - 1);
+        Assert.assertTrue("value " + value + " belongs in an earlier bucket", value > previousMax);
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    Assert.assertEquals(1000, histogram.getCount());
+    Assert.assertEquals(1000000, histogram.getMaxNanos());
+    long p50 = histogram.getNanosAtPercentile(50);
+    Assert.assertTrue("p50 = " + p50, p50 >= 500000 && p50 <= 500000 * 9 / 8);
+    long p99 = histogram.getNanosAtPercentile(99);
+    Assert.assertTrue("p99 = " + p99, p99 >= 990000 && p99 <= 1000000);
+  }
+
+  @Test
+  public void testNestedPhasesAreExclusive() throws InterruptedException {
+    QueryTimer timer = new QueryTimer();
+    timer.startQuery();
+    long queryStart = System.nanoTime();
+    long outerStart = timer.start();
+    Thread.sleep(5);
+    long innerStart = timer.start();
+    Thread.sleep(20);
+    timer.stop(QueryTimer.SEED_LOOKUP, innerStart);
+    timer.stop(QueryTimer.CANDIDATE_RANKING, outerStart);
+    timer.finishQuery(System.nanoTime() - queryStart);
+
+    long seedNanos = timer.getPhaseHistogram(QueryTimer.SEED_LOOKUP).getTotalNanos();
+    long rankingNanos = timer.getPhaseHistogram(QueryTimer.CANDIDATE_RANKING).getTotalNanos();
+    Assert.assertTrue("seed lookup took " + seedNanos, seedNanos >= 20000000);
+    Assert.assertTrue("candidate ranking should not include seed lookup but took " + rankingNanos, rankingNanos < seedNanos);
+    Assert.assertEquals(1, timer.getTotalHistogram().getCount());
+  }
+}
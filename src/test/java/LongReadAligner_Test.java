@@ -0,0 +1,91 @@
+package mapper;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongReadAligner_Test {
+  public LongReadAligner_Test() {
+  }
+
+  @Test
+  public void testCleanLongRead() {
+    String reference = RandomText.randomText(4000, 1);
+    String query = reference.substring(1000, 3000);
+    List<QueryAlignment> alignments = align(query, reference);
+    if (alignments.size() != 1) {
+      fail("Expected 1 alignment, got " + alignments.size());
+    }
+    SequenceAlignment alignment = alignments.get(0).getComponent(0);
+    Assert.assertEquals(query, alignment.getAlignedTextA());
+    Assert.assertEquals(query, alignment.getAlignedTextB());
+    Assert.assertEquals(0, alignment.getPenalty(), 0);
+  }
+
+  @Test
+  public void testGapLargerThanMaxGapCells() {
+    String reference = RandomText.randomText(4000, 2);
+    // delete 3 basepairs from the middle of the read
+    String query = reference.substring(1000, 2000) + reference.substring(2003, 3000);
+    long previousMaxGapCells = LongReadAligner.maxGapCells;
+    // Now the gap around the deletion is too large to align with the BandedAligner
+    LongReadAligner.maxGapCells = 16;
+    List<QueryAlignment> alignments;
+    try {
+      alignments = align(query, reference);
+    } finally {
+      LongReadAligner.maxGapCells = previousMaxGapCells;
+    }
+    if (alignments.size() != 1) {
+      fail("Expected 1 alignment, got " + alignments.size());
+    }
+    SequenceAlignment alignment = alignments.get(0).getComponent(0);
+    // the whole read should still be aligned, with one deletion somewhere in the gap
+    Assert.assertEquals(query, alignment.getAlignedTextA().replace("-", ""));
+    Assert.assertEquals(reference.substring(1000, 3000), alignment.getAlignedTextB().replace("-", ""));
+    AlignmentParameters parameters = makeParameters();
+    double deletionPenalty = parameters.DeletionStart_Penalty + parameters.DeletionExtension_Penalty * 3;
+    if (alignment.getPenalty() < deletionPenalty - 0.000001) {
+      fail("Expected penalty at least " + deletionPenalty + ", got " + alignment.getPenalty());
+    }
+  }
+
+  @Test
+  public void testDuplicatedRegion() {
+    String duplicated = RandomText.randomText(2000, 3);
+    String reference = RandomText.randomText(1000, 4) + duplicated + RandomText.randomText(1000, 5) + duplicated + RandomText.randomText(1000, 6);
+    String query = duplicated.substring(200, 1800);
+    List<QueryAlignment> alignments = align(query, reference);
+    // each copy is an equally good alignment, so the query shouldn't look uniquely aligned
+    if (alignments.size() != 2) {
+      fail("Expected 2 alignments, got " + alignments.size());
+    }
+    for (QueryAlignment alignment: alignments) {
+      Assert.assertEquals(0, alignment.getPenalty(), 0);
+      Assert.assertEquals(query, alignment.getComponent(0).getAlignedTextB());
+    }
+  }
+
+  private List<QueryAlignment> align(String queryText, String referenceText) {
+    AlignmentParameters parameters = makeParameters();
+    parameters.LongReadMinLength = 1000;
+    return Api.alignOnce(queryText, referenceText, parameters, new Logger(new StderrWriter()));
+  }
+
+  private AlignmentParameters makeParameters() {
+    AlignmentParameters parameters = new AlignmentParameters();
+    parameters.MutationPenalty = 1;
+    parameters.InsertionStart_Penalty = 1.5;
+    parameters.InsertionExtension_Penalty = 0.6;
+    parameters.DeletionStart_Penalty = 1.5;
+    parameters.DeletionExtension_Penalty = 0.5;
+    parameters.MaxErrorRate = 0.2;
+    parameters.AmbiguityPenalty = parameters.MaxErrorRate;
+    parameters.UnalignedPenalty = parameters.MaxErrorRate;
+    return parameters;
+  }
+
+  private void fail(String message) {
+    Assert.fail(message);
+  }
+}
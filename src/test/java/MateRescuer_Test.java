@@ -0,0 +1,135 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MateRescuer_Test {
+  public MateRescuer_Test() {
+  }
+
+  // In a forward pair, seq1 aligns to the forward strand and seq2 aligns downstream of it on the reverse strand
+  @Test
+  public void testRescueSecondMateOnForwardStrand() {
+    Query query = makeQuery(600, 800, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(0), this.reference, 600), 0);
+    checkMate(match, 1, 800, true);
+  }
+
+  @Test
+  public void testRescueFirstMateOnForwardStrand() {
+    Query query = makeQuery(600, 800, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(1).reverseComplement(), this.reference, 800), 1);
+    checkMate(match, 0, 600, false);
+  }
+
+  // In a reverse pair, seq2 aligns to the forward strand and seq1 aligns downstream of it on the reverse strand
+  @Test
+  public void testRescueSecondMateOnReverseStrand() {
+    Query query = makeQuery(800, 600, true);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(0).reverseComplement(), this.reference, 800), 0);
+    checkMate(match, 1, 600, false);
+  }
+
+  @Test
+  public void testRescueFirstMateOnReverseStrand() {
+    Query query = makeQuery(800, 600, true);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(1), this.reference, 600), 1);
+    checkMate(match, 0, 800, true);
+  }
+
+  @Test
+  public void testRescueAtFarEdgeOfWindow() {
+    // the furthest inner distance having an acceptable spacing penalty
+    int mateOffset = 600 + mateLength + getMaxInnerDistance();
+    Query query = makeQuery(600, mateOffset, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(0), this.reference, 600), 0);
+    checkMate(match, 1, mateOffset, true);
+
+    match = rescue(query, new SequenceMatch(query.getSequence(1).reverseComplement(), this.reference, mateOffset), 1);
+    checkMate(match, 0, 600, false);
+  }
+
+  @Test
+  public void testRescueAtNearEdgeOfWindow() {
+    // the mates overlap completely
+    Query query = makeQuery(600, 600, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(0), this.reference, 600), 0);
+    checkMate(match, 1, 600, true);
+  }
+
+  @Test
+  public void testRescueAtStartOfReference() {
+    // the window is cut off by the start of the reference
+    Query query = makeQuery(0, 150, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(1).reverseComplement(), this.reference, 150), 1);
+    checkMate(match, 0, 0, false);
+  }
+
+  @Test
+  public void testNoRescueOutsideWindow() {
+    int mateOffset = 600 + mateLength + getMaxInnerDistance() + mateLength;
+    Query query = makeQuery(600, mateOffset, false);
+    QueryMatch match = rescue(query, new SequenceMatch(query.getSequence(0), this.reference, 600), 0);
+    if (match != null && match.getComponent(1).getOffset() == mateOffset) {
+      fail("Rescued seq2 at offset " + mateOffset + " which is outside of the window");
+    }
+  }
+
+  // Makes a pair of query sequences of which the first one matches the reference at <firstOffset> and the second one is a mutated copy of the reference at <secondOffset>
+  // If <reversed>, the first one is reverse complemented, otherwise the second one is
+  private Query makeQuery(int firstOffset, int secondOffset, boolean reversed) {
+    String firstText = this.reference.getRange(firstOffset, mateLength);
+    // enough mutations that few hashblocks would match, but still within MaxErrorRate
+    String secondText = RandomText.mutateEvenly(this.reference.getRange(secondOffset, mateLength), 10);
+    Sequence first = new SequenceBuilder().setName("seq1").add(firstText).build();
+    Sequence second = new SequenceBuilder().setName("seq2").add(secondText).build();
+    if (reversed)
+      first = new SequenceBuilder().setName("seq1").add(first.reverseComplement().getText()).build();
+    else
+      second = new SequenceBuilder().setName("seq2").add(second.reverseComplement().getText()).build();
+    return new Query(first, second, expectedInnerDistance, deviationPerPenalty);
+  }
+
+  private QueryMatch rescue(Query query, SequenceMatch anchor, int anchorIndex) {
+    MateRescuer rescuer = new MateRescuer(this.parameters);
+    return rescuer.rescue(query, anchor, anchorIndex);
+  }
+
+  private void checkMate(QueryMatch match, int mateIndex, int expectedOffset, boolean expectedReversed) {
+    if (match == null) {
+      fail("Failed to rescue seq" + (mateIndex + 1) + " at offset " + expectedOffset);
+    }
+    SequenceMatch mate = match.getComponent(mateIndex);
+    Assert.assertEquals(expectedOffset, mate.getOffset());
+    Assert.assertEquals(expectedReversed, mate.getReversed());
+    Assert.assertEquals(this.reference, mate.getSequenceB());
+  }
+
+  private int getMaxInnerDistance() {
+    double maxPenalty = mateLength * 2 * this.parameters.MaxErrorRate;
+    return (int)(expectedInnerDistance + (maxPenalty + 1) * deviationPerPenalty);
+  }
+
+  private AlignmentParameters makeParameters() {
+    AlignmentParameters parameters = new AlignmentParameters();
+    parameters.MutationPenalty = 1;
+    parameters.InsertionStart_Penalty = 1.5;
+    parameters.InsertionExtension_Penalty = 0.6;
+    parameters.DeletionStart_Penalty = 1.5;
+    parameters.DeletionExtension_Penalty = 0.5;
+    parameters.MaxErrorRate = 0.2;
+    parameters.AmbiguityPenalty = parameters.MaxErrorRate;
+    parameters.UnalignedPenalty = parameters.MaxErrorRate;
+    return parameters;
+  }
+
+  private void fail(String message) {
+    Assert.fail(message);
+  }
+
+  private static int mateLength = 100;
+  private static double expectedInnerDistance = 100;
+  private static double deviationPerPenalty = 2;
+  private AlignmentParameters parameters = makeParameters();
+  private Sequence reference = new SequenceBuilder().setName("contig").add(RandomText.randomText(2000, 1)).build();
+}
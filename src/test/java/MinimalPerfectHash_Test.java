@@ -0,0 +1,84 @@
+package mapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MinimalPerfectHash_Test {
+  public MinimalPerfectHash_Test() {
+  }
+
+  private int[] makeKeys(int count, Random random) {
+    Set<Integer> keys = new HashSet<Integer>();
+    while (keys.size() < count) {
+      keys.add(random.nextInt());
+    }
+    int[] result = new int[count];
+    int i = 0;
+    for (Integer key: keys) {
+      result[i] = key;
+      i++;
+    }
+    return result;
+  }
+
+  @Test
+  public void testEachKeyGetsItsOwnIndex() {
+    int[] keys = this.makeKeys(100000, new Random(0));
+    MinimalPerfectHash hash = new MinimalPerfectHash(keys);
+    Assert.assertEquals(keys.length, hash.getNumKeys());
+    boolean[] used = new boolean[keys.length];
+    for (int key: keys) {
+      int index = hash.lookup(key);
+      Assert.assertTrue(index >= 0 && index < keys.length);
+      Assert.assertFalse("index " + index + " used twice", used[index]);
+      used[index] = true;
+    }
+    // should be much smaller than storing each key
+    Assert.assertTrue(hash.getNumBytes() < keys.length * 2);
+  }
+
+  @Test
+  public void testRejectsMostAbsentKeys() {
+    Random random = new Random(1);
+    int[] keys = this.makeKeys(10000, random);
+    Set<Integer> keySet = new HashSet<Integer>();
+    for (int key: keys) {
+      keySet.add(key);
+    }
+    MinimalPerfectHash hash = new MinimalPerfectHash(keys);
+    int numAccepted = 0;
+    int numTried = 0;
+    while (numTried < 100000) {
+      int key = random.nextInt();
+      if (keySet.contains(key))
+        continue;
+      numTried++;
+      if (hash.lookup(key) >= 0)
+        numAccepted++;
+    }
+    // an 8-bit fingerprint should accept about 1/256 of absent keys
+    Assert.assertTrue("accepted " + numAccepted, numAccepted < numTried / 100);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    int[] keys = this.makeKeys(5000, new Random(2));
+    MinimalPerfectHash hash = new MinimalPerfectHash(keys);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    hash.writeTo(output);
+    output.close();
+    MinimalPerfectHash loaded = new MinimalPerfectHash(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    for (int key: keys) {
+      Assert.assertEquals(hash.lookup(key), loaded.lookup(key));
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OverriddenSequence_Test {
+  public OverriddenSequence_Test() {
+  }
+
+  @Test
+  public void testOverrides() {
+    Sequence original = new SequenceBuilder().setName("original").add("ACGTACGTAC").build();
+    OverriddenSequence overridden = new OverriddenSequence(original, "overridden");
+    overridden.putEncoded(7, Basepairs.encode('N'));
+    overridden.putEncoded(2, Basepairs.encode('T'));
+    Assert.assertEquals("ACTTACGNAC", overridden.getText());
+    // add another override after the others have been sorted
+    overridden.putEncoded(0, Basepairs.encode('G'));
+    overridden.compactOverrides();
+    Assert.assertEquals("GCTTACGNAC", overridden.getText());
+    Assert.assertEquals(3, overridden.getNumOverrides());
+  }
+
+  @Test
+  public void testDuplicateOverride() {
+    Sequence original = new SequenceBuilder().setName("original").add("ACGT").build();
+    OverriddenSequence overridden = new OverriddenSequence(original, "overridden");
+    overridden.putEncoded(1, Basepairs.encode('A'));
+    try {
+      overridden.putEncoded(1, Basepairs.encode('G'));
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    Assert.fail("Overriding the same position twice should fail");
+  }
+}
@@ -47,6 +47,37 @@ public class PackedMap_Test {
     }
   }
 
+  // A PackedMap with a MinimalPerfectHash puts keys into different bins than one without, so verifyMatches compares the positions that they hold
+  @Test
+  public void testVerifyMatchesWithPerfectHash() {
+    List<Sequence> sequences = makeSequences(1, 100);
+    Sequence sequence = sequences.get(0);
+    SequenceDatabase sequenceDatabase = new SequenceDatabase(sequences, true);
+    int numKeys = 10;
+    int[] keys = new int[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = i * 7;
+    }
+    PackedMap map = new PackedMap(100, 3, sequenceDatabase, 1);
+    PackedMap perfectMap = new PackedMap(100, new MinimalPerfectHash(keys), sequenceDatabase, 1);
+    for (int i = 0; i < numKeys * 2; i++) {
+      long encoded = sequenceDatabase.encodePosition(sequence, i);
+      map.addEncoded(keys[i % numKeys], encoded, false);
+      perfectMap.addEncoded(keys[i % numKeys], encoded, false);
+    }
+    map.verifyMatches(perfectMap);
+    perfectMap.verifyMatches(map);
+
+    // now the perfect map has a position that the other map doesn't
+    perfectMap.addEncoded(keys[0], sequenceDatabase.encodePosition(sequence, numKeys * 2), false);
+    try {
+      map.verifyMatches(perfectMap);
+    } catch (RuntimeException e) {
+      return;
+    }
+    fail("verifyMatches didn't notice a position that only one map has");
+  }
+
   private List<Sequence> makeSequences(int numSequences, int sequenceLength) {
     // Make SequenceDatabase
     List<Sequence> reference = new ArrayList<Sequence>();
@@ -0,0 +1,115 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PackedSequence_Test {
+  public PackedSequence_Test() {
+  }
+
+  @Test
+  public void testEncodedChars() {
+    String text = "ACGTNACGTTGCAACGTACGTACGTACGTACGTAACCGGTTNNACGTR";
+    Sequence sequence = new SequenceBuilder().setName("seq").add(text).build();
+    PackedSequence packed = new PackedSequence(sequence);
+    Assert.assertEquals(text.length(), packed.getLength());
+    for (int i = 0; i < text.length(); i++) {
+      Assert.assertEquals(sequence.encodedCharAt(i), packed.encodedCharAt(i));
+    }
+    byte[] section = packed.getEncodedChars(3, 40);
+    for (int i = 0; i < section.length; i++) {
+      Assert.assertEquals(sequence.encodedCharAt(3 + i), section[i]);
+    }
+  }
+
+  @Test
+  public void testEncodeBlock() {
+    // make the sequence longer than one word of packed basepairs so that some blocks span two words
+    String text = "ACGTTGCAACGTACGTAAACCCGGGTTTACGTACGTGCA";
+    Sequence sequence = new SequenceBuilder().setName("seq").add(text).build();
+    PackedSequence packed = new PackedSequence(sequence);
+    int blockLength = 7;
+    for (int i = 0; i + blockLength <= text.length(); i++) {
+      int expected = 0;
+      for (int j = 0; j < blockLength; j++) {
+        expected = expected * 4 + "ACGT".indexOf(text.charAt(i + j));
+      }
+      Assert.assertEquals(expected, packed.encodeBlock(i, blockLength));
+    }
+    Assert.assertEquals(-1, packed.encodeBlock(text.length() - blockLength + 1, blockLength));
+  }
+
+  @Test
+  public void testAmbiguousBlocks() {
+    String text = "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTNACGT";
+    Sequence sequence = new SequenceBuilder().setName("seq").add(text).build();
+    PackedSequence packed = new PackedSequence(sequence);
+    int ambiguousIndex = text.indexOf('N');
+    Assert.assertTrue(packed.isAmbiguous(ambiguousIndex));
+    Assert.assertFalse(packed.isAmbiguous(ambiguousIndex - 1));
+    Assert.assertEquals(-1, packed.encodeBlock(ambiguousIndex - 3, 4));
+    Assert.assertEquals(-1, packed.encodeBlock(ambiguousIndex, 4));
+    Assert.assertTrue(packed.encodeBlock(ambiguousIndex - 4, 4) >= 0);
+    Assert.assertTrue(packed.encodeBlock(ambiguousIndex + 1, 4) >= 0);
+    Assert.assertTrue(packed.containsAmbiguity(0, text.length()));
+    Assert.assertFalse(packed.containsAmbiguity(0, ambiguousIndex));
+  }
+
+  @Test
+  public void testAmbiguousRuns() {
+    String text = "NNNNNNNNNNACGTNNNNRRACGTACGTACGTACGTACGTACGTACGTACGTNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNT";
+    Sequence sequence = new SequenceBuilder().setName("seq").add(text).build();
+    PackedReferenceSequence packed = new PackedReferenceSequence(sequence);
+    for (int i = 0; i < text.length(); i++) {
+      Assert.assertEquals(sequence.encodedCharAt(i), packed.encodedCharAt(i));
+    }
+    for (int start = 0; start < text.length(); start += 7) {
+      byte[] section = packed.getPacked().getEncodedChars(start, Math.min(30, text.length() - start));
+      for (int i = 0; i < section.length; i++) {
+        Assert.assertEquals(sequence.encodedCharAt(start + i), section[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testGet32BasesAt() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      builder.append("ACGT".charAt((i * 7 + i / 3) % 4));
+    }
+    String text = builder.toString();
+    PackedSequence packed = new PackedSequence(new SequenceBuilder().setName("seq").add(text).build());
+    for (int start = 0; start + 32 <= text.length(); start++) {
+      long expected = 0;
+      for (int i = 0; i < 32; i++) {
+        expected = expected * 4 + "ACGT".indexOf(text.charAt(start + i));
+      }
+      Assert.assertEquals(expected, packed.get32BasesAt(start));
+    }
+  }
+
+  @Test
+  public void testPackedReverseComplement() {
+    String text = "ACGTTGCAACGTACGTAAACCCGGGTTTACGTACGTGCANNNNRACGTACGTACGTACGTACGTACGTTTTGGGCCCAAAT";
+    Sequence sequence = new SequenceBuilder().setName("seq").add(text).build();
+    PackedReferenceSequence forward = new PackedReferenceSequence(sequence);
+    Sequence reverse = forward.reverseComplement();
+    if (!(reverse instanceof PackedReferenceSequence)) {
+      fail("Reverse complement of a packed contig isn't packed");
+    }
+    Assert.assertSame(reverse, forward.reverseComplement());
+    Assert.assertSame(forward, reverse.getComplementedFrom());
+    Assert.assertSame(forward, reverse.reverseComplement());
+    Assert.assertNull(forward.getComplementedFrom());
+    Sequence expected = sequence.reverseComplement();
+    byte[] chars = PackedReferenceSequence.getPacked(reverse).getEncodedChars(0, text.length());
+    for (int i = 0; i < text.length(); i++) {
+      Assert.assertEquals(expected.encodedCharAt(i), reverse.encodedCharAt(i));
+      Assert.assertEquals(expected.encodedCharAt(i), chars[i]);
+    }
+  }
+
+  private void fail(String message) {
+    Assert.fail(message);
+  }
+}
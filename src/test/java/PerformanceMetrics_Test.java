@@ -0,0 +1,61 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PerformanceMetrics_Test {
+  public PerformanceMetrics_Test() {
+  }
+
+  @Test
+  public void testFormatJson() {
+    PerformanceMetrics metrics = makeMetrics();
+    String expected = "{\n" +
+      "  \"num_queries\": 12,\n" +
+      "  \"capacity\": {\"20\": 100, \"21\": 50},\n" +
+      "  \"hit_rate\": 0.25\n" +
+      "}\n";
+    Assert.assertEquals(expected, metrics.formatJson());
+  }
+
+  @Test
+  public void testFormatPrometheus() {
+    PerformanceMetrics metrics = makeMetrics();
+    String expected = "# TYPE xmapper_num_queries gauge\n" +
+      "xmapper_num_queries 12\n" +
+      "# TYPE xmapper_capacity gauge\n" +
+      "xmapper_capacity{length=\"20\"} 100\n" +
+      "xmapper_capacity{length=\"21\"} 50\n" +
+      "# TYPE xmapper_hit_rate gauge\n" +
+      "xmapper_hit_rate 0.25\n";
+    Assert.assertEquals(expected, metrics.formatPrometheus());
+  }
+
+  @Test
+  public void testNonFiniteValues() {
+    PerformanceMetrics metrics = new PerformanceMetrics();
+    metrics.add("hit_rate", Double.NaN);
+    metrics.add("capacity", "length", "20", Double.POSITIVE_INFINITY);
+    metrics.add("capacity", "length", "21", Double.NEGATIVE_INFINITY);
+    String expectedJson = "{\n" +
+      "  \"hit_rate\": null,\n" +
+      "  \"capacity\": {\"20\": null, \"21\": null}\n" +
+      "}\n";
+    Assert.assertEquals(expectedJson, metrics.formatJson());
+    String expectedPrometheus = "# TYPE xmapper_hit_rate gauge\n" +
+      "xmapper_hit_rate NaN\n" +
+      "# TYPE xmapper_capacity gauge\n" +
+      "xmapper_capacity{length=\"20\"} +Inf\n" +
+      "xmapper_capacity{length=\"21\"} -Inf\n";
+    Assert.assertEquals(expectedPrometheus, metrics.formatPrometheus());
+  }
+
+  private PerformanceMetrics makeMetrics() {
+    PerformanceMetrics metrics = new PerformanceMetrics();
+    metrics.add("num_queries", 12);
+    metrics.add("capacity", "length", "20", 100);
+    metrics.add("capacity", "length", "21", 50);
+    metrics.add("hit_rate", 0.25);
+    return metrics;
+  }
+}
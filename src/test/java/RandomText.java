@@ -0,0 +1,49 @@
+package mapper;
+
+import java.util.Random;
+
+// Helps tests make random basepairs and mutated copies of them
+public class RandomText {
+  // returns <length> random basepairs chosen using the given seed
+  public static String randomText(int length, long seed) {
+    return randomText(new Random(seed), length);
+  }
+
+  public static String randomText(Random random, int length) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      builder.append("ACGT".charAt(random.nextInt(4)));
+    }
+    return builder.toString();
+  }
+
+  // applies up to <maxNumChanges> random point mutations and single-basepair indels to the given text, not within <margin> of either end
+  public static String mutate(Random random, String text, int maxNumChanges, int margin) {
+    StringBuilder builder = new StringBuilder(text);
+    int numChanges = random.nextInt(maxNumChanges + 1);
+    for (int i = 0; i < numChanges && builder.length() > margin * 2 + 1; i++) {
+      int position = margin + random.nextInt(builder.length() - margin * 2);
+      int type = random.nextInt(3);
+      if (type == 0) {
+        builder.setCharAt(position, "ACGT".charAt(random.nextInt(4)));
+      } else {
+        if (type == 1) {
+          builder.insert(position, "ACGT".charAt(random.nextInt(4)));
+        } else {
+          builder.deleteCharAt(position);
+        }
+      }
+    }
+    return builder.toString();
+  }
+
+  // changes one basepair out of every <spacing>
+  public static String mutateEvenly(String text, int spacing) {
+    StringBuilder builder = new StringBuilder(text);
+    for (int i = spacing / 2; i < builder.length(); i += spacing) {
+      char original = builder.charAt(i);
+      builder.setCharAt(i, original == 'A' ? 'C' : 'A');
+    }
+    return builder.toString();
+  }
+}
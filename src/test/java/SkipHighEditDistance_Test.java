@@ -0,0 +1,117 @@
+package mapper;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SkipHighEditDistance_Test {
+  public SkipHighEditDistance_Test() {
+  }
+
+  @Test
+  public void testExactMatch() {
+    checkDistance("ACGTTGCA", "TTTACGTTGCATTT", 0);
+  }
+
+  @Test
+  public void testMismatchAndIndel() {
+    checkDistance("ACGTTGCAAGGCTTACG", "TTTACGTAGCAAGCTTACGTTT", 2);
+  }
+
+  @Test
+  public void testAmbiguousBasesMatch() {
+    checkDistance("ACGNNGCA", "TTTACGTTGCATTT", 0);
+  }
+
+  // Compares against a simple dynamic-programming computation, including queries spanning several 64-bit words
+  @Test
+  public void testSameAsDynamicProgramming() {
+    Random random = new Random(0);
+    SkipHighEditDistance_Aligner aligner = new SkipHighEditDistance_Aligner(new PathAligner_Runner());
+    for (int trial = 0; trial < 300; trial++) {
+      int queryLength = 1 + random.nextInt(200);
+      String reference = RandomText.randomText(random, queryLength + random.nextInt(40));
+      String query = RandomText.mutate(random, reference.substring(random.nextInt(reference.length() - queryLength + 1)).substring(0, queryLength), 5, 0);
+      if (random.nextInt(4) == 0)
+        query = RandomText.randomText(random, queryLength);
+      int expected = computeEditDistance(query, reference);
+      for (int maxNumEdits = 0; maxNumEdits <= query.length(); maxNumEdits += 1 + random.nextInt(5)) {
+        int actual = computeMinEditDistance(aligner, query, reference, maxNumEdits);
+        if ((actual <= maxNumEdits) != (expected <= maxNumEdits)) {
+          fail("Edit distance of " + query + " in " + reference + " is " + expected + " but got " + actual + " for max num edits " + maxNumEdits);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSkipsDistantReference() {
+    String query = "ACGTACGTACGTACGTACGT";
+    String ref   = "TTTTGCATGCATGCATGCATGCATTTT";
+    AlignmentParameters parameters = makeParameters();
+    Sequence a = new SequenceBuilder().setName("a").add(query).build();
+    Sequence b = new SequenceBuilder().setName("b").add(ref).build();
+    SkipHighEditDistance_Aligner aligner = new SkipHighEditDistance_Aligner(new PathAligner_Runner());
+    aligner.setLogger(new Logger(new StderrWriter()));
+    AlignmentAnalysis analysis = new AlignmentAnalysis();
+    SequenceAlignment result = aligner.align(new SequenceSection(a, 0, a.getLength()), new SequenceSection(b, 2, b.getLength() - 2), parameters, analysis);
+    if (result != null) {
+      fail("Expected no alignment but got alignment with penalty " + result.getPenalty() + ":\n" + result.format());
+    }
+  }
+
+  private void checkDistance(String query, String reference, int expected) {
+    SkipHighEditDistance_Aligner aligner = new SkipHighEditDistance_Aligner(new PathAligner_Runner());
+    if (computeMinEditDistance(aligner, query, reference, expected) > expected) {
+      fail("Expected edit distance " + expected + " for " + query + " in " + reference + ", got more");
+    }
+    if (computeMinEditDistance(aligner, query, reference, expected - 1) <= expected - 1) {
+      fail("Expected edit distance " + expected + " for " + query + " in " + reference + ", got less");
+    }
+  }
+
+  private int computeMinEditDistance(SkipHighEditDistance_Aligner aligner, String query, String reference, int maxNumEdits) {
+    Sequence a = new SequenceBuilder().setName("a").add(query).build();
+    Sequence b = new SequenceBuilder().setName("b").add(reference).build();
+    return aligner.computeMinEditDistance(new SequenceSection(a, 0, a.getLength()), new SequenceSection(b, 0, b.getLength()), maxNumEdits);
+  }
+
+  // computes the edit distance from the query to its best-matching substring of the reference
+  private int computeEditDistance(String query, String reference) {
+    int[] previous = new int[query.length() + 1];
+    int[] current = new int[query.length() + 1];
+    for (int i = 0; i <= query.length(); i++) {
+      previous[i] = i;
+    }
+    int best = previous[query.length()];
+    for (int j = 1; j <= reference.length(); j++) {
+      current[0] = 0;
+      for (int i = 1; i <= query.length(); i++) {
+        int cost = (query.charAt(i - 1) == reference.charAt(j - 1)) ? 0 : 1;
+        current[i] = Math.min(previous[i - 1] + cost, Math.min(previous[i], current[i - 1]) + 1);
+      }
+      best = Math.min(best, current[query.length()]);
+      int[] temp = previous;
+      previous = current;
+      current = temp;
+    }
+    return best;
+  }
+
+  private void fail(String message) {
+    Assert.fail(message);
+  }
+
+  private AlignmentParameters makeParameters() {
+    AlignmentParameters parameters = new AlignmentParameters();
+    parameters.MutationPenalty = 1;
+    parameters.InsertionStart_Penalty = 2;
+    parameters.InsertionExtension_Penalty = 0.5;
+    parameters.DeletionStart_Penalty = 2;
+    parameters.DeletionExtension_Penalty = 0.5;
+    parameters.MaxErrorRate = 0.1;
+    parameters.AmbiguityPenalty = 0.1;
+    parameters.UnalignedPenalty = parameters.AmbiguityPenalty;
+    return parameters;
+  }
+}
@@ -0,0 +1,43 @@
+package mapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlotSet_Test {
+  public SlotSet_Test() {
+  }
+
+  @Test
+  public void testAddAndRemove() {
+    SlotSet set = new SlotSet(5);
+    set.add(3);
+    set.add(1);
+    set.add(4);
+    set.add(1);
+    Assert.assertEquals(3, set.size());
+    set.remove(3);
+    set.remove(2);
+    Assert.assertEquals(2, set.size());
+    Assert.assertFalse(set.contains(3));
+    Assert.assertTrue(set.contains(1));
+    Assert.assertTrue(set.contains(4));
+    int sum = 0;
+    for (int i = 0; i < set.size(); i++) {
+      sum += set.get(i);
+    }
+    Assert.assertEquals(5, sum);
+  }
+
+  @Test
+  public void testClear() {
+    SlotSet set = new SlotSet(3);
+    set.add(0);
+    set.add(2);
+    set.clear();
+    Assert.assertEquals(0, set.size());
+    Assert.assertFalse(set.contains(0));
+    set.add(2);
+    Assert.assertEquals(1, set.size());
+    Assert.assertEquals(2, set.get(0));
+  }
+}
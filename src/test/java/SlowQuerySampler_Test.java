@@ -0,0 +1,70 @@
+package mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlowQuerySampler_Test {
+  public SlowQuerySampler_Test() {
+  }
+
+  @Test
+  public void testKeepsSlowest() {
+    SlowQuerySampler sampler = new SlowQuerySampler(2, 0);
+    long[] nanos = new long[]{5, 40, 10, 30, 20};
+    for (int i = 0; i < nanos.length; i++) {
+      sampler.offer(makeQuery("q" + i), nanos[i], i, 0);
+    }
+    SlowQuerySampler other = sampler.newEmpty();
+    other.offer(makeQuery("q5"), 35, 5, 0);
+    sampler.add(other, 0);
+
+    List<SlowQuerySampler.Sample> slowest = sampler.getSlowest();
+    Assert.assertEquals(2, slowest.size());
+    Assert.assertEquals(40, slowest.get(0).getNanos());
+    Assert.assertEquals(1, slowest.get(0).getNumCandidates());
+    Assert.assertEquals(35, slowest.get(1).getNanos());
+  }
+
+  @Test
+  public void testSamplesSomething() {
+    SlowQuerySampler sampler = new SlowQuerySampler(0, 3);
+    for (int i = 0; i < 10; i++) {
+      sampler.offer(makeQuery("q" + i), i, 0, System.currentTimeMillis());
+    }
+    List<SlowQuerySampler.Sample> sampled = sampler.getSampled();
+    Assert.assertTrue(sampled.size() >= 1 && sampled.size() <= 3);
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    SlowQuerySampler sampler = new SlowQuerySampler(1, 0);
+    sampler.offer(makeQuery("slow"), 2000000, 7, 0);
+    File file = File.createTempFile("slow", ".fastq");
+    file.deleteOnExit();
+    sampler.write(file.getPath());
+    String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    String[] lines = text.split("\n");
+    Assert.assertEquals(4, lines.length);
+    Assert.assertTrue(lines[0], lines[0].startsWith("@slow "));
+    Assert.assertTrue(lines[0], lines[0].contains("reason=slowest_rank=1"));
+    Assert.assertTrue(lines[0], lines[0].contains("millis=2.0"));
+    Assert.assertTrue(lines[0], lines[0].contains("candidates=7"));
+    Assert.assertEquals("ACGTACGT", lines[1]);
+    Assert.assertEquals("+", lines[2]);
+    Assert.assertEquals("IIIIIIII", lines[3]);
+  }
+
+  @Test
+  public void testPairedPath() {
+    Assert.assertEquals("slow_2.fastq", SlowQuerySampler.getPairedPath("slow.fastq", 2));
+    Assert.assertEquals("dir.x/slow_1", SlowQuerySampler.getPairedPath("dir.x/slow", 1));
+  }
+
+  private Query makeQuery(String name) {
+    return new Query(new SequenceBuilder().setName(name).add("ACGTACGT").build());
+  }
+}